@@ -2,18 +2,41 @@ package application;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 
 
+import meme.Alphabet;
+import meme.KmerBlockScorer;
 import meme.Motif;
 import meme.MotifLocations;
+import meme.compare.MotifLibrary;
+import meme.compare.MotifMatch;
+import meme.oops.DistributedEM;
+import meme.oops.EMSettings;
+import meme.oops.EMWorkspace;
+import meme.oops.FusedEM;
+import meme.oops.JobPlan;
+import meme.oops.JobPlanner;
 import meme.oops.MEME_OOPS;
+import meme.oops.OnlineEM;
+import meme.oops.RestartEnsemble;
 
 import pair.Pair;
+import data.BackgroundEstimator;
+import events.OutputEvent;
+import data.IngestPipeline;
+import data.KmerSeedIndex;
+import data.LengthStatistics;
+import data.LowComplexityMasker;
+import data.ResultWriter;
 import data.SequenceReader;
 import data.SequenceSet;
+import data.SequenceStream;
 
 /**
  * The main program
@@ -23,24 +46,515 @@ import data.SequenceSet;
  */
 public class Main 
 {
+	/**
+	 * The number of library motifs printed for the motif found
+	 */
+	private static final int LIBRARY_MATCHES = 5;
+	
 	public static void main(String[] args)
 	{
 		/*
 		 * Read arguments
 		 */
-		SequenceSet sequences = SequenceReader.readFile(args[0]);
 		int width = Integer.parseInt(args[1]);
 		File modelFile = new File(args[2]);
 		File positionsFile = new File(args[3]);
 		
+		boolean online = false;
+		boolean singlePrecision = false;
+		boolean pipelined = false;
+		boolean lowMemory = false;
+		boolean planned = false;
+		String workers = null;
+		String cacheDirectory = null;
+		String libraryFile = null;
+		File resultsFile = null;
+		boolean binaryResults = false;
+		long cacheBytes = ResultCache.DEFAULT_MAX_BYTES;
+		Long seed = null;
+		int numRestarts = 0;
+		Alphabet alphabet = Alphabet.DNA;
+		LowComplexityMasker masker = null;
+		for (int i = 4; i < args.length; i++)
+		{
+			if (args[i].equals("-online"))
+			{
+				online = true;
+			}
+			else if (args[i].equals("-mask"))
+			{
+				masker = new LowComplexityMasker();
+			}
+			else if (args[i].equals("-float"))
+			{
+				singlePrecision = true;
+			}
+			else if (args[i].equals("-pipelined"))
+			{
+				pipelined = true;
+			}
+			else if (args[i].equals("-lowmem"))
+			{
+				lowMemory = true;
+			}
+			else if (args[i].equals("-auto"))
+			{
+				planned = true;
+			}
+			else if (args[i].equals("-workers"))
+			{
+				workers = args[++i];
+			}
+			else if (args[i].equals("-cache"))
+			{
+				cacheDirectory = args[++i];
+			}
+			else if (args[i].equals("-cachesize"))
+			{
+				cacheBytes = Long.parseLong(args[++i]) << 20;
+			}
+			else if (args[i].equals("-seed"))
+			{
+				seed = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("-restarts"))
+			{
+				numRestarts = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-alphabet"))
+			{
+				alphabet = Alphabet.forName(args[++i]);
+			}
+			else if (args[i].equals("-library"))
+			{
+				libraryFile = args[++i];
+			}
+			else if (args[i].equals("-results"))
+			{
+				resultsFile = new File(args[++i]);
+			}
+			else if (args[i].equals("-binaryresults"))
+			{
+				resultsFile = new File(args[++i]);
+				binaryResults = true;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		
+		if ((masker != null || online) && alphabet != Alphabet.DNA)
+		{
+			throw new IllegalArgumentException("Masking and online EM are only supported for DNA");
+		}
+		if (libraryFile != null && alphabet != Alphabet.DNA)
+		{
+			throw new IllegalArgumentException("Motif libraries are only supported for DNA");
+		}
+		int numEngines = (online ? 1 : 0) + (workers != null ? 1 : 0) + (planned ? 1 : 0) 
+				+ (lowMemory ? 1 : 0) + (numRestarts > 0 ? 1 : 0);
+		if (numEngines > 1)
+		{
+			throw new IllegalArgumentException("Only one of -online, -workers, -auto, -lowmem "
+											   + "and -restarts may be given");
+		}
+		if (online && (masker != null || cacheDirectory != null || pipelined 
+					   || resultsFile != null || libraryFile != null))
+		{
+			throw new IllegalArgumentException("Online EM is not supported with -mask, -cache, "
+											   + "-pipelined, -results, -binaryresults or -library");
+		}
+		if (singlePrecision && (online || lowMemory || planned || workers != null))
+		{
+			throw new IllegalArgumentException("Single precision is not supported with -online, "
+											   + "-lowmem, -auto or -workers");
+		}
+		String symbols = alphabet.getSymbols();
+		
+		if (online)
+		{
+			runOnline(args[0], width, modelFile, positionsFile);
+			return;
+		}
+		
+		SequenceSet sequences;
+		KmerSeedIndex seedIndex = null;
+		BackgroundEstimator background = null;
+		int k = Math.min(width, KmerSeedIndex.defaultK(alphabet.size()));
+		if (pipelined)
+		{
+			/*
+			 * Count k-mers and collect statistics while the file is read
+			 */
+			LengthStatistics lengths = new LengthStatistics();
+			background = new BackgroundEstimator(symbols, 1.0);
+			seedIndex = new KmerSeedIndex(symbols, k);
+			
+			IngestPipeline pipeline = new IngestPipeline(args[0], masker);
+			pipeline.addStage(lengths);
+			pipeline.addStage(background);
+			pipeline.addStage(seedIndex);
+			try
+			{
+				sequences = pipeline.run();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return;
+			}
+			
+			System.out.println("\n\nSequences:\n\n" + lengths);
+			System.out.println("Background:\n\n" + background);
+		}
+		else
+		{
+			sequences = SequenceReader.readFile(args[0], masker);
+		}
+		
 		/*
-		 * Run EM
+		 * Identical sequences are processed once, weighted by their number
 		 */
-		Pair<Motif, MotifLocations> result = MEME_OOPS.run(sequences, 14);
-		Motif resultP = result.getFirst();
-		MotifLocations resultZ = result.getSecond();
-		ArrayList<Pair<Integer, String>> realizedMotifs 
-									= sequences.pickOutMotifs(resultP, resultZ);
+		SequenceSet distinct = sequences.collapseDuplicates();
+		
+		/*
+		 * Describe the run, so that a cached result of the same run can 
+		 * be used instead.  A planned run is described by the inputs of its
+		 * plan, so that a cached result is found before any planning.
+		 */
+		String mode;
+		if (workers != null)
+		{
+			mode = "distributed k=" + k + " seeds=" + KmerSeedIndex.DEFAULT_NUM_SEEDS;
+		}
+		else if (planned)
+		{
+			mode = "auto seed=" + seed;
+		}
+		else if (lowMemory)
+		{
+			mode = "lowmem k=" + k + " seeds=" + KmerSeedIndex.DEFAULT_NUM_SEEDS;
+		}
+		else if (numRestarts > 0)
+		{
+			mode = "restarts n=" + numRestarts + " seed=" + seed 
+					+ " margin=" + RestartEnsemble.DEFAULT_STOP_MARGIN;
+		}
+		else if (pipelined)
+		{
+			mode = "kmer k=" + k + " seeds=" + KmerSeedIndex.DEFAULT_NUM_SEEDS;
+		}
+		else
+		{
+			mode = "exhaustive";
+		}
+		mode += " float=" + singlePrecision;
+		
+		ResultCache cache = null;
+		String corpus = null;
+		String resultKey = null;
+		if (cacheDirectory != null)
+		{
+			cache = new ResultCache(new File(cacheDirectory), cacheBytes);
+			corpus = ResultCache.hash(sequences);
+			
+			/*
+			 * Restarts and plans seeded from the clock are not repeatable
+			 */
+			if ((numRestarts == 0 && !planned) || seed != null)
+			{
+				resultKey = ResultCache.key(corpus, "OOPS", symbols, 
+						Integer.toString(width), mode, MEME_OOPS.getSettings());
+				ResultCache.CachedResult cached = cache.getResult(resultKey);
+				if (cached != null)
+				{
+					System.out.println("\n\nCached result: " + cached.getMetrics());
+					ArrayList<Pair<Integer, String>> realizedMotifs 
+									= new ArrayList<Pair<Integer, String>>();
+					for (int i = 0; i < sequences.getNumSequences(); i++)
+					{
+						int start = cached.getPositions().get(i);
+						realizedMotifs.add(new Pair<Integer, String>(start, 
+								sequences.getSequence(i).substring(start, start + width)));
+					}
+					writeResults(cached.getMotif(), realizedMotifs, modelFile, positionsFile);
+					writeResultsFile(resultsFile, binaryResults, cached.getMotif(), 
+									 realizedMotifs, null);
+					printLibraryMatches(cached.getMotif(), libraryFile);
+					return;
+				}
+			}
+			
+			try
+			{
+				String kmerKey = ResultCache.key(corpus, "kmers", symbols, 
+												 Integer.toString(k));
+				if (seedIndex != null)
+				{
+					cache.putKmerIndex(kmerKey, seedIndex);
+					cache.putBackground(ResultCache.key(corpus, "background", 
+														symbols, "1.0"), 
+										background.getProbabilities());
+				}
+				else if (workers != null || lowMemory)
+				{
+					seedIndex = cache.getKmerIndex(kmerKey);
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		/*
+		 * Choose the engine settings from the cost of the job
+		 */
+		JobPlanner planner = null;
+		JobPlan plan = null;
+		if (planned)
+		{
+			planner = new JobPlanner(seed != null ? seed : System.currentTimeMillis());
+			plan = planner.plan(distinct, width, symbols);
+			if (plan.getMemoryMode() == JobPlan.MEMORY_FUSED)
+			{
+				lowMemory = true;
+			}
+		}
+		
+		/*
+		 * Run EM, either once from the best seed or as an ensemble of 
+		 * randomly seeded restarts
+		 */
+		LinkedHashMap<String, String> metrics = new LinkedHashMap<String, String>();
+		long begin = System.currentTimeMillis();
+		if ((workers != null || lowMemory) && seedIndex == null)
+		{
+			seedIndex = new KmerSeedIndex(symbols, k);
+			seedIndex.consume(sequences, 0);
+			if (cache != null)
+			{
+				try
+				{
+					cache.putKmerIndex(ResultCache.key(corpus, "kmers", symbols, 
+													   Integer.toString(k)), 
+									   seedIndex);
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		Pair<Motif, MotifLocations> result = null;
+		Motif resultP = null;
+		ArrayList<Pair<Integer, String>> realizedMotifs = null;
+		ArrayList<Double> posteriors = null;
+		if (lowMemory)
+		{
+			/*
+			 * Keep only the most probable start of each sequence
+			 */
+			FusedEM em = new FusedEM();
+			Motif start = em.getStartingMotif(distinct, 
+											  getSeeds(seedIndex, sequences, distinct, width), 
+											  width, 
+											  symbols, 
+											  3);
+			if (start == null)
+			{
+				System.err.println("No usable seed window");
+				return;
+			}
+			resultP = em.run(distinct, start);
+			realizedMotifs = distinct.expandToSource(
+					distinct.pickOutMotifs(resultP, em.getBestStarts()));
+			if (plan != null)
+			{
+				planner.record(plan, (System.currentTimeMillis() - begin) / 1000.0);
+			}
+		}
+		else if (workers != null)
+		{
+			result = runDistributed(distinct, width, symbols, workers, 
+									getSeeds(seedIndex, sequences, distinct, width));
+			if (result == null)
+			{
+				return;
+			}
+		}
+		else if (plan != null)
+		{
+			result = planner.run(distinct, width, symbols, plan);
+		}
+		else if (numRestarts > 0)
+		{
+			RestartEnsemble ensemble = new RestartEnsemble(numRestarts, 
+					Runtime.getRuntime().availableProcessors(), 
+					RestartEnsemble.DEFAULT_STOP_MARGIN, 
+					seed != null ? seed : System.currentTimeMillis());
+			ensemble.setSinglePrecision(singlePrecision);
+			result = ensemble.run(distinct, width, symbols);
+			System.out.println("\n\nRestarts:\n\n" + ensemble.getSummary());
+		}
+		else
+		{
+			EMSettings settings = new EMSettings();
+			settings.setAlphabet(symbols);
+			settings.setSinglePrecision(singlePrecision);
+			if (seedIndex != null)
+			{
+				settings.setSeeds(getSeeds(seedIndex, sequences, distinct, width));
+			}
+			result = MEME_OOPS.run(distinct, width, settings);
+		}
+		if (result != null)
+		{
+			resultP = result.getFirst();
+			MotifLocations resultZ = result.getSecond();
+			ArrayList<Pair<Integer, String>> distinctMotifs = distinct.pickOutMotifs(resultP, resultZ);
+			posteriors = new ArrayList<Double>();
+			for (int d = 0; d < distinct.getNumSequences(); d++)
+			{
+				posteriors.add(resultZ.getLocationProbability(d, distinctMotifs.get(d).getFirst()));
+			}
+			realizedMotifs = distinct.expandToSource(distinctMotifs);
+			posteriors = distinct.expandToSource(posteriors);
+		}
+		if (plan != null)
+		{
+			System.out.println("\n\nPlan:\n\n" + plan);
+		}
+		metrics.put("mode", mode);
+		metrics.put("seconds", Double.toString((System.currentTimeMillis() - begin) / 1000.0));
+		
+		if (resultKey != null)
+		{
+			ArrayList<Integer> positions = new ArrayList<Integer>();
+			for (Pair<Integer, String> pair : realizedMotifs)
+			{
+				positions.add(pair.getFirst());
+			}
+			try
+			{
+				cache.putResult(resultKey, resultP, positions, metrics);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		writeResults(resultP, realizedMotifs, modelFile, positionsFile);
+		writeResultsFile(resultsFile, binaryResults, resultP, realizedMotifs, posteriors);
+		printLibraryMatches(resultP, libraryFile);
+	}
+	
+	/**
+	 * Stream the motif and its site in each sequence to a results file, 
+	 * labelled text or binary, as written by {@link ResultWriter}.
+	 * 
+	 * @param resultsFile the results file, or null to write nothing
+	 * @param binary whether to write the binary format
+	 * @param resultP the motif model
+	 * @param realizedMotifs the location and realized motif in each sequence
+	 * @param posteriors the posterior probability of each location, or null
+	 * if it is not known
+	 */
+	public static void writeResultsFile(File resultsFile, 
+										boolean binary, 
+										Motif resultP, 
+										ArrayList<Pair<Integer, String>> realizedMotifs, 
+										ArrayList<Double> posteriors)
+	{
+		if (resultsFile == null)
+		{
+			return;
+		}
+		
+		ResultWriter out = null;
+		try
+		{
+			out = new ResultWriter(resultsFile, binary);
+			int motif = out.writeMotif(resultP);
+			for (int i = 0; i < realizedMotifs.size(); i++)
+			{
+				Pair<Integer, String> pair = realizedMotifs.get(i);
+				out.writeSite(motif, 
+							  i, 
+							  pair.getFirst(), 
+							  false, 
+							  posteriors != null ? posteriors.get(i) : Double.NaN, 
+							  pair.getSecond());
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			try
+			{
+				if (out != null)
+				{
+					out.close();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Print the motifs of a library most similar to the motif found.
+	 * 
+	 * @param resultP the motif model
+	 * @param libraryFile the library file in JASPAR format, or null to
+	 * print nothing
+	 */
+	public static void printLibraryMatches(Motif resultP, String libraryFile)
+	{
+		if (libraryFile == null || resultP == null)
+		{
+			return;
+		}
+		
+		try
+		{
+			MotifLibrary library = MotifLibrary.readJaspar(libraryFile);
+			System.out.println("\n\nLibrary matches:\n");
+			for (MotifMatch match : library.search(resultP, LIBRARY_MATCHES))
+			{
+				System.out.println(match);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Print the motif and realized motifs, and write the model and positions
+	 * files.
+	 * 
+	 * @param resultP the motif model
+	 * @param realizedMotifs the location and realized motif in each sequence
+	 * @param modelFile the model file to be written
+	 * @param positionsFile the positions file to be written
+	 */
+	public static void writeResults(Motif resultP, 
+									ArrayList<Pair<Integer, String>> realizedMotifs, 
+									File modelFile, 
+									File positionsFile)
+	{
+		OutputEvent event = new OutputEvent();
+		event.begin();
 		
 		/*
 		 * Print results to console
@@ -62,8 +576,168 @@ public class Main
 		{
 			System.out.println(pair.getFirst() + "\t" + pair.getSecond());
 		}
+		
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.modelFile = modelFile.getPath();
+			event.positionsFile = positionsFile.getPath();
+			event.numSequences = realizedMotifs.size();
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Choose seed windows from the most frequent k-mers of the sequences, 
+	 * indexed into the collapsed set of distinct sequences.
+	 * 
+	 * @param seedIndex the k-mer table of the sequences
+	 * @param sequences the sequences as read
+	 * @param distinct the distinct sequences
+	 * @param width the width of the motif
+	 * @return the sequence index in <code>distinct</code> and start position
+	 * of each seed window
+	 */
+	public static ArrayList<Pair<Integer, Integer>> getSeeds(KmerSeedIndex seedIndex, 
+															 SequenceSet sequences, 
+															 SequenceSet distinct, 
+															 int width)
+	{
+		ArrayList<Pair<Integer, Integer>> seeds = new ArrayList<Pair<Integer, Integer>>();
+		for (Pair<Integer, Integer> seed : seedIndex.getSeeds(sequences, 
+																width, 
+																KmerSeedIndex.DEFAULT_NUM_SEEDS))
+		{
+			seeds.add(new Pair<Integer, Integer>(distinct.getEntry(seed.getFirst()), 
+												 seed.getSecond()));
+		}
+		return seeds;
 	}
 
+	/**
+	 * Fit the motif with online EM, streaming the sequence file in batches
+	 * instead of reading it into memory, and write the model and positions.
+	 * 
+	 * @param sequenceFile the sequence file
+	 * @param width the width of the motif
+	 * @param modelFile the model file to be written
+	 * @param positionsFile the positions file to be written
+	 */
+	public static void runOnline(String sequenceFile, 
+								 int width, 
+								 File modelFile, 
+								 File positionsFile)
+	{
+		PrintWriter out = null;
+		
+		try
+		{
+			SequenceStream stream = new SequenceStream(sequenceFile);
+			OnlineEM em = new OnlineEM();
+			
+			Motif p = em.run(stream, width);
+			System.out.println("\n\nMotif:\n\n" + p);
+			writeModelFile(modelFile, p);
+			
+			out = new PrintWriter(positionsFile);
+			em.writePositions(stream, p, out);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			if (out != null)
+			{
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * Fit the motif with EM distributed over worker processes, each started 
+	 * with <code>java meme.oops.EMWorker port</code>.  The sequences are 
+	 * written to shard files in a temporary directory, which the workers 
+	 * must be able to read, and the starting motif is chosen from the seed
+	 * windows with distributed iterations.  The motif locations are computed 
+	 * locally from the fitted motif.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @param workers the workers' addresses, as comma-separated host:port
+	 * @param seeds the sequence index and start position of each seed window
+	 * @return the motif and its locations, or null if the workers failed
+	 */
+	public static Pair<Motif, MotifLocations> runDistributed(SequenceSet sequences, 
+															 int width, 
+															 String alphabet, 
+															 String workers, 
+															 ArrayList<Pair<Integer, Integer>> seeds)
+	{
+		ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String worker : workers.split(","))
+		{
+			int colon = worker.lastIndexOf(':');
+			addresses.add(new InetSocketAddress(worker.substring(0, colon), 
+												Integer.parseInt(worker.substring(colon + 1))));
+		}
+		
+		DistributedEM em = null;
+		File directory = null;
+		try
+		{
+			em = new DistributedEM(addresses, DistributedEM.DEFAULT_TIMEOUT);
+			
+			directory = File.createTempFile("shards", "");
+			directory.delete();
+			directory.mkdir();
+			em.writeShards(sequences, width, 4 * addresses.size(), directory);
+			
+			Motif start = em.getStartingMotif(sequences, 
+											  width, 
+											  alphabet, 
+											  seeds, 
+											  3);
+			if (start == null)
+			{
+				System.err.println("No usable seed window");
+				return null;
+			}
+			Motif p = em.run(start);
+			System.out.println("\n\nWorkers: " + em.getNumWorkers() + " of " + addresses.size() 
+							   + ", shard requests reassigned: " + em.getNumReassigned());
+			
+			EMWorkspace workspace = new EMWorkspace(sequences, width, alphabet);
+			workspace.setBlockScoring(KmerBlockScorer.defaultBlockSize(alphabet.length()));
+			workspace.getMotif().copyFrom(p);
+			workspace.expect();
+			
+			return new Pair<Motif, MotifLocations>(p, workspace.getLocations());
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			if (em != null)
+			{
+				em.close();
+			}
+			if (directory != null)
+			{
+				for (File file : directory.listFiles())
+				{
+					file.delete();
+				}
+				directory.delete();
+			}
+		}
+	}
+	
 	/**
 	 * Write the positions of the motif in each sequence to the output file
 	 * 
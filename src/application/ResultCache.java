@@ -0,0 +1,598 @@
+package application;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import meme.Motif;
+import data.KmerSeedIndex;
+import data.SequenceSet;
+
+/**
+ * An on-disk cache of motif finding results and of the intermediate 
+ * artifacts they are built from, so that a job resubmitted with the same
+ * input and settings does not rerun seeding and EM.  Entries are addressed
+ * by a SHA-256 key, built by {@link #key(String...)} from the hash of the 
+ * sequences as read, with their weights and masks, and every setting the
+ * result depends on.
+ * 
+ * Each entry is one file in the cache directory, written to a temporary
+ * file and renamed into place.  A file's modification time is its last
+ * use, and after every write the least recently used files are deleted 
+ * until the cache fits its size bound.  An entry that cannot be read is 
+ * deleted and treated as missing.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class ResultCache 
+{
+	/**
+	 * The default bound on the total size of the cache, in bytes
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L << 20;
+	
+	/**
+	 * The version of the entry formats, written first in every entry
+	 */
+	private static final int FORMAT = 1;
+	
+	/**
+	 * The directory holding the entries
+	 */
+	private File directory;
+	
+	/**
+	 * The bound on the total size of the entries, in bytes
+	 */
+	private long maxBytes;
+	
+	/**
+	 * The number of lookups that found an entry
+	 */
+	private int numHits;
+	
+	/**
+	 * The number of lookups that found no entry
+	 */
+	private int numMisses;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param directory the directory holding the entries, created if missing
+	 * @param maxBytes the bound on the total size of the entries, in bytes
+	 */
+	public ResultCache(File directory, long maxBytes)
+	{
+		directory.mkdirs();
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Hash a set of sequences, with their weights and masks.
+	 * 
+	 * @param sequences the sequences
+	 * @return the hexadecimal SHA-256 hash
+	 */
+	public static String hash(SequenceSet sequences)
+	{
+		MessageDigest digest = newDigest();
+		byte[] header = new byte[12];
+		byte[] residues = new byte[0];
+		byte[] mask = new byte[0];
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			if (mask.length < sequence.length())
+			{
+				residues = new byte[sequence.length()];
+				mask = new byte[sequence.length()];
+			}
+			
+			int numMasked = 0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				residues[j] = (byte) sequence.charAt(j);
+				mask[j] = (byte) (sequences.isWindowMasked(i, j, 1) ? 1 : 0);
+				numMasked += mask[j];
+			}
+			
+			putInt(header, 0, sequences.getWeight(i));
+			putInt(header, 4, sequence.length());
+			putInt(header, 8, numMasked);
+			digest.update(header);
+			digest.update(residues, 0, sequence.length());
+			if (numMasked > 0)
+			{
+				digest.update(mask, 0, sequence.length());
+			}
+		}
+		
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Build an entry key from a corpus hash and the settings an entry 
+	 * depends on.
+	 * 
+	 * @param parts the corpus hash, the kind of entry and every setting
+	 * @return the hexadecimal SHA-256 key
+	 */
+	public static String key(String... parts)
+	{
+		MessageDigest digest = newDigest();
+		for (String part : parts)
+		{
+			for (int c = 0; c < part.length(); c++)
+			{
+				char symbol = part.charAt(c);
+				digest.update((byte) (symbol >> 8));
+				digest.update((byte) symbol);
+			}
+			digest.update((byte) 0);
+			digest.update((byte) 0);
+		}
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Look up a fitted motif.
+	 * 
+	 * @param key the entry key
+	 * @return the cached result, or null if there is none
+	 */
+	public CachedResult getResult(String key)
+	{
+		DataInputStream in = open(key, "result");
+		if (in == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			String alphabet = in.readUTF();
+			int width = in.readInt();
+			Motif p = new Motif(width, alphabet);
+			double[] parameters = new double[alphabet.length() * (width + 1)];
+			for (int i = 0; i < parameters.length; i++)
+			{
+				parameters[i] = in.readDouble();
+			}
+			p.setParameters(parameters);
+			
+			ArrayList<Integer> positions = new ArrayList<Integer>();
+			int numPositions = in.readInt();
+			for (int i = 0; i < numPositions; i++)
+			{
+				positions.add(in.readInt());
+			}
+			
+			LinkedHashMap<String, String> metrics = new LinkedHashMap<String, String>();
+			int numMetrics = in.readInt();
+			for (int i = 0; i < numMetrics; i++)
+			{
+				metrics.put(in.readUTF(), in.readUTF());
+			}
+			
+			return new CachedResult(p, positions, metrics);
+		}
+		catch (IOException e)
+		{
+			return discard(key, "result", in);
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+	
+	/**
+	 * Store a fitted motif.
+	 * 
+	 * @param key the entry key
+	 * @param p the fitted motif
+	 * @param positions the start of the motif in each sequence, in file order
+	 * @param metrics named measurements of the run, such as its duration
+	 */
+	public void putResult(String key, 
+						  Motif p, 
+						  ArrayList<Integer> positions, 
+						  Map<String, String> metrics) throws IOException
+	{
+		File temporary = File.createTempFile("entry", ".tmp", directory);
+		DataOutputStream out = create(temporary);
+		try
+		{
+			StringBuilder alphabet = new StringBuilder();
+			for (char symbol : p.getAlphabet())
+			{
+				alphabet.append(symbol);
+			}
+			out.writeUTF(alphabet.toString());
+			out.writeInt(p.getWidth());
+			double[] parameters = new double[alphabet.length() * (p.getWidth() + 1)];
+			p.getParameters(parameters);
+			for (double parameter : parameters)
+			{
+				out.writeDouble(parameter);
+			}
+			
+			out.writeInt(positions.size());
+			for (int position : positions)
+			{
+				out.writeInt(position);
+			}
+			
+			out.writeInt(metrics.size());
+			for (Map.Entry<String, String> metric : metrics.entrySet())
+			{
+				out.writeUTF(metric.getKey());
+				out.writeUTF(metric.getValue());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		commit(temporary, key, "result");
+	}
+	
+	/**
+	 * Look up a background model.
+	 * 
+	 * @param key the entry key
+	 * @return the probability of each symbol, or null if there is none
+	 */
+	public double[] getBackground(String key)
+	{
+		DataInputStream in = open(key, "background");
+		if (in == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			double[] probabilities = new double[in.readInt()];
+			for (int s = 0; s < probabilities.length; s++)
+			{
+				probabilities[s] = in.readDouble();
+			}
+			return probabilities;
+		}
+		catch (IOException e)
+		{
+			return discard(key, "background", in);
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+	
+	/**
+	 * Store a background model.
+	 * 
+	 * @param key the entry key
+	 * @param probabilities the probability of each symbol
+	 */
+	public void putBackground(String key, double[] probabilities) throws IOException
+	{
+		File temporary = File.createTempFile("entry", ".tmp", directory);
+		DataOutputStream out = create(temporary);
+		try
+		{
+			out.writeInt(probabilities.length);
+			for (double probability : probabilities)
+			{
+				out.writeDouble(probability);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		commit(temporary, key, "background");
+	}
+	
+	/**
+	 * Look up a k-mer seed table.
+	 * 
+	 * @param key the entry key
+	 * @return the k-mer table, or null if there is none
+	 */
+	public KmerSeedIndex getKmerIndex(String key)
+	{
+		DataInputStream in = open(key, "kmers");
+		if (in == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			return KmerSeedIndex.read(in);
+		}
+		catch (IOException e)
+		{
+			return discard(key, "kmers", in);
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+	
+	/**
+	 * Store a k-mer seed table.
+	 * 
+	 * @param key the entry key
+	 * @param index the k-mer table
+	 */
+	public void putKmerIndex(String key, KmerSeedIndex index) throws IOException
+	{
+		File temporary = File.createTempFile("entry", ".tmp", directory);
+		DataOutputStream out = create(temporary);
+		try
+		{
+			index.write(out);
+		}
+		finally
+		{
+			out.close();
+		}
+		commit(temporary, key, "kmers");
+	}
+	
+	/**
+	 * @return the number of lookups that found an entry
+	 */
+	public int getNumHits()
+	{
+		return numHits;
+	}
+	
+	/**
+	 * @return the number of lookups that found no entry
+	 */
+	public int getNumMisses()
+	{
+		return numMisses;
+	}
+	
+	/**
+	 * @return the total size of the entries, in bytes
+	 */
+	public long getSize()
+	{
+		long size = 0;
+		for (File file : listEntries())
+		{
+			size += file.length();
+		}
+		return size;
+	}
+	
+	/**
+	 * Open an entry and mark it as used.
+	 * 
+	 * @return the entry positioned after its header, or null if it is 
+	 * missing or written in another format
+	 */
+	private DataInputStream open(String key, String kind)
+	{
+		File file = new File(directory, key + "." + kind);
+		if (!file.isFile())
+		{
+			numMisses++;
+			return null;
+		}
+		
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FORMAT)
+			{
+				return discard(key, kind, in);
+			}
+		}
+		catch (IOException e)
+		{
+			return discard(key, kind, in);
+		}
+		
+		file.setLastModified(System.currentTimeMillis());
+		numHits++;
+		return in;
+	}
+	
+	/**
+	 * Create a file and write the entry header.
+	 */
+	private DataOutputStream create(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(FORMAT);
+		return out;
+	}
+	
+	/**
+	 * Rename a written entry into place and evict the least recently used
+	 * entries until the cache fits its bound.
+	 */
+	private void commit(File temporary, String key, String kind) throws IOException
+	{
+		File file = new File(directory, key + "." + kind);
+		if (!temporary.renameTo(file))
+		{
+			temporary.delete();
+			throw new IOException("Could not write cache entry " + file);
+		}
+		
+		File[] entries = listEntries();
+		Arrays.sort(entries, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		
+		long size = 0;
+		for (File entry : entries)
+		{
+			size += entry.length();
+		}
+		for (int e = 0; e < entries.length && size > maxBytes; e++)
+		{
+			if (!entries[e].equals(file))
+			{
+				size -= entries[e].length();
+				entries[e].delete();
+			}
+		}
+	}
+	
+	/**
+	 * @return the entry files of the cache directory
+	 */
+	private File[] listEntries()
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			return new File[0];
+		}
+		
+		ArrayList<File> entries = new ArrayList<File>();
+		for (File file : files)
+		{
+			if (file.isFile() && !file.getName().endsWith(".tmp"))
+			{
+				entries.add(file);
+			}
+		}
+		return entries.toArray(new File[entries.size()]);
+	}
+	
+	/**
+	 * Delete an unreadable entry.
+	 * 
+	 * @return null, for the lookup that found it
+	 */
+	private <T> T discard(String key, String kind, DataInputStream in)
+	{
+		close(in);
+		new File(directory, key + "." + kind).delete();
+		numMisses++;
+		return null;
+	}
+	
+	private static void close(DataInputStream in)
+	{
+		if (in != null)
+		{
+			try
+			{
+				in.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+	
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static void putInt(byte[] bytes, int offset, int value)
+	{
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder result = new StringBuilder();
+		for (byte b : bytes)
+		{
+			result.append(String.format("%02x", b));
+		}
+		return result.toString();
+	}
+	
+	/**
+	 * A fitted motif read from the cache
+	 */
+	public static class CachedResult
+	{
+		private Motif motif;
+		
+		private ArrayList<Integer> positions;
+		
+		private LinkedHashMap<String, String> metrics;
+		
+		CachedResult(Motif motif, 
+					 ArrayList<Integer> positions, 
+					 LinkedHashMap<String, String> metrics)
+		{
+			this.motif = motif;
+			this.positions = positions;
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * @return the fitted motif
+		 */
+		public Motif getMotif()
+		{
+			return motif;
+		}
+		
+		/**
+		 * @return the start of the motif in each sequence, in file order
+		 */
+		public ArrayList<Integer> getPositions()
+		{
+			return positions;
+		}
+		
+		/**
+		 * @return the measurements of the run that produced the result
+		 */
+		public LinkedHashMap<String, String> getMetrics()
+		{
+			return metrics;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package application;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import meme.Alphabet;
+import meme.Motif;
+import meme.oops.MEME_OOPS;
+import meme.scan.ScoreDistribution;
+import meme.scan.SiteScanner;
+
+import data.MotifReader;
+
+/**
+ * Scans sequence files for the sites of a fitted motif and writes them in
+ * BED format.
+ * 
+ * Usage: ScanSites model_file input_file output_bed [-threshold bits | 
+ * -pvalue p] [-mmap] [-threads n] [-float] [-blocks k] [-alphabet name]
+ * 
+ * @author matthewbernstein
+ *
+ */
+public class ScanSites 
+{
+	/**
+	 * The p-value cutoff used when no threshold is given
+	 */
+	private static final double DEFAULT_P_VALUE = 1e-4;
+	
+	public static void main(String[] args) throws IOException
+	{
+		/*
+		 * Read arguments.  The alphabet is needed to read the model, so it is
+		 * found first.
+		 */
+		String alphabet = MEME_OOPS.DNA_ALPHABET;
+		for (int i = 3; i < args.length - 1; i++)
+		{
+			if (args[i].equals("-alphabet"))
+			{
+				alphabet = Alphabet.forName(args[i + 1]).getSymbols();
+			}
+		}
+		
+		Motif motif = MotifReader.readModelFile(args[0], alphabet);
+		File input = new File(args[1]);
+		File output = new File(args[2]);
+		
+		double threshold = SiteScanner.thresholdForPValue(motif, DEFAULT_P_VALUE);
+		boolean memoryMapped = false;
+		boolean singlePrecision = false;
+		int blockSize = 0;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		
+		for (int i = 3; i < args.length; i++)
+		{
+			if (args[i].equals("-threshold"))
+			{
+				threshold = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-pvalue"))
+			{
+				threshold = SiteScanner.thresholdForPValue(motif, Double.parseDouble(args[++i]));
+			}
+			else if (args[i].equals("-mmap"))
+			{
+				memoryMapped = true;
+			}
+			else if (args[i].equals("-threads"))
+			{
+				numThreads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-float"))
+			{
+				singlePrecision = true;
+			}
+			else if (args[i].equals("-blocks"))
+			{
+				blockSize = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-alphabet"))
+			{
+				i++;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		
+		/*
+		 * Scan the input
+		 */
+		SiteScanner scanner = new SiteScanner(motif, threshold);
+		scanner.setNumThreads(numThreads);
+		scanner.setSinglePrecision(singlePrecision);
+		scanner.setBlockSize(blockSize);
+		
+		Writer out = new BufferedWriter(new FileWriter(output));
+		try
+		{
+			long numSites = scanner.scan(input, memoryMapped, out);
+			double pValue = ScoreDistribution.forMotif(motif).pValue(threshold);
+			System.out.println(numSites + " sites scoring at least " + threshold 
+							   + " bits (p-value " + pValue + ")");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
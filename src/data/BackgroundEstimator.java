@@ -0,0 +1,120 @@
+package data;
+
+import meme.Alphabet;
+
+/**
+ * An ingest stage estimating the background model: the frequency of each 
+ * symbol of the alphabet over all sequences, with a pseudocount.  Masked
+ * residues are counted like any other.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class BackgroundEstimator implements IngestStage
+{
+	/**
+	 * The alphabet
+	 */
+	private String alphabet;
+	
+	/**
+	 * The index of each symbol of the alphabet
+	 */
+	private Alphabet encoding;
+	
+	/**
+	 * The weighted count of each symbol of the alphabet
+	 */
+	private double[] counts;
+	
+	/**
+	 * The pseudocount added to every symbol
+	 */
+	private double pseudocount;
+	
+	/**
+	 * The number of residues outside the alphabet
+	 */
+	private long numOther;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param alphabet the String encoding the alphabet
+	 * @param pseudocount the pseudocount added to every symbol
+	 */
+	public BackgroundEstimator(String alphabet, double pseudocount)
+	{
+		this.alphabet = alphabet;
+		this.encoding = Alphabet.forSymbols(alphabet);
+		this.pseudocount = pseudocount;
+		this.counts = new double[alphabet.length()];
+	}
+	
+	@Override
+	public void consume(SequenceSet chunk, int firstIndex)
+	{
+		for (int i = 0; i < chunk.getNumSequences(); i++)
+		{
+			String sequence = chunk.getSequence(i);
+			int weight = chunk.getWeight(i);
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				int s = encoding.indexOf(sequence.charAt(j));
+				if (s >= 0)
+				{
+					counts[s] += weight;
+				}
+				else
+				{
+					numOther++;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void finish()
+	{
+	}
+	
+	/**
+	 * @return the probability of each symbol of the alphabet, in alphabet 
+	 * order
+	 */
+	public double[] getProbabilities()
+	{
+		double total = 0.0;
+		for (double count : counts)
+		{
+			total += count + pseudocount;
+		}
+		
+		double[] probabilities = new double[counts.length];
+		for (int s = 0; s < counts.length; s++)
+		{
+			probabilities[s] = (counts[s] + pseudocount) / total;
+		}
+		return probabilities;
+	}
+	
+	/**
+	 * @return the number of residues outside the alphabet
+	 */
+	public long getNumOther()
+	{
+		return numOther;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		double[] probabilities = getProbabilities();
+		for (int s = 0; s < probabilities.length; s++)
+		{
+			result.append(alphabet.charAt(s) + "\t" + probabilities[s] + "\n");
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,325 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import events.LoadEvent;
+import pair.Pair;
+
+/**
+ * Reads a sequence file in chunks while downstream {@link IngestStage}s 
+ * process the chunks already read.  The calling thread reads and masks the
+ * sequences; each stage runs on its own thread and receives every chunk, in
+ * file order, through its own bounded queue.  When a stage falls behind, its
+ * queue fills and reading blocks, so at most <code>queueCapacity</code> 
+ * chunks are held for any stage beyond those already in the result.
+ * 
+ * The sequences read, and their masks, are the same as those of 
+ * {@link SequenceReader#readFile(String, LowComplexityMasker)}.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class IngestPipeline 
+{
+	/**
+	 * The default number of sequences per chunk
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1000;
+	
+	/**
+	 * The default number of chunks each stage's queue holds
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 8;
+	
+	/**
+	 * Marks the end of the chunks in a stage's queue
+	 */
+	private static final SequenceSet END = new SequenceSet();
+	
+	/**
+	 * The sequence file
+	 */
+	private String file;
+	
+	/**
+	 * The masker, or null to leave the sequences unmasked
+	 */
+	private LowComplexityMasker masker;
+	
+	/**
+	 * The number of sequences per chunk
+	 */
+	private int chunkSize;
+	
+	/**
+	 * The number of chunks each stage's queue holds
+	 */
+	private int queueCapacity;
+	
+	/**
+	 * The stages consuming the chunks
+	 */
+	private ArrayList<IngestStage> stages;
+	
+	/**
+	 * The number of times reading waited for a full queue in the last run
+	 */
+	private int numStalls;
+	
+	/**
+	 * Constructor using the default chunk size and queue capacity
+	 * 
+	 * @param file the sequence file
+	 * @param masker the masker, or null to leave the sequences unmasked
+	 */
+	public IngestPipeline(String file, LowComplexityMasker masker)
+	{
+		this(file, masker, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param file the sequence file
+	 * @param masker the masker, or null to leave the sequences unmasked
+	 * @param chunkSize the number of sequences per chunk
+	 * @param queueCapacity the number of chunks each stage's queue holds
+	 */
+	public IngestPipeline(String file, 
+						  LowComplexityMasker masker, 
+						  int chunkSize, 
+						  int queueCapacity)
+	{
+		if (chunkSize < 1 || queueCapacity < 1)
+		{
+			throw new IllegalArgumentException("Invalid chunk size or queue capacity");
+		}
+		
+		this.file = file;
+		this.masker = masker;
+		this.chunkSize = chunkSize;
+		this.queueCapacity = queueCapacity;
+		this.stages = new ArrayList<IngestStage>();
+	}
+	
+	/**
+	 * Add a stage to consume the chunks read by {@link #run()}
+	 * 
+	 * @param stage the stage
+	 */
+	public void addStage(IngestStage stage)
+	{
+		stages.add(stage);
+	}
+	
+	/**
+	 * Read the file, passing each chunk to every stage, and wait for the
+	 * stages to finish.
+	 * 
+	 * @return all sequences of the file
+	 * @throws IOException if the file cannot be read
+	 * @throws RuntimeException the first failure of a stage
+	 */
+	public SequenceSet run() throws IOException
+	{
+		SequenceSet sequences = new SequenceSet();
+		numStalls = 0;
+		LoadEvent event = new LoadEvent();
+		event.begin();
+		
+		ArrayList<StageWorker> workers = new ArrayList<StageWorker>();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (IngestStage stage : stages)
+		{
+			StageWorker worker = new StageWorker(stage, queueCapacity);
+			Thread thread = new Thread(worker);
+			thread.setDaemon(true);
+			thread.start();
+			workers.add(worker);
+			threads.add(thread);
+		}
+		
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(file));
+			
+			SequenceSet chunk = new SequenceSet();
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				chunk.addSequence(line);
+				if (masker != null)
+				{
+					int index = chunk.getNumSequences() - 1;
+					chunk.setMask(index, masker.findMasked(line));
+				}
+				
+				if (chunk.getNumSequences() == chunkSize)
+				{
+					publish(chunk, sequences.getNumSequences(), workers);
+					sequences.append(chunk);
+					chunk = new SequenceSet();
+				}
+			}
+			if (chunk.getNumSequences() > 0)
+			{
+				publish(chunk, sequences.getNumSequences(), workers);
+				sequences.append(chunk);
+			}
+		}
+		finally
+		{
+			/*
+			 * Always release the stages, so their threads end even if 
+			 * reading failed
+			 */
+			for (StageWorker worker : workers)
+			{
+				worker.put(END, -1);
+			}
+			if (reader != null)
+			{
+				reader.close();
+			}
+		}
+		
+		for (int s = 0; s < threads.size(); s++)
+		{
+			try
+			{
+				threads.get(s).join();
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted waiting for ingest stages");
+			}
+			
+			if (workers.get(s).failure != null)
+			{
+				throw workers.get(s).failure;
+			}
+		}
+		
+		SequenceReader.commit(event, file, sequences);
+		return sequences;
+	}
+	
+	/**
+	 * @return the number of times reading waited for a stage's full queue 
+	 * in the last run
+	 */
+	public int getNumStalls()
+	{
+		return numStalls;
+	}
+	
+	/**
+	 * Pass a chunk to every stage, waiting for room in each stage's queue.
+	 */
+	private void publish(SequenceSet chunk, int firstIndex, ArrayList<StageWorker> workers) 
+			throws InterruptedIOException
+	{
+		for (StageWorker worker : workers)
+		{
+			Pair<SequenceSet, Integer> entry = new Pair<SequenceSet, Integer>(chunk, firstIndex);
+			if (!worker.chunks.offer(entry))
+			{
+				numStalls++;
+				worker.put(chunk, firstIndex);
+			}
+		}
+	}
+	
+	/**
+	 * Runs a stage on the chunks of its queue until the end marker.  After a
+	 * failure the worker keeps draining its queue, so that reading never 
+	 * waits on a stage that has stopped.
+	 */
+	private static class StageWorker implements Runnable
+	{
+		/**
+		 * The stage
+		 */
+		private IngestStage stage;
+		
+		/**
+		 * The chunks waiting for the stage, each with the index of its first
+		 * sequence
+		 */
+		private ArrayBlockingQueue<Pair<SequenceSet, Integer>> chunks;
+		
+		/**
+		 * The first failure of the stage, or null
+		 */
+		private volatile RuntimeException failure;
+		
+		StageWorker(IngestStage stage, int queueCapacity)
+		{
+			this.stage = stage;
+			this.chunks = new ArrayBlockingQueue<Pair<SequenceSet, Integer>>(queueCapacity);
+		}
+		
+		/**
+		 * Queue a chunk, waiting for room.
+		 */
+		void put(SequenceSet chunk, int firstIndex) throws InterruptedIOException
+		{
+			try
+			{
+				chunks.put(new Pair<SequenceSet, Integer>(chunk, firstIndex));
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted passing a chunk to an ingest stage");
+			}
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Pair<SequenceSet, Integer> entry = chunks.take();
+					if (entry.getFirst() == END)
+					{
+						break;
+					}
+					if (failure != null)
+					{
+						continue;
+					}
+					
+					try
+					{
+						stage.consume(entry.getFirst(), entry.getSecond());
+					}
+					catch (RuntimeException e)
+					{
+						failure = e;
+					}
+				}
+				
+				if (failure == null)
+				{
+					stage.finish();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch (RuntimeException e)
+			{
+				failure = e;
+			}
+		}
+	}
+}
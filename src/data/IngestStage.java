@@ -0,0 +1,26 @@
+package data;
+
+/**
+ * A consumer of the chunks of sequences read by an {@link IngestPipeline}.
+ * Each stage runs on its own thread and sees every chunk, in file order.
+ * Chunks are shared between stages and must not be modified.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public interface IngestStage 
+{
+	/**
+	 * Process the next chunk of sequences.
+	 * 
+	 * @param chunk the sequences of the chunk
+	 * @param firstIndex the index in the whole file of the first sequence of
+	 * the chunk
+	 */
+	void consume(SequenceSet chunk, int firstIndex);
+	
+	/**
+	 * Called once after the last chunk has been consumed.
+	 */
+	void finish();
+}
@@ -0,0 +1,308 @@
+package data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import meme.Alphabet;
+import pair.Pair;
+
+/**
+ * An ingest stage counting every k-mer of the sequences, and recording 
+ * where each k-mer first occurs, so that the most frequent k-mers can seed
+ * EM without a scan over every subsequence of the data.  K-mers are indexed
+ * by their packed code, sum_i x_i * A^(k - 1 - i), in arrays of A^k 
+ * entries.  K-mers overlapping a masked residue or a symbol outside the
+ * alphabet are not counted.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class KmerSeedIndex implements IngestStage
+{
+	/**
+	 * The default k-mer length
+	 */
+	public static final int DEFAULT_K = 8;
+	
+	/**
+	 * The default number of seed windows
+	 */
+	public static final int DEFAULT_NUM_SEEDS = 50;
+	
+	/**
+	 * The alphabet
+	 */
+	private String alphabet;
+	
+	/**
+	 * The index of each symbol of the alphabet
+	 */
+	private Alphabet encoding;
+	
+	/**
+	 * The k-mer length
+	 */
+	private int k;
+	
+	/**
+	 * The number of occurrences of each k-mer
+	 */
+	private int[] counts;
+	
+	/**
+	 * The index of the sequence in which each k-mer first occurs, or -1
+	 */
+	private int[] firstSequence;
+	
+	/**
+	 * The position at which each k-mer first occurs
+	 */
+	private int[] firstStart;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param alphabet the String encoding the alphabet
+	 * @param k the k-mer length
+	 */
+	public KmerSeedIndex(String alphabet, int k)
+	{
+		if (k < 1 || Math.pow(alphabet.length(), k) > (1 << 24))
+		{
+			throw new IllegalArgumentException("Invalid k-mer length " + k);
+		}
+		
+		this.alphabet = alphabet;
+		this.encoding = Alphabet.forSymbols(alphabet);
+		this.k = k;
+		
+		int numCodes = 1;
+		for (int i = 0; i < k; i++)
+		{
+			numCodes *= alphabet.length();
+		}
+		this.counts = new int[numCodes];
+		this.firstSequence = new int[numCodes];
+		this.firstStart = new int[numCodes];
+		Arrays.fill(firstSequence, -1);
+	}
+	
+	@Override
+	public void consume(SequenceSet chunk, int firstIndex)
+	{
+		int alphabetSize = alphabet.length();
+		int leadingWeight = counts.length / alphabetSize;
+		
+		for (int i = 0; i < chunk.getNumSequences(); i++)
+		{
+			String sequence = chunk.getSequence(i);
+			boolean masked = chunk.hasUsableMask(i, k);
+			
+			/*
+			 * Roll the code along the sequence, restarting after a symbol 
+			 * outside the alphabet
+			 */
+			int code = 0;
+			int valid = 0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				int s = encoding.indexOf(sequence.charAt(j));
+				if (s < 0)
+				{
+					valid = 0;
+					code = 0;
+					continue;
+				}
+				
+				if (valid == k)
+				{
+					code -= (code / leadingWeight) * leadingWeight;
+				}
+				else
+				{
+					valid++;
+				}
+				code = code * alphabetSize + s;
+				
+				int start = j - k + 1;
+				if (valid < k || (masked && chunk.isWindowMasked(i, start, k)))
+				{
+					continue;
+				}
+				
+				if (counts[code]++ == 0)
+				{
+					firstSequence[code] = firstIndex + i;
+					firstStart[code] = start;
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void finish()
+	{
+	}
+	
+	/**
+	 * Write the k-mers that occur, with their counts and first occurrences.
+	 * 
+	 * @param out the stream to write to
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		int numOccurring = 0;
+		for (int code = 0; code < counts.length; code++)
+		{
+			if (counts[code] > 0)
+			{
+				numOccurring++;
+			}
+		}
+		
+		out.writeUTF(alphabet);
+		out.writeInt(k);
+		out.writeInt(numOccurring);
+		for (int code = 0; code < counts.length; code++)
+		{
+			if (counts[code] > 0)
+			{
+				out.writeInt(code);
+				out.writeInt(counts[code]);
+				out.writeInt(firstSequence[code]);
+				out.writeInt(firstStart[code]);
+			}
+		}
+	}
+	
+	/**
+	 * Read a k-mer index written by {@link #write(DataOutputStream)}.
+	 * 
+	 * @param in the stream to read from
+	 * @return the k-mer index
+	 */
+	public static KmerSeedIndex read(DataInputStream in) throws IOException
+	{
+		String alphabet = in.readUTF();
+		KmerSeedIndex index = new KmerSeedIndex(alphabet, in.readInt());
+		
+		int numOccurring = in.readInt();
+		for (int i = 0; i < numOccurring; i++)
+		{
+			int code = in.readInt();
+			if (code < 0 || code >= index.counts.length)
+			{
+				throw new IOException("Invalid k-mer code " + code);
+			}
+			index.counts[code] = in.readInt();
+			index.firstSequence[code] = in.readInt();
+			index.firstStart[code] = in.readInt();
+		}
+		return index;
+	}
+	
+	/**
+	 * The k-mer length for an alphabet: {@link #DEFAULT_K}, shortened until
+	 * the arrays of the index hold at most 2^24 entries, so that a protein 
+	 * alphabet is indexed by 5-mers.
+	 * 
+	 * @param alphabetSize the number of symbols in the alphabet
+	 * @return the k-mer length
+	 */
+	public static int defaultK(int alphabetSize)
+	{
+		int k = DEFAULT_K;
+		while (k > 1 && Math.pow(alphabetSize, k) > (1 << 24))
+		{
+			k--;
+		}
+		return k;
+	}
+	
+	/**
+	 * @return the k-mer length
+	 */
+	public int getK()
+	{
+		return k;
+	}
+	
+	/**
+	 * @param kmer a k-mer over the alphabet
+	 * @return the number of occurrences of the k-mer
+	 */
+	public int getCount(String kmer)
+	{
+		int code = 0;
+		for (int i = 0; i < kmer.length(); i++)
+		{
+			code = code * alphabet.length() + encoding.indexOf(kmer.charAt(i));
+		}
+		return counts[code];
+	}
+	
+	/**
+	 * Choose seed windows of the motif width around the first occurrences of
+	 * the most frequent k-mers.  A k-mer is centred in its window where the
+	 * sequence allows; k-mers whose window would be masked, or whose 
+	 * sequence is shorter than the motif, are passed over.
+	 * 
+	 * @param sequences all sequences consumed, in file order
+	 * @param width the width of the motif
+	 * @param numSeeds the maximum number of seeds
+	 * @return the sequence index and start position of each seed window, 
+	 * most frequent k-mer first
+	 */
+	public ArrayList<Pair<Integer, Integer>> getSeeds(SequenceSet sequences, 
+													  int width, 
+													  int numSeeds)
+	{
+		/*
+		 * Order the codes that occur by decreasing count
+		 */
+		int numOccurring = 0;
+		for (int code = 0; code < counts.length; code++)
+		{
+			if (counts[code] > 0)
+			{
+				numOccurring++;
+			}
+		}
+		long[] order = new long[numOccurring];
+		int n = 0;
+		for (int code = 0; code < counts.length; code++)
+		{
+			if (counts[code] > 0)
+			{
+				order[n++] = ((long) counts[code] << 32) | code;
+			}
+		}
+		Arrays.sort(order);
+		
+		ArrayList<Pair<Integer, Integer>> seeds = new ArrayList<Pair<Integer, Integer>>();
+		for (int o = order.length - 1; o >= 0 && seeds.size() < numSeeds; o--)
+		{
+			int code = (int) order[o];
+			int s = firstSequence[code];
+			int length = sequences.getSequence(s).length();
+			if (length <= width)
+			{
+				continue;
+			}
+			
+			int start = firstStart[code] - Math.max(0, width - k) / 2;
+			start = Math.max(0, Math.min(start, length - width - 1));
+			if (sequences.isWindowMasked(s, start, width))
+			{
+				continue;
+			}
+			
+			seeds.add(new Pair<Integer, Integer>(s, start));
+		}
+		
+		return seeds;
+	}
+}
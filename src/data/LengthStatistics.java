@@ -0,0 +1,117 @@
+package data;
+
+/**
+ * An ingest stage collecting the distribution of sequence lengths: the 
+ * number of sequences, residues, the shortest and longest sequence, and the
+ * number of sequences in each power-of-two length bucket, as used by
+ * {@link SequenceSet#orderByLength()}.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class LengthStatistics implements IngestStage
+{
+	/**
+	 * The number of sequences consumed
+	 */
+	private int numSequences;
+	
+	/**
+	 * The number of residues consumed
+	 */
+	private long numResidues;
+	
+	/**
+	 * The length of the shortest sequence
+	 */
+	private int minLength = Integer.MAX_VALUE;
+	
+	/**
+	 * The length of the longest sequence
+	 */
+	private int maxLength;
+	
+	/**
+	 * The number of sequences with between 2^b and 2^(b+1) - 1 residues
+	 */
+	private int[] buckets = new int[32];
+	
+	@Override
+	public void consume(SequenceSet chunk, int firstIndex)
+	{
+		for (int i = 0; i < chunk.getNumSequences(); i++)
+		{
+			int length = chunk.getSequence(i).length();
+			numSequences++;
+			numResidues += length;
+			minLength = Math.min(minLength, length);
+			maxLength = Math.max(maxLength, length);
+			buckets[31 - Integer.numberOfLeadingZeros(Math.max(1, length))]++;
+		}
+	}
+	
+	@Override
+	public void finish()
+	{
+	}
+	
+	/**
+	 * @return the number of sequences
+	 */
+	public int getNumSequences()
+	{
+		return numSequences;
+	}
+	
+	/**
+	 * @return the total number of residues
+	 */
+	public long getNumResidues()
+	{
+		return numResidues;
+	}
+	
+	/**
+	 * @return the length of the shortest sequence, or 0 if there are none
+	 */
+	public int getMinLength()
+	{
+		return numSequences == 0 ? 0 : minLength;
+	}
+	
+	/**
+	 * @return the length of the longest sequence
+	 */
+	public int getMaxLength()
+	{
+		return maxLength;
+	}
+	
+	/**
+	 * @param width the width of the motif
+	 * @return the total number of windows of the motif width
+	 */
+	public long getNumWindows(int width)
+	{
+		return numResidues - (long) numSequences * (width - 1);
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		
+		result.append(numSequences + " sequences, " + numResidues + " residues, lengths " 
+					  + getMinLength() + " to " + maxLength + "\n");
+		result.append("Length\tSequences\n");
+		for (int b = 0; b < buckets.length; b++)
+		{
+			if (buckets[b] > 0)
+			{
+				result.append((1L << b) + "-" + ((1L << (b + 1)) - 1) + "\t" + buckets[b] + "\n");
+			}
+		}
+		
+		return result.toString();
+	}
+}
@@ -0,0 +1,218 @@
+package data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Masks low-complexity regions of DNA sequences, such as poly-A runs and 
+ * short tandem repeats, with the DUST score.  A window of the sequence is
+ * scored from the counts c_t of each of the 64 triplets it contains,
+ * 
+ *     score = 10 sum_t c_t (c_t - 1) / 2 / (l - 1),
+ *     
+ * where l is the number of triplets in the window.  As in DUST the score is
+ * scaled by ten, so random sequence scores about 5 against the default 
+ * threshold of 20.  The window slides along the sequence in a single pass, 
+ * updating the score incrementally.  Within each window scoring above the 
+ * threshold, only the interval of highest score is masked, so that a repeat
+ * does not take the residues around it out of the search.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class LowComplexityMasker 
+{
+	/**
+	 * The default window length
+	 */
+	public static final int DEFAULT_WINDOW = 64;
+	
+	/**
+	 * The default score above which a window is masked
+	 */
+	public static final double DEFAULT_THRESHOLD = 20.0;
+	
+	/**
+	 * The window length
+	 */
+	private int window;
+	
+	/**
+	 * The score above which a window is masked
+	 */
+	private double threshold;
+	
+	/**
+	 * Constructor using the default window and threshold
+	 */
+	public LowComplexityMasker()
+	{
+		this(DEFAULT_WINDOW, DEFAULT_THRESHOLD);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param window the window length
+	 * @param threshold the score above which a window is masked
+	 */
+	public LowComplexityMasker(int window, double threshold)
+	{
+		if (window < 4)
+		{
+			throw new IllegalArgumentException("Window must hold at least two triplets");
+		}
+		this.window = window;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * Mask every sequence of a sequence set
+	 * 
+	 * @param sequences the sequences to mask
+	 * @return the number of residues masked
+	 */
+	public long mask(SequenceSet sequences)
+	{
+		long numMasked = 0;
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			BitSet masked = findMasked(sequences.getSequence(i));
+			sequences.setMask(i, masked);
+			numMasked += masked.cardinality();
+		}
+		
+		return numMasked;
+	}
+	
+	/**
+	 * Find the low-complexity residues of a sequence
+	 * 
+	 * @param sequence the sequence
+	 * @return the positions of the masked residues
+	 */
+	public BitSet findMasked(String sequence)
+	{
+		BitSet masked = new BitSet(sequence.length());
+		
+		/*
+		 * A sequence shorter than the window is scored as a single window
+		 */
+		int length = Math.min(window, sequence.length());
+		int numTriplets = length - 2;
+		if (numTriplets < 2)
+		{
+			return masked;
+		}
+		
+		int[] triplets = new int[sequence.length()];
+		for (int i = 0; i + 2 < sequence.length(); i++)
+		{
+			int a = code(sequence.charAt(i));
+			int b = code(sequence.charAt(i + 1));
+			int c = code(sequence.charAt(i + 2));
+			triplets[i] = (a < 0 || b < 0 || c < 0) ? -1 : (a << 4) | (b << 2) | c;
+		}
+		
+		int[] counts = new int[64];
+		
+		/*
+		 * The sum of c_t (c_t - 1) / 2 over the triplets of the window
+		 */
+		long pairs = 0;
+		for (int i = 0; i < numTriplets; i++)
+		{
+			if (triplets[i] >= 0)
+			{
+				pairs += counts[triplets[i]]++;
+			}
+		}
+		
+		for (int start = 0; start + length <= sequence.length(); start++)
+		{
+			if (start > 0)
+			{
+				/*
+				 * Slide the window by one residue
+				 */
+				int leaving = triplets[start - 1];
+				if (leaving >= 0)
+				{
+					pairs -= --counts[leaving];
+				}
+				int entering = triplets[start + numTriplets - 1];
+				if (entering >= 0)
+				{
+					pairs += counts[entering]++;
+				}
+			}
+			
+			if (10.0 * pairs / (numTriplets - 1) > threshold)
+			{
+				maskBestInterval(triplets, start, numTriplets, masked);
+			}
+		}
+		
+		return masked;
+	}
+	
+	/**
+	 * Mask the interval of highest score within a window
+	 * 
+	 * @param triplets the code of the triplet starting at each position, or
+	 * -1 if it holds a residue outside the alphabet
+	 * @param start the start of the window
+	 * @param numTriplets the number of triplets in the window
+	 * @param masked the positions of the masked residues
+	 */
+	private void maskBestInterval(int[] triplets, 
+								  int start, 
+								  int numTriplets, 
+								  BitSet masked)
+	{
+		int[] counts = new int[64];
+		double bestScore = -1.0;
+		int bestFrom = start;
+		int bestTo = start;
+		
+		for (int from = start; from < start + numTriplets - 1; from++)
+		{
+			Arrays.fill(counts, 0);
+			long pairs = 0;
+			for (int to = from; to < start + numTriplets; to++)
+			{
+				if (triplets[to] >= 0)
+				{
+					pairs += counts[triplets[to]]++;
+				}
+				if (to > from && (double) pairs / (to - from) > bestScore)
+				{
+					bestScore = (double) pairs / (to - from);
+					bestFrom = from;
+					bestTo = to;
+				}
+			}
+		}
+		
+		/*
+		 * The last triplet covers two residues past its start
+		 */
+		masked.set(bestFrom, bestTo + 3);
+	}
+	
+	/**
+	 * @return the index of a nucleotide, or -1
+	 */
+	private static int code(char symbol)
+	{
+		switch (symbol)
+		{
+			case 'A': case 'a': return 0;
+			case 'C': case 'c': return 1;
+			case 'G': case 'g': return 2;
+			case 'T': case 't': return 3;
+			default: return -1;
+		}
+	}
+}
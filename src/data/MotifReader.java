@@ -0,0 +1,64 @@
+package data;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+import meme.Motif;
+
+/**
+ * Reads a motif model file as written by 
+ * {@link application.Main#writeModelFile}: one line per symbol of the 
+ * alphabet, in alphabet order, holding the tab-separated probabilities of 
+ * the background followed by those of each motif position.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class MotifReader 
+{
+	public static Motif readModelFile(String file, String alphabet) 
+			throws FileNotFoundException
+	{
+		ArrayList<String[]> rows = new ArrayList<String[]>();
+		
+		Scanner scan = new Scanner(new FileInputStream(file));
+		while (scan.hasNextLine()) 
+		{
+			String line = scan.nextLine().trim();
+			if (!line.isEmpty())
+			{
+				rows.add(line.split("\\s+"));
+			}
+		}
+		scan.close();
+		
+		if (rows.size() != alphabet.length())
+		{
+			throw new IllegalArgumentException("Model file " + file + " has " 
+					+ rows.size() + " rows, expected one per symbol of " 
+					+ alphabet);
+		}
+		
+		int width = rows.get(0).length - 1;
+		Motif motif = new Motif(width, alphabet);
+		
+		for (int i = 0; i < alphabet.length(); i++)
+		{
+			String[] row = rows.get(i);
+			if (row.length != width + 1)
+			{
+				throw new IllegalArgumentException("Model file " + file 
+						+ " has rows of different lengths");
+			}
+			
+			for (int j = 0; j < width + 1; j++)
+			{
+				motif.setProbability(alphabet.charAt(i), j, Double.parseDouble(row[j]));
+			}
+		}
+		
+		return motif;
+	}
+}
@@ -0,0 +1,190 @@
+package data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import meme.Motif;
+
+/**
+ * Reads a binary results file written by {@link ResultWriter} in place,
+ * by mapping it into memory and stepping through its records.  Nothing is
+ * parsed: each field is read from its offset in the mapping.
+ *
+ * Usage: call {@link #next()} until it returns false, and read the current
+ * record with {@link #getMotif()} when {@link #isMotif()}, or the site
+ * getters otherwise.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class ResultReader implements Closeable
+{
+	/**
+	 * The file
+	 */
+	private RandomAccessFile file;
+	
+	/**
+	 * The mapped file
+	 */
+	private MappedByteBuffer mapping;
+	
+	/**
+	 * The offset of the current record, or -1 before the first
+	 */
+	private int record;
+	
+	/**
+	 * The offset of the next record
+	 */
+	private int nextRecord;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param input the binary results file, of at most 2 GB
+	 * @throws IOException if the file cannot be mapped or is not a results
+	 * file of this version
+	 */
+	public ResultReader(File input) throws IOException
+	{
+		this.file = new RandomAccessFile(input, "r");
+		FileChannel channel = file.getChannel();
+		if (channel.size() > Integer.MAX_VALUE)
+		{
+			file.close();
+			throw new IOException("Results file " + input + " is too large to map");
+		}
+		
+		this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		mapping.order(ByteOrder.LITTLE_ENDIAN);
+		if (mapping.limit() < 8
+				|| mapping.getInt(0) != ResultWriter.MAGIC
+				|| mapping.getInt(4) != ResultWriter.VERSION)
+		{
+			file.close();
+			throw new IOException(input + " is not a results file of version "
+								  + ResultWriter.VERSION);
+		}
+		
+		this.record = -1;
+		this.nextRecord = 8;
+	}
+	
+	/**
+	 * Move to the next record.
+	 *
+	 * @return whether there is a next record
+	 */
+	public boolean next()
+	{
+		if (nextRecord >= mapping.limit())
+		{
+			return false;
+		}
+		
+		record = nextRecord;
+		if (isMotif())
+		{
+			int alphabetSize = mapping.getInt(record + 8);
+			int width = mapping.getInt(record + 12);
+			nextRecord = record + 16 + ((alphabetSize + 7) & ~7)
+						 + 8 * alphabetSize * (width + 1);
+		}
+		else if (mapping.getInt(record) == ResultWriter.SITE_RECORD)
+		{
+			nextRecord = record + ResultWriter.SITE_RECORD_SIZE;
+		}
+		else
+		{
+			throw new IllegalStateException("Unknown record at offset " + record);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return whether the current record is a motif rather than a site
+	 */
+	public boolean isMotif()
+	{
+		return mapping.getInt(record) == ResultWriter.MOTIF_RECORD;
+	}
+	
+	/**
+	 * @return the number of the current motif, or of the motif of the
+	 * current site
+	 */
+	public int getMotifNumber()
+	{
+		return mapping.getInt(record + 4);
+	}
+	
+	/**
+	 * @return the current motif
+	 */
+	public Motif getMotif()
+	{
+		int alphabetSize = mapping.getInt(record + 8);
+		int width = mapping.getInt(record + 12);
+		
+		StringBuilder symbols = new StringBuilder(alphabetSize);
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			symbols.append((char) mapping.get(record + 16 + s));
+		}
+		
+		Motif motif = new Motif(width, symbols.toString());
+		int offset = record + 16 + ((alphabetSize + 7) & ~7);
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			for (int k = 0; k <= width; k++, offset += 8)
+			{
+				motif.setProbability(symbols.charAt(s), k, mapping.getDouble(offset));
+			}
+		}
+		return motif;
+	}
+	
+	/**
+	 * @return the sequence index of the current site
+	 */
+	public int getSequence()
+	{
+		return mapping.getInt(record + 8);
+	}
+	
+	/**
+	 * @return whether the current site is on the reverse strand
+	 */
+	public boolean isReverseStrand()
+	{
+		return mapping.getInt(record + 12) != 0;
+	}
+	
+	/**
+	 * @return the start of the current site
+	 */
+	public long getStart()
+	{
+		return mapping.getLong(record + 16);
+	}
+	
+	/**
+	 * @return the posterior probability of the current site, or NaN
+	 */
+	public double getPosterior()
+	{
+		return mapping.getDouble(record + 24);
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
@@ -0,0 +1,336 @@
+package data;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import meme.Motif;
+
+/**
+ * Streams motifs and their sites to a file as they are found, in one of
+ * two formats.
+ *
+ * The text format is MEME's minimal motif format, with each motif's
+ * letter-probability matrix followed by its sites as tab-separated lines
+ * of motif number, sequence index, start, strand, posterior probability
+ * and site.
+ *
+ * The binary format is little-endian with every value aligned to its size,
+ * so that it can be memory-mapped and read in place, as
+ * {@link ResultReader} does.  After a header of {@link #MAGIC} and
+ * {@link #VERSION}, each record starts with an int tag:
+ * <ul>
+ * <li>{@link #MOTIF_RECORD}: the motif number, alphabet size and width as
+ * ints, the symbols as bytes padded to a multiple of 8, then the
+ * probabilities as doubles, one row per symbol of the background followed
+ * by each motif position</li>
+ * <li>{@link #SITE_RECORD}: the motif number, sequence index and strand
+ * (1 for reverse) as ints, the start as a long and the posterior
+ * probability as a double, 32 bytes in all.  Sites are not stored; they
+ * are the motif-width windows of the sequences at the starts.</li>
+ * </ul>
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class ResultWriter implements Closeable
+{
+	/**
+	 * The first int of a binary results file, "MEMR"
+	 */
+	public static final int MAGIC = 0x524D454D;
+	
+	/**
+	 * The version of the binary format
+	 */
+	public static final int VERSION = 1;
+	
+	/**
+	 * The tag of a motif record
+	 */
+	public static final int MOTIF_RECORD = 1;
+	
+	/**
+	 * The tag of a site record
+	 */
+	public static final int SITE_RECORD = 2;
+	
+	/**
+	 * The size in bytes of a site record, including its tag
+	 */
+	public static final int SITE_RECORD_SIZE = 32;
+	
+	/**
+	 * The size in bytes of the output buffer
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	/**
+	 * The writer of the text format, or null
+	 */
+	private Writer text;
+	
+	/**
+	 * The channel of the binary format, or null
+	 */
+	private FileChannel channel;
+	
+	/**
+	 * The buffer of records not yet written to the channel
+	 */
+	private ByteBuffer buffer;
+	
+	/**
+	 * The symbols of the motifs written so far, which must all agree
+	 */
+	private ArrayList<Character> alphabet;
+	
+	/**
+	 * The number of motifs written
+	 */
+	private int numMotifs;
+	
+	/**
+	 * Whether the column headers of the sites follow the last line written
+	 */
+	private boolean inSites;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param file the file to be written
+	 * @param binary whether to write the binary format instead of text
+	 * @throws IOException if the file cannot be created
+	 */
+	public ResultWriter(File file, boolean binary) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		if (binary)
+		{
+			this.channel = out.getChannel();
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+		}
+		else
+		{
+			this.text = new BufferedWriter(new OutputStreamWriter(
+					Channels.newOutputStream(out.getChannel()), StandardCharsets.US_ASCII),
+					BUFFER_SIZE);
+		}
+	}
+	
+	/**
+	 * Write a motif.  In the text format, the first motif's background is
+	 * written as the background of the file.
+	 *
+	 * @param motif the motif, whose position 0 is the background
+	 * @return the number of the motif, starting from 1, by which its sites
+	 * are written
+	 * @throws IOException if the motif cannot be written
+	 */
+	public int writeMotif(Motif motif) throws IOException
+	{
+		ArrayList<Character> symbols = motif.getAlphabet();
+		if (alphabet == null)
+		{
+			alphabet = symbols;
+			if (text != null)
+			{
+				writeTextHeader(motif);
+			}
+		}
+		else if (!alphabet.equals(symbols))
+		{
+			throw new IllegalArgumentException("Motif alphabet " + symbols
+					+ " differs from " + alphabet);
+		}
+		
+		int number = ++numMotifs;
+		int width = motif.getWidth();
+		if (text != null)
+		{
+			StringBuilder block = new StringBuilder();
+			block.append("\nMOTIF ").append(number).append('\n');
+			block.append("letter-probability matrix: alength= ").append(symbols.size())
+				 .append(" w= ").append(width).append('\n');
+			for (int k = 1; k <= width; k++)
+			{
+				for (int s = 0; s < symbols.size(); s++)
+				{
+					block.append(s == 0 ? "" : "\t")
+						 .append(motif.getProbability(symbols.get(s), k));
+				}
+				block.append('\n');
+			}
+			text.write(block.toString());
+			inSites = false;
+			return number;
+		}
+		
+		int paddedSymbols = (symbols.size() + 7) & ~7;
+		int size = 16 + paddedSymbols + 8 * symbols.size() * (width + 1);
+		ensureCapacity(size);
+		if (buffer.capacity() < size)
+		{
+			/*
+			 * The record does not fit the buffer, so write it on its own
+			 */
+			ByteBuffer record = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+			putMotif(record, number, motif, paddedSymbols);
+			record.flip();
+			while (record.hasRemaining())
+			{
+				channel.write(record);
+			}
+		}
+		else
+		{
+			putMotif(buffer, number, motif, paddedSymbols);
+		}
+		return number;
+	}
+	
+	/**
+	 * Write a site of a motif.
+	 *
+	 * @param motif the number of the motif, as returned by
+	 * {@link #writeMotif(Motif)}
+	 * @param sequence the index of the sequence
+	 * @param start the start of the site in the sequence
+	 * @param reverseStrand whether the site is on the reverse strand
+	 * @param posterior the posterior probability that the motif starts at
+	 * the site, or NaN if it is not known
+	 * @param site the site, which only the text format stores
+	 * @throws IOException if the site cannot be written
+	 */
+	public void writeSite(int motif,
+						  int sequence,
+						  long start,
+						  boolean reverseStrand,
+						  double posterior,
+						  String site) throws IOException
+	{
+		if (text != null)
+		{
+			if (!inSites)
+			{
+				text.write("\n#motif\tsequence\tstart\tstrand\tposterior\tsite\n");
+				inSites = true;
+			}
+			text.write(motif + "\t" + sequence + "\t" + start + "\t"
+					   + (reverseStrand ? '-' : '+') + "\t" + posterior + "\t"
+					   + (site != null ? site : ".") + "\n");
+			return;
+		}
+		
+		ensureCapacity(SITE_RECORD_SIZE);
+		buffer.putInt(SITE_RECORD);
+		buffer.putInt(motif);
+		buffer.putInt(sequence);
+		buffer.putInt(reverseStrand ? 1 : 0);
+		buffer.putLong(start);
+		buffer.putDouble(posterior);
+	}
+	
+	/**
+	 * Write everything buffered and close the file.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (text != null)
+		{
+			text.close();
+			return;
+		}
+		
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Write the version, alphabet and background of the text format
+	 */
+	private void writeTextHeader(Motif motif) throws IOException
+	{
+		StringBuilder header = new StringBuilder("MEME version 4\n\nALPHABET= ");
+		for (Character symbol : alphabet)
+		{
+			header.append(symbol);
+		}
+		header.append("\n\nBackground letter frequencies\n");
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			header.append(s == 0 ? "" : " ").append(alphabet.get(s)).append(' ')
+				  .append(motif.getProbability(alphabet.get(s), 0));
+		}
+		header.append('\n');
+		text.write(header.toString());
+	}
+	
+	/**
+	 * Put a motif record into a buffer
+	 */
+	private static void putMotif(ByteBuffer out, int number, Motif motif, int paddedSymbols)
+	{
+		ArrayList<Character> symbols = motif.getAlphabet();
+		out.putInt(MOTIF_RECORD);
+		out.putInt(number);
+		out.putInt(symbols.size());
+		out.putInt(motif.getWidth());
+		for (int s = 0; s < paddedSymbols; s++)
+		{
+			out.put(s < symbols.size() ? (byte) symbols.get(s).charValue() : 0);
+		}
+		for (int s = 0; s < symbols.size(); s++)
+		{
+			for (int k = 0; k <= motif.getWidth(); k++)
+			{
+				out.putDouble(motif.getProbability(symbols.get(s), k));
+			}
+		}
+	}
+	
+	/**
+	 * Flush the buffer if it has less than <code>size</code> bytes free
+	 */
+	private void ensureCapacity(int size) throws IOException
+	{
+		if (buffer.remaining() < size)
+		{
+			flush();
+		}
+	}
+	
+	/**
+	 * Write the buffer to the channel and empty it
+	 */
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
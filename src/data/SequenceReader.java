@@ -4,13 +4,30 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.util.Scanner;
 
+import events.LoadEvent;
+
 
 public class SequenceReader 
 {
 
 	public static SequenceSet readFile(String file) 
+	{
+		return readFile(file, null);
+	}
+	
+	/**
+	 * Read a sequence file, masking the low-complexity regions of each 
+	 * sequence as it is read
+	 * 
+	 * @param file the sequence file
+	 * @param masker the masker, or null to leave the sequences unmasked
+	 * @return the sequences
+	 */
+	public static SequenceSet readFile(String file, LowComplexityMasker masker) 
 	{
 		SequenceSet sequences = new SequenceSet();
+		LoadEvent event = new LoadEvent();
+		event.begin();
 
 		try
 		{
@@ -23,6 +40,12 @@ public class SequenceReader
 			while (scan.hasNextLine()) 
 			{
 				sequences.addSequence( scan.nextLine() );
+				
+				if (masker != null)
+				{
+					int index = sequences.getNumSequences() - 1;
+					sequences.setMask(index, masker.findMasked(sequences.getSequence(index)));
+				}
 			}
 
 			scan.close();	    
@@ -31,7 +54,35 @@ public class SequenceReader
 		{
 			System.err.format("FileNotFountException: %s%n", x);
 		}
-
+		
+		commit(event, file, sequences);
 		return sequences;
 	}
+	
+	/**
+	 * Commit a flight recorder event for the loading of a file, if it is 
+	 * being recorded.
+	 * 
+	 * @param event the event, begun before reading
+	 * @param file the sequence file
+	 * @param sequences the sequences read
+	 */
+	static void commit(LoadEvent event, String file, SequenceSet sequences)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			long numResidues = 0;
+			for (int i = 0; i < sequences.getNumSequences(); i++)
+			{
+				numResidues += sequences.getSequence(i).length();
+			}
+			
+			event.file = file;
+			event.numSequences = sequences.getNumSequences();
+			event.numResidues = numResidues;
+			event.numMasked = sequences.getNumMaskedResidues();
+			event.commit();
+		}
+	}
 }
@@ -1,15 +1,21 @@
 package data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 
 import meme.Motif;
 import meme.MotifLocations;
+import meme.SparseMotifLocations;
 
 import pair.Pair;
 
 
 /**
- * Represents a set of sequences.
+ * Represents a set of sequences.  Each sequence carries a weight, the 
+ * number of identical sequences it stands for, which scales its 
+ * contribution to every count.
  * 
  * @author Matthew Bernstein - matthewb@cs.wisc.edu
  * 
@@ -21,12 +27,33 @@ public class SequenceSet
 	 */
 	private ArrayList<String> sequences;
 	
+	/**
+	 * The multiplicity of each sequence: the number of sequences of the 
+	 * expanded data set it stands for
+	 */
+	private int[] weights;
+	
+	/**
+	 * For a set created by {@link #collapseDuplicates()} or 
+	 * {@link #orderByLength()}, the index in this set of each sequence of the
+	 * source set; otherwise null
+	 */
+	private int[] sourceEntries;
+	
+	/**
+	 * For each sequence, the number of masked residues before each position,
+	 * or null if the sequence is not masked
+	 */
+	private ArrayList<int[]> maskPrefixes;
+	
 	/**
 	 * Constructor
 	 */
 	public SequenceSet()
 	{
 		sequences = new ArrayList<String>();
+		weights = new int[16];
+		maskPrefixes = new ArrayList<int[]>();
 	}
 	
 	/**
@@ -44,7 +71,253 @@ public class SequenceSet
 	 */
 	public void addSequence(String sequence)
 	{
+		addSequence(sequence, 1);
+	}
+	
+	/**
+	 * Add a sequence that stands for several identical sequences
+	 * 
+	 * @param sequence the new sequence
+	 * @param weight the number of identical sequences it stands for
+	 */
+	public void addSequence(String sequence, int weight)
+	{
+		if (sequences.size() == weights.length)
+		{
+			weights = Arrays.copyOf(weights, 2 * weights.length);
+		}
+		weights[sequences.size()] = weight;
 		sequences.add(sequence);
+		maskPrefixes.add(null);
+	}
+	
+	/**
+	 * Add every sequence of another set to the end of this set, with its
+	 * weight and mask.  The sequences themselves are shared, not copied.
+	 * 
+	 * @param other the sequences to add
+	 */
+	public void append(SequenceSet other)
+	{
+		for (int i = 0; i < other.getNumSequences(); i++)
+		{
+			addSequence(other.sequences.get(i), other.weights[i]);
+			maskPrefixes.set(sequences.size() - 1, other.maskPrefixes.get(i));
+		}
+	}
+	
+	/**
+	 * Mark residues of a sequence as masked.  Windows overlapping a masked
+	 * residue are neither used as seeds nor considered as motif locations.
+	 * 
+	 * @param index the index of the sequence
+	 * @param masked the positions of the masked residues
+	 */
+	public void setMask(int index, BitSet masked)
+	{
+		if (masked.isEmpty())
+		{
+			maskPrefixes.set(index, null);
+			return;
+		}
+		
+		String sequence = sequences.get(index);
+		int[] prefix = new int[sequence.length() + 1];
+		for (int i = 0; i < sequence.length(); i++)
+		{
+			prefix[i + 1] = prefix[i] + (masked.get(i) ? 1 : 0);
+		}
+		maskPrefixes.set(index, prefix);
+	}
+	
+	/**
+	 * @param index the index of the sequence
+	 * @param start the start of the window
+	 * @param width the width of the window
+	 * @return whether the window overlaps a masked residue
+	 */
+	public boolean isWindowMasked(int index, int start, int width)
+	{
+		int[] prefix = maskPrefixes.get(index);
+		return prefix != null && prefix[start + width] > prefix[start];
+	}
+	
+	/**
+	 * A mask only applies to a sequence if it leaves at least one window of
+	 * the sequence unmasked; otherwise every window is considered.
+	 * 
+	 * @param index the index of the sequence
+	 * @param width the width of the windows
+	 * @return whether masked windows of the sequence should be skipped
+	 */
+	public boolean hasUsableMask(int index, int width)
+	{
+		int[] prefix = maskPrefixes.get(index);
+		if (prefix == null)
+		{
+			return false;
+		}
+		
+		for (int start = 0; start + width < prefix.length; start++)
+		{
+			if (prefix[start + width] == prefix[start])
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return the total number of masked residues
+	 */
+	public long getNumMaskedResidues()
+	{
+		long total = 0;
+		for (int[] prefix : maskPrefixes)
+		{
+			if (prefix != null)
+			{
+				total += prefix[prefix.length - 1];
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * @param index the index of the sequence
+	 * @return the number of identical sequences the sequence stands for
+	 */
+	public int getWeight(int index)
+	{
+		return weights[index];
+	}
+	
+	/**
+	 * @return the total weight of the sequences, which is the number of 
+	 * sequences in the expanded data set
+	 */
+	public long getTotalWeight()
+	{
+		long total = 0;
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			total += weights[i];
+		}
+		return total;
+	}
+	
+	/**
+	 * Collapse identical sequences into a single weighted entry.  Running 
+	 * EM on the collapsed set gives the same results as on this set, while
+	 * each distinct sequence is only processed once.
+	 * 
+	 * @return the set of distinct sequences, in order of first appearance,
+	 * weighted by their total weight in this set
+	 */
+	public SequenceSet collapseDuplicates()
+	{
+		SequenceSet result = new SequenceSet();
+		HashMap<String, Integer> entries = new HashMap<String, Integer>();
+		result.sourceEntries = new int[sequences.size()];
+		
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			String sequence = sequences.get(i);
+			Integer entry = entries.get(sequence);
+			
+			if (entry == null)
+			{
+				entry = result.getNumSequences();
+				entries.put(sequence, entry);
+				result.addSequence(sequence, 0);
+				result.maskPrefixes.set(entry, maskPrefixes.get(i));
+			}
+			
+			result.weights[entry] += weights[i];
+			result.sourceEntries[i] = entry;
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Reorder the sequences into buckets of similar length, shortest bucket
+	 * first, where bucket b holds the sequences with between 2^b and 
+	 * 2^(b+1) - 1 residues.  Sequences keep their relative order within a
+	 * bucket.  Neighbouring sequences then need scratch space and produce 
+	 * work of similar size, which keeps the working set of a 
+	 * {@link WorkPartition} range compact.
+	 * 
+	 * @return the reordered set, whose per-sequence results are mapped back
+	 * onto this set by {@link #expandToSource(ArrayList)}
+	 */
+	public SequenceSet orderByLength()
+	{
+		int numSequences = sequences.size();
+		int[] bucketSizes = new int[33];
+		for (int i = 0; i < numSequences; i++)
+		{
+			bucketSizes[lengthBucket(sequences.get(i)) + 1]++;
+		}
+		for (int b = 1; b < bucketSizes.length; b++)
+		{
+			bucketSizes[b] += bucketSizes[b - 1];
+		}
+		
+		int[] order = new int[numSequences];
+		int[] entries = new int[numSequences];
+		for (int i = 0; i < numSequences; i++)
+		{
+			int entry = bucketSizes[lengthBucket(sequences.get(i))]++;
+			order[entry] = i;
+			entries[i] = entry;
+		}
+		
+		SequenceSet result = subset(order, numSequences);
+		result.sourceEntries = entries;
+		return result;
+	}
+	
+	/**
+	 * @param sequence a sequence
+	 * @return the base 2 logarithm of the sequence's length, rounded down
+	 */
+	private static int lengthBucket(String sequence)
+	{
+		return 31 - Integer.numberOfLeadingZeros(Math.max(1, sequence.length()));
+	}
+	
+	/**
+	 * Map per-sequence results of a collapsed or reordered set back onto the
+	 * sequences of the set it was created from.
+	 * 
+	 * @param results one result per sequence of this set
+	 * @return one result per sequence of the source set
+	 */
+	public <T> ArrayList<T> expandToSource(ArrayList<T> results)
+	{
+		if (sourceEntries == null)
+		{
+			return results;
+		}
+		
+		ArrayList<T> expanded = new ArrayList<T>(sourceEntries.length);
+		for (int i = 0; i < sourceEntries.length; i++)
+		{
+			expanded.add(results.get(sourceEntries[i]));
+		}
+		return expanded;
+	}
+	
+	/**
+	 * @param sourceIndex the index of a sequence of the set this set was 
+	 * created from
+	 * @return the index of that sequence in this set
+	 */
+	public int getEntry(int sourceIndex)
+	{
+		return sourceEntries == null ? sourceIndex : sourceEntries[sourceIndex];
 	}
 	
 	/**
@@ -66,6 +339,28 @@ public class SequenceSet
 		return sequences.get(index);
 	}
 	
+	/**
+	 * Create a sequence set holding a subset of the sequences in this set.
+	 * The sequences themselves are shared, not copied.
+	 * 
+	 * @param indices the indices of the sequences to include, in order
+	 * @param count the number of leading entries of <code>indices</code> to 
+	 * use
+	 * @return the subset of sequences
+	 */
+	public SequenceSet subset(int[] indices, int count)
+	{
+		SequenceSet result = new SequenceSet();
+		
+		for (int i = 0; i < count; i++)
+		{
+			result.addSequence(sequences.get(indices[i]), weights[indices[i]]);
+			result.maskPrefixes.set(i, maskPrefixes.get(indices[i]));
+		}
+		
+		return result;
+	}
+	
 	/**
 	 * Count the expected number of times a symbol appears at a given position 
 	 * of the motif in all of the sequences.
@@ -85,15 +380,20 @@ public class SequenceSet
 	{
 		double count = 0;
 				
-		for (String sequence : sequences)
-		{			
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			String sequence = sequences.get(i);
+			double sequenceCount = 0;
+			
 			for (int j = position - 1; j < sequence.length() - motifWidth + position; j++)
 			{
 				if (sequence.charAt(j) == symbol)
 				{					
-					count += z.getLocationProbability(sequence, j-(position-1));
+					sequenceCount += z.getLocationProbability(i, j-(position-1));
 				}
 			}
+			
+			count += weights[i] * sequenceCount;
 		}
 		
 		return count;
@@ -119,12 +419,17 @@ public class SequenceSet
 	{
 		double count = 0;
 		
-		for (String sequence : sequences)
-		{			
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			String sequence = sequences.get(i);
+			double sequenceCount = 0;
+			
 			for (int j = position - 1; j < sequence.length() - motifWidth + position; j++)
 			{
-				count += z.getLocationProbability(sequence,j-(position-1));
+				sequenceCount += z.getLocationProbability(i, j-(position-1));
 			}
+			
+			count += weights[i] * sequenceCount;
 		}
 		
 		return count;
@@ -140,13 +445,14 @@ public class SequenceSet
 	{
 		double count = 0;
 		
-		for (String sequence : sequences)
+		for (int s = 0; s < sequences.size(); s++)
 		{
+			String sequence = sequences.get(s);
 			for (int i = 0; i < sequence.length(); i++)
 			{
 				if (sequence.charAt(i) == symbol)
 				{
-					count++;
+					count += weights[s];
 				}
 			}
 		}
@@ -179,4 +485,53 @@ public class SequenceSet
 		
 		return result;
 	}
+	
+	/**
+	 * Find the subsequence in each sequence that is most likely to be the
+	 * sequence in the motif, from sparse motif locations.
+	 * 
+	 * @param p the motif model matrix
+	 * @param z the plausible motif start positions
+	 * @return a list of pairs where each pair stores the index of the 
+	 * motif in a sequence along with the subsequence
+	 */
+	public ArrayList<Pair<Integer, String>> pickOutMotifs(Motif p, 
+														  SparseMotifLocations z)
+	{	
+		ArrayList<Pair<Integer, String>> result
+									= new  ArrayList<Pair<Integer, String>>();
+		
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			int start = z.maxProbabilityStartPosition(i);
+			
+			String realizedMotif = sequences.get(i).substring(start, start+p.getWidth());
+			result.add( new Pair<Integer, String>(start, realizedMotif));
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Find the subsequence in each sequence at a known motif start, such as
+	 * the most probable starts kept by {@link meme.oops.FusedEM}.
+	 * 
+	 * @param p the motif model matrix
+	 * @param starts the start of the motif in each sequence
+	 * @return a list of pairs where each pair stores the index of the 
+	 * motif in a sequence along with the subsequence
+	 */
+	public ArrayList<Pair<Integer, String>> pickOutMotifs(Motif p, int[] starts)
+	{
+		ArrayList<Pair<Integer, String>> result
+									= new  ArrayList<Pair<Integer, String>>();
+		
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			String realizedMotif = sequences.get(i).substring(starts[i], starts[i]+p.getWidth());
+			result.add( new Pair<Integer, String>(starts[i], realizedMotif));
+		}
+		
+		return result;
+	}
 }
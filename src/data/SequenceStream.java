@@ -0,0 +1,88 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Reads a sequence file, one sequence per line, in batches so that only one
+ * batch of sequences needs to be held in memory at a time.  The stream can 
+ * be rewound to make further passes over the file.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class SequenceStream 
+{
+	/**
+	 * The file being streamed
+	 */
+	private String file;
+	
+	/**
+	 * The reader positioned at the next unread line
+	 */
+	private BufferedReader reader;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param file the sequence file, in the format read by 
+	 * {@link SequenceReader}
+	 * @throws IOException if the file cannot be opened
+	 */
+	public SequenceStream(String file) throws IOException
+	{
+		this.file = file;
+		rewind();
+	}
+	
+	/**
+	 * Read the next batch of sequences.  As in {@link SequenceReader}, every
+	 * line is a sequence, even an empty one, so that sequence indices match
+	 * line numbers.
+	 * 
+	 * @param batchSize the maximum number of sequences in the batch
+	 * @return the next batch, or null if the end of the file has been reached
+	 * @throws IOException if the file cannot be read
+	 */
+	public SequenceSet nextBatch(int batchSize) throws IOException
+	{
+		SequenceSet batch = new SequenceSet();
+		
+		String line;
+		while (batch.getNumSequences() < batchSize 
+				&& (line = reader.readLine()) != null)
+		{
+			batch.addSequence(line);
+		}
+		
+		return batch.getNumSequences() == 0 ? null : batch;
+	}
+	
+	/**
+	 * Return to the start of the file
+	 * 
+	 * @throws IOException if the file cannot be reopened
+	 */
+	public void rewind() throws IOException
+	{
+		close();
+		reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+	}
+	
+	/**
+	 * Close the underlying file
+	 * 
+	 * @throws IOException if the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		if (reader != null)
+		{
+			reader.close();
+			reader = null;
+		}
+	}
+}
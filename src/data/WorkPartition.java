@@ -0,0 +1,140 @@
+package data;
+
+/**
+ * Splits the sequences of a {@link SequenceSet} into contiguous ranges of
+ * roughly equal work, where the work of a sequence is its number of motif
+ * windows, L - W + 1, rather than one unit per sequence.  With sequence
+ * lengths ranging over several orders of magnitude, splitting by sequence
+ * count would leave the ranges holding the long sequences with most of the
+ * work.
+ *
+ * A range never splits a sequence, so a sequence longer than the target
+ * work of a range makes its range larger than the rest.  Creating more
+ * ranges than threads lets threads that finish early take over ranges
+ * that have not been started.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class WorkPartition
+{
+	/**
+	 * The index of the first sequence of each range, followed by the number
+	 * of sequences
+	 */
+	private int[] boundaries;
+	
+	/**
+	 * The number of windows in each range
+	 */
+	private long[] work;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param sequences the sequences to split
+	 * @param width the width of the motif
+	 * @param numParts the number of ranges to split the sequences into
+	 */
+	public WorkPartition(SequenceSet sequences, int width, int numParts)
+	{
+		if (numParts < 1)
+		{
+			throw new IllegalArgumentException("Invalid number of parts " + numParts);
+		}
+		
+		int numSequences = sequences.getNumSequences();
+		long total = 0;
+		for (int i = 0; i < numSequences; i++)
+		{
+			total += numWindows(sequences.getSequence(i), width);
+		}
+		
+		numParts = Math.max(1, Math.min(numParts, numSequences));
+		boundaries = new int[numParts + 1];
+		work = new long[numParts];
+		
+		/*
+		 * Close each range once the cumulative work reaches its share of the
+		 * total, leaving at least one sequence for each remaining range
+		 */
+		int part = 0;
+		long cumulative = 0;
+		for (int i = 0; i < numSequences; i++)
+		{
+			long windows = numWindows(sequences.getSequence(i), width);
+			cumulative += windows;
+			work[part] += windows;
+			
+			boolean shareReached = cumulative * numParts >= total * (part + 1);
+			boolean mustClose = numSequences - i - 1 == numParts - part - 1;
+			if (part < numParts - 1 && (shareReached || mustClose))
+			{
+				part++;
+				boundaries[part] = i + 1;
+			}
+		}
+		boundaries[numParts] = numSequences;
+	}
+	
+	/**
+	 * @param sequence a sequence
+	 * @param width the width of the motif
+	 * @return the number of windows of the sequence
+	 */
+	public static long numWindows(String sequence, int width)
+	{
+		return Math.max(0, sequence.length() - width + 1);
+	}
+	
+	/**
+	 * @return the number of ranges
+	 */
+	public int getNumParts()
+	{
+		return work.length;
+	}
+	
+	/**
+	 * @param part the index of a range
+	 * @return the index of the first sequence of the range
+	 */
+	public int getStart(int part)
+	{
+		return boundaries[part];
+	}
+	
+	/**
+	 * @param part the index of a range
+	 * @return the index after the last sequence of the range
+	 */
+	public int getEnd(int part)
+	{
+		return boundaries[part + 1];
+	}
+	
+	/**
+	 * @param part the index of a range
+	 * @return the number of windows in the range
+	 */
+	public long getWork(int part)
+	{
+		return work[part];
+	}
+	
+	/**
+	 * @return the ratio of the work of the largest range to the mean work
+	 * of a range, where 1.0 is a perfect balance
+	 */
+	public double getImbalance()
+	{
+		long max = 0;
+		long total = 0;
+		for (int p = 0; p < work.length; p++)
+		{
+			max = Math.max(max, work[p]);
+			total += work[p];
+		}
+		return total == 0 ? 1.0 : (double) max * work.length / total;
+	}
+}
@@ -0,0 +1,58 @@
+package events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event spanning one E-Step and M-Step of EM, with the 
+ * time of each step.  Like the other events of this package it is only 
+ * filled in and committed while a recording is running, started for 
+ * example with
+ * 
+ *     java -XX:StartFlightRecording=filename=run.jfr ...
+ * 
+ * and printed with <code>jfr print --categories MEME run.jfr</code>.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+@Name("meme.Iteration")
+@Label("EM Iteration")
+@Category("MEME")
+@Description("One E-Step and M-Step")
+@StackTrace(false)
+public class IterationEvent extends jdk.jfr.Event
+{
+	@Label("E-Step")
+	@Description("The E-Step implementation")
+	public String eStep;
+	
+	@Label("Iteration")
+	@Description("The number of iterations run before this one on the same data")
+	public int iteration;
+	
+	@Label("Sequences")
+	public int numSequences;
+	
+	@Label("Windows")
+	public long numWindows;
+	
+	@Label("Width")
+	public int width;
+	
+	@Label("Log Likelihood")
+	@Description("The log probability of the data given the motif entering the step")
+	public double logLikelihood;
+	
+	@Label("E-Step Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long eStepTime;
+	
+	@Label("M-Step Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long mStepTime;
+}
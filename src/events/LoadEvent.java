@@ -0,0 +1,33 @@
+package events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the reading of a sequence file.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+@Name("meme.Load")
+@Label("Load Sequences")
+@Category("MEME")
+@Description("Reading and masking a sequence file")
+@StackTrace(false)
+public class LoadEvent extends jdk.jfr.Event
+{
+	@Label("File")
+	public String file;
+	
+	@Label("Sequences")
+	public int numSequences;
+	
+	@Label("Residues")
+	public long numResidues;
+	
+	@Label("Masked Residues")
+	public long numMasked;
+}
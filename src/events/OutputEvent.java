@@ -0,0 +1,30 @@
+package events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the writing of results.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+@Name("meme.Output")
+@Label("Write Results")
+@Category("MEME")
+@Description("Writing the motif model and positions")
+@StackTrace(false)
+public class OutputEvent extends jdk.jfr.Event
+{
+	@Label("Model File")
+	public String modelFile;
+	
+	@Label("Positions File")
+	public String positionsFile;
+	
+	@Label("Sequences")
+	public int numSequences;
+}
@@ -0,0 +1,34 @@
+package events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning a job run with the settings chosen by the
+ * job planner, with its predicted and actual runtime.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+@Name("meme.Plan")
+@Label("Planned Job")
+@Category("MEME")
+@Description("An EM job run with the settings chosen by the planner")
+@StackTrace(false)
+public class PlanEvent extends jdk.jfr.Event
+{
+	@Label("Settings")
+	public String settings;
+	
+	@Label("Windows")
+	public long numWindows;
+	
+	@Label("Predicted Seconds")
+	public double predictedSeconds;
+	
+	@Label("Actual Seconds")
+	public double actualSeconds;
+}
@@ -0,0 +1,38 @@
+package events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the few iterations of EM run from one 
+ * candidate seed.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+@Name("meme.Seed")
+@Label("Seed")
+@Category("MEME")
+@Description("A short run of EM from one candidate seed window")
+@StackTrace(false)
+public class SeedEvent extends jdk.jfr.Event
+{
+	@Label("Sequence")
+	public int sequence;
+	
+	@Label("Start")
+	public int start;
+	
+	@Label("Width")
+	public int width;
+	
+	@Label("Iterations")
+	public int iterations;
+	
+	@Label("Score")
+	@Description("The score of the seed in the strategy's own units")
+	public double score;
+}
@@ -0,0 +1,38 @@
+package events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the choice of a starting motif from all
+ * candidate seeds.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+@Name("meme.Seeding")
+@Label("Seeding")
+@Category("MEME")
+@Description("Choosing the starting motif from candidate seeds")
+@StackTrace(false)
+public class SeedingEvent extends jdk.jfr.Event
+{
+	@Label("Strategy")
+	public String strategy;
+	
+	@Label("Sequences")
+	public int numSequences;
+	
+	@Label("Width")
+	public int width;
+	
+	@Label("Seeds Tried")
+	public int numSeeds;
+	
+	@Label("Best Score")
+	@Description("The score of the chosen seed in the strategy's own units")
+	public double bestScore;
+}
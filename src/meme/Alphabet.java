@@ -0,0 +1,201 @@
+package meme;
+
+/**
+ * The symbols of the sequences a motif is fitted to, such as the four
+ * nucleotides or the twenty amino acids.  Each symbol has an index, its
+ * position in the alphabet, which is looked up in a table of all 256 byte
+ * values rather than by searching the symbols, so that encoding a residue
+ * costs the same for any alphabet size.
+ *
+ * Residues outside the alphabet, such as N or lowercase letters, are
+ * handled the same way everywhere: EM, whose E-Steps and M-Steps all encode
+ * through {@link #encodeStrict} or {@link #indexOfStrict}, rejects them 
+ * with an IllegalArgumentException, since a window holding one has no 
+ * probability under the motif.  Statistics gathered before or after fitting, such as
+ * symbol and k-mer counts and site scanning, encode with {@link #encode} 
+ * and skip them.
+ *
+ * An alphabet is immutable and may be shared between threads.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class Alphabet
+{
+	/**
+	 * The nucleotides
+	 */
+	public static final Alphabet DNA = new Alphabet("ACGT");
+	
+	/**
+	 * The twenty standard amino acids
+	 */
+	public static final Alphabet PROTEIN = new Alphabet("ACDEFGHIKLMNPQRSTVWY");
+	
+	/**
+	 * The symbols, in index order
+	 */
+	private String symbols;
+	
+	/**
+	 * The index of each byte value in the alphabet, or -1
+	 */
+	private byte[] index;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param symbols the symbols, in index order
+	 */
+	public Alphabet(String symbols)
+	{
+		if (symbols.length() < 2 || symbols.length() > Byte.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Invalid alphabet " + symbols);
+		}
+		
+		this.symbols = symbols;
+		this.index = new byte[256];
+		for (int b = 0; b < index.length; b++)
+		{
+			index[b] = -1;
+		}
+		for (int s = 0; s < symbols.length(); s++)
+		{
+			char symbol = symbols.charAt(s);
+			if (symbol >= index.length || index[symbol] >= 0)
+			{
+				throw new IllegalArgumentException("Invalid alphabet " + symbols);
+			}
+			index[symbol] = (byte) s;
+		}
+	}
+	
+	/**
+	 * Get the alphabet of a string of symbols, shared with
+	 * {@link #DNA} or {@link #PROTEIN} when it holds the same symbols in the
+	 * same order.
+	 *
+	 * @param symbols the symbols, in index order
+	 * @return the alphabet
+	 */
+	public static Alphabet forSymbols(String symbols)
+	{
+		if (symbols.equals(DNA.symbols))
+		{
+			return DNA;
+		}
+		if (symbols.equals(PROTEIN.symbols))
+		{
+			return PROTEIN;
+		}
+		return new Alphabet(symbols);
+	}
+	
+	/**
+	 * @param name "dna", "protein", or the symbols of the alphabet
+	 * @return the alphabet
+	 */
+	public static Alphabet forName(String name)
+	{
+		if (name.equalsIgnoreCase("dna"))
+		{
+			return DNA;
+		}
+		if (name.equalsIgnoreCase("protein"))
+		{
+			return PROTEIN;
+		}
+		return forSymbols(name);
+	}
+	
+	/**
+	 * @param symbol a symbol
+	 * @return the index of the symbol in the alphabet, or -1
+	 */
+	public int indexOf(char symbol)
+	{
+		return symbol < index.length ? index[symbol] : -1;
+	}
+	
+	/**
+	 * @param symbol a residue of a sequence that EM is fitted to
+	 * @return the index of the residue in the alphabet
+	 * @throws IllegalArgumentException if the residue is outside the 
+	 * alphabet
+	 */
+	public int indexOfStrict(char symbol)
+	{
+		int s = symbol < index.length ? index[symbol] : -1;
+		if (s < 0)
+		{
+			throw new IllegalArgumentException("Residue '" + symbol 
+											   + "' is not in the alphabet " + symbols);
+		}
+		return s;
+	}
+	
+	/**
+	 * Encode a sequence as the index of each residue, with -1 for residues
+	 * outside the alphabet.
+	 *
+	 * @param sequence the sequence
+	 * @param encoded the array receiving the indices, of length at least
+	 * the sequence's
+	 */
+	public void encode(String sequence, byte[] encoded)
+	{
+		for (int j = 0; j < sequence.length(); j++)
+		{
+			char symbol = sequence.charAt(j);
+			encoded[j] = symbol < index.length ? index[symbol] : -1;
+		}
+	}
+	
+	/**
+	 * Encode a sequence that EM is fitted to, as the index of each residue.
+	 *
+	 * @param sequence the sequence
+	 * @param encoded the array receiving the indices, of length at least
+	 * the sequence's
+	 * @throws IllegalArgumentException if a residue is outside the alphabet
+	 */
+	public void encodeStrict(String sequence, byte[] encoded)
+	{
+		for (int j = 0; j < sequence.length(); j++)
+		{
+			encoded[j] = (byte) indexOfStrict(sequence.charAt(j));
+		}
+	}
+	
+	/**
+	 * @param s the index of a symbol
+	 * @return the symbol
+	 */
+	public char getSymbol(int s)
+	{
+		return symbols.charAt(s);
+	}
+	
+	/**
+	 * @return the symbols, in index order
+	 */
+	public String getSymbols()
+	{
+		return symbols;
+	}
+	
+	/**
+	 * @return the number of symbols
+	 */
+	public int size()
+	{
+		return symbols.length();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return symbols;
+	}
+}
@@ -1,63 +1,258 @@
 package meme;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 import data.SequenceSet;
 
 public class Counts 
 {
 	
+	/**
+	 * The alphabet the counts are indexed by
+	 */
+	ArrayList<Character> alphabet;
+	
+	/**
+	 * The index of each symbol of the alphabet
+	 */
+	Alphabet encoding;
+	
 	/**
 	 * The background counts
 	 */
-	Map<Character, Double> bgCounts;
+	double[] bgCounts;
 	
 	/**
 	 * The motif counts
 	 */
-	Map<Character, Double> mCounts;
+	double[] mCounts;
+	
+	/**
+	 * The expected count of each symbol at each position of the motif, where
+	 * position 0 holds the background count
+	 */
+	double[][] positionCounts;
+	
+	/**
+	 * The total count of each symbol in <code>countedSequences</code>
+	 */
+	double[] symbolTotals;
+	
+	/**
+	 * The sequences whose symbols were counted in <code>symbolTotals</code>
+	 */
+	SequenceSet countedSequences;
 	
-	Map<Character, Double[]> positionCounts;
+	/**
+	 * Scratch space for the expected count of each symbol at each motif 
+	 * position in one sequence
+	 */
+	double[][] sequenceCounts;
+	
+	/**
+	 * Create zero counts for the width and alphabet of a motif, to be filled
+	 * by {@link #set(double[][], double[])}.
+	 * 
+	 * @param p the motif model
+	 */
+	public Counts(Motif p)
+	{
+		alphabet = p.getAlphabet();
+		encoding = p.getEncoding();
+		positionCounts = new double[alphabet.size()][p.getWidth() + 1];
+		bgCounts = new double[alphabet.size()];
+		mCounts = new double[alphabet.size()];
+	}
 	
 	public Counts(SequenceSet sequences, MotifLocations z, Motif p)
 	{
+		alphabet = p.getAlphabet();
+		encoding = p.getEncoding();
+		positionCounts = new double[alphabet.size()][p.getWidth() + 1];
+		bgCounts = new double[alphabet.size()];
+		mCounts = new double[alphabet.size()];
 		
-		positionCounts = new HashMap<Character, Double[]>();
-		bgCounts = new HashMap<Character, Double>();
-		mCounts = new HashMap<Character, Double>();
+		update(sequences, z, p);
+	}
+	
+	/**
+	 * Recompute all expected counts in place from a new set of motif location
+	 * probabilities.  The motif must have the same width and alphabet as the
+	 * one these counts were created with.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param z the expected motif locations in the sequences
+	 * @param p the motif model
+	 */
+	public void update(SequenceSet sequences, MotifLocations z, Motif p)
+	{
+		generateMotifCounts(sequences, z, p);
+		generateBackgroundCounts(sequences, z, p);
+	}
+	
+	/**
+	 * Recompute all expected counts in place from sparse motif location 
+	 * probabilities, visiting only the stored start positions.  The total 
+	 * count of each symbol, from which the background counts are derived, is
+	 * computed once per set of sequences.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param z the plausible motif locations in the sequences
+	 * @param p the motif model
+	 */
+	public void update(SequenceSet sequences, SparseMotifLocations z, Motif p)
+	{
+		countSymbols(sequences);
 		
-		for (Character symbol : p.getAlphabet())
+		for (int s = 0; s < alphabet.size(); s++)
 		{
-			bgCounts.put(symbol, 0.0);
-			mCounts.put(symbol, 0.0);
-			positionCounts.put(symbol, new Double[p.getWidth() + 1]);
+			for (int k = 1; k < positionCounts[s].length; k++)
+			{
+				positionCounts[s][k] = 0.0;
+			}
 		}
 		
-		generateMotifCounts(sequences, z, p);
-		generateBackgroundCounts(sequences, z, p);		
+		int width = p.getWidth();
+		for (int i = 0; i < z.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			int weight = sequences.getWeight(i);
+			
+			for (int e = 0; e < z.getNumEntries(i); e++)
+			{
+				int start = z.getPosition(i, e);
+				double probability = weight * z.getProbability(i, e);
+				
+				for (int k = 0; k < width; k++)
+				{
+					positionCounts[encoding.indexOfStrict(sequence.charAt(start + k))][k+1] += probability;
+				}
+			}
+		}
+		
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			double count = 0.0;
+			for (int k = 1; k < positionCounts[s].length; k++)
+			{
+				count += positionCounts[s][k];
+			}
+			mCounts[s] = count;
+			bgCounts[s] = symbolTotals[s] - count;
+			positionCounts[s][0] = bgCounts[s];
+		}
+	}
+	
+	/**
+	 * Overwrite all expected counts in place from motif position counts 
+	 * accumulated elsewhere, such as in parallel over ranges of sequences.
+	 * 
+	 * @param motifCounts the expected count of each symbol index at each 
+	 * motif position, where position 0 is ignored
+	 * @param totals the total count of each symbol index in the sequences
+	 */
+	public void set(double[][] motifCounts, double[] totals)
+	{
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			double count = 0.0;
+			for (int k = 1; k < positionCounts[s].length; k++)
+			{
+				positionCounts[s][k] = motifCounts[s][k];
+				count += motifCounts[s][k];
+			}
+			mCounts[s] = count;
+			bgCounts[s] = totals[s] - count;
+			positionCounts[s][0] = bgCounts[s];
+		}
+	}
+	
+	/**
+	 * Count the total weight of each symbol in the sequences, in a single 
+	 * pass over the residues, unless they were counted already.
+	 */
+	private void countSymbols(SequenceSet sequences)
+	{
+		if (countedSequences == sequences)
+		{
+			return;
+		}
+		
+		symbolTotals = new double[alphabet.size()];
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			int weight = sequences.getWeight(i);
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				symbolTotals[encoding.indexOfStrict(sequence.charAt(j))] += weight;
+			}
+		}
+		countedSequences = sequences;
 	}
 	
+	/**
+	 * Accumulate the expected count of every symbol at every motif position
+	 * in a single pass over the windows of each sequence, reading each 
+	 * motif location probability once whatever the alphabet size.
+	 */
 	private void generateMotifCounts(SequenceSet sequences,
 									 MotifLocations z, 
 									 Motif p)
 	{
-		for (Character symbol : p.getAlphabet())
+		int width = p.getWidth();
+		if (sequenceCounts == null || sequenceCounts[0].length != width + 1)
 		{
-			double count = 0;
-			for (int i = 0; i < p.getWidth(); i++)
-			{			
-				double countAtPosition = sequences.countSymbolAtMotifPosition(symbol, 
-						  													  i+1, 
-						  													  p.getWidth(), 
-						  													  z);
-						
-				positionCounts.get(symbol)[i+1] = countAtPosition; 
+			sequenceCounts = new double[alphabet.size()][width + 1];
+		}
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			for (int k = 1; k < width + 1; k++)
+			{
+				positionCounts[s][k] = 0.0;
+			}
+		}
 		
-				count += countAtPosition;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			for (double[] row : sequenceCounts)
+			{
+				Arrays.fill(row, 0.0);
+			}
+			
+			for (int j = 0; j < sequence.length() - width + 1; j++)
+			{
+				double probability = z.getLocationProbability(i, j);
+				for (int k = 0; k < width; k++)
+				{
+					sequenceCounts[encoding.indexOfStrict(sequence.charAt(j + k))][k + 1] += probability;
+				}
+			}
+			
+			/*
+			 * Sum the sequences' counts in sequence order, weighted by their
+			 * number of copies
+			 */
+			int weight = sequences.getWeight(i);
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				for (int k = 1; k < width + 1; k++)
+				{
+					positionCounts[s][k] += weight * sequenceCounts[s][k];
+				}
+			}
+		}
+		
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			double count = 0;
+			for (int k = 1; k < width + 1; k++)
+			{
+				count += positionCounts[s][k];
 			}
-			mCounts.put(symbol, count);
+			mCounts[s] = count;
 		}
 	}
 	
@@ -65,70 +260,87 @@ public class Counts
 										  MotifLocations z, 
 										  Motif p)
 	{
-		for (Character symbol : p.getAlphabet())
+		countSymbols(sequences);
+		for (int s = 0; s < alphabet.size(); s++)
 		{
-			double totalCount = sequences.countSymbol(symbol);
-			double bgCount = totalCount - mCounts.get(symbol);
-			bgCounts.put(symbol, bgCount);
-			positionCounts.get(symbol)[0] = bgCount;
+			double bgCount = symbolTotals[s] - mCounts[s];
+			bgCounts[s] = bgCount;
+			positionCounts[s][0] = bgCount;
 		}
 	}
 	
 	public double sumAllBgCounts()
 	{
 		double sum = 0.0;
-		for (Entry<Character, Double> entry : bgCounts.entrySet())
+		for (int s = 0; s < bgCounts.length; s++)
 		{
-			sum += entry.getValue();
+			sum += bgCounts[s];
 		}
 		return sum;
 	}
 	
 	public void incrementMotifCount(Character symbol, Double value)
 	{
-		double count = mCounts.get(symbol);
-		mCounts.put(symbol, count + value);
+		mCounts[encoding.indexOfStrict(symbol)] += value;
 	}
 	
 	public void incrementBGCount(Character symbol, Double value)
 	{
-		double count = bgCounts.get(symbol);
-		bgCounts.put(symbol, count + value);
+		bgCounts[encoding.indexOfStrict(symbol)] += value;
 	}
 	
 	public Double getMotifCount(Character symbol)
 	{
-		return mCounts.get(symbol);
+		return mCounts[encoding.indexOfStrict(symbol)];
 	}
 	
 	public Double getBGCount(Character symbol)
 	{
-		return bgCounts.get(symbol);
+		return bgCounts[encoding.indexOfStrict(symbol)];
 	}
 	
 	public Double getCountAtPosition(char symbol, int position)
 	{
-		return positionCounts.get(symbol)[position];
+		return positionCounts[encoding.indexOfStrict(symbol)][position];
+	}
+	
+	/**
+	 * @param symbolIndex the index of the symbol in the alphabet
+	 * @param position the position in the motif, where 0 is the background
+	 * @return the expected count of the symbol at the position
+	 */
+	public double getCountAtPosition(int symbolIndex, int position)
+	{
+		return positionCounts[symbolIndex][position];
+	}
+	
+	/**
+	 * @param symbolIndex the index of the symbol in the alphabet
+	 * @return the expected background count of the symbol
+	 */
+	public double getBGCount(int symbolIndex)
+	{
+		return bgCounts[symbolIndex];
 	}
 	
 	@Override
 	public String toString()
 	{
-		String result = "";
+		StringBuilder result = new StringBuilder();
 		
-		result += "Motif Counts:\n";
-		for (Entry<Character, Double> entry : mCounts.entrySet())
+		result.append("Motif Counts:\n");
+		for (int s = 0; s < alphabet.size(); s++)
 		{
-			result += entry.getKey() + " : " + entry.getValue() + "\n";
+			result.append(alphabet.get(s)).append(" : ").append(mCounts[s]).append('\n');
 		}
 		
-		result += "\nBackground Counts:\n";
-		for (Entry<Character, Double> entry : bgCounts.entrySet())
+		result.append("\nBackground Counts:\n");
+		for (int s = 0; s < alphabet.size(); s++)
 		{
-			result += entry.getKey() + " : " + entry.getValue() + "\n";
+			result.append(alphabet.get(s)).append(" : ").append(bgCounts[s]).append('\n');
 		}
 		
-		return result;
+		return result.toString();
 	}
 
 }
@@ -0,0 +1,262 @@
+package meme;
+
+import java.util.ArrayList;
+
+/**
+ * Scores windows of a sequence against a position weight matrix a block of
+ * motif columns at a time.  For each block of <code>blockSize</code>
+ * columns, a table holds the summed score of every k-mer of that length,
+ * indexed by the k-mer's packed code
+ *
+ *     code = sum_i x_i * A^(blockSize - 1 - i),
+ *
+ * where A is the alphabet size.  A window of width W is then scored with
+ * ceil(W / blockSize) lookups instead of W.  When the width is not a
+ * multiple of the block size, the last block starts at W - blockSize and
+ * its table ignores the columns already covered by the previous block, so
+ * that every block uses the same k-mer codes.
+ *
+ * The codes of a sequence are computed once by
+ * {@link #encode(byte[], int, int[])} and reused across recompilations of
+ * the tables, which only needs the blocks' A^blockSize entries rebuilt.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class KmerBlockScorer
+{
+	/**
+	 * The default number of motif columns per block
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 5;
+	
+	/**
+	 * The width of the motif
+	 */
+	private int width;
+	
+	/**
+	 * The number of symbols in the alphabet
+	 */
+	private int alphabetSize;
+	
+	/**
+	 * The number of motif columns per block
+	 */
+	private int blockSize;
+	
+	/**
+	 * The position in the window of the first column of each block
+	 */
+	private int[] blockStarts;
+	
+	/**
+	 * The score of every k-mer code for each block
+	 */
+	private double[][] tables;
+	
+	/**
+	 * Alphabet size to the power of the block size
+	 */
+	private int numCodes;
+	
+	/**
+	 * Scratch space for the per-column scores of a motif
+	 */
+	private double[][] columnScores;
+	
+	/**
+	 * Constructor.  The block size is reduced to the motif width if it is
+	 * wider.
+	 *
+	 * @param width the width of the motif
+	 * @param alphabetSize the number of symbols in the alphabet
+	 * @param blockSize the number of motif columns per block
+	 */
+	public KmerBlockScorer(int width, int alphabetSize, int blockSize)
+	{
+		if (width < 1 || alphabetSize < 1 || blockSize < 1
+				|| Math.pow(alphabetSize, Math.min(blockSize, width)) > (1 << 24))
+		{
+			throw new IllegalArgumentException("Invalid block size " + blockSize);
+		}
+		
+		this.width = width;
+		this.alphabetSize = alphabetSize;
+		this.blockSize = Math.min(blockSize, width);
+		
+		this.numCodes = 1;
+		for (int i = 0; i < this.blockSize; i++)
+		{
+			numCodes *= alphabetSize;
+		}
+		
+		int numBlocks = (width + this.blockSize - 1) / this.blockSize;
+		this.blockStarts = new int[numBlocks];
+		for (int b = 0; b < numBlocks; b++)
+		{
+			blockStarts[b] = Math.min(b * this.blockSize, width - this.blockSize);
+		}
+		
+		this.tables = new double[numBlocks][numCodes];
+		this.columnScores = new double[width][alphabetSize];
+	}
+	
+	/**
+	 * The block size for an alphabet: {@link #DEFAULT_BLOCK_SIZE}, shortened
+	 * until each table holds no more entries than a DNA table of the default
+	 * size, so that the tables of a protein motif cover 2 columns and stay
+	 * in cache.
+	 * 
+	 * @param alphabetSize the number of symbols in the alphabet
+	 * @return the number of motif columns per block
+	 */
+	public static int defaultBlockSize(int alphabetSize)
+	{
+		int blockSize = DEFAULT_BLOCK_SIZE;
+		while (blockSize > 1 && Math.pow(alphabetSize, blockSize) > Math.pow(4, DEFAULT_BLOCK_SIZE))
+		{
+			blockSize--;
+		}
+		return blockSize;
+	}
+	
+	/**
+	 * Rebuild the tables from a matrix of per-column scores.
+	 *
+	 * @param scores the score of each symbol index at each motif position,
+	 * indexed by position (from 0) and symbol index
+	 */
+	public void compile(double[][] scores)
+	{
+		for (int b = 0; b < blockStarts.length; b++)
+		{
+			/*
+			 * Columns before this one were scored by the previous block
+			 */
+			int firstColumn = (b == 0) ? 0 : blockStarts[b - 1] + blockSize;
+			double[] table = tables[b];
+			
+			/*
+			 * Extend the table one column at a time, so that the entries for
+			 * the codes of the first l columns are built from those of the
+			 * first l - 1
+			 */
+			table[0] = 0.0;
+			int size = 1;
+			for (int l = 0; l < blockSize; l++)
+			{
+				int column = blockStarts[b] + l;
+				boolean counted = column >= firstColumn;
+				
+				for (int c = size - 1; c >= 0; c--)
+				{
+					double prefix = table[c];
+					for (int s = alphabetSize - 1; s >= 0; s--)
+					{
+						table[c * alphabetSize + s] = counted
+								? prefix + scores[column][s]
+								: prefix;
+					}
+				}
+				size *= alphabetSize;
+			}
+		}
+	}
+	
+	/**
+	 * Rebuild the tables with the natural log-odds score of each symbol at
+	 * each motif position against the motif's background.
+	 *
+	 * @param motif the motif, whose position 0 is the background model
+	 */
+	public void compile(Motif motif)
+	{
+		ArrayList<Character> alphabet = motif.getAlphabet();
+		
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				char symbol = alphabet.get(s);
+				columnScores[k][s] = Math.log(motif.getProbability(symbol, k + 1))
+								   - Math.log(motif.getProbability(symbol, 0));
+			}
+		}
+		
+		compile(columnScores);
+	}
+	
+	/**
+	 * Compute the k-mer code starting at every position of an encoded
+	 * sequence.  Symbols outside the alphabet, stored as negative indices,
+	 * are coded as symbol 0; windows holding them must be skipped by the
+	 * caller.
+	 *
+	 * @param sequence the symbol indices of the sequence
+	 * @param length the number of residues in the sequence
+	 * @param codes the array receiving the codes, of length at least
+	 * <code>length - blockSize + 1</code>
+	 * @return the number of codes written
+	 */
+	public int encode(byte[] sequence, int length, int[] codes)
+	{
+		if (length < blockSize)
+		{
+			return 0;
+		}
+		
+		int code = 0;
+		for (int i = 0; i < blockSize; i++)
+		{
+			code = code * alphabetSize + Math.max(0, (int) sequence[i]);
+		}
+		codes[0] = code;
+		
+		/*
+		 * Roll the code along the sequence, dropping the leading symbol
+		 */
+		int leadingWeight = numCodes / alphabetSize;
+		for (int i = blockSize; i < length; i++)
+		{
+			code = (code - Math.max(0, (int) sequence[i - blockSize]) * leadingWeight) * alphabetSize 
+					+ Math.max(0, (int) sequence[i]);
+			codes[i - blockSize + 1] = code;
+		}
+		
+		return length - blockSize + 1;
+	}
+	
+	/**
+	 * Score the window starting at a position.
+	 *
+	 * @param codes the k-mer codes of the sequence
+	 * @param start the start of the window
+	 * @return the summed score of the window
+	 */
+	public double score(int[] codes, int start)
+	{
+		double score = 0.0;
+		for (int b = 0; b < blockStarts.length; b++)
+		{
+			score += tables[b][codes[start + blockStarts[b]]];
+		}
+		return score;
+	}
+	
+	/**
+	 * @return the number of motif columns per block
+	 */
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+	
+	/**
+	 * @return the number of table lookups per window
+	 */
+	public int getNumBlocks()
+	{
+		return blockStarts.length;
+	}
+}
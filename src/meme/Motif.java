@@ -20,13 +20,17 @@ public class Motif
 	 */
 	private ArrayList<Character> alphabet;
 	
+	/**
+	 * The index of each symbol of the alphabet
+	 */
+	private Alphabet encoding;
 	
 	/**
 	 * The matrix holding the probability of each symbol appearing at a given
 	 * position of the motif, where index (i,j) holds the probability of the
 	 * ith symbol of the element occuring at the jth position of the motif.
 	 */
-	private Double[][] pMatrix;
+	private double[][] pMatrix;
 	
 	/**
 	 * Copy constructor
@@ -36,8 +40,9 @@ public class Motif
 	public Motif(Motif original)
 	{
 		this.width = original.width;
-		this.pMatrix = new Double[original.pMatrix.length][width + 1];
+		this.pMatrix = new double[original.pMatrix.length][width + 1];
 		this.alphabet = new ArrayList<Character>();
+		this.encoding = original.encoding;
 		
 		for (Character symbol : original.getAlphabet())
 		{
@@ -56,9 +61,9 @@ public class Motif
 	public Motif(String subsequence, String alphabetStr, Double param)
 	{
 		this.width = subsequence.length();
-		this.pMatrix = new Double[alphabetStr.length()][width + 1];
+		this.pMatrix = new double[alphabetStr.length()][width + 1];
 		this.alphabet = new ArrayList<Character>();
-
+		this.encoding = Alphabet.forSymbols(alphabetStr);
 		
 		for (int i = 0; i < alphabetStr.length(); i++)
 		{
@@ -101,8 +106,9 @@ public class Motif
 	public Motif(int width, String alphabetStr)
 	{
 		this.width = width;
-		this.pMatrix = new Double[alphabetStr.length()][width + 1];
+		this.pMatrix = new double[alphabetStr.length()][width + 1];
 		this.alphabet = new ArrayList<Character>();
+		this.encoding = Alphabet.forSymbols(alphabetStr);
 		
 		for (int i = 0; i < alphabetStr.length(); i++)
 		{
@@ -148,10 +154,9 @@ public class Motif
 	 * @return the probability of the target symbol appearing at the target 
 	 * position in the motif
 	 */
-	public Double getProbability(char symbol, int position)
+	public double getProbability(char symbol, int position)
 	{
-		int row = alphabet.indexOf(symbol);
-		return pMatrix[row][position];
+		return pMatrix[encoding.indexOfStrict(symbol)][position];
 	}
 	
 	/**
@@ -165,10 +170,82 @@ public class Motif
 	 */
 	public void setProbability(char symbol, int position, double probability)
 	{
-		int row = alphabet.indexOf(symbol);		
+		int row = encoding.indexOfStrict(symbol);
 		pMatrix[row][position] = probability;
 	}
 	
+	/**
+	 * Overwrite this motif's parameters with those of another motif of the 
+	 * same width and alphabet, without allocating.
+	 * 
+	 * @param other the motif whose parameters are copied
+	 */
+	public void copyFrom(Motif other)
+	{
+		for (int i = 0; i < pMatrix.length; i++)
+		{
+			System.arraycopy(other.pMatrix[i], 0, pMatrix[i], 0, width + 1);
+		}
+	}
+	
+	/**
+	 * Reset this motif in place to the starting parameters derived from a
+	 * subsequence: a uniform background and mass <code>param</code> on the 
+	 * subsequence's symbol at each motif position.  Produces the same 
+	 * parameters as the subsequence constructor.
+	 * 
+	 * @param sequence the sequence containing the subsequence
+	 * @param start the start of the subsequence of length <code>width</code>
+	 * @param param the probability mass placed on the subsequence's symbols
+	 */
+	public void setFromSubsequence(String sequence, int start, double param)
+	{
+		for (int i = 0; i < pMatrix.length; i++)
+		{
+			pMatrix[i][0] = 1.0 / alphabet.size();
+			
+			for (int j = 1; j < pMatrix[i].length; j++)
+			{
+				if (alphabet.get(i) == sequence.charAt(start + j - 1))
+				{
+					pMatrix[i][j] = param;
+				}
+				else
+				{
+					pMatrix[i][j] = (1 - param) / (alphabet.size() - 1);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copy every parameter of this motif into an array, symbol by symbol, 
+	 * with the background followed by each motif position.
+	 * 
+	 * @param parameters the array of length alphabet size * (width + 1)
+	 */
+	public void getParameters(double[] parameters)
+	{
+		for (int i = 0; i < pMatrix.length; i++)
+		{
+			System.arraycopy(pMatrix[i], 0, parameters, i * (width + 1), width + 1);
+		}
+	}
+	
+	/**
+	 * Overwrite every parameter of this motif from an array laid out as by
+	 * {@link #getParameters(double[])}.
+	 * 
+	 * @param parameters the array of length alphabet size * (width + 1)
+	 */
+	public void setParameters(double[] parameters)
+	{
+		for (int i = 0; i < pMatrix.length; i++)
+		{
+			System.arraycopy(parameters, i * (width + 1), pMatrix[i], 0, width + 1);
+		}
+	}
+	
 	/**
 	 * @return the width of the motif
 	 */
@@ -180,27 +257,27 @@ public class Motif
 	@Override
 	public String toString()
 	{
-		String result = "";
+		StringBuilder result = new StringBuilder();
 		
 		/*
 		for (int i = 0; i < width + 1; i++)
 		{
-			result += i + "\t";
+			result.append(i).append('\t');
 		}
-		result += "\n";
+		result.append('\n');
 		*/
 		
 		for (int i = 0; i < alphabet.size(); i++)
 		{
-			//result += alphabet.get(i) + "\t";
+			//result.append(alphabet.get(i)).append('\t');
 			for (int j = 0; j < width + 1; j++)
 			{
-				result += pMatrix[i][j] + "\t";
+				result.append(pMatrix[i][j]).append('\t');
 			}
-			result += "\n";
+			result.append('\n');
 		}
 		
-		return result;
+		return result.toString();
 	}
 	
 	/**
@@ -211,4 +288,12 @@ public class Motif
 		return this.alphabet;
 	}
 	
+	/**
+	 * @return the index of each symbol of this motif's alphabet
+	 */
+	public Alphabet getEncoding()
+	{
+		return this.encoding;
+	}
+	
 }
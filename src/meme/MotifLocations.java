@@ -1,5 +1,6 @@
 package meme;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,21 +19,135 @@ import data.SequenceSet;
 public class MotifLocations 
 {
 	/**
-	 * Map a sequence to an array of start location probabilities
+	 * Map a sequence to the index of its distinct row
 	 */
-	Map<String, Double[]> locationProbabilities;
+	Map<String, Integer> distinctIndex;
+	
+	/**
+	 * The start location probabilities of each sequence, indexed in the 
+	 * order of the sequence set.  Identical sequences share a row, which is
+	 * weighted by their number.  Null when stored in single precision.
+	 */
+	double[][] rows;
+	
+	/**
+	 * The distinct rows of this matrix, one per distinct sequence.  Null when
+	 * stored in single precision.
+	 */
+	double[][] distinctRows;
+	
+	/**
+	 * The rows of each sequence when stored in single precision, or null
+	 */
+	float[][] floatRows;
+	
+	/**
+	 * The distinct rows when stored in single precision, or null
+	 */
+	float[][] distinctFloatRows;
+	
+	/**
+	 * The total weight of the sequences sharing each distinct row
+	 */
+	double[] distinctWeights;
 	
 	public MotifLocations(SequenceSet sequences, Motif motif)
 	{		
-		locationProbabilities = new HashMap<String, Double[]>();
+		this(sequences, motif, false);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param motif a motif of the width whose locations are stored
+	 * @param singlePrecision whether to store the probabilities as floats,
+	 * halving the memory of the matrix.  They are read and written as 
+	 * doubles either way.
+	 */
+	public MotifLocations(SequenceSet sequences, Motif motif, boolean singlePrecision)
+	{
+		distinctIndex = new HashMap<String, Integer>();
+		int[] rowIndex = new int[sequences.getNumSequences()];
+		ArrayList<Integer> lengths = new ArrayList<Integer>();
+		ArrayList<Double> weights = new ArrayList<Double>();
 		
-		for (String sequence : sequences.getSequences())
+		for (int i = 0; i < sequences.getNumSequences(); i++)
 		{
-			Double[] probabilities = new Double[sequence.length() - motif.getWidth() + 1];
-			locationProbabilities.put(sequence, probabilities);
+			String sequence = sequences.getSequence(i);
+			Integer d = distinctIndex.get(sequence);
+			if (d == null)
+			{
+				d = lengths.size();
+				distinctIndex.put(sequence, d);
+				lengths.add(sequence.length() - motif.getWidth() + 1);
+				weights.add(0.0);
+			}
+			rowIndex[i] = d;
+			weights.set(d, weights.get(d) + sequences.getWeight(i));
+		}
+		
+		distinctWeights = new double[weights.size()];
+		for (int d = 0; d < distinctWeights.length; d++)
+		{
+			distinctWeights[d] = weights.get(d);
+		}
+		
+		if (singlePrecision)
+		{
+			distinctFloatRows = new float[lengths.size()][];
+			for (int d = 0; d < distinctFloatRows.length; d++)
+			{
+				distinctFloatRows[d] = new float[lengths.get(d)];
+			}
+			floatRows = new float[rowIndex.length][];
+			for (int i = 0; i < rowIndex.length; i++)
+			{
+				floatRows[i] = distinctFloatRows[rowIndex[i]];
+			}
+		}
+		else
+		{
+			distinctRows = new double[lengths.size()][];
+			for (int d = 0; d < distinctRows.length; d++)
+			{
+				distinctRows[d] = new double[lengths.get(d)];
+			}
+			rows = new double[rowIndex.length][];
+			for (int i = 0; i < rowIndex.length; i++)
+			{
+				rows[i] = distinctRows[rowIndex[i]];
+			}
 		}
 	}
 	
+	/**
+	 * @return whether the probabilities are stored as floats
+	 */
+	public boolean isSinglePrecision()
+	{
+		return floatRows != null;
+	}
+	
+	/**
+	 * @return the approximate number of bytes held by the matrix
+	 */
+	public long memoryFootprint()
+	{
+		long bytes = 0;
+		int numDistinct = distinctWeights.length;
+		for (int d = 0; d < numDistinct; d++)
+		{
+			/*
+			 * Each row has a 16 byte header
+			 */
+			bytes += 16 + (floatRows != null 
+						   ? 4L * distinctFloatRows[d].length 
+						   : 8L * distinctRows[d].length);
+		}
+		return bytes;
+	}
+	
 	/**
 	 * Set the location probability for a target character in a target sequence
 	 * 
@@ -45,59 +160,165 @@ public class MotifLocations
 									   int position, 
 									   double probability)
 	{
-		locationProbabilities.get(sequence)[position] = probability;
+		setDistinct(distinctIndex.get(sequence), position, probability);
 	}
 	
 	public double getLocationProbability(String sequence, int position)
 	{
-		return locationProbabilities.get(sequence)[position];
+		return getDistinct(distinctIndex.get(sequence), position);
 	}
 	
-	public void normalize()
+	/**
+	 * Set the location probability by sequence index, avoiding the map 
+	 * lookup of {@link #setLocationProbability(String, int, double)}.
+	 * 
+	 * @param sequenceIndex index of the target sequence in the sequence set
+	 * @param position index of the character in the target sequence
+	 * @param probability the probability the motif begins at this position
+	 */
+	public void setLocationProbability(int sequenceIndex, 
+									   int position, 
+									   double probability)
+	{
+		if (floatRows != null)
+		{
+			floatRows[sequenceIndex][position] = (float) probability;
+		}
+		else
+		{
+			rows[sequenceIndex][position] = probability;
+		}
+	}
+	
+	/**
+	 * @param sequenceIndex index of the target sequence in the sequence set
+	 * @param position index of the character in the target sequence
+	 * @return the probability the motif begins at this position
+	 */
+	public double getLocationProbability(int sequenceIndex, int position)
+	{
+		if (floatRows != null)
+		{
+			return floatRows[sequenceIndex][position];
+		}
+		return rows[sequenceIndex][position];
+	}
+	
+	/**
+	 * @param sequenceIndex index of the target sequence in the sequence set
+	 * @return the row of single precision probabilities of the sequence, 
+	 * shared with identical sequences
+	 * @throws IllegalStateException if the probabilities are stored in 
+	 * double precision
+	 */
+	public float[] getFloatRow(int sequenceIndex)
+	{
+		if (floatRows == null)
+		{
+			throw new IllegalStateException("Locations are stored in double precision");
+		}
+		return floatRows[sequenceIndex];
+	}
+	
+	/**
+	 * @param d index of a distinct row
+	 * @param position the position in the row
+	 * @return the probability stored at the position
+	 */
+	private double getDistinct(int d, int position)
+	{
+		if (floatRows != null)
+		{
+			return distinctFloatRows[d][position];
+		}
+		return distinctRows[d][position];
+	}
+	
+	/**
+	 * @param d index of a distinct row
+	 * @param position the position in the row
+	 * @param probability the probability to store at the position
+	 */
+	private void setDistinct(int d, int position, double probability)
 	{
-		for (Double[] probabilities : locationProbabilities.values())
+		if (floatRows != null)
+		{
+			distinctFloatRows[d][position] = (float) probability;
+		}
+		else
 		{
+			distinctRows[d][position] = probability;
+		}
+	}
+	
+	/**
+	 * Normalize the location probabilities of each sequence to sum to one.
+	 * If each row holds P(x_i | z_i,j , motif) for every start position j, 
+	 * the log of each row's mean before normalization is the log probability
+	 * of the sequence under the motif.
+	 * 
+	 * @return the weighted sum over sequences of the log of the mean of 
+	 * their row before normalization
+	 */
+	public double normalize()
+	{
+		double logLikelihood = 0.0;
+		
+		for (int d = 0; d < distinctWeights.length; d++)
+		{
+			int length = rowLength(d);
 			double sum = 0.0;
 			
-			for (int j = 0; j < probabilities.length; j++)
+			for (int j = 0; j < length; j++)
 			{
-				sum += probabilities[j];
+				sum += getDistinct(d, j);
 			}
 			
-			for (int j = 0; j < probabilities.length; j++)
+			for (int j = 0; j < length; j++)
 			{
-				probabilities[j] /= sum;
+				setDistinct(d, j, getDistinct(d, j) / sum);
 			}
+			
+			logLikelihood += distinctWeights[d] * Math.log(sum / length);
 		}
+		
+		return logLikelihood;
 	}
 	
 	@Override
 	public String toString()
 	{
-		String result = "";
+		StringBuilder result = new StringBuilder();
 
-		for (Double[] probabilities : locationProbabilities.values())
+		for (int d = 0; d < distinctWeights.length; d++)
 		{ 
-			for (int j = 0; j < probabilities.length; j++)
+			for (int j = 0; j < rowLength(d); j++)
 			{
-				result += probabilities[j] + "\t";
+				result.append(getDistinct(d, j)).append('\t');
 			}
-			result += "\n";
+			result.append('\n');
 		}
 		
-		return result;
+		return result.toString();
 	}
 	
+	/**
+	 * @return the sum of all location probabilities, where the row of each
+	 * sequence counts once for each sequence of the expanded data set it 
+	 * stands for
+	 */
 	public double sumOfAllProbabilities()
 	{
 		double sum = 0.0;
 		
-		for (Double[] probabilities : locationProbabilities.values())
+		for (int d = 0; d < distinctWeights.length; d++)
 		{
-			for (int j = 0; j < probabilities.length; j++)
+			double rowSum = 0.0;
+			for (int j = 0; j < rowLength(d); j++)
 			{
-				sum += probabilities[j];
+				rowSum += getDistinct(d, j);
 			}
+			sum += distinctWeights[d] * rowSum;
 		}
 		
 		return sum;
@@ -108,13 +329,14 @@ public class MotifLocations
 		double maxZ = 0.0;
 		Integer location = null;
 		
-		Double[] probs = locationProbabilities.get(sequence);
+		int d = distinctIndex.get(sequence);
 		
-		for (int i = 0; i < probs.length; i++)
+		for (int i = 0; i < rowLength(d); i++)
 		{
-			if (probs[i] > maxZ) 
+			double probability = getDistinct(d, i);
+			if (probability > maxZ) 
 			{
-				maxZ = probs[i];
+				maxZ = probability;
 				location = i;
 			}
 		}
@@ -122,4 +344,16 @@ public class MotifLocations
 		return location;
 	}
 	
+	/**
+	 * @param d index of a distinct row
+	 * @return the number of start positions in the row
+	 */
+	private int rowLength(int d)
+	{
+		if (floatRows != null)
+		{
+			return distinctFloatRows[d].length;
+		}
+		return distinctRows[d].length;
+	}
 }
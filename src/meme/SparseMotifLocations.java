@@ -0,0 +1,273 @@
+package meme;
+
+import java.util.Arrays;
+
+import data.SequenceSet;
+
+/**
+ * Stores the motif location probabilities of only the plausible start 
+ * positions of each sequence.  All other start positions have probability
+ * zero.  For each sequence it also records the probability mass that was
+ * dropped when the stored entries were chosen, which bounds the error made
+ * by treating the dropped positions as impossible.
+ * 
+ * The storage for each sequence grows as needed and is reused when the
+ * entries are replaced, so repeated E-Steps do not allocate once the 
+ * storage has reached its working size.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class SparseMotifLocations 
+{
+	/**
+	 * The stored start positions of each sequence, in increasing order
+	 */
+	int[][] positions;
+	
+	/**
+	 * The probabilities of the stored start positions of each sequence
+	 */
+	double[][] probabilities;
+	
+	/**
+	 * The number of stored entries of each sequence
+	 */
+	int[] numEntries;
+	
+	/**
+	 * The probability mass dropped from each sequence
+	 */
+	double[] droppedMass;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param numSequences the number of sequences
+	 */
+	public SparseMotifLocations(int numSequences)
+	{
+		positions = new int[numSequences][0];
+		probabilities = new double[numSequences][0];
+		numEntries = new int[numSequences];
+		droppedMass = new double[numSequences];
+	}
+	
+	/**
+	 * Remove every entry of a sequence
+	 * 
+	 * @param sequenceIndex the index of the sequence
+	 */
+	public void clear(int sequenceIndex)
+	{
+		numEntries[sequenceIndex] = 0;
+		droppedMass[sequenceIndex] = 0.0;
+	}
+	
+	/**
+	 * Store the probability of a start position.  Positions must be added in
+	 * increasing order.
+	 * 
+	 * @param sequenceIndex the index of the sequence
+	 * @param position the start position
+	 * @param probability the probability the motif starts at the position
+	 */
+	public void add(int sequenceIndex, int position, double probability)
+	{
+		int n = numEntries[sequenceIndex];
+		if (n == positions[sequenceIndex].length)
+		{
+			int capacity = Math.max(4, 2 * n);
+			positions[sequenceIndex] = Arrays.copyOf(positions[sequenceIndex], capacity);
+			probabilities[sequenceIndex] = Arrays.copyOf(probabilities[sequenceIndex], capacity);
+		}
+		positions[sequenceIndex][n] = position;
+		probabilities[sequenceIndex][n] = probability;
+		numEntries[sequenceIndex] = n + 1;
+	}
+	
+	/**
+	 * Normalize the stored probabilities of a sequence so that they sum to 
+	 * one, after recording the mass dropped from the sequence.
+	 * 
+	 * @param sequenceIndex the index of the sequence
+	 * @param dropped the probability mass dropped, relative to the sum of the
+	 * stored probabilities before normalization
+	 */
+	public void normalize(int sequenceIndex, double dropped)
+	{
+		double[] probs = probabilities[sequenceIndex];
+		int n = numEntries[sequenceIndex];
+		
+		double sum = 0.0;
+		for (int e = 0; e < n; e++)
+		{
+			sum += probs[e];
+		}
+		
+		for (int e = 0; e < n; e++)
+		{
+			probs[e] /= sum;
+		}
+		
+		droppedMass[sequenceIndex] = dropped / (sum + dropped);
+	}
+	
+	/**
+	 * @return an estimate of the bytes of memory held by the stored entries
+	 */
+	public long memoryFootprint()
+	{
+		long bytes = 0;
+		for (int i = 0; i < numEntries.length; i++)
+		{
+			/*
+			 * Two arrays of entries, each with a 16 byte header, plus a slot
+			 * in each of the four per-sequence arrays
+			 */
+			bytes += 32 + 12L * positions[i].length + 28;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return the number of sequences
+	 */
+	public int getNumSequences()
+	{
+		return numEntries.length;
+	}
+	
+	/**
+	 * @param sequenceIndex the index of the sequence
+	 * @return the number of stored entries of the sequence
+	 */
+	public int getNumEntries(int sequenceIndex)
+	{
+		return numEntries[sequenceIndex];
+	}
+	
+	/**
+	 * @param sequenceIndex the index of the sequence
+	 * @param entry the index of the entry
+	 * @return the start position of the entry
+	 */
+	public int getPosition(int sequenceIndex, int entry)
+	{
+		return positions[sequenceIndex][entry];
+	}
+	
+	/**
+	 * @param sequenceIndex the index of the sequence
+	 * @param entry the index of the entry
+	 * @return the probability of the entry
+	 */
+	public double getProbability(int sequenceIndex, int entry)
+	{
+		return probabilities[sequenceIndex][entry];
+	}
+	
+	/**
+	 * @param sequenceIndex the index of the sequence
+	 * @return the fraction of the sequence's probability mass that was 
+	 * dropped
+	 */
+	public double getDroppedMass(int sequenceIndex)
+	{
+		return droppedMass[sequenceIndex];
+	}
+	
+	/**
+	 * @return the largest fraction of probability mass dropped from any 
+	 * sequence
+	 */
+	public double maxDroppedMass()
+	{
+		double max = 0.0;
+		for (int i = 0; i < droppedMass.length; i++)
+		{
+			max = Math.max(max, droppedMass[i]);
+		}
+		return max;
+	}
+	
+	/**
+	 * @return the total number of stored entries
+	 */
+	public long totalEntries()
+	{
+		long total = 0;
+		for (int i = 0; i < numEntries.length; i++)
+		{
+			total += numEntries[i];
+		}
+		return total;
+	}
+	
+	/**
+	 * @param sequences the sequences the locations belong to, whose weights
+	 * scale the probabilities of their entries
+	 * @return the weighted sum of all stored probabilities
+	 */
+	public double sumOfAllProbabilities(SequenceSet sequences)
+	{
+		double sum = 0.0;
+		
+		for (int i = 0; i < numEntries.length; i++)
+		{
+			double sequenceSum = 0.0;
+			for (int e = 0; e < numEntries[i]; e++)
+			{
+				sequenceSum += probabilities[i][e];
+			}
+			sum += sequences.getWeight(i) * sequenceSum;
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * @param sequenceIndex the index of the sequence
+	 * @return the stored start position of greatest probability, or null if
+	 * the sequence has no entries
+	 */
+	public Integer maxProbabilityStartPosition(int sequenceIndex)
+	{
+		double maxZ = 0.0;
+		Integer location = null;
+		
+		for (int e = 0; e < numEntries[sequenceIndex]; e++)
+		{
+			if (probabilities[sequenceIndex][e] > maxZ)
+			{
+				maxZ = probabilities[sequenceIndex][e];
+				location = positions[sequenceIndex][e];
+			}
+		}
+		
+		return location;
+	}
+	
+	/**
+	 * Expand into a dense matrix of motif location probabilities, in which
+	 * the dropped start positions have probability zero.
+	 * 
+	 * @param sequences the sequences the locations belong to
+	 * @param motif the motif model
+	 * @return the dense motif locations
+	 */
+	public MotifLocations toDense(SequenceSet sequences, Motif motif)
+	{
+		MotifLocations z = new MotifLocations(sequences, motif);
+		
+		for (int i = 0; i < numEntries.length; i++)
+		{
+			for (int e = 0; e < numEntries[i]; e++)
+			{
+				z.setLocationProbability(i, positions[i][e], probabilities[i][e]);
+			}
+		}
+		
+		return z;
+	}
+}
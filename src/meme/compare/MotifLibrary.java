@@ -0,0 +1,790 @@
+package meme.compare;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.Scanner;
+
+import meme.Alphabet;
+import meme.Motif;
+
+/**
+ * A library of known motifs, such as JASPAR matrices, against which
+ * discovered motifs are compared.  The columns of every library motif, and
+ * for DNA of its reverse complement, are stored once in flat arrays, along
+ * with the mean-centred unit vector of each column for Pearson correlation
+ * and the logs of its probabilities for Kullback-Leibler divergence.
+ *
+ * A query is aligned to a library motif at every offset and on both
+ * strands where at least <code>minOverlap</code> columns overlap, and
+ * scored by the mean similarity of the overlapping columns.  Before
+ * aligning, candidates are prefiltered with an index of the k-mers of each
+ * library motif's consensus: only library motifs sharing a k-mer with the
+ * consensus of the query, or of its reverse complement, are aligned.
+ * Queries are searched in parallel.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class MotifLibrary
+{
+	/**
+	 * The default length of the consensus k-mers of the prefilter
+	 */
+	public static final int DEFAULT_K = 5;
+	
+	/**
+	 * The default minimum number of aligned columns
+	 */
+	public static final int DEFAULT_MIN_OVERLAP = 5;
+	
+	/**
+	 * The weight of the uniform column mixed into every column read from a
+	 * matrix file, so that no probability is 0
+	 */
+	private static final double UNIFORM_WEIGHT = 0.01;
+	
+	/**
+	 * The alphabet of the motifs
+	 */
+	private Alphabet alphabet;
+	
+	/**
+	 * The name of each motif
+	 */
+	private String[] names;
+	
+	/**
+	 * The width of each motif
+	 */
+	private int[] widths;
+	
+	/**
+	 * The index of the first column of each motif in the column arrays
+	 */
+	private int[] firstColumns;
+	
+	/**
+	 * The probability of each symbol in each column, at index column *
+	 * alphabet size + symbol, for the forward strand and, for DNA, the
+	 * reverse complement
+	 */
+	private double[][] probabilities;
+	
+	/**
+	 * The log of each probability
+	 */
+	private double[][] logs;
+	
+	/**
+	 * Each column minus its mean, divided by its norm, or 0 for a uniform
+	 * column
+	 */
+	private double[][] centered;
+	
+	/**
+	 * The motifs whose forward consensus holds each k-mer, by k-mer code
+	 */
+	private int[][] motifsByKmer;
+	
+	/**
+	 * The motifs narrower than a k-mer, which are always aligned
+	 */
+	private int[] narrowMotifs;
+	
+	/**
+	 * The length of the consensus k-mers
+	 */
+	private int k;
+	
+	/**
+	 * The minimum number of aligned columns
+	 */
+	private int minOverlap;
+	
+	/**
+	 * Whether to score columns by symmetric Kullback-Leibler divergence
+	 * instead of Pearson correlation
+	 */
+	private boolean divergence;
+	
+	/**
+	 * Whether to align only the candidates of the prefilter
+	 */
+	private boolean prefilter;
+	
+	/**
+	 * The number of threads searching queries
+	 */
+	private int numThreads;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param alphabet the alphabet of the motifs
+	 * @param names the name of each motif
+	 * @param motifs the motifs, whose position 0 is ignored
+	 */
+	public MotifLibrary(Alphabet alphabet, ArrayList<String> names, ArrayList<Motif> motifs)
+	{
+		this(alphabet, names, motifs, DEFAULT_K);
+	}
+	
+	/**
+	 * Constructor
+	 *
+	 * @param alphabet the alphabet of the motifs
+	 * @param names the name of each motif
+	 * @param motifs the motifs, whose position 0 is ignored
+	 * @param k the length of the consensus k-mers of the prefilter
+	 */
+	public MotifLibrary(Alphabet alphabet,
+						ArrayList<String> names,
+						ArrayList<Motif> motifs,
+						int k)
+	{
+		if (k < 1 || Math.pow(alphabet.size(), k) > (1 << 24))
+		{
+			throw new IllegalArgumentException("Invalid k-mer length " + k);
+		}
+		
+		this.alphabet = alphabet;
+		this.k = k;
+		this.minOverlap = DEFAULT_MIN_OVERLAP;
+		this.prefilter = true;
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+		
+		int numMotifs = motifs.size();
+		int alphabetSize = alphabet.size();
+		int numStrands = (alphabet == Alphabet.DNA) ? 2 : 1;
+		
+		this.names = names.toArray(new String[numMotifs]);
+		this.widths = new int[numMotifs];
+		this.firstColumns = new int[numMotifs];
+		int numColumns = 0;
+		for (int m = 0; m < numMotifs; m++)
+		{
+			widths[m] = motifs.get(m).getWidth();
+			firstColumns[m] = numColumns;
+			numColumns += widths[m];
+		}
+		
+		this.probabilities = new double[numStrands][numColumns * alphabetSize];
+		for (int m = 0; m < numMotifs; m++)
+		{
+			Motif motif = motifs.get(m);
+			for (int c = 0; c < widths[m]; c++)
+			{
+				int forward = (firstColumns[m] + c) * alphabetSize;
+				int reverse = (firstColumns[m] + widths[m] - 1 - c) * alphabetSize;
+				for (int s = 0; s < alphabetSize; s++)
+				{
+					double probability = motif.getProbability(alphabet.getSymbol(s), c + 1);
+					probabilities[0][forward + s] = probability;
+					if (numStrands == 2)
+					{
+						/*
+						 * The complement of symbol s of ACGT is symbol 3 - s
+						 */
+						probabilities[1][reverse + alphabetSize - 1 - s] = probability;
+					}
+				}
+			}
+		}
+		
+		this.logs = new double[numStrands][];
+		this.centered = new double[numStrands][];
+		for (int strand = 0; strand < numStrands; strand++)
+		{
+			logs[strand] = logColumns(probabilities[strand]);
+			centered[strand] = centerColumns(probabilities[strand], alphabetSize);
+		}
+		
+		indexConsensus();
+	}
+	
+	/**
+	 * Read a DNA motif library in JASPAR format: for each motif a header
+	 * line <code>&gt;ID name</code> followed by four rows of counts or
+	 * frequencies, one per nucleotide.  Rows may be labelled with their
+	 * nucleotide and bracketed, as in <code>A [ 4 19 0 ]</code>; unlabelled
+	 * rows are in ACGT order.  Each column is normalized and mixed with 1%
+	 * of a uniform column.
+	 *
+	 * @param file the library file
+	 * @return the library
+	 * @throws FileNotFoundException if the file does not exist
+	 */
+	public static MotifLibrary readJaspar(String file) throws FileNotFoundException
+	{
+		Alphabet alphabet = Alphabet.DNA;
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Motif> motifs = new ArrayList<Motif>();
+		
+		String name = null;
+		double[][] rows = new double[alphabet.size()][];
+		int numRows = 0;
+		
+		Scanner scan = new Scanner(new FileInputStream(file));
+		while (scan.hasNextLine())
+		{
+			String line = scan.nextLine().trim();
+			if (line.isEmpty())
+			{
+				continue;
+			}
+			
+			if (line.charAt(0) == '>')
+			{
+				if (name != null)
+				{
+					motifs.add(toMotif(file, name, rows, numRows, alphabet));
+					names.add(name);
+				}
+				name = line.substring(1).trim();
+				rows = new double[alphabet.size()][];
+				numRows = 0;
+				continue;
+			}
+			
+			int row = numRows;
+			if (Character.isLetter(line.charAt(0)))
+			{
+				row = alphabet.indexOf(Character.toUpperCase(line.charAt(0)));
+				line = line.substring(1);
+			}
+			String[] fields = line.replace('[', ' ').replace(']', ' ').trim().split("\\s+");
+			if (row < 0 || row >= rows.length || name == null)
+			{
+				scan.close();
+				throw new IllegalArgumentException("Unexpected line in " + file + ": " + line);
+			}
+			
+			rows[row] = new double[fields.length];
+			for (int c = 0; c < fields.length; c++)
+			{
+				rows[row][c] = Double.parseDouble(fields[c]);
+			}
+			numRows++;
+		}
+		scan.close();
+		
+		if (name != null)
+		{
+			motifs.add(toMotif(file, name, rows, numRows, alphabet));
+			names.add(name);
+		}
+		
+		return new MotifLibrary(alphabet, names, motifs);
+	}
+	
+	/**
+	 * @param minOverlap the minimum number of aligned columns, lowered to
+	 * the width of the narrower motif of a pair
+	 */
+	public void setMinOverlap(int minOverlap)
+	{
+		this.minOverlap = minOverlap;
+	}
+	
+	/**
+	 * @param divergence whether to score columns by their negated symmetric
+	 * Kullback-Leibler divergence, sum_s (p_s - q_s) log(p_s / q_s),
+	 * instead of their Pearson correlation
+	 */
+	public void setDivergence(boolean divergence)
+	{
+		this.divergence = divergence;
+	}
+	
+	/**
+	 * @param prefilter whether to align only the library motifs sharing a
+	 * consensus k-mer with the query, instead of every library motif
+	 */
+	public void setPrefilter(boolean prefilter)
+	{
+		this.prefilter = prefilter;
+	}
+	
+	/**
+	 * @param numThreads the number of threads searching queries
+	 */
+	public void setNumThreads(int numThreads)
+	{
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @return the number of motifs in the library
+	 */
+	public int getNumMotifs()
+	{
+		return names.length;
+	}
+	
+	/**
+	 * @param index the index of a library motif
+	 * @return the name of the motif
+	 */
+	public String getName(int index)
+	{
+		return names[index];
+	}
+	
+	/**
+	 * Find the library motifs most similar to a query.
+	 *
+	 * @param query the query motif, whose position 0 is ignored
+	 * @param numMatches the maximum number of matches
+	 * @return the best match to each of the most similar library motifs,
+	 * most similar first
+	 */
+	public ArrayList<MotifMatch> search(Motif query, int numMatches)
+	{
+		int alphabetSize = alphabet.size();
+		int width = query.getWidth();
+		
+		double[] queryProbabilities = new double[width * alphabetSize];
+		for (int c = 0; c < width; c++)
+		{
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				queryProbabilities[c * alphabetSize + s]
+						= query.getProbability(alphabet.getSymbol(s), c + 1);
+			}
+		}
+		double[] queryLogs = logColumns(queryProbabilities);
+		double[] queryCentered = centerColumns(queryProbabilities, alphabetSize);
+		
+		PriorityQueue<MotifMatch> best = new PriorityQueue<MotifMatch>(numMatches + 1,
+				new Comparator<MotifMatch>()
+		{
+			@Override
+			public int compare(MotifMatch a, MotifMatch b)
+			{
+				return Double.compare(a.getScore(), b.getScore());
+			}
+		});
+		
+		for (int m : getCandidates(queryProbabilities, width, numMatches))
+		{
+			MotifMatch match = align(m, queryProbabilities, queryLogs, queryCentered, width);
+			if (match == null)
+			{
+				continue;
+			}
+			if (best.size() < numMatches)
+			{
+				best.add(match);
+			}
+			else if (numMatches > 0 && match.getScore() > best.peek().getScore())
+			{
+				best.poll();
+				best.add(match);
+			}
+		}
+		
+		ArrayList<MotifMatch> matches = new ArrayList<MotifMatch>(best);
+		Collections.sort(matches, Collections.reverseOrder(best.comparator()));
+		return matches;
+	}
+	
+	/**
+	 * Find the library motifs most similar to each of several queries,
+	 * searching the queries in parallel.
+	 *
+	 * @param queries the query motifs
+	 * @param numMatches the maximum number of matches per query
+	 * @return the matches of each query, most similar first
+	 */
+	public ArrayList<ArrayList<MotifMatch>> search(ArrayList<Motif> queries,
+												   final int numMatches)
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<ArrayList<MotifMatch>>> pending
+								= new ArrayList<Future<ArrayList<MotifMatch>>>();
+		ArrayList<ArrayList<MotifMatch>> results = new ArrayList<ArrayList<MotifMatch>>();
+		
+		try
+		{
+			for (final Motif query : queries)
+			{
+				pending.add(executor.submit(new Callable<ArrayList<MotifMatch>>()
+				{
+					@Override
+					public ArrayList<MotifMatch> call()
+					{
+						return search(query, numMatches);
+					}
+				}));
+			}
+			
+			for (Future<ArrayList<MotifMatch>> future : pending)
+			{
+				results.add(future.get());
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Align a query to both strands of a library motif at every offset with
+	 * enough overlapping columns.
+	 *
+	 * @return the best alignment, or null if no offset overlaps enough
+	 */
+	private MotifMatch align(int m,
+							 double[] queryProbabilities,
+							 double[] queryLogs,
+							 double[] queryCentered,
+							 int width)
+	{
+		int alphabetSize = alphabet.size();
+		int libraryWidth = widths[m];
+		int overlapNeeded = Math.min(minOverlap, Math.min(width, libraryWidth));
+		
+		double bestScore = Double.NEGATIVE_INFINITY;
+		int bestOffset = 0;
+		int bestOverlap = 0;
+		int bestStrand = 0;
+		
+		for (int strand = 0; strand < probabilities.length; strand++)
+		{
+			double[] libraryProbabilities = probabilities[strand];
+			double[] libraryLogs = logs[strand];
+			double[] libraryCentered = centered[strand];
+			
+			for (int offset = overlapNeeded - width; offset <= libraryWidth - overlapNeeded; offset++)
+			{
+				int first = Math.max(0, -offset);
+				int last = Math.min(width, libraryWidth - offset);
+				
+				double sum = 0.0;
+				int q = first * alphabetSize;
+				int l = (firstColumns[m] + first + offset) * alphabetSize;
+				for (int c = first; c < last; c++, q += alphabetSize, l += alphabetSize)
+				{
+					double similarity = 0.0;
+					if (divergence)
+					{
+						for (int s = 0; s < alphabetSize; s++)
+						{
+							similarity -= (queryProbabilities[q + s] - libraryProbabilities[l + s])
+										* (queryLogs[q + s] - libraryLogs[l + s]);
+						}
+					}
+					else
+					{
+						for (int s = 0; s < alphabetSize; s++)
+						{
+							similarity += queryCentered[q + s] * libraryCentered[l + s];
+						}
+					}
+					sum += similarity;
+				}
+				
+				double score = sum / (last - first);
+				if (score > bestScore)
+				{
+					bestScore = score;
+					bestOffset = offset;
+					bestOverlap = last - first;
+					bestStrand = strand;
+				}
+			}
+		}
+		
+		if (bestOverlap == 0)
+		{
+			return null;
+		}
+		return new MotifMatch(m, names[m], bestScore, bestOffset, bestOverlap, bestStrand == 1);
+	}
+	
+	/**
+	 * @return the library motifs to align to a query: those sharing a
+	 * consensus k-mer with the query or its reverse complement, and those
+	 * narrower than a k-mer, or every motif without the prefilter or when
+	 * fewer than <code>numMatches</code> motifs pass it
+	 */
+	private int[] getCandidates(double[] queryProbabilities, int width, int numMatches)
+	{
+		int numMotifs = names.length;
+		int[] all = new int[numMotifs];
+		for (int m = 0; m < numMotifs; m++)
+		{
+			all[m] = m;
+		}
+		if (!prefilter || width < k)
+		{
+			return all;
+		}
+		
+		boolean[] selected = new boolean[numMotifs];
+		for (int m : narrowMotifs)
+		{
+			selected[m] = true;
+		}
+		
+		int[] consensus = consensus(queryProbabilities, 0, width);
+		int alphabetSize = alphabet.size();
+		for (int strand = 0; strand < probabilities.length; strand++)
+		{
+			for (int start = 0; start + k <= width; start++)
+			{
+				int code = 0;
+				for (int i = 0; i < k; i++)
+				{
+					int symbol = (strand == 0)
+								 ? consensus[start + i]
+								 : alphabetSize - 1 - consensus[width - 1 - start - i];
+					code = code * alphabetSize + symbol;
+				}
+				if (motifsByKmer[code] != null)
+				{
+					for (int m : motifsByKmer[code])
+					{
+						selected[m] = true;
+					}
+				}
+			}
+		}
+		
+		int numSelected = 0;
+		for (int m = 0; m < numMotifs; m++)
+		{
+			if (selected[m])
+			{
+				numSelected++;
+			}
+		}
+		if (numSelected < numMatches)
+		{
+			return all;
+		}
+		
+		int[] candidates = new int[numSelected];
+		for (int m = 0, i = 0; m < numMotifs; m++)
+		{
+			if (selected[m])
+			{
+				candidates[i++] = m;
+			}
+		}
+		return candidates;
+	}
+	
+	/**
+	 * Index every k-mer of the forward consensus of each library motif.
+	 */
+	private void indexConsensus()
+	{
+		int alphabetSize = alphabet.size();
+		int numCodes = 1;
+		for (int i = 0; i < k; i++)
+		{
+			numCodes *= alphabetSize;
+		}
+		
+		/*
+		 * Count the motifs of each code, then fill the lists
+		 */
+		int[] counts = new int[numCodes];
+		int[][] codes = new int[names.length][];
+		int numNarrow = 0;
+		for (int m = 0; m < names.length; m++)
+		{
+			if (widths[m] < k)
+			{
+				numNarrow++;
+				continue;
+			}
+			
+			int[] consensus = consensus(probabilities[0], firstColumns[m], widths[m]);
+			codes[m] = new int[widths[m] - k + 1];
+			for (int start = 0; start < codes[m].length; start++)
+			{
+				int code = 0;
+				for (int i = 0; i < k; i++)
+				{
+					code = code * alphabetSize + consensus[start + i];
+				}
+				codes[m][start] = code;
+				
+				/*
+				 * A k-mer repeated in the consensus lists the motif once
+				 */
+				boolean repeated = false;
+				for (int earlier = 0; earlier < start && !repeated; earlier++)
+				{
+					repeated = codes[m][earlier] == code;
+				}
+				if (repeated)
+				{
+					codes[m][start] = -1;
+				}
+				else
+				{
+					counts[code]++;
+				}
+			}
+		}
+		
+		motifsByKmer = new int[numCodes][];
+		narrowMotifs = new int[numNarrow];
+		int[] filled = new int[numCodes];
+		for (int m = 0, narrow = 0; m < names.length; m++)
+		{
+			if (codes[m] == null)
+			{
+				narrowMotifs[narrow++] = m;
+				continue;
+			}
+			for (int code : codes[m])
+			{
+				if (code < 0)
+				{
+					continue;
+				}
+				if (motifsByKmer[code] == null)
+				{
+					motifsByKmer[code] = new int[counts[code]];
+				}
+				motifsByKmer[code][filled[code]++] = m;
+			}
+		}
+	}
+	
+	/**
+	 * @return the index of the most probable symbol of each of a run of
+	 * columns
+	 */
+	private int[] consensus(double[] columns, int firstColumn, int width)
+	{
+		int alphabetSize = alphabet.size();
+		int[] consensus = new int[width];
+		for (int c = 0; c < width; c++)
+		{
+			int offset = (firstColumn + c) * alphabetSize;
+			for (int s = 1; s < alphabetSize; s++)
+			{
+				if (columns[offset + s] > columns[offset + consensus[c]])
+				{
+					consensus[c] = s;
+				}
+			}
+		}
+		return consensus;
+	}
+	
+	/**
+	 * @return the log of every probability
+	 */
+	private static double[] logColumns(double[] columns)
+	{
+		double[] result = new double[columns.length];
+		for (int i = 0; i < columns.length; i++)
+		{
+			result[i] = Math.log(columns[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return each column minus its mean, divided by its norm, so that the
+	 * Pearson correlation of two columns is the dot product of their
+	 * results
+	 */
+	private static double[] centerColumns(double[] columns, int alphabetSize)
+	{
+		double[] result = new double[columns.length];
+		for (int offset = 0; offset < columns.length; offset += alphabetSize)
+		{
+			double mean = 0.0;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				mean += columns[offset + s];
+			}
+			mean /= alphabetSize;
+			
+			double norm = 0.0;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				result[offset + s] = columns[offset + s] - mean;
+				norm += result[offset + s] * result[offset + s];
+			}
+			norm = Math.sqrt(norm);
+			
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				result[offset + s] = (norm > 0.0) ? result[offset + s] / norm : 0.0;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Build a motif from the rows of counts or frequencies of a matrix
+	 */
+	private static Motif toMotif(String file,
+								 String name,
+								 double[][] rows,
+								 int numRows,
+								 Alphabet alphabet)
+	{
+		int alphabetSize = alphabet.size();
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			if (numRows != alphabetSize || rows[s] == null || rows[s].length != rows[0].length)
+			{
+				throw new IllegalArgumentException("Matrix " + name + " in " + file
+						+ " does not have one row of equal length per symbol");
+			}
+		}
+		
+		int width = rows[0].length;
+		Motif motif = new Motif(width, alphabet.getSymbols());
+		for (int c = 0; c < width; c++)
+		{
+			double total = 0.0;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				total += rows[s][c];
+			}
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				double frequency = (total > 0.0) ? rows[s][c] / total : 1.0 / alphabetSize;
+				motif.setProbability(alphabet.getSymbol(s),
+									 c + 1,
+									 (1 - UNIFORM_WEIGHT) * frequency + UNIFORM_WEIGHT / alphabetSize);
+			}
+		}
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			motif.setProbability(alphabet.getSymbol(s), 0, 1.0 / alphabetSize);
+		}
+		return motif;
+	}
+}
@@ -0,0 +1,116 @@
+package meme.compare;
+
+/**
+ * The best alignment of a query motif to one motif of a
+ * {@link MotifLibrary}: the strand and offset of the library motif, the
+ * number of aligned columns and the mean column similarity over them.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class MotifMatch
+{
+	/**
+	 * The index of the library motif
+	 */
+	private int index;
+	
+	/**
+	 * The name of the library motif
+	 */
+	private String name;
+	
+	/**
+	 * The mean column similarity over the aligned columns
+	 */
+	private double score;
+	
+	/**
+	 * The position in the library motif aligned to the first column of the
+	 * query, which is negative when the query starts before it
+	 */
+	private int offset;
+	
+	/**
+	 * The number of aligned columns
+	 */
+	private int overlap;
+	
+	/**
+	 * Whether the query aligns to the reverse complement of the library
+	 * motif
+	 */
+	private boolean reverseStrand;
+	
+	MotifMatch(int index,
+			   String name,
+			   double score,
+			   int offset,
+			   int overlap,
+			   boolean reverseStrand)
+	{
+		this.index = index;
+		this.name = name;
+		this.score = score;
+		this.offset = offset;
+		this.overlap = overlap;
+		this.reverseStrand = reverseStrand;
+	}
+	
+	/**
+	 * @return the index of the library motif
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+	
+	/**
+	 * @return the name of the library motif
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * @return the mean column similarity over the aligned columns
+	 */
+	public double getScore()
+	{
+		return score;
+	}
+	
+	/**
+	 * @return the position in the library motif aligned to the first column
+	 * of the query
+	 */
+	public int getOffset()
+	{
+		return offset;
+	}
+	
+	/**
+	 * @return the number of aligned columns
+	 */
+	public int getOverlap()
+	{
+		return overlap;
+	}
+	
+	/**
+	 * @return whether the query aligns to the reverse complement of the
+	 * library motif
+	 */
+	public boolean isReverseStrand()
+	{
+		return reverseStrand;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return name + "\t" + Math.round(score * 1000) / 1000.0 + "\t"
+				+ offset + "\t" + overlap + "\t" + (reverseStrand ? '-' : '+');
+	}
+}
@@ -0,0 +1,317 @@
+package meme.oops;
+
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+import pair.Pair;
+
+/**
+ * EM accelerated by squared extrapolation (SQUAREM, scheme S3 of Varadhan 
+ * and Roland, 2008).  Each cycle takes two ordinary EM steps from the motif
+ * theta_0, giving theta_1 and theta_2, and extrapolates along them:
+ * 
+ *     r = theta_1 - theta_0
+ *     v = theta_2 - theta_1 - r
+ *     alpha = -|r| / |v|
+ *     theta' = theta_0 - 2 alpha r + alpha^2 v
+ *     
+ * The extrapolation assumes EM has settled into linear convergence, so a 
+ * cycle whose second step is no shorter than its first takes only the plain
+ * steps.  The step length is at most 1 at first and grows by 
+ * {@link #STEP_GROWTH} each time a step reaches the bound, so that early,
+ * long steps cannot jump to the basin of another optimum.
+ * 
+ * The extrapolated motif is projected back onto valid probabilities and
+ * stabilized by one further EM step.  As in SQUAREM, the objective under
+ * theta' must be at least that under theta_2, the result of the plain 
+ * steps.  Since the M-Step adds {@link MEME_OOPS#PSUEDOCOUNT} to every 
+ * count, the objective EM increases is not the log probability of the data
+ * alone but the log posterior: the log probability plus the pseudocount 
+ * times the sum of the log parameters.  Otherwise the step length is 
+ * halved towards alpha = -1, at which theta' is theta_2, and after 
+ * {@link #MAX_BACKTRACKS} halvings the cycle falls back to the plain EM 
+ * step theta_2.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class AcceleratedEM 
+{
+	/**
+	 * The smallest probability an extrapolated parameter may take
+	 */
+	private static final double MIN_PROBABILITY = 1e-10;
+	
+	/**
+	 * The maximum number of cycles
+	 */
+	private static final int MAX_CYCLES = 1000;
+	
+	/**
+	 * The maximum number of times the step length of a cycle is halved
+	 * before it falls back to plain EM
+	 */
+	private static final int MAX_BACKTRACKS = 3;
+	
+	/**
+	 * The factor by which the longest allowed step grows each time a step
+	 * reaches it
+	 */
+	private static final double STEP_GROWTH = 4.0;
+	
+	/**
+	 * The number of extrapolation cycles of the last run
+	 */
+	private int numCycles;
+	
+	/**
+	 * The number of E-Steps, each a full pass over the data, of the last run
+	 */
+	private int numPasses;
+	
+	/**
+	 * The number of cycles of the last run that fell back to plain EM
+	 */
+	private int numFallbacks;
+	
+	/**
+	 * The number of times the step length was halved in the last run
+	 */
+	private int numBacktracks;
+	
+	/**
+	 * The final log probability of the data of the last run
+	 */
+	private double logLikelihood;
+	
+	/**
+	 * Run accelerated EM from the starting motif chosen as by 
+	 * {@link MEME_OOPS#run(SequenceSet, int, EMSettings)}.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param motifWidth the width of the motif
+	 * @param settings the settings of the run
+	 * @return the motif model and motif locations that locally maximize the
+	 * probability of the sequences
+	 */
+	public Pair<Motif, MotifLocations> run(SequenceSet sequences, 
+										   int motifWidth, 
+										   EMSettings settings)
+	{
+		EMWorkspace workspace = MEME_OOPS.startWorkspace(sequences, 
+														  motifWidth, 
+														  settings);
+		run(workspace);
+		
+		return new Pair<Motif, MotifLocations>(workspace.getMotif(), 
+											   workspace.getLocations());
+	}
+	
+	/**
+	 * Run accelerated EM from the motif held in a workspace until the log 
+	 * probability of the data changes by less than {@link MEME_OOPS#EPSILON}
+	 * over a plain EM step.  On return the workspace 
+	 * holds the final motif and the motif locations computed from it.
+	 * 
+	 * @param workspace the workspace holding the starting motif
+	 */
+	public void run(EMWorkspace workspace)
+	{
+		Motif p = workspace.getMotif();
+		int size = p.getAlphabet().size() * (p.getWidth() + 1);
+		
+		double[] theta0 = new double[size];
+		double[] theta1 = new double[size];
+		double[] theta2 = new double[size];
+		double[] extrapolated = new double[size];
+		
+		numCycles = 0;
+		numPasses = 0;
+		numFallbacks = 0;
+		numBacktracks = 0;
+		double maxStep = 1.0;
+		
+		while (numCycles < MAX_CYCLES)
+		{
+			/*
+			 * Two plain EM steps
+			 */
+			p.getParameters(theta0);
+			workspace.iterate();
+			double logLikelihood0 = workspace.getLogLikelihood();
+			p.getParameters(theta1);
+			workspace.iterate();
+			double logLikelihood1 = workspace.getLogLikelihood();
+			p.getParameters(theta2);
+			numPasses += 2;
+			numCycles++;
+			
+			if (Math.abs(logLikelihood1 - logLikelihood0) < MEME_OOPS.EPSILON)
+			{
+				break;
+			}
+			
+			/*
+			 * Extrapolate
+			 */
+			double rNorm = 0.0;
+			double uNorm = 0.0;
+			double vNorm = 0.0;
+			for (int i = 0; i < size; i++)
+			{
+				double r = theta1[i] - theta0[i];
+				double u = theta2[i] - theta1[i];
+				double v = u - r;
+				rNorm += r * r;
+				uNorm += u * u;
+				vNorm += v * v;
+			}
+			
+			/*
+			 * Only extrapolate while EM is contracting
+			 */
+			if (vNorm == 0.0 || uNorm >= rNorm)
+			{
+				continue;
+			}
+			
+			/*
+			 * The objective under theta_2, which the extrapolated motif 
+			 * must not fall below
+			 */
+			workspace.expect();
+			double objective2 = workspace.getLogLikelihood() + logPrior(theta2);
+			numPasses++;
+			
+			double alpha = -Math.min(maxStep, Math.max(1.0, Math.sqrt(rNorm / vNorm)));
+			if (alpha == -maxStep)
+			{
+				maxStep *= STEP_GROWTH;
+			}
+			for (int backtracks = 0; ; backtracks++)
+			{
+				for (int i = 0; i < size; i++)
+				{
+					double r = theta1[i] - theta0[i];
+					double v = theta2[i] - 2 * theta1[i] + theta0[i];
+					extrapolated[i] = theta0[i] - 2 * alpha * r + alpha * alpha * v;
+				}
+				project(extrapolated, p.getWidth() + 1);
+				
+				/*
+				 * Stabilize with one EM step, whose E-Step also gives the 
+				 * probability of the data under the extrapolated motif
+				 */
+				p.setParameters(extrapolated);
+				workspace.iterate();
+				numPasses++;
+				
+				if (workspace.getLogLikelihood() + logPrior(extrapolated) >= objective2)
+				{
+					break;
+				}
+				if (backtracks == MAX_BACKTRACKS || alpha == -1.0)
+				{
+					p.setParameters(theta2);
+					numFallbacks++;
+					break;
+				}
+				alpha = (alpha - 1.0) / 2;
+				numBacktracks++;
+			}
+		}
+		
+		/*
+		 * Bring the motif locations up to date with the final motif
+		 */
+		workspace.expect();
+		numPasses++;
+		logLikelihood = workspace.getLogLikelihood();
+	}
+	
+	/**
+	 * @param parameters the parameters laid out as by 
+	 * {@link Motif#getParameters(double[])}
+	 * @return the log density, up to a constant, of the Dirichlet prior 
+	 * that the pseudocounts of the M-Step amount to
+	 */
+	private static double logPrior(double[] parameters)
+	{
+		double sum = 0.0;
+		for (double parameter : parameters)
+		{
+			sum += Math.log(parameter);
+		}
+		return MEME_OOPS.PSUEDOCOUNT * sum;
+	}
+	
+	/**
+	 * Clamp each parameter to a valid probability and renormalize each 
+	 * position of the motif, including the background, to sum to one.
+	 * 
+	 * @param parameters the parameters laid out as by 
+	 * {@link Motif#getParameters(double[])}
+	 * @param stride the number of positions, width + 1
+	 */
+	private static void project(double[] parameters, int stride)
+	{
+		int alphabetSize = parameters.length / stride;
+		
+		for (int k = 0; k < stride; k++)
+		{
+			double sum = 0.0;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				int i = s * stride + k;
+				parameters[i] = Math.max(MIN_PROBABILITY, parameters[i]);
+				sum += parameters[i];
+			}
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				parameters[s * stride + k] /= sum;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of extrapolation cycles of the last run
+	 */
+	public int getNumCycles()
+	{
+		return numCycles;
+	}
+	
+	/**
+	 * @return the number of E-Steps, each a full pass over the data, of the 
+	 * last run
+	 */
+	public int getNumPasses()
+	{
+		return numPasses;
+	}
+	
+	/**
+	 * @return the number of cycles of the last run that fell back to plain EM
+	 */
+	public int getNumFallbacks()
+	{
+		return numFallbacks;
+	}
+	
+	/**
+	 * @return the number of times the step length was halved in the last 
+	 * run
+	 */
+	public int getNumBacktracks()
+	{
+		return numBacktracks;
+	}
+	
+	/**
+	 * @return the final log probability of the data of the last run
+	 */
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+}
@@ -0,0 +1,188 @@
+package meme.oops;
+
+import java.util.ArrayList;
+
+import meme.KmerBlockScorer;
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+
+/**
+ * An E-Step that scores windows with a {@link KmerBlockScorer}.  As in
+ * {@link PrunedEStep}, the posterior of start position j is proportional to
+ * exp(s_j), where s_j is the log-odds score of the window, so each window
+ * costs one table lookup per block of motif columns instead of a product
+ * over the whole sequence.  The k-mer codes of the sequences are computed on
+ * the first E-Step over a set of sequences and reused afterwards; only the
+ * block tables are rebuilt for each new motif.
+ *
+ * An instance is not thread-safe; each worker thread needs its own.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class BlockEStep
+{
+	/**
+	 * The number of motif columns per block
+	 */
+	private int blockSize;
+	
+	/**
+	 * The block scorer, created for the first motif seen
+	 */
+	private KmerBlockScorer scorer;
+	
+	/**
+	 * The sequences whose codes are cached
+	 */
+	private SequenceSet encodedSequences;
+	
+	/**
+	 * The k-mer codes of each sequence of <code>encodedSequences</code>
+	 */
+	private int[][] codes;
+	
+	/**
+	 * The log background probability of each symbol index
+	 */
+	private double[] logBackground;
+	
+	/**
+	 * The number of occurrences of each symbol index in each sequence
+	 */
+	private int[][] symbolCounts;
+	
+	/**
+	 * Scratch space for the window scores of a sequence
+	 */
+	private double[] scores;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param blockSize the number of motif columns per block
+	 */
+	public BlockEStep(int blockSize)
+	{
+		this.blockSize = blockSize;
+		this.scores = new double[0];
+	}
+	
+	/**
+	 * The Expectation-Step.  Overwrites the motif location probabilities in
+	 * <code>z</code>, which may be stored in either precision.
+	 *
+	 * @param sequences the sequences comprising the data set
+	 * @param p the motif model
+	 * @param z the motif locations to overwrite
+	 * @return the log probability of the data given the motif, with a
+	 * uniform prior on the start position in each sequence
+	 */
+	public double eStep(SequenceSet sequences, Motif p, MotifLocations z)
+	{
+		prepare(sequences, p);
+		
+		int width = p.getWidth();
+		
+		double logLikelihood = 0.0;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			int numWindows = sequences.getSequence(i).length() - width + 1;
+			boolean masked = sequences.hasUsableMask(i, width);
+			int[] sequenceCodes = codes[i];
+			
+			if (scores.length < numWindows)
+			{
+				scores = new double[numWindows];
+			}
+			
+			double best = Double.NEGATIVE_INFINITY;
+			for (int j = 0; j < numWindows; j++)
+			{
+				if (masked && sequences.isWindowMasked(i, j, width))
+				{
+					scores[j] = Double.NEGATIVE_INFINITY;
+					continue;
+				}
+				scores[j] = scorer.score(sequenceCodes, j);
+				best = Math.max(best, scores[j]);
+			}
+			
+			double sum = 0.0;
+			for (int j = 0; j < numWindows; j++)
+			{
+				scores[j] = Math.exp(scores[j] - best);
+				sum += scores[j];
+			}
+			
+			for (int j = 0; j < numWindows; j++)
+			{
+				z.setLocationProbability(i, j, scores[j] / sum);
+			}
+			
+			/*
+			 * The probability of the sequence is its background probability
+			 * times the mean over windows of exp(s_j)
+			 */
+			double sequenceLogBg = 0.0;
+			for (int s = 0; s < logBackground.length; s++)
+			{
+				sequenceLogBg += symbolCounts[i][s] * logBackground[s];
+			}
+			logLikelihood += sequences.getWeight(i)
+					* (sequenceLogBg + best + Math.log(sum / numWindows));
+		}
+		
+		return logLikelihood;
+	}
+	
+	/**
+	 * Rebuild the block tables for the motif, and compute the codes and
+	 * symbol counts of the sequences if they are not cached.
+	 */
+	private void prepare(SequenceSet sequences, Motif p)
+	{
+		ArrayList<Character> alphabet = p.getAlphabet();
+		
+		if (scorer == null)
+		{
+			scorer = new KmerBlockScorer(p.getWidth(), alphabet.size(), blockSize);
+			logBackground = new double[alphabet.size()];
+		}
+		scorer.compile(p);
+		for (int s = 0; s < logBackground.length; s++)
+		{
+			logBackground[s] = Math.log(p.getProbability(alphabet.get(s), 0));
+		}
+		
+		if (encodedSequences == sequences)
+		{
+			return;
+		}
+		
+		int numSequences = sequences.getNumSequences();
+		codes = new int[numSequences][];
+		symbolCounts = new int[numSequences][alphabet.size()];
+		byte[] encoded = new byte[0];
+		
+		for (int i = 0; i < numSequences; i++)
+		{
+			String sequence = sequences.getSequence(i);
+			if (encoded.length < sequence.length())
+			{
+				encoded = new byte[sequence.length()];
+			}
+			p.getEncoding().encodeStrict(sequence, encoded);
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				symbolCounts[i][encoded[j]]++;
+			}
+			
+			codes[i] = new int[Math.max(0, sequence.length() - scorer.getBlockSize() + 1)];
+			scorer.encode(encoded, sequence.length(), codes[i]);
+		}
+		
+		encodedSequences = sequences;
+	}
+}
@@ -0,0 +1,534 @@
+package meme.oops;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import meme.Counts;
+import meme.Motif;
+import data.SequenceSet;
+import data.WorkPartition;
+import events.IterationEvent;
+import events.SeedEvent;
+import events.SeedingEvent;
+import pair.Pair;
+
+/**
+ * The coordinator of EM distributed over {@link EMWorker} processes.  The 
+ * sequences are split into shard files of roughly equal window count, 
+ * which the workers must be able to read by path.  Each iteration sends 
+ * every shard's path and the current motif to a worker, sums the 
+ * log likelihoods and expected counts the workers reply with, in shard 
+ * order, and runs the M-Step locally.  Results therefore do not depend on
+ * which worker ran which shard.
+ * 
+ * A worker whose connection fails, or that does not reply within the 
+ * timeout, is dropped, and its unfinished shards are reassigned to the 
+ * remaining workers within the same iteration.  A shard that a worker 
+ * reports it cannot read fails the iteration instead.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class DistributedEM 
+{
+	/**
+	 * The default time to wait for a worker's reply, in milliseconds
+	 */
+	public static final int DEFAULT_TIMEOUT = 10 * 60 * 1000;
+	
+	/**
+	 * The maximum number of iterations of {@link #run(Motif)}
+	 */
+	public static final int MAX_ITERATIONS = 1000;
+	
+	/**
+	 * The open worker connections
+	 */
+	private ArrayList<WorkerConnection> workers;
+	
+	/**
+	 * The path of each shard file
+	 */
+	private ArrayList<String> shards;
+	
+	/**
+	 * The time to wait for a worker's reply, in milliseconds
+	 */
+	private int timeout;
+	
+	/**
+	 * The number of shards reassigned after a worker failed
+	 */
+	private int numReassigned;
+	
+	/**
+	 * The number of sequences in the shards
+	 */
+	private int numSequences;
+	
+	/**
+	 * The number of motif windows in the shards
+	 */
+	private long numWindows;
+	
+	/**
+	 * The number of iterations run
+	 */
+	private int numIterations;
+	
+	/**
+	 * The log likelihood of each shard in the last iteration
+	 */
+	private double[] shardLogLikelihoods;
+	
+	/**
+	 * The sum of the location probabilities of each shard in the last 
+	 * iteration
+	 */
+	private double[] shardLocationSums;
+	
+	/**
+	 * The expected counts of each shard in the last iteration, in the wire
+	 * layout of {@link EMProtocol}
+	 */
+	private double[][] shardCounts;
+	
+	/**
+	 * Constructor.  Workers that cannot be reached are left out.
+	 * 
+	 * @param addresses the addresses of the workers
+	 * @param timeout the time to wait for a worker's reply, in milliseconds
+	 * @throws IOException if no worker can be reached
+	 */
+	public DistributedEM(ArrayList<InetSocketAddress> addresses, int timeout) 
+			throws IOException
+	{
+		this.timeout = timeout;
+		this.workers = new ArrayList<WorkerConnection>();
+		this.shards = new ArrayList<String>();
+		
+		for (InetSocketAddress address : addresses)
+		{
+			try
+			{
+				workers.add(new WorkerConnection(address, timeout));
+			}
+			catch (IOException e)
+			{
+				System.err.println("Worker " + address + " unreachable: " + e);
+			}
+		}
+		
+		if (workers.isEmpty())
+		{
+			throw new IOException("No worker reachable");
+		}
+	}
+	
+	/**
+	 * Split the sequences into shard files of roughly equal window count,
+	 * replacing any shards written before.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param width the width of the motif
+	 * @param numShards the number of shards
+	 * @param directory the directory for the shard files, readable by every
+	 * worker
+	 */
+	public void writeShards(SequenceSet sequences, int width, int numShards, File directory) 
+			throws IOException
+	{
+		WorkPartition partition = new WorkPartition(sequences, width, numShards);
+		
+		shards.clear();
+		numSequences = sequences.getNumSequences();
+		numWindows = 0;
+		for (int part = 0; part < partition.getNumParts(); part++)
+		{
+			numWindows += partition.getWork(part);
+			File file = new File(directory, "shard" + part + ".bin");
+			EMProtocol.writeShard(file, 
+								  sequences, 
+								  partition.getStart(part), 
+								  partition.getEnd(part));
+			shards.add(file.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Run EM from a starting motif until the log likelihood stops changing.
+	 * 
+	 * @param start the starting motif
+	 * @return the fitted motif
+	 */
+	public Motif run(Motif start) throws IOException
+	{
+		Motif p = new Motif(start);
+		Counts counts = new Counts(p);
+		
+		double logLikelihood = Double.NEGATIVE_INFINITY;
+		for (int t = 0; t < MAX_ITERATIONS; t++)
+		{
+			double previous = logLikelihood;
+			logLikelihood = iterate(p, counts);
+			if (Math.abs(logLikelihood - previous) <= MEME_OOPS.EPSILON)
+			{
+				break;
+			}
+		}
+		
+		return p;
+	}
+	
+	/**
+	 * Find the best starting motif among candidate seed windows, running a
+	 * few distributed iterations of EM from each.
+	 * 
+	 * @param sequences the sequences holding the seed windows
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @param seeds the sequence index and start position of each seed window
+	 * @param numTries the number of EM iterations to run from each seed
+	 * @return the seed motif with the highest log likelihood after its 
+	 * iterations, or null if there are no seeds
+	 */
+	public Motif getStartingMotif(SequenceSet sequences, 
+								  int width, 
+								  String alphabet, 
+								  ArrayList<Pair<Integer, Integer>> seeds, 
+								  int numTries) throws IOException
+	{
+		Motif seed = new Motif(width, alphabet);
+		Motif p = new Motif(width, alphabet);
+		Motif best = null;
+		Counts counts = new Counts(p);
+		double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+		
+		SeedingEvent seeding = new SeedingEvent();
+		seeding.begin();
+		
+		for (Pair<Integer, Integer> window : seeds)
+		{
+			SeedEvent event = new SeedEvent();
+			event.begin();
+			seed.setFromSubsequence(sequences.getSequence(window.getFirst()), 
+									window.getSecond(), 
+									MEME_OOPS.START_PARAM);
+			p.copyFrom(seed);
+			for (int t = 0; t < numTries; t++)
+			{
+				iterate(p, counts);
+			}
+			
+			/*
+			 * One more E-Step, whose M-Step is discarded, scores the motif
+			 * reached
+			 */
+			double logLikelihood = iterate(new Motif(p), counts);
+			if (logLikelihood > bestLogLikelihood)
+			{
+				bestLogLikelihood = logLikelihood;
+				best = new Motif(seed);
+			}
+			MEME_OOPS.commit(event, 
+							 window.getFirst(), 
+							 window.getSecond(), 
+							 width, 
+							 numTries + 1, 
+							 logLikelihood);
+		}
+		
+		MEME_OOPS.commit(seeding, "distributed", sequences, width, seeds.size(), bestLogLikelihood);
+		return best;
+	}
+	
+	/**
+	 * Run one distributed E-Step and a local M-Step.
+	 * 
+	 * @param p the motif, whose parameters are overwritten
+	 * @param counts the expected counts to reuse
+	 * @return the log probability of the data given the motif that entered
+	 * the step
+	 */
+	public double iterate(Motif p, Counts counts) throws IOException
+	{
+		IterationEvent event = new IterationEvent();
+		event.begin();
+		long start = System.nanoTime();
+		int width = p.getWidth();
+		int alphabetSize = p.getAlphabet().size();
+		int numValues = alphabetSize * (width + 1);
+		if (shardCounts == null || shardCounts.length != shards.size() 
+				|| shardCounts[0].length != numValues)
+		{
+			shardLogLikelihoods = new double[shards.size()];
+			shardLocationSums = new double[shards.size()];
+			shardCounts = new double[shards.size()][numValues];
+		}
+		
+		boolean[] done = new boolean[shards.size()];
+		double[] parameters = new double[numValues];
+		
+		ArrayList<Integer> pending = new ArrayList<Integer>();
+		for (int shard = 0; shard < shards.size(); shard++)
+		{
+			pending.add(shard);
+		}
+		
+		while (!pending.isEmpty())
+		{
+			if (workers.isEmpty())
+			{
+				throw new IOException("Every worker failed");
+			}
+			
+			/*
+			 * Deal the pending shards out to the live workers, send every
+			 * request, then collect the replies, so the workers run at the
+			 * same time
+			 */
+			for (WorkerConnection worker : workers)
+			{
+				worker.assigned.clear();
+			}
+			for (int i = 0; i < pending.size(); i++)
+			{
+				workers.get(i % workers.size()).assigned.add(pending.get(i));
+			}
+			
+			for (WorkerConnection worker : workers)
+			{
+				try
+				{
+					for (int shard : worker.assigned)
+					{
+						EMProtocol.writeStep(worker.out, shard, shards.get(shard), p, parameters);
+					}
+					worker.out.flush();
+				}
+				catch (IOException e)
+				{
+					worker.failure = e;
+				}
+			}
+			
+			for (WorkerConnection worker : workers)
+			{
+				for (int i = 0; i < worker.assigned.size() && worker.failure == null; i++)
+				{
+					String error;
+					try
+					{
+						error = readReply(worker, done);
+					}
+					catch (IOException e)
+					{
+						worker.failure = e;
+						continue;
+					}
+					
+					/*
+					 * A shard a live worker cannot process would fail on 
+					 * every worker
+					 */
+					if (error != null)
+					{
+						throw new IOException(error);
+					}
+				}
+			}
+			
+			/*
+			 * Drop the failed workers; their unfinished shards stay pending
+			 */
+			for (int w = workers.size() - 1; w >= 0; w--)
+			{
+				WorkerConnection worker = workers.get(w);
+				if (worker.failure != null)
+				{
+					System.err.println("Worker " + worker.address + " failed: " 
+									   + worker.failure);
+					worker.close();
+					workers.remove(w);
+				}
+			}
+			
+			ArrayList<Integer> remaining = new ArrayList<Integer>();
+			for (int shard : pending)
+			{
+				if (!done[shard])
+				{
+					remaining.add(shard);
+				}
+			}
+			numReassigned += remaining.size();
+			pending = remaining;
+		}
+		
+		/*
+		 * Sum the partial results in shard order and run the M-Step
+		 */
+		double logLikelihood = 0.0;
+		double locationSum = 0.0;
+		double[][] motifCounts = new double[alphabetSize][width + 1];
+		double[] totals = new double[alphabetSize];
+		for (int shard = 0; shard < shards.size(); shard++)
+		{
+			logLikelihood += shardLogLikelihoods[shard];
+			locationSum += shardLocationSums[shard];
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				totals[s] += shardCounts[shard][s * (width + 1)];
+				for (int k = 1; k <= width; k++)
+				{
+					motifCounts[s][k] += shardCounts[shard][s * (width + 1) + k];
+				}
+			}
+		}
+		long eStepEnd = System.nanoTime();
+		counts.set(motifCounts, totals);
+		MEME_OOPS.mStep(locationSum, p, counts);
+		
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.mStepTime = System.nanoTime() - eStepEnd;
+			event.eStepTime = eStepEnd - start;
+			event.eStep = "distributed";
+			event.iteration = numIterations;
+			event.numSequences = numSequences;
+			event.numWindows = numWindows;
+			event.width = width;
+			event.logLikelihood = logLikelihood;
+			event.commit();
+		}
+		numIterations++;
+		
+		return logLikelihood;
+	}
+	
+	/**
+	 * @return the number of shard requests reassigned after a worker failed
+	 */
+	public int getNumReassigned()
+	{
+		return numReassigned;
+	}
+	
+	/**
+	 * @return the number of workers still in use
+	 */
+	public int getNumWorkers()
+	{
+		return workers.size();
+	}
+	
+	/**
+	 * Close every worker connection.
+	 */
+	public void close()
+	{
+		for (WorkerConnection worker : workers)
+		{
+			try
+			{
+				worker.out.writeByte(EMProtocol.CLOSE);
+				worker.out.flush();
+			}
+			catch (IOException e)
+			{
+			}
+			worker.close();
+		}
+		workers.clear();
+	}
+	
+	/**
+	 * Read one reply of a worker into the partial results of its shard.
+	 * 
+	 * @return the worker's error message if it could not process the shard,
+	 * otherwise null
+	 * @throws IOException if the connection failed
+	 */
+	private String readReply(WorkerConnection worker, boolean[] done) throws IOException
+	{
+		byte reply = worker.in.readByte();
+		int shard = worker.in.readInt();
+		if (shard < 0 || shard >= shards.size())
+		{
+			throw new IOException("Reply for unknown shard " + shard);
+		}
+		
+		if (reply == EMProtocol.ERROR)
+		{
+			return "Shard " + shards.get(shard) + ": " + worker.in.readUTF();
+		}
+		if (reply != EMProtocol.RESULT)
+		{
+			throw new IOException("Unknown reply " + reply);
+		}
+		
+		shardLogLikelihoods[shard] = worker.in.readDouble();
+		shardLocationSums[shard] = worker.in.readDouble();
+		EMProtocol.readDoubles(worker.in, shardCounts[shard]);
+		done[shard] = true;
+		return null;
+	}
+	
+	/**
+	 * A connection to one worker
+	 */
+	private static class WorkerConnection
+	{
+		InetSocketAddress address;
+		
+		Socket socket;
+		
+		DataInputStream in;
+		
+		DataOutputStream out;
+		
+		/**
+		 * The shards sent to the worker in the current round
+		 */
+		ArrayList<Integer> assigned;
+		
+		/**
+		 * The failure of the worker, or null
+		 */
+		IOException failure;
+		
+		WorkerConnection(InetSocketAddress address, int timeout) throws IOException
+		{
+			this.address = address;
+			this.socket = new Socket();
+			socket.connect(address, timeout);
+			socket.setSoTimeout(timeout);
+			socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			this.assigned = new ArrayList<Integer>();
+			
+			out.writeInt(EMProtocol.MAGIC);
+			out.flush();
+		}
+		
+		void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+}
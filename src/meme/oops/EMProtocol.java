@@ -0,0 +1,216 @@
+package meme.oops;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import meme.Motif;
+import data.SequenceSet;
+
+/**
+ * The binary formats shared by {@link DistributedEM} and {@link EMWorker}.
+ * Everything is written big-endian with {@link DataOutputStream}.
+ * 
+ * A connection opens with the coordinator sending MAGIC.  Each step 
+ * request is
+ * 
+ *     byte STEP, int shard, UTF shard path, UTF alphabet, int width,
+ *     double[alphabet size * (width + 1)] motif parameters,
+ *     
+ * with the parameters laid out as by {@link Motif#getParameters(double[])}.
+ * The reply is
+ * 
+ *     byte RESULT, int shard, double log likelihood, 
+ *     double sum of location probabilities, 
+ *     double[alphabet size * (width + 1)] expected counts,
+ *     
+ * with the counts laid out the same way, the total count of each symbol in
+ * place of the background, or <code>byte ERROR, int shard, UTF message</code>.
+ * A request of <code>byte CLOSE</code> ends the connection.
+ * 
+ * A shard file holds
+ * 
+ *     int number of sequences, then per sequence
+ *     int weight, int length, byte[length] residues, 
+ *     int number of masked runs, int[2 * runs] run starts and ends.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+class EMProtocol 
+{
+	/**
+	 * Sent first on every connection
+	 */
+	static final int MAGIC = 0x4D454D45;
+	
+	/**
+	 * Request an E-Step and counts for a shard
+	 */
+	static final byte STEP = 1;
+	
+	/**
+	 * The partial results of a shard
+	 */
+	static final byte RESULT = 2;
+	
+	/**
+	 * A shard could not be processed
+	 */
+	static final byte ERROR = 3;
+	
+	/**
+	 * End the connection
+	 */
+	static final byte CLOSE = 4;
+	
+	/**
+	 * Write a step request for a shard.
+	 */
+	static void writeStep(DataOutputStream out, int shard, String path, Motif p, double[] parameters) 
+			throws IOException
+	{
+		StringBuilder alphabet = new StringBuilder();
+		for (char symbol : p.getAlphabet())
+		{
+			alphabet.append(symbol);
+		}
+		
+		out.writeByte(STEP);
+		out.writeInt(shard);
+		out.writeUTF(path);
+		out.writeUTF(alphabet.toString());
+		out.writeInt(p.getWidth());
+		p.getParameters(parameters);
+		writeDoubles(out, parameters);
+	}
+	
+	/**
+	 * Write the partial results of a shard.
+	 */
+	static void writeResult(DataOutputStream out, 
+							int shard, 
+							double logLikelihood, 
+							double locationSum, 
+							double[] counts) throws IOException
+	{
+		out.writeByte(RESULT);
+		out.writeInt(shard);
+		out.writeDouble(logLikelihood);
+		out.writeDouble(locationSum);
+		writeDoubles(out, counts);
+	}
+	
+	static void writeDoubles(DataOutputStream out, double[] values) throws IOException
+	{
+		for (double value : values)
+		{
+			out.writeDouble(value);
+		}
+	}
+	
+	static void readDoubles(DataInputStream in, double[] values) throws IOException
+	{
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = in.readDouble();
+		}
+	}
+	
+	/**
+	 * Write sequences, with their weights and masks, to a shard file.
+	 * 
+	 * @param file the shard file
+	 * @param sequences the sequences
+	 * @param start the index of the first sequence to write
+	 * @param end the index after the last sequence to write
+	 */
+	static void writeShard(File file, SequenceSet sequences, int start, int end) 
+			throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			out.writeInt(end - start);
+			for (int i = start; i < end; i++)
+			{
+				String sequence = sequences.getSequence(i);
+				out.writeInt(sequences.getWeight(i));
+				out.writeInt(sequence.length());
+				out.writeBytes(sequence);
+				
+				ArrayList<Integer> runs = new ArrayList<Integer>();
+				for (int j = 0; j < sequence.length(); j++)
+				{
+					boolean masked = sequences.isWindowMasked(i, j, 1);
+					if (masked != (runs.size() % 2 == 1))
+					{
+						runs.add(j);
+					}
+				}
+				if (runs.size() % 2 == 1)
+				{
+					runs.add(sequence.length());
+				}
+				
+				out.writeInt(runs.size() / 2);
+				for (int run : runs)
+				{
+					out.writeInt(run);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Read the sequences of a shard file.
+	 * 
+	 * @param file the shard file
+	 * @return the sequences, with their weights and masks
+	 */
+	static SequenceSet readShard(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			SequenceSet sequences = new SequenceSet();
+			int numSequences = in.readInt();
+			for (int i = 0; i < numSequences; i++)
+			{
+				int weight = in.readInt();
+				byte[] residues = new byte[in.readInt()];
+				in.readFully(residues);
+				sequences.addSequence(new String(residues, "US-ASCII"), weight);
+				
+				int numRuns = in.readInt();
+				if (numRuns > 0)
+				{
+					BitSet masked = new BitSet(residues.length);
+					for (int r = 0; r < numRuns; r++)
+					{
+						masked.set(in.readInt(), in.readInt());
+					}
+					sequences.setMask(i, masked);
+				}
+			}
+			return sequences;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package meme.oops;
+
+import java.util.ArrayList;
+
+import pair.Pair;
+
+/**
+ * The options of a run of {@link MEME_OOPS}: the alphabet, how the starting
+ * motif is chosen, the E-Step used after seeding and the precision of the
+ * motif locations.  The defaults run EM on DNA from the best of every
+ * subsequence of the data, with the full E-Step in double precision.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class EMSettings
+{
+	/**
+	 * The String encoding the alphabet
+	 */
+	private String alphabet = MEME_OOPS.DNA_ALPHABET;
+	
+	/**
+	 * The sampled seeding strategy, or null
+	 */
+	private SampledSeeding seeding;
+	
+	/**
+	 * The sequence index and start position of each candidate seed window,
+	 * or null
+	 */
+	private ArrayList<Pair<Integer, Integer>> seeds;
+	
+	/**
+	 * The pruned E-Step to use after seeding, or null
+	 */
+	private PrunedEStep pruning;
+	
+	/**
+	 * Whether the motif locations are stored and the full E-Step computed
+	 * in single precision
+	 */
+	private boolean singlePrecision;
+	
+	/**
+	 * @return the String encoding the alphabet
+	 */
+	public String getAlphabet()
+	{
+		return alphabet;
+	}
+	
+	/**
+	 * @param alphabet the String encoding the alphabet, such as
+	 * {@link meme.Alphabet#PROTEIN}'s symbols
+	 */
+	public void setAlphabet(String alphabet)
+	{
+		this.alphabet = alphabet;
+	}
+	
+	/**
+	 * @return the sampled seeding strategy, or null
+	 */
+	public SampledSeeding getSeeding()
+	{
+		return seeding;
+	}
+	
+	/**
+	 * @param seeding the sampled seeding strategy, or null to evaluate every
+	 * candidate seed on the full data set
+	 */
+	public void setSeeding(SampledSeeding seeding)
+	{
+		this.seeding = seeding;
+	}
+	
+	/**
+	 * @return the sequence index and start position of each candidate seed
+	 * window, or null
+	 */
+	public ArrayList<Pair<Integer, Integer>> getSeeds()
+	{
+		return seeds;
+	}
+	
+	/**
+	 * @param seeds the sequence index and start position of each candidate
+	 * seed window, such as those of a {@link data.KmerSeedIndex}, or null.
+	 * Seeds take precedence over sampled seeding; without either, every
+	 * subsequence of the data is a candidate.
+	 */
+	public void setSeeds(ArrayList<Pair<Integer, Integer>> seeds)
+	{
+		this.seeds = seeds;
+	}
+	
+	/**
+	 * @return the pruned E-Step to use after seeding, or null
+	 */
+	public PrunedEStep getPruning()
+	{
+		return pruning;
+	}
+	
+	/**
+	 * @param pruning the pruned E-Step to use after seeding, or null to use
+	 * the full E-Step
+	 */
+	public void setPruning(PrunedEStep pruning)
+	{
+		this.pruning = pruning;
+	}
+	
+	/**
+	 * @return whether the motif locations are stored and the full E-Step
+	 * computed in single precision
+	 */
+	public boolean isSinglePrecision()
+	{
+		return singlePrecision;
+	}
+	
+	/**
+	 * @param singlePrecision whether to store the motif locations and
+	 * compute the full E-Step in single precision.  Only applies to
+	 * workspaces created from these settings.
+	 */
+	public void setSinglePrecision(boolean singlePrecision)
+	{
+		this.singlePrecision = singlePrecision;
+	}
+}
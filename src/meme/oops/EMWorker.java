@@ -0,0 +1,277 @@
+package meme.oops;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import meme.Alphabet;
+import meme.Counts;
+import meme.KmerBlockScorer;
+import meme.Motif;
+
+/**
+ * A worker process for {@link DistributedEM}.  For each step request it 
+ * loads the named shard, runs the E-Step of the received motif over the 
+ * shard's sequences, and replies with the shard's log likelihood and 
+ * expected counts; the coordinator runs the M-Step.  Shards are loaded once
+ * and kept, with a workspace per motif width, for all later requests.
+ * 
+ * Each connection is served on its own thread, so a coordinator that lost
+ * its connection can reconnect.  Run with
+ * 
+ *     java meme.oops.EMWorker port
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class EMWorker 
+{
+	/**
+	 * The socket accepting coordinator connections
+	 */
+	private ServerSocket server;
+	
+	/**
+	 * The open coordinator connections
+	 */
+	private ArrayList<Socket> connections;
+	
+	/**
+	 * The workspace of each loaded shard and motif width, keyed by shard 
+	 * path and width
+	 */
+	private HashMap<String, EMWorkspace> workspaces;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param port the port to listen on, or 0 for any free port
+	 */
+	public EMWorker(int port) throws IOException
+	{
+		this.server = new ServerSocket(port);
+		this.connections = new ArrayList<Socket>();
+		this.workspaces = new HashMap<String, EMWorkspace>();
+	}
+	
+	public static void main(String[] args) throws IOException
+	{
+		EMWorker worker = new EMWorker(Integer.parseInt(args[0]));
+		System.out.println("Worker listening on port " + worker.getPort());
+		worker.serve();
+	}
+	
+	/**
+	 * @return the port this worker listens on
+	 */
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	/**
+	 * Accept and serve connections until {@link #close()} is called.
+	 */
+	public void serve()
+	{
+		while (!server.isClosed())
+		{
+			final Socket socket;
+			try
+			{
+				socket = server.accept();
+			}
+			catch (IOException e)
+			{
+				break;
+			}
+			
+			synchronized (connections)
+			{
+				connections.add(socket);
+			}
+			
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					serve(socket);
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Stop accepting connections and drop every open connection, as if the
+	 * worker process had died.
+	 */
+	public void close()
+	{
+		try
+		{
+			server.close();
+		}
+		catch (IOException e)
+		{
+		}
+		
+		synchronized (connections)
+		{
+			for (Socket socket : connections)
+			{
+				try
+				{
+					socket.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+			connections.clear();
+		}
+	}
+	
+	/**
+	 * Answer the requests of one connection until it is closed.
+	 */
+	private void serve(Socket socket)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+			
+			if (in.readInt() != EMProtocol.MAGIC)
+			{
+				return;
+			}
+			
+			double[] parameters = new double[0];
+			double[] counts = new double[0];
+			while (true)
+			{
+				byte request = in.readByte();
+				if (request != EMProtocol.STEP)
+				{
+					break;
+				}
+				
+				int shard = in.readInt();
+				String path = in.readUTF();
+				String alphabet = in.readUTF();
+				int width = in.readInt();
+				Motif p = new Motif(width, alphabet);
+				if (parameters.length != alphabet.length() * (width + 1))
+				{
+					parameters = new double[alphabet.length() * (width + 1)];
+					counts = new double[parameters.length];
+				}
+				EMProtocol.readDoubles(in, parameters);
+				p.setParameters(parameters);
+				
+				/*
+				 * Reply with an error rather than dropping the connection, so
+				 * the coordinator can tell a bad shard from a dead worker
+				 */
+				try
+				{
+					EMWorkspace workspace = getWorkspace(path, p);
+					double logLikelihood;
+					double locationSum;
+					synchronized (workspace)
+					{
+						workspace.getMotif().copyFrom(p);
+						workspace.iterate();
+						logLikelihood = workspace.getLogLikelihood();
+						locationSum = workspace.getLocations().sumOfAllProbabilities();
+						getCounts(workspace.getCounts(), width, counts);
+					}
+					EMProtocol.writeResult(out, shard, logLikelihood, locationSum, counts);
+				}
+				catch (IOException e)
+				{
+					out.writeByte(EMProtocol.ERROR);
+					out.writeInt(shard);
+					out.writeUTF(String.valueOf(e.getMessage()));
+				}
+				out.flush();
+			}
+		}
+		catch (EOFException e)
+		{
+		}
+		catch (IOException e)
+		{
+		}
+		finally
+		{
+			synchronized (connections)
+			{
+				connections.remove(socket);
+			}
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+	}
+	
+	/**
+	 * The workspace for a shard and motif width, loading the shard on first
+	 * use.
+	 */
+	private EMWorkspace getWorkspace(String path, Motif p) throws IOException
+	{
+		Alphabet alphabet = p.getEncoding();
+		String key = path + "\t" + p.getWidth() + "\t" + alphabet;
+		synchronized (workspaces)
+		{
+			EMWorkspace workspace = workspaces.get(key);
+			if (workspace == null)
+			{
+				workspace = new EMWorkspace(EMProtocol.readShard(new File(path)), 
+											p.getWidth(), 
+											alphabet.getSymbols());
+				workspace.setBlockScoring(KmerBlockScorer.defaultBlockSize(alphabet.size()));
+				workspaces.put(key, workspace);
+			}
+			return workspace;
+		}
+	}
+	
+	/**
+	 * Copy expected counts into the wire layout, with the total count of
+	 * each symbol in place of the background.
+	 */
+	private static void getCounts(Counts counts, int width, double[] values)
+	{
+		int alphabetSize = values.length / (width + 1);
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			double total = counts.getBGCount(s);
+			for (int k = 1; k <= width; k++)
+			{
+				double count = counts.getCountAtPosition(s, k);
+				values[s * (width + 1) + k] = count;
+				total += count;
+			}
+			values[s * (width + 1)] = total;
+		}
+	}
+}
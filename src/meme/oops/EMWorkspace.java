@@ -0,0 +1,399 @@
+package meme.oops;
+
+import meme.Counts;
+import meme.KmerBlockScorer;
+import meme.Motif;
+import meme.MotifLocations;
+import meme.SparseMotifLocations;
+import data.SequenceSet;
+import data.WorkPartition;
+import events.IterationEvent;
+
+/**
+ * Preallocated state for running EM on one set of sequences at one motif 
+ * width.  The motif, motif locations and expected counts are created once 
+ * and then overwritten in place on every iteration, so that running EM 
+ * (including evaluating every candidate seed in 
+ * {@link MEME_OOPS#getStartingMotif(EMWorkspace, int)}) does not allocate.
+ * 
+ * For alphabets larger than DNA, such as protein, the full E-Step 
+ * defaults to block scoring in log space, since the product of residue 
+ * probabilities computed by the dense E-Step underflows over a few hundred 
+ * residues.
+ * 
+ * A workspace is not thread-safe; each worker thread needs its own.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class EMWorkspace 
+{
+	/**
+	 * The sequences in the data set
+	 */
+	private SequenceSet sequences;
+	
+	/**
+	 * The width of the motif
+	 */
+	private int width;
+	
+	/**
+	 * The current motif model, overwritten by every M-Step
+	 */
+	private Motif p;
+	
+	/**
+	 * Scratch motif used to hold candidate starting parameters
+	 */
+	private Motif seed;
+	
+	/**
+	 * The current motif locations, overwritten by every E-Step
+	 */
+	private MotifLocations z;
+	
+	/**
+	 * The expected counts, overwritten by every M-Step
+	 */
+	private Counts counts;
+	
+	/**
+	 * The pruned E-Step to use instead of the full one, or null
+	 */
+	private PrunedEStep pruning;
+	
+	/**
+	 * The plausible motif locations, overwritten by every pruned E-Step
+	 */
+	private SparseMotifLocations sparseZ;
+	
+	/**
+	 * The single precision E-Step, or null if the motif locations are stored
+	 * in double precision
+	 */
+	private SinglePrecisionEStep singlePrecision;
+	
+	/**
+	 * The block-scored E-Step, or null
+	 */
+	private BlockEStep blockScoring;
+	
+	/**
+	 * The parallel E-Step and M-Step, or null
+	 */
+	private ParallelEStep parallel;
+	
+	/**
+	 * The log probability of the data given the motif entering the last 
+	 * E-Step
+	 */
+	private double logLikelihood;
+	
+	/**
+	 * The number of iterations run on this workspace
+	 */
+	private int numIterations;
+	
+	/**
+	 * The number of motif windows in the sequences, or -1 until needed
+	 */
+	private long numWindows = -1;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 */
+	public EMWorkspace(SequenceSet sequences, int width, String alphabet)
+	{
+		this(sequences, width, alphabet, false);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @param singlePrecision whether to store the motif locations as floats 
+	 * and compute the E-Step in single precision.  Expected counts are 
+	 * accumulated in double precision either way.
+	 */
+	public EMWorkspace(SequenceSet sequences, 
+					   int width, 
+					   String alphabet, 
+					   boolean singlePrecision)
+	{
+		this.sequences = sequences;
+		this.width = width;
+		this.p = new Motif(width, alphabet);
+		this.seed = new Motif(width, alphabet);
+		this.z = new MotifLocations(sequences, p, singlePrecision);
+		this.counts = new Counts(sequences, z, p);
+		if (singlePrecision)
+		{
+			this.singlePrecision = new SinglePrecisionEStep();
+		}
+		if (alphabet.length() > MEME_OOPS.DNA_ALPHABET.length())
+		{
+			setBlockScoring(KmerBlockScorer.defaultBlockSize(alphabet.length()));
+		}
+	}
+	
+	/**
+	 * Run one E-Step followed by one M-Step, updating the current motif and
+	 * motif locations in place.
+	 */
+	public void iterate()
+	{
+		IterationEvent event = new IterationEvent();
+		event.begin();
+		long start = System.nanoTime();
+		long eStepEnd;
+		
+		if (pruning != null)
+		{
+			pruning.eStep(sequences, p, sparseZ);
+			logLikelihood = pruning.getLogLikelihood();
+			eStepEnd = System.nanoTime();
+			MEME_OOPS.mStep(sequences, sparseZ, p, counts);
+		}
+		else if (parallel != null)
+		{
+			logLikelihood = parallel.eStep(sequences, p, z);
+			eStepEnd = System.nanoTime();
+			parallel.mStep(sequences, z, p, counts);
+		}
+		else
+		{
+			logLikelihood = eStep();
+			eStepEnd = System.nanoTime();
+			MEME_OOPS.mStep(sequences, z, p, counts);
+		}
+		
+		event.end();
+		if (event.shouldCommit())
+		{
+			long mStepEnd = System.nanoTime();
+			event.eStep = getEStepName();
+			event.iteration = numIterations;
+			event.numSequences = sequences.getNumSequences();
+			event.numWindows = getNumWindows();
+			event.width = width;
+			event.logLikelihood = logLikelihood;
+			event.mStepTime = mStepEnd - eStepEnd;
+			event.eStepTime = eStepEnd - start;
+			event.commit();
+		}
+		numIterations++;
+	}
+	
+	/**
+	 * @return the name of the E-Step selected for this workspace
+	 */
+	private String getEStepName()
+	{
+		if (pruning != null)
+		{
+			return "pruned";
+		}
+		if (parallel != null)
+		{
+			return "parallel";
+		}
+		if (blockScoring != null)
+		{
+			return "block";
+		}
+		return singlePrecision != null ? "float" : "dense";
+	}
+	
+	/**
+	 * @return the number of motif windows in the sequences
+	 */
+	public long getNumWindows()
+	{
+		if (numWindows < 0)
+		{
+			numWindows = 0;
+			for (int i = 0; i < sequences.getNumSequences(); i++)
+			{
+				numWindows += WorkPartition.numWindows(sequences.getSequence(i), width);
+			}
+		}
+		return numWindows;
+	}
+	
+	/**
+	 * Run only an E-Step, so that the motif locations match the current 
+	 * motif.
+	 */
+	public void expect()
+	{
+		if (pruning != null)
+		{
+			pruning.eStep(sequences, p, sparseZ);
+			logLikelihood = pruning.getLogLikelihood();
+		}
+		else
+		{
+			logLikelihood = eStep();
+		}
+	}
+	
+	/**
+	 * Run the dense E-Step selected for this workspace: in parallel, block
+	 * scored, or in the precision the motif locations are stored in.
+	 * 
+	 * @return the log probability of the data given the current motif
+	 */
+	private double eStep()
+	{
+		if (parallel != null)
+		{
+			return parallel.eStep(sequences, p, z);
+		}
+		if (blockScoring != null)
+		{
+			return blockScoring.eStep(sequences, p, z);
+		}
+		if (singlePrecision != null)
+		{
+			return singlePrecision.eStep(sequences, p, z);
+		}
+		return MEME_OOPS.eStep(sequences, p, z);
+	}
+	
+	/**
+	 * @return the log probability of the data given the motif that entered
+	 * the last E-Step, with a uniform prior on the start position in each 
+	 * sequence
+	 */
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+	
+	/**
+	 * @return the negative log probability of the data given the current 
+	 * motif and motif locations
+	 */
+	public double probabilityOfData()
+	{
+		if (pruning != null)
+		{
+			return pruning.probabilityOfData(sequences, p, sparseZ);
+		}
+		return MEME_OOPS.probabilityOfData(sequences, p, z);
+	}
+	
+	/**
+	 * Run the full E-Step and the counting of the M-Step on several threads
+	 * in all further iterations, over ranges of sequences of equal window
+	 * count.  Takes precedence over block scoring.
+	 * 
+	 * @param numThreads the number of threads, or 0 to return to the serial
+	 * E-Step and M-Step
+	 */
+	public void setNumThreads(int numThreads)
+	{
+		if (parallel != null)
+		{
+			parallel.shutdown();
+		}
+		parallel = (numThreads > 0) ? new ParallelEStep(numThreads) : null;
+	}
+	
+	/**
+	 * Score windows in the full E-Step with k-mer lookup tables, one per
+	 * block of motif columns, in all further iterations.  The motif 
+	 * locations keep the precision the workspace was created with.
+	 * 
+	 * @param blockSize the number of motif columns per block, or 0 to return
+	 * to scoring each residue
+	 */
+	public void setBlockScoring(int blockSize)
+	{
+		blockScoring = (blockSize > 0) ? new BlockEStep(blockSize) : null;
+	}
+	
+	/**
+	 * Use a pruned E-Step, which stores only the plausible motif locations,
+	 * in all further iterations.
+	 * 
+	 * @param pruning the pruned E-Step, or null to return to the full E-Step
+	 */
+	public void setPruning(PrunedEStep pruning)
+	{
+		this.pruning = pruning;
+		if (pruning != null && sparseZ == null)
+		{
+			sparseZ = new SparseMotifLocations(sequences.getNumSequences());
+		}
+	}
+	
+	/**
+	 * @return the plausible motif locations of the last pruned E-Step, or 
+	 * null if pruning has never been used
+	 */
+	public SparseMotifLocations getSparseLocations()
+	{
+		return sparseZ;
+	}
+	
+	/**
+	 * @return the current motif model
+	 */
+	public Motif getMotif()
+	{
+		return p;
+	}
+	
+	/**
+	 * @return the scratch motif for candidate starting parameters
+	 */
+	public Motif getSeed()
+	{
+		return seed;
+	}
+	
+	/**
+	 * @return the current motif locations.  When pruning, these are expanded
+	 * from the plausible locations into newly allocated dense locations.
+	 */
+	public MotifLocations getLocations()
+	{
+		if (pruning != null)
+		{
+			return sparseZ.toDense(sequences, p);
+		}
+		return z;
+	}
+	
+	/**
+	 * @return the current expected counts
+	 */
+	public Counts getCounts()
+	{
+		return counts;
+	}
+	
+	/**
+	 * @return the sequences this workspace was created for
+	 */
+	public SequenceSet getSequences()
+	{
+		return sequences;
+	}
+	
+	/**
+	 * @return the motif width this workspace was created for
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+}
@@ -0,0 +1,406 @@
+package meme.oops;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import meme.Counts;
+import meme.Motif;
+import data.SequenceSet;
+import events.IterationEvent;
+import events.SeedEvent;
+import events.SeedingEvent;
+import pair.Pair;
+
+/**
+ * EM that never stores the motif locations.  Each step computes the 
+ * posteriors of one sequence at a time, in log space as in 
+ * {@link PrunedEStep}, adds them straight into the expected counts and the 
+ * log likelihood, and keeps only the sequence's most probable start and its
+ * posterior.  Memory is then O(alphabet size * W + number of sequences), 
+ * plus scratch space for the longest sequence, instead of a probability for
+ * every window.
+ * 
+ * Because no posteriors are kept, convergence is judged on the change in 
+ * log likelihood, and starting motifs are chosen from a list of seed 
+ * windows rather than from every subsequence.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class FusedEM 
+{
+	/**
+	 * The maximum number of iterations of {@link #run(SequenceSet, Motif)}
+	 */
+	public static final int MAX_ITERATIONS = 1000;
+	
+	/**
+	 * The sequences whose symbol totals are cached
+	 */
+	private SequenceSet countedSequences;
+	
+	/**
+	 * The total weighted count of each symbol index in the sequences
+	 */
+	private double[] symbolTotals;
+	
+	/**
+	 * Scratch space for the symbol indices of a sequence
+	 */
+	private byte[] encoded;
+	
+	/**
+	 * Scratch space for the window scores, then posteriors, of a sequence
+	 */
+	private double[] scores;
+	
+	/**
+	 * The natural log-odds score of each motif position and symbol index,
+	 * at index position * alphabet size + symbol
+	 */
+	private double[] logOdds;
+	
+	/**
+	 * The log background probability of each symbol index
+	 */
+	private double[] logBackground;
+	
+	/**
+	 * The expected count of each symbol index at each motif position
+	 */
+	private double[][] motifCounts;
+	
+	/**
+	 * The most probable start position in each sequence in the last step
+	 */
+	private int[] bestStarts;
+	
+	/**
+	 * The posterior of the most probable start position in each sequence
+	 */
+	private double[] bestProbabilities;
+	
+	/**
+	 * The number of iterations run
+	 */
+	private int numIterations;
+	
+	/**
+	 * Constructor
+	 */
+	public FusedEM()
+	{
+		this.encoded = new byte[0];
+		this.scores = new double[0];
+	}
+	
+	/**
+	 * Run EM from a starting motif until the log likelihood stops changing.
+	 * The most probable starts of the returned motif are those of the 
+	 * final step's E-Step.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param start the starting motif
+	 * @return the fitted motif
+	 */
+	public Motif run(SequenceSet sequences, Motif start)
+	{
+		Motif p = new Motif(start);
+		Counts counts = new Counts(p);
+		
+		double logLikelihood = Double.NEGATIVE_INFINITY;
+		for (int t = 0; t < MAX_ITERATIONS; t++)
+		{
+			double previous = logLikelihood;
+			logLikelihood = iterate(sequences, p, counts);
+			if (Math.abs(logLikelihood - previous) <= MEME_OOPS.EPSILON)
+			{
+				break;
+			}
+		}
+		
+		return p;
+	}
+	
+	/**
+	 * Find the best starting motif among candidate seed windows, running a
+	 * few iterations of EM from each.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param seeds the sequence index and start position of each seed window
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @param numTries the number of EM iterations to run from each seed
+	 * @return the seed motif with the highest log likelihood after its 
+	 * iterations, or null if every seed window is masked
+	 */
+	public Motif getStartingMotif(SequenceSet sequences, 
+								  ArrayList<Pair<Integer, Integer>> seeds, 
+								  int width, 
+								  String alphabet, 
+								  int numTries)
+	{
+		Motif seed = new Motif(width, alphabet);
+		Motif p = new Motif(width, alphabet);
+		Motif scored = new Motif(width, alphabet);
+		Motif best = null;
+		Counts counts = new Counts(p);
+		double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+		
+		SeedingEvent seeding = new SeedingEvent();
+		seeding.begin();
+		int numSeeds = 0;
+		
+		for (Pair<Integer, Integer> window : seeds)
+		{
+			if (sequences.isWindowMasked(window.getFirst(), window.getSecond(), width))
+			{
+				continue;
+			}
+			
+			SeedEvent event = new SeedEvent();
+			event.begin();
+			seed.setFromSubsequence(sequences.getSequence(window.getFirst()), 
+									window.getSecond(), 
+									MEME_OOPS.START_PARAM);
+			p.copyFrom(seed);
+			for (int t = 0; t < numTries; t++)
+			{
+				iterate(sequences, p, counts);
+			}
+			
+			/*
+			 * One more E-Step, whose M-Step is discarded, scores the motif
+			 * reached
+			 */
+			scored.copyFrom(p);
+			double logLikelihood = iterate(sequences, scored, counts);
+			if (logLikelihood > bestLogLikelihood)
+			{
+				bestLogLikelihood = logLikelihood;
+				best = new Motif(seed);
+			}
+			MEME_OOPS.commit(event, 
+							 window.getFirst(), 
+							 window.getSecond(), 
+							 width, 
+							 numTries + 1, 
+							 logLikelihood);
+			numSeeds++;
+		}
+		
+		MEME_OOPS.commit(seeding, "fused", sequences, width, numSeeds, bestLogLikelihood);
+		return best;
+	}
+	
+	/**
+	 * Run one E-Step fused with the counting of the M-Step, then the M-Step.
+	 * Overwrites <code>counts</code> and every parameter of <code>p</code>.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param p the motif, whose parameters are overwritten
+	 * @param counts the expected counts to reuse
+	 * @return the log probability of the data given the motif that entered
+	 * the step, with a uniform prior on the start position in each sequence
+	 */
+	public double iterate(SequenceSet sequences, Motif p, Counts counts)
+	{
+		IterationEvent event = new IterationEvent();
+		event.begin();
+		long start = System.nanoTime();
+		prepare(sequences, p);
+		
+		int width = p.getWidth();
+		int alphabetSize = logBackground.length;
+		for (double[] row : motifCounts)
+		{
+			Arrays.fill(row, 0.0);
+		}
+		
+		double logLikelihood = 0.0;
+		double locationSum = 0.0;
+		long totalWindows = 0;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			int numWindows = sequence.length() - width + 1;
+			int weight = sequences.getWeight(i);
+			boolean masked = sequences.hasUsableMask(i, width);
+			
+			if (encoded.length < sequence.length())
+			{
+				encoded = new byte[sequence.length()];
+				scores = new double[sequence.length()];
+			}
+			
+			p.getEncoding().encodeStrict(sequence, encoded);
+			double logBg = 0.0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				logBg += logBackground[encoded[j]];
+			}
+			
+			/*
+			 * Score every window and keep the first best
+			 */
+			double best = Double.NEGATIVE_INFINITY;
+			int bestStart = 0;
+			for (int j = 0; j < numWindows; j++)
+			{
+				if (masked && sequences.isWindowMasked(i, j, width))
+				{
+					scores[j] = Double.NEGATIVE_INFINITY;
+					continue;
+				}
+				
+				double score = 0.0;
+				for (int k = 0, offset = 0; k < width; k++, offset += alphabetSize)
+				{
+					score += logOdds[offset + encoded[j + k]];
+				}
+				scores[j] = score;
+				if (score > best)
+				{
+					best = score;
+					bestStart = j;
+				}
+			}
+			
+			double sum = 0.0;
+			for (int j = 0; j < numWindows; j++)
+			{
+				scores[j] = Math.exp(scores[j] - best);
+				sum += scores[j];
+			}
+			
+			/*
+			 * Add the posteriors into the counts, then drop them
+			 */
+			double scale = weight / sum;
+			for (int j = 0; j < numWindows; j++)
+			{
+				double probability = scores[j] * scale;
+				if (probability == 0.0)
+				{
+					continue;
+				}
+				for (int k = 0; k < width; k++)
+				{
+					motifCounts[encoded[j + k]][k + 1] += probability;
+				}
+			}
+			
+			bestStarts[i] = bestStart;
+			bestProbabilities[i] = 1.0 / sum;
+			locationSum += weight;
+			totalWindows += numWindows;
+			logLikelihood += weight * (logBg + best + Math.log(sum / numWindows));
+		}
+		
+		long eStepEnd = System.nanoTime();
+		counts.set(motifCounts, symbolTotals);
+		MEME_OOPS.mStep(locationSum, p, counts);
+		
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.mStepTime = System.nanoTime() - eStepEnd;
+			event.eStepTime = eStepEnd - start;
+			event.eStep = "fused";
+			event.iteration = numIterations;
+			event.numSequences = sequences.getNumSequences();
+			event.numWindows = totalWindows;
+			event.width = width;
+			event.logLikelihood = logLikelihood;
+			event.commit();
+		}
+		numIterations++;
+		
+		return logLikelihood;
+	}
+	
+	/**
+	 * @return the most probable start position in each sequence, under the
+	 * motif that entered the last step
+	 */
+	public int[] getBestStarts()
+	{
+		return bestStarts;
+	}
+	
+	/**
+	 * @return the posterior of the most probable start position in each
+	 * sequence, under the motif that entered the last step
+	 */
+	public double[] getBestProbabilities()
+	{
+		return bestProbabilities;
+	}
+	
+	/**
+	 * @return the approximate number of bytes held between steps
+	 */
+	public long memoryFootprint()
+	{
+		long bytes = encoded.length + 8L * scores.length;
+		if (bestStarts != null)
+		{
+			bytes += 12L * bestStarts.length;
+			bytes += 8L * (logOdds.length + logBackground.length + symbolTotals.length);
+			bytes += 8L * motifCounts.length * motifCounts[0].length;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Compute the log-odds scores of the motif, and the symbol totals of the
+	 * sequences if they are not cached.
+	 */
+	private void prepare(SequenceSet sequences, Motif p)
+	{
+		ArrayList<Character> alphabet = p.getAlphabet();
+		int width = p.getWidth();
+		
+		if (logOdds == null || logOdds.length != width * alphabet.size())
+		{
+			logOdds = new double[width * alphabet.size()];
+			logBackground = new double[alphabet.size()];
+			motifCounts = new double[alphabet.size()][width + 1];
+		}
+		
+		if (countedSequences != sequences)
+		{
+			symbolTotals = new double[alphabet.size()];
+			for (int i = 0; i < sequences.getNumSequences(); i++)
+			{
+				String sequence = sequences.getSequence(i);
+				if (encoded.length < sequence.length())
+				{
+					encoded = new byte[sequence.length()];
+					scores = new double[sequence.length()];
+				}
+				p.getEncoding().encodeStrict(sequence, encoded);
+				for (int j = 0; j < sequence.length(); j++)
+				{
+					symbolTotals[encoded[j]] += sequences.getWeight(i);
+				}
+			}
+			bestStarts = new int[sequences.getNumSequences()];
+			bestProbabilities = new double[sequences.getNumSequences()];
+			countedSequences = sequences;
+		}
+		
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			logBackground[s] = Math.log(p.getProbability(alphabet.get(s), 0));
+		}
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				logOdds[k * alphabet.size() + s]
+						= Math.log(p.getProbability(alphabet.get(s), k + 1)) - logBackground[s];
+			}
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package meme.oops;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+import pair.Pair;
+
+/**
+ * A fitted OOPS model that can be refit cheaply when sequences are appended
+ * to its data set.  Alongside the motif it caches the expected counts that 
+ * each sequence contributes to the M-Step, and their sum.  Appending 
+ * sequences runs incremental EM: the E-Step is computed for the new 
+ * sequences only, their contributions replace their previous ones in the 
+ * totals, and the M-Step is recomputed from the totals.  The cost of a refit
+ * is proportional to the new data, not to the whole data set.
+ * 
+ * The per-sequence counts can be written with {@link #write} and read back
+ * with {@link #read}, so that a later session appends to the model without
+ * an E-Step over the old sequences.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class IncrementalFit 
+{
+	/**
+	 * The sequences in the data set, including appended ones
+	 */
+	private SequenceSet sequences;
+	
+	/**
+	 * The current motif model
+	 */
+	private Motif p;
+	
+	/**
+	 * The expected counts contributed by each sequence, indexed by symbol 
+	 * index times (width + 1) plus motif position, where position 0 holds 
+	 * the background count
+	 */
+	private ArrayList<double[]> sequenceCounts;
+	
+	/**
+	 * The sum of the expected counts of all sequences
+	 */
+	private double[] totalCounts;
+	
+	/**
+	 * Scratch space for the symbol indices of a sequence
+	 */
+	private byte[] encoded;
+	
+	/**
+	 * Fit a model to a set of sequences from scratch.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param width the width of the motif
+	 * @return the fitted model
+	 */
+	public static IncrementalFit fit(SequenceSet sequences, int width)
+	{
+		Pair<Motif, MotifLocations> result = MEME_OOPS.run(sequences, width);
+		return new IncrementalFit(sequences, result.getFirst(), result.getSecond());
+	}
+	
+	/**
+	 * Constructor for a previously fitted model.  The per-sequence expected 
+	 * counts are computed from the final motif locations of that fit.
+	 * 
+	 * @param sequences the sequences the model was fit to
+	 * @param p the fitted motif
+	 * @param z the motif locations of the fit
+	 */
+	public IncrementalFit(SequenceSet sequences, Motif p, MotifLocations z)
+	{
+		this(p);
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			double[] counts = new double[totalCounts.length];
+			accumulateCounts(sequences.getSequence(i), sequences.getWeight(i), z, i, counts);
+			add(sequences.getSequence(i), sequences.getWeight(i), counts);
+		}
+	}
+	
+	/**
+	 * Constructor for a previously fitted model from its cached per-sequence
+	 * expected counts.  No E-Step is run over the sequences.
+	 * 
+	 * @param sequences the sequences the model was fit to
+	 * @param p the fitted motif
+	 * @param sequenceCounts the expected counts contributed by each 
+	 * sequence, indexed by symbol index times (width + 1) plus motif 
+	 * position
+	 */
+	public IncrementalFit(SequenceSet sequences, Motif p, ArrayList<double[]> sequenceCounts)
+	{
+		this(p);
+		
+		if (sequenceCounts.size() != sequences.getNumSequences())
+		{
+			throw new IllegalArgumentException(sequenceCounts.size() + " cached counts for " 
+											   + sequences.getNumSequences() + " sequences");
+		}
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			if (sequenceCounts.get(i).length != totalCounts.length)
+			{
+				throw new IllegalArgumentException("Cached counts do not match the motif");
+			}
+			add(sequences.getSequence(i), 
+				sequences.getWeight(i), 
+				Arrays.copyOf(sequenceCounts.get(i), totalCounts.length));
+		}
+	}
+	
+	/**
+	 * Constructor for a model with no sequences yet
+	 * 
+	 * @param p the motif
+	 */
+	private IncrementalFit(Motif p)
+	{
+		this.sequences = new SequenceSet();
+		this.p = new Motif(p);
+		this.sequenceCounts = new ArrayList<double[]>();
+		this.totalCounts = new double[p.getAlphabet().size() * (p.getWidth() + 1)];
+		this.encoded = new byte[0];
+	}
+	
+	/**
+	 * Write the motif and the expected counts contributed by each sequence.
+	 * The sequences themselves are not written.
+	 * 
+	 * @param out the stream to write to
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		StringBuilder alphabet = new StringBuilder();
+		for (char symbol : p.getAlphabet())
+		{
+			alphabet.append(symbol);
+		}
+		out.writeUTF(alphabet.toString());
+		out.writeInt(p.getWidth());
+		double[] parameters = new double[totalCounts.length];
+		p.getParameters(parameters);
+		for (double parameter : parameters)
+		{
+			out.writeDouble(parameter);
+		}
+		
+		out.writeInt(sequenceCounts.size());
+		for (double[] counts : sequenceCounts)
+		{
+			for (double count : counts)
+			{
+				out.writeDouble(count);
+			}
+		}
+	}
+	
+	/**
+	 * Read a model written by {@link #write(DataOutputStream)}.
+	 * 
+	 * @param in the stream to read from
+	 * @param sequences the sequences the model was fit to, in the order they
+	 * were fit
+	 * @return the model
+	 * @throws IOException if the stream cannot be read or does not hold the
+	 * counts of every sequence
+	 */
+	public static IncrementalFit read(DataInputStream in, SequenceSet sequences) 
+			throws IOException
+	{
+		String alphabet = in.readUTF();
+		int width = in.readInt();
+		Motif p = new Motif(width, alphabet);
+		double[] parameters = new double[alphabet.length() * (width + 1)];
+		for (int i = 0; i < parameters.length; i++)
+		{
+			parameters[i] = in.readDouble();
+		}
+		p.setParameters(parameters);
+		
+		int numSequences = in.readInt();
+		if (numSequences != sequences.getNumSequences())
+		{
+			throw new IOException(numSequences + " cached counts for " 
+								  + sequences.getNumSequences() + " sequences");
+		}
+		ArrayList<double[]> sequenceCounts = new ArrayList<double[]>();
+		for (int i = 0; i < numSequences; i++)
+		{
+			double[] counts = new double[parameters.length];
+			for (int k = 0; k < counts.length; k++)
+			{
+				counts[k] = in.readDouble();
+			}
+			sequenceCounts.add(counts);
+		}
+		return new IncrementalFit(sequences, p, sequenceCounts);
+	}
+	
+	/**
+	 * Append sequences to the data set and refit the model, warm-starting
+	 * from the current motif.  Each iteration runs the E-Step on the new
+	 * sequences only and recomputes the M-Step from the updated totals.
+	 * 
+	 * @param newSequences the sequences to append
+	 * @param iterations the number of iterations over the new sequences
+	 */
+	public void append(SequenceSet newSequences, int iterations)
+	{
+		int first = sequences.getNumSequences();
+		
+		for (int i = 0; i < newSequences.getNumSequences(); i++)
+		{
+			add(newSequences.getSequence(i), 
+				newSequences.getWeight(i), 
+				new double[totalCounts.length]);
+		}
+		
+		for (int t = 0; t < iterations; t++)
+		{
+			update(newSequences, first);
+			mStep();
+		}
+	}
+	
+	/**
+	 * Run further iterations of incremental EM over the whole data set, for
+	 * when the cached contributions of old sequences have grown stale.
+	 * 
+	 * @param iterations the number of iterations over all sequences
+	 */
+	public void refine(int iterations)
+	{
+		for (int t = 0; t < iterations; t++)
+		{
+			update(sequences, 0);
+			mStep();
+		}
+	}
+	
+	/**
+	 * @return the current motif model
+	 */
+	public Motif getMotif()
+	{
+		return p;
+	}
+	
+	/**
+	 * @return the sequences in the data set, including appended ones
+	 */
+	public SequenceSet getSequences()
+	{
+		return sequences;
+	}
+	
+	/**
+	 * Compute the motif locations in every sequence under the current motif.
+	 * This is a full E-Step over the data set.
+	 * 
+	 * @return the motif locations
+	 */
+	public MotifLocations getLocations()
+	{
+		return MEME_OOPS.eStep(sequences, p);
+	}
+	
+	/**
+	 * Replace the cached contributions of a run of sequences with ones 
+	 * computed from an E-Step under the current motif.
+	 * 
+	 * @param batch the sequences, which occupy consecutive indices of the 
+	 * data set
+	 * @param first the index in the data set of the first sequence of the 
+	 * batch
+	 */
+	private void update(SequenceSet batch, int first)
+	{
+		MotifLocations z = MEME_OOPS.eStep(batch, p);
+		
+		for (int i = 0; i < batch.getNumSequences(); i++)
+		{
+			double[] counts = sequenceCounts.get(first + i);
+			
+			for (int k = 0; k < counts.length; k++)
+			{
+				totalCounts[k] -= counts[k];
+				counts[k] = 0.0;
+			}
+			
+			accumulateCounts(batch.getSequence(i), batch.getWeight(i), z, i, counts);
+			
+			for (int k = 0; k < counts.length; k++)
+			{
+				totalCounts[k] += counts[k];
+			}
+		}
+	}
+	
+	/**
+	 * Add a sequence and its contribution to the data set
+	 */
+	private void add(String sequence, int weight, double[] counts)
+	{
+		sequences.addSequence(sequence, weight);
+		sequenceCounts.add(counts);
+		
+		for (int k = 0; k < counts.length; k++)
+		{
+			totalCounts[k] += counts[k];
+		}
+	}
+	
+	/**
+	 * Accumulate the expected counts of one sequence, as computed by 
+	 * {@link meme.Counts} for the whole data set.
+	 * 
+	 * @param sequence the sequence
+	 * @param weight the weight of the sequence
+	 * @param z the motif locations
+	 * @param index the index of the sequence in <code>z</code>
+	 * @param counts the array the counts are added to
+	 */
+	private void accumulateCounts(String sequence, 
+								  int weight, 
+								  MotifLocations z, 
+								  int index, 
+								  double[] counts)
+	{
+		int stride = p.getWidth() + 1;
+		if (encoded.length < sequence.length())
+		{
+			encoded = new byte[sequence.length()];
+		}
+		p.getEncoding().encodeStrict(sequence, encoded);
+		
+		/*
+		 * Every residue counts towards the background, less its expected 
+		 * count within the motif
+		 */
+		for (int i = 0; i < sequence.length(); i++)
+		{
+			counts[encoded[i] * stride] += weight;
+		}
+		
+		for (int j = 0; j < sequence.length() - p.getWidth() + 1; j++)
+		{
+			double zj = weight * z.getLocationProbability(index, j);
+			
+			for (int k = 1; k < stride; k++)
+			{
+				int s = encoded[j + k - 1];
+				counts[s * stride + k] += zj;
+				counts[s * stride] -= zj;
+			}
+		}
+	}
+	
+	/**
+	 * Recompute the motif from the total expected counts
+	 */
+	private void mStep()
+	{
+		int alphabetSize = p.getAlphabet().size();
+		int stride = p.getWidth() + 1;
+		
+		double bgTotal = 0.0;
+		double motifTotal = 0.0;
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			bgTotal += totalCounts[s * stride];
+			motifTotal += totalCounts[s * stride + 1];
+		}
+		
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			char symbol = p.getAlphabet().get(s);
+			
+			for (int k = 1; k < stride; k++)
+			{
+				double numerator = totalCounts[s * stride + k] + MEME_OOPS.PSUEDOCOUNT;
+				double denominator = motifTotal + (alphabetSize * MEME_OOPS.PSUEDOCOUNT);
+				p.setProbability(symbol, k, numerator / denominator);
+			}
+			
+			double numerator = totalCounts[s * stride] + MEME_OOPS.PSUEDOCOUNT;
+			double denominator = bgTotal + (alphabetSize * MEME_OOPS.PSUEDOCOUNT);
+			p.setProbability(symbol, 0, numerator / denominator);
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package meme.oops;
+
+/**
+ * The engine settings a {@link JobPlanner} chose for one EM job, with the
+ * corpus statistics and predicted costs they were chosen from and, once the
+ * job has run, its actual runtime.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class JobPlan
+{
+	/**
+	 * Seed EM from every window of the data
+	 */
+	public static final int SEEDING_EXHAUSTIVE = 0;
+	
+	/**
+	 * Seed EM with {@link SampledSeeding}
+	 */
+	public static final int SEEDING_SAMPLED = 1;
+	
+	/**
+	 * Seed EM from the windows of the most frequent k-mers
+	 */
+	public static final int SEEDING_KMER = 2;
+	
+	/**
+	 * Store the motif locations in double precision
+	 */
+	public static final int MEMORY_DOUBLE = 0;
+	
+	/**
+	 * Store the motif locations in single precision
+	 */
+	public static final int MEMORY_FLOAT = 1;
+	
+	/**
+	 * Do not store the motif locations, running {@link FusedEM}
+	 */
+	public static final int MEMORY_FUSED = 2;
+	
+	/**
+	 * The names of the seeding strategies
+	 */
+	private static final String[] SEEDING_NAMES = {"exhaustive", "sampled", "kmer"};
+	
+	/**
+	 * The names of the memory modes
+	 */
+	private static final String[] MEMORY_NAMES = {"double", "float", "fused"};
+	
+	/**
+	 * The width of the motif
+	 */
+	private int width;
+	
+	/**
+	 * The number of distinct sequences
+	 */
+	private int numSequences;
+	
+	/**
+	 * The number of motif windows in the distinct sequences
+	 */
+	private long numWindows;
+	
+	/**
+	 * The estimated number of distinct windows
+	 */
+	private long numDistinctWindows;
+	
+	/**
+	 * The bytes of the motif locations in double precision
+	 */
+	private long locationBytes;
+	
+	/**
+	 * The seeding strategy
+	 */
+	int seeding;
+	
+	/**
+	 * The number of threads of the E-Step and M-Step, 1 for serial
+	 */
+	int numThreads;
+	
+	/**
+	 * The number of motif columns per block of the block-scored E-Step, or
+	 * 0 for the workspace's default E-Step
+	 */
+	int blockSize;
+	
+	/**
+	 * Whether EM runs with the pruned E-Step after seeding
+	 */
+	boolean sparse;
+	
+	/**
+	 * The memory mode
+	 */
+	int memory;
+	
+	/**
+	 * The predicted seconds to choose the starting motif
+	 */
+	double predictedSeedingSeconds;
+	
+	/**
+	 * The predicted seconds to run EM from the starting motif
+	 */
+	double predictedEMSeconds;
+	
+	/**
+	 * The actual seconds of the job, or NaN until it has run
+	 */
+	double actualSeconds = Double.NaN;
+	
+	JobPlan(int width,
+			int numSequences,
+			long numWindows,
+			long numDistinctWindows,
+			long locationBytes)
+	{
+		this.width = width;
+		this.numSequences = numSequences;
+		this.numWindows = numWindows;
+		this.numDistinctWindows = numDistinctWindows;
+		this.locationBytes = locationBytes;
+		this.numThreads = 1;
+	}
+	
+	/**
+	 * @return the seeding strategy, one of the SEEDING constants
+	 */
+	public int getSeeding()
+	{
+		return seeding;
+	}
+	
+	/**
+	 * @return the number of threads of the E-Step and M-Step, 1 for serial
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+	
+	/**
+	 * @return the number of motif columns per block of the block-scored
+	 * E-Step, or 0 for the workspace's default E-Step
+	 */
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+	
+	/**
+	 * @return whether EM runs with the pruned E-Step after seeding
+	 */
+	public boolean isSparse()
+	{
+		return sparse;
+	}
+	
+	/**
+	 * @return the memory mode, one of the MEMORY constants
+	 */
+	public int getMemoryMode()
+	{
+		return memory;
+	}
+	
+	/**
+	 * @return the number of motif windows in the distinct sequences
+	 */
+	public long getNumWindows()
+	{
+		return numWindows;
+	}
+	
+	/**
+	 * @return the estimated number of distinct windows
+	 */
+	public long getNumDistinctWindows()
+	{
+		return numDistinctWindows;
+	}
+	
+	/**
+	 * @return the bytes of the motif locations in double precision
+	 */
+	public long getLocationBytes()
+	{
+		return locationBytes;
+	}
+	
+	/**
+	 * @return the predicted seconds of the job
+	 */
+	public double getPredictedSeconds()
+	{
+		return predictedSeedingSeconds + predictedEMSeconds;
+	}
+	
+	/**
+	 * @return the actual seconds of the job, or NaN until it has run
+	 */
+	public double getActualSeconds()
+	{
+		return actualSeconds;
+	}
+	
+	/**
+	 * @return the settings of the plan, for identifying cached results
+	 */
+	public String getSettings()
+	{
+		return "seeding=" + SEEDING_NAMES[seeding]
+				+ " threads=" + numThreads
+				+ " block=" + blockSize
+				+ " sparse=" + sparse
+				+ " memory=" + MEMORY_NAMES[memory];
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		
+		result.append("Sequences\t" + numSequences + "\n");
+		result.append("Width\t" + width + "\n");
+		result.append("Windows\t" + numWindows + "\n");
+		result.append("Distinct windows\t~" + numDistinctWindows + "\n");
+		result.append("Locations\t" + (locationBytes >> 10) + " KB\n");
+		result.append("Seeding\t" + SEEDING_NAMES[seeding] + "\n");
+		result.append("Threads\t" + numThreads + "\n");
+		result.append("Block size\t" + blockSize + "\n");
+		result.append("Locations stored\t" + (sparse ? "sparse" : "dense") + "\n");
+		result.append("Memory\t" + MEMORY_NAMES[memory] + "\n");
+		result.append("Predicted\t" + round(predictedSeedingSeconds) + " s seeding + "
+					  + round(predictedEMSeconds) + " s EM\n");
+		if (!Double.isNaN(actualSeconds))
+		{
+			result.append("Actual\t" + round(actualSeconds) + " s\n");
+		}
+		
+		return result.toString();
+	}
+	
+	/**
+	 * @return seconds rounded to milliseconds
+	 */
+	private static double round(double seconds)
+	{
+		return Math.round(seconds * 1000) / 1000.0;
+	}
+}
@@ -0,0 +1,568 @@
+package meme.oops;
+
+import java.util.Random;
+
+import meme.KmerBlockScorer;
+import meme.Motif;
+import meme.MotifLocations;
+import data.KmerSeedIndex;
+import data.SequenceSet;
+import data.WorkPartition;
+import events.PlanEvent;
+import pair.Pair;
+
+/**
+ * Chooses the engine settings of an EM job from a cost model, so that they
+ * need not be tuned by hand: the seeding strategy, the number of threads,
+ * block scoring, sparse or dense motif locations, and the memory mode.
+ *
+ * The model is built from corpus statistics, the number of windows, an
+ * estimate of the number of distinct windows and the size of the motif
+ * locations, and from a calibration run of a few iterations of each E-Step
+ * on a random sample of the sequences.  The dense E-Step and the
+ * probability of the data cost time quadratic in sequence length, so their
+ * sample times are scaled by the sum over sequences of length times
+ * windows; the log-space E-Steps are scaled by the number of windows.
+ *
+ * Seeding from every window is chosen when it is predicted to fit the time
+ * budget, and otherwise the cheaper of sampled and k-mer seeding.  The
+ * memory mode is the most precise whose motif locations fit a fraction of
+ * the memory budget.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class JobPlanner
+{
+	/**
+	 * The default seconds allowed for seeding from every window
+	 */
+	public static final double DEFAULT_TIME_BUDGET = 60.0;
+	
+	/**
+	 * The fraction of the memory budget the motif locations may take
+	 */
+	public static final double MEMORY_FRACTION = 0.5;
+	
+	/**
+	 * The number of windows of the calibration sample
+	 */
+	static final int CALIBRATION_WINDOWS = 20000;
+	
+	/**
+	 * The minimum number of timed runs of each step in calibration
+	 */
+	static final int CALIBRATION_RUNS = 3;
+	
+	/**
+	 * The seconds after which a step is no longer rerun in calibration, so
+	 * that the compiler has warmed it up without calibration taking long
+	 */
+	static final double CALIBRATION_SECONDS = 0.2;
+	
+	/**
+	 * The number of EM iterations expected after seeding
+	 */
+	static final int EXPECTED_ITERATIONS = 20;
+	
+	/**
+	 * The number of bits of the bitmap estimating the number of distinct
+	 * windows
+	 */
+	private static final int DISTINCT_BITS = 1 << 23;
+	
+	/**
+	 * The seconds allowed for seeding from every window
+	 */
+	private double timeBudget;
+	
+	/**
+	 * The bytes available to the job
+	 */
+	private long memoryBudget;
+	
+	/**
+	 * The maximum number of threads
+	 */
+	private int maxThreads;
+	
+	/**
+	 * The source of randomness for the calibration sample and sampled
+	 * seeding
+	 */
+	private Random rand;
+	
+	/**
+	 * Constructor, with the default time budget, the memory the JVM can
+	 * still allocate and a thread per processor
+	 *
+	 * @param seed the random seed for the calibration sample and sampled
+	 * seeding
+	 */
+	public JobPlanner(long seed)
+	{
+		Runtime runtime = Runtime.getRuntime();
+		this.timeBudget = DEFAULT_TIME_BUDGET;
+		this.memoryBudget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		this.maxThreads = runtime.availableProcessors();
+		this.rand = new Random(seed);
+	}
+	
+	/**
+	 * @param seconds the seconds allowed for seeding from every window
+	 */
+	public void setTimeBudget(double seconds)
+	{
+		this.timeBudget = seconds;
+	}
+	
+	/**
+	 * @param bytes the bytes available to the job
+	 */
+	public void setMemoryBudget(long bytes)
+	{
+		this.memoryBudget = bytes;
+	}
+	
+	/**
+	 * @param maxThreads the maximum number of threads
+	 */
+	public void setMaxThreads(int maxThreads)
+	{
+		this.maxThreads = maxThreads;
+	}
+	
+	/**
+	 * Choose the settings of a job.
+	 *
+	 * @param sequences the distinct sequences of the data set
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @return the plan
+	 */
+	public JobPlan plan(SequenceSet sequences, int width, String alphabet)
+	{
+		int numSequences = sequences.getNumSequences();
+		long numWindows = 0;
+		double quadraticWork = 0.0;
+		for (int i = 0; i < numSequences; i++)
+		{
+			long windows = WorkPartition.numWindows(sequences.getSequence(i), width);
+			numWindows += windows;
+			quadraticWork += (double) windows * sequences.getSequence(i).length();
+		}
+		long locationBytes = 8 * numWindows + 16L * numSequences;
+		
+		JobPlan plan = new JobPlan(width,
+								   numSequences,
+								   numWindows,
+								   countDistinctWindows(sequences, width),
+								   locationBytes);
+		
+		if (locationBytes <= MEMORY_FRACTION * memoryBudget)
+		{
+			plan.memory = JobPlan.MEMORY_DOUBLE;
+		}
+		else if (locationBytes / 2 <= MEMORY_FRACTION * memoryBudget)
+		{
+			plan.memory = JobPlan.MEMORY_FLOAT;
+		}
+		else
+		{
+			plan.memory = JobPlan.MEMORY_FUSED;
+		}
+		
+		/*
+		 * Time each E-Step on a sample and scale it to the full data set
+		 */
+		Calibration calibration = calibrate(sequences, width, alphabet,
+											plan.memory == JobPlan.MEMORY_FLOAT);
+		double linearScale = (double) numWindows / Math.max(1, calibration.numWindows);
+		double quadraticScale = quadraticWork / Math.max(1.0, calibration.quadraticWork);
+		
+		double defaultIteration = calibration.defaultIteration
+								  * (calibration.defaultQuadratic ? quadraticScale : linearScale);
+		double probabilityOfData = calibration.probabilityOfData * quadraticScale;
+		double prunedIteration = calibration.prunedIteration * linearScale;
+		
+		/*
+		 * The fastest full E-Step serves seeding and, unless pruning is
+		 * cheaper, EM
+		 */
+		double fullIteration = defaultIteration;
+		if (calibration.blockIteration * linearScale < fullIteration)
+		{
+			fullIteration = calibration.blockIteration * linearScale;
+			plan.blockSize = KmerBlockScorer.defaultBlockSize(alphabet.length());
+		}
+		if (calibration.parallelIteration * linearScale < fullIteration)
+		{
+			fullIteration = calibration.parallelIteration * linearScale;
+			plan.numThreads = maxThreads;
+			plan.blockSize = 0;
+		}
+		
+		int numTries = MEME_OOPS.STARTING_POINT_ITERATIONS;
+		double seedCost = numTries * fullIteration + probabilityOfData;
+		
+		if (plan.memory == JobPlan.MEMORY_FUSED)
+		{
+			/*
+			 * Fused EM scores each window once per iteration in log space,
+			 * like the pruned E-Step without its pruning
+			 */
+			plan.seeding = JobPlan.SEEDING_KMER;
+			plan.numThreads = 1;
+			plan.blockSize = 0;
+			int numSeeds = (int) Math.min(KmerSeedIndex.DEFAULT_NUM_SEEDS, plan.getNumDistinctWindows());
+			plan.predictedSeedingSeconds = numSeeds * numTries * prunedIteration;
+			plan.predictedEMSeconds = EXPECTED_ITERATIONS * prunedIteration;
+			return plan;
+		}
+		
+		double exhaustive = Math.max(0, numWindows - numSequences) * seedCost;
+		double kmer = Math.min(KmerSeedIndex.DEFAULT_NUM_SEEDS, plan.getNumDistinctWindows()) * seedCost;
+		double sampled = sampledSeedingCost(numSequences,
+											numWindows,
+											numTries * defaultIteration + probabilityOfData);
+		
+		if (exhaustive <= timeBudget)
+		{
+			plan.seeding = JobPlan.SEEDING_EXHAUSTIVE;
+			plan.predictedSeedingSeconds = exhaustive;
+		}
+		else if (sampled < kmer)
+		{
+			plan.seeding = JobPlan.SEEDING_SAMPLED;
+			plan.predictedSeedingSeconds = sampled;
+		}
+		else
+		{
+			plan.seeding = JobPlan.SEEDING_KMER;
+			plan.predictedSeedingSeconds = kmer;
+		}
+		
+		double denseEM = fullIteration + probabilityOfData;
+		plan.sparse = prunedIteration < denseEM;
+		plan.predictedEMSeconds = EXPECTED_ITERATIONS * Math.min(prunedIteration, denseEM);
+		
+		return plan;
+	}
+	
+	/**
+	 * Run a job with the settings of its plan, and record its runtime in the
+	 * plan.
+	 *
+	 * @param sequences the distinct sequences of the data set
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @param plan the plan, whose memory mode stores the motif locations
+	 * @return the motif model and motif locations that locally maximize the
+	 * probability of the sequences
+	 */
+	public Pair<Motif, MotifLocations> run(SequenceSet sequences,
+										   int width,
+										   String alphabet,
+										   JobPlan plan)
+	{
+		if (plan.memory == JobPlan.MEMORY_FUSED)
+		{
+			throw new IllegalArgumentException("Fused plans are run with FusedEM");
+		}
+		
+		long begin = System.nanoTime();
+		EMWorkspace workspace = new EMWorkspace(sequences,
+												width,
+												alphabet,
+												plan.memory == JobPlan.MEMORY_FLOAT);
+		if (plan.blockSize > 0)
+		{
+			workspace.setBlockScoring(plan.blockSize);
+		}
+		if (plan.numThreads > 1)
+		{
+			workspace.setNumThreads(plan.numThreads);
+		}
+		
+		EMSettings settings = new EMSettings();
+		settings.setAlphabet(alphabet);
+		if (plan.seeding == JobPlan.SEEDING_SAMPLED)
+		{
+			settings.setSeeding(new SampledSeeding(rand.nextLong()));
+		}
+		else if (plan.seeding == JobPlan.SEEDING_KMER)
+		{
+			KmerSeedIndex index = new KmerSeedIndex(alphabet,
+					Math.min(width, KmerSeedIndex.defaultK(alphabet.length())));
+			index.consume(sequences, 0);
+			settings.setSeeds(index.getSeeds(sequences, width, KmerSeedIndex.DEFAULT_NUM_SEEDS));
+		}
+		if (plan.sparse)
+		{
+			settings.setPruning(new PrunedEStep(PrunedEStep.DEFAULT_LOG_THRESHOLD, false));
+		}
+		
+		try
+		{
+			Pair<Motif, MotifLocations> result = MEME_OOPS.run(workspace, settings);
+			record(plan, (System.nanoTime() - begin) / 1e9);
+			return result;
+		}
+		finally
+		{
+			workspace.setNumThreads(0);
+		}
+	}
+	
+	/**
+	 * Record the actual runtime of a planned job, such as a fused one run
+	 * outside {@link #run}, in its plan and the flight recorder.
+	 *
+	 * @param plan the plan
+	 * @param seconds the seconds the job took
+	 */
+	public void record(JobPlan plan, double seconds)
+	{
+		plan.actualSeconds = seconds;
+		
+		PlanEvent event = new PlanEvent();
+		if (event.shouldCommit())
+		{
+			event.settings = plan.getSettings();
+			event.numWindows = plan.getNumWindows();
+			event.predictedSeconds = plan.getPredictedSeconds();
+			event.actualSeconds = seconds;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * The predicted seconds of {@link SampledSeeding} with its default
+	 * schedule: every window of the first sample is scored on the sample,
+	 * the surviving fraction is rescored on each larger sample, and the
+	 * winners are scored on all sequences.
+	 *
+	 * @param numSequences the number of sequences
+	 * @param numWindows the number of windows
+	 * @param seedCost the seconds to score one seed on all sequences with
+	 * the workspace's default E-Step
+	 */
+	private static double sampledSeedingCost(int numSequences, long numWindows, double seedCost)
+	{
+		double sampleSize = Math.min(SampledSeeding.DEFAULT_SAMPLE_SIZE, numSequences);
+		double numCandidates = Math.max(0, numWindows - numSequences) * sampleSize / numSequences;
+		double cost = 0.0;
+		for (int round = 0; round < SampledSeeding.DEFAULT_NUM_ROUNDS; round++)
+		{
+			cost += numCandidates * seedCost * sampleSize / numSequences;
+			numCandidates = Math.max(SampledSeeding.DEFAULT_NUM_WINNERS,
+									 Math.ceil(numCandidates * SampledSeeding.DEFAULT_SURVIVOR_FRACTION));
+			sampleSize = Math.min(numSequences, sampleSize * SampledSeeding.DEFAULT_GROWTH_FACTOR);
+		}
+		return cost + SampledSeeding.DEFAULT_NUM_WINNERS * seedCost;
+	}
+	
+	/**
+	 * Time a few iterations of each E-Step, and the probability of the data,
+	 * on a random sample of the sequences.
+	 */
+	private Calibration calibrate(SequenceSet sequences,
+								  int width,
+								  String alphabet,
+								  boolean singlePrecision)
+	{
+		int numSequences = sequences.getNumSequences();
+		int[] order = new int[numSequences];
+		for (int i = 0; i < numSequences; i++)
+		{
+			order[i] = i;
+		}
+		
+		/*
+		 * Draw sequences until the sample holds enough windows
+		 */
+		Calibration calibration = new Calibration();
+		int count = 0;
+		while (count < numSequences && calibration.numWindows < CALIBRATION_WINDOWS)
+		{
+			int j = count + rand.nextInt(numSequences - count);
+			int tmp = order[count];
+			order[count] = order[j];
+			order[j] = tmp;
+			
+			String sequence = sequences.getSequence(order[count]);
+			long windows = WorkPartition.numWindows(sequence, width);
+			calibration.numWindows += windows;
+			calibration.quadraticWork += (double) windows * sequence.length();
+			count++;
+		}
+		SequenceSet sample = sequences.subset(order, count);
+		
+		EMWorkspace workspace = new EMWorkspace(sample, width, alphabet, singlePrecision);
+		Motif start = null;
+		for (int i = 0; i < count && start == null; i++)
+		{
+			String sequence = sample.getSequence(i);
+			if (sequence.length() > width)
+			{
+				start = new Motif(width, alphabet);
+				start.setFromSubsequence(sequence, (sequence.length() - width) / 2, MEME_OOPS.START_PARAM);
+			}
+		}
+		if (start == null)
+		{
+			return calibration;
+		}
+		
+		calibration.defaultQuadratic = !singlePrecision
+									   && alphabet.length() <= MEME_OOPS.DNA_ALPHABET.length();
+		calibration.defaultIteration = timeIterations(workspace, start);
+		
+		calibration.probabilityOfData = timeProbability(workspace, start);
+		
+		calibration.blockIteration = Double.POSITIVE_INFINITY;
+		if (calibration.defaultQuadratic)
+		{
+			workspace.setBlockScoring(KmerBlockScorer.defaultBlockSize(alphabet.length()));
+			calibration.blockIteration = timeIterations(workspace, start);
+			workspace.setBlockScoring(0);
+		}
+		
+		calibration.parallelIteration = Double.POSITIVE_INFINITY;
+		if (maxThreads > 1)
+		{
+			workspace.setNumThreads(maxThreads);
+			calibration.parallelIteration = timeIterations(workspace, start);
+			workspace.setNumThreads(0);
+		}
+		
+		/*
+		 * The pruned E-Step computes the probability of the data in log
+		 * space as it goes
+		 */
+		workspace.setPruning(new PrunedEStep(PrunedEStep.DEFAULT_LOG_THRESHOLD, false));
+		calibration.prunedIteration = timeIterations(workspace, start) 
+									  + timeProbability(workspace, start);
+		workspace.setPruning(null);
+		
+		return calibration;
+	}
+	
+	/**
+	 * @return the fastest of repeated iterations of a workspace's E-Step and
+	 * M-Step from a starting motif
+	 */
+	private static double timeIterations(EMWorkspace workspace, Motif start)
+	{
+		double fastest = Double.POSITIVE_INFINITY;
+		long end = System.nanoTime() + (long) (CALIBRATION_SECONDS * 1e9);
+		for (int run = 0; run < CALIBRATION_RUNS || System.nanoTime() < end; run++)
+		{
+			workspace.getMotif().copyFrom(start);
+			long begin = System.nanoTime();
+			workspace.iterate();
+			fastest = Math.min(fastest, (System.nanoTime() - begin) / 1e9);
+		}
+		return fastest;
+	}
+	
+	/**
+	 * @return the fastest of repeated computations of the probability of the
+	 * data, after an iteration from a starting motif
+	 */
+	private static double timeProbability(EMWorkspace workspace, Motif start)
+	{
+		workspace.getMotif().copyFrom(start);
+		workspace.iterate();
+		
+		double fastest = Double.POSITIVE_INFINITY;
+		long end = System.nanoTime() + (long) (CALIBRATION_SECONDS * 1e9);
+		for (int run = 0; run < CALIBRATION_RUNS || System.nanoTime() < end; run++)
+		{
+			long begin = System.nanoTime();
+			workspace.probabilityOfData();
+			fastest = Math.min(fastest, (System.nanoTime() - begin) / 1e9);
+		}
+		return fastest;
+	}
+	
+	/**
+	 * Estimate the number of distinct windows by linear counting: each
+	 * window is hashed to one bit of a bitmap, and the fraction of bits left
+	 * clear gives the number of distinct hashes.
+	 *
+	 * @param sequences the sequences
+	 * @param width the width of the windows
+	 * @return the estimated number of distinct windows
+	 */
+	static long countDistinctWindows(SequenceSet sequences, int width)
+	{
+		long[] bitmap = new long[DISTINCT_BITS / 64];
+		long numWindows = 0;
+		
+		/*
+		 * A polynomial rolling hash, updated by one residue per window
+		 */
+		final long base = 0x100000001B3L;
+		long leading = 1;
+		for (int k = 1; k < width; k++)
+		{
+			leading *= base;
+		}
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			long hash = 0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				if (j >= width)
+				{
+					hash -= sequence.charAt(j - width) * leading;
+				}
+				hash = hash * base + sequence.charAt(j);
+				if (j >= width - 1)
+				{
+					long mixed = hash * 0x9E3779B97F4A7C15L;
+					int bit = (int) (mixed >>> 41);
+					bitmap[bit >>> 6] |= 1L << bit;
+					numWindows++;
+				}
+			}
+		}
+		
+		long numClear = 0;
+		for (long word : bitmap)
+		{
+			numClear += 64 - Long.bitCount(word);
+		}
+		if (numClear == 0)
+		{
+			return numWindows;
+		}
+		double estimate = -DISTINCT_BITS * Math.log((double) numClear / DISTINCT_BITS);
+		return Math.min(numWindows, Math.round(estimate));
+	}
+	
+	/**
+	 * The sample times of each E-Step, in seconds per iteration
+	 */
+	private static class Calibration
+	{
+		long numWindows;
+		
+		double quadraticWork;
+		
+		boolean defaultQuadratic;
+		
+		double defaultIteration;
+		
+		double probabilityOfData;
+		
+		double blockIteration;
+		
+		double parallelIteration;
+		
+		double prunedIteration;
+	}
+}
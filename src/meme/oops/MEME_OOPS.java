@@ -1,9 +1,14 @@
 package meme.oops;
 
+import java.util.ArrayList;
+
 import meme.Counts;
 import meme.Motif;
 import meme.MotifLocations;
+import meme.SparseMotifLocations;
 import data.SequenceSet;
+import events.SeedEvent;
+import events.SeedingEvent;
 import pair.Pair;
 
 /**
@@ -23,26 +28,38 @@ public class MEME_OOPS
 	/**
 	 * The laplace count to use in all probability count estimations
 	 */
-	private static final int PSUEDOCOUNT = 1;
+	static final int PSUEDOCOUNT = 1;
 
 	/**
 	 * The minimum change in log probability of data given model parameters for
 	 * the stopping criteria to be met
 	 */
-	private static final double EPSILON = 0.001;
+	static final double EPSILON = 0.001;
 
 	/**
 	 * Number of iterations for which to run the EM algorithm on each 
 	 * candidate starting parameter
 	 */
-	private static final int STARTING_POINT_ITERATIONS = 3;
+	static final int STARTING_POINT_ITERATIONS = 3;
 	
 	/**
 	 * Probability mass to place on each symbol of a subsequence in each
 	 * position of the motif for the starting parameters
 	 */
-	private static final double START_PARAM = 0.6;
+	static final double START_PARAM = 0.6;
 
+	/**
+	 * @return the settings every EM run depends on, for identifying cached
+	 * results
+	 */
+	public static String getSettings()
+	{
+		return "pseudocount=" + PSUEDOCOUNT 
+				+ " epsilon=" + EPSILON 
+				+ " startingIterations=" + STARTING_POINT_ITERATIONS 
+				+ " startParam=" + START_PARAM;
+	}
+	
 	/**
 	 * Run the Expecation Maximization Algorithm on a set of sequence to 
 	 * find the motif and motif location in each sequence that locally maximizes
@@ -55,10 +72,56 @@ public class MEME_OOPS
 	public static Pair<Motif, MotifLocations> run(SequenceSet sequences, 
 			int motifWidth)
 	{
-		Pair<Motif, MotifLocations> result = new Pair<Motif, MotifLocations>();
-		MotifLocations z = null;
+		return run(sequences, motifWidth, new EMSettings());
+	}
+	
+	/**
+	 * Run the Expecation Maximization Algorithm with the alphabet, seeding
+	 * strategy, E-Step and precision of a set of settings.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param motifWidth the width of the motif
+	 * @param settings the settings of the run
+	 * @return the motif model and motif locations that locally maximize the
+	 * probability of the sequences
+	 */
+	public static Pair<Motif, MotifLocations> run(SequenceSet sequences, 
+			int motifWidth, 
+			EMSettings settings)
+	{
+		EMWorkspace workspace = startWorkspace(sequences, motifWidth, settings);
+		
+		return converge(workspace);
+	}
+	
+	/**
+	 * Run the Expecation Maximization Algorithm on a workspace whose E-Step
+	 * has already been chosen, for example by a {@link JobPlanner}.  The 
+	 * precision of the settings is ignored in favor of the workspace's.
+	 * 
+	 * @param workspace the workspace for the sequences and motif width
+	 * @param settings the settings of the run
+	 * @return the motif model and motif locations that locally maximize the
+	 * probability of the sequences
+	 */
+	public static Pair<Motif, MotifLocations> run(EMWorkspace workspace, 
+			EMSettings settings)
+	{
+		seed(workspace, settings);
 		
-		Motif p = getStartingMotif(sequences, motifWidth, DNA_ALPHABET, STARTING_POINT_ITERATIONS);
+		return converge(workspace);
+	}
+	
+	/**
+	 * Iterate EM from the workspace's motif until the probability of the
+	 * data stops changing.
+	 * 
+	 * @param workspace the workspace holding the starting motif
+	 * @return the converged motif model and motif locations
+	 */
+	private static Pair<Motif, MotifLocations> converge(EMWorkspace workspace)
+	{
+		Pair<Motif, MotifLocations> result = new Pair<Motif, MotifLocations>();
 		
 		/*
 		 *  Repeat E-Step & M-Step until convergence
@@ -67,54 +130,260 @@ public class MEME_OOPS
 		double prevProbData = 0.0;
 		while (Math.abs(probData - prevProbData) > EPSILON)
 		{
-			z = eStep(sequences, p);
-			p = mStep(sequences, z, motifWidth);
+			workspace.iterate();
 
 			prevProbData = probData;
-			probData = probabilityOfData(sequences, p, z);			
+			probData = workspace.probabilityOfData();			
 		}
 
-		result.setFirst(p);
-		result.setSecond(z);
+		result.setFirst(workspace.getMotif());
+		result.setSecond(workspace.getLocations());
 		
 		return result;
 	}
 
 
+	/**
+	 * Create a workspace whose motif holds the starting motif for EM.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param motifWidth the width of the motif
+	 * @param settings the settings of the run
+	 * @return the workspace
+	 */
+	static EMWorkspace startWorkspace(SequenceSet sequences, 
+			int motifWidth, 
+			EMSettings settings)
+	{
+		EMWorkspace workspace = new EMWorkspace(sequences, 
+												motifWidth, 
+												settings.getAlphabet(), 
+												settings.isSinglePrecision());
+		seed(workspace, settings);
+		
+		return workspace;
+	}
+	
+	/**
+	 * Set a workspace's motif to the starting motif chosen as the settings
+	 * say, and its E-Step to the settings' pruned E-Step.
+	 * 
+	 * @param workspace the workspace for the sequences and motif width
+	 * @param settings the settings of the run
+	 */
+	private static void seed(EMWorkspace workspace, EMSettings settings)
+	{
+		Motif start;
+		if (settings.getSeeds() != null)
+		{
+			start = getStartingMotif(workspace, 
+									 settings.getSeeds(), 
+									 STARTING_POINT_ITERATIONS);
+		}
+		else if (settings.getSeeding() != null)
+		{
+			start = settings.getSeeding().getStartingMotif(workspace.getSequences(), 
+														   workspace.getWidth(), 
+														   settings.getAlphabet(), 
+														   STARTING_POINT_ITERATIONS);
+		}
+		else
+		{
+			start = getStartingMotif(workspace, STARTING_POINT_ITERATIONS);
+		}
+		if (start == null)
+		{
+			throw new IllegalArgumentException("No usable seed window");
+		}
+		workspace.getMotif().copyFrom(start);
+		workspace.setPruning(settings.getPruning());
+	}
+
 	public static Motif getStartingMotif(SequenceSet sequences,
 			int width, 
 			String alphabet, 
 			int numTries)
 	{
-		Motif bestMotif = null;
+		return getStartingMotif(new EMWorkspace(sequences, width, alphabet), 
+								numTries);
+	}
+	
+	/**
+	 * Find the best starting motif by running a few iterations of EM from a
+	 * motif derived from every subsequence of the data.  All intermediate
+	 * state lives in the workspace, so evaluating a seed does not allocate.
+	 * 
+	 * @param workspace the workspace for the sequences and motif width
+	 * @param numTries the number of EM iterations to run from each seed
+	 * @return the seed motif that best explains the data
+	 */
+	public static Motif getStartingMotif(EMWorkspace workspace, int numTries)
+	{
+		SequenceSet sequences = workspace.getSequences();
+		int width = workspace.getWidth();
+		
+		Motif bestMotif = new Motif(workspace.getMotif());
+		Motif currP = workspace.getSeed();
+		boolean found = false;
 		double bestProbData = Integer.MAX_VALUE;
+		
+		SeedingEvent seeding = new SeedingEvent();
+		seeding.begin();
+		int numSeeds = 0;
 
-		for (String sequence : sequences.getSequences())
+		for (int s = 0; s < sequences.getNumSequences(); s++)
 		{
+			String sequence = sequences.getSequence(s);
 			for (int i = 0; i < sequence.length() - width; i++)
-			{				
-				String subSeq = sequence.substring(i, i + width);
-								
-				Motif currP = new Motif(subSeq, alphabet, START_PARAM);
-								
-				Motif p = new Motif(currP);
-				MotifLocations z = null;
+			{
+				if (sequences.isWindowMasked(s, i, width))
+				{
+					continue;
+				}
+				
+				SeedEvent event = new SeedEvent();
+				event.begin();
+				currP.setFromSubsequence(sequence, i, START_PARAM);
+				
+				workspace.getMotif().copyFrom(currP);
 				for (int j = 0; j < numTries; j++)
 				{
-					z = eStep(sequences, p);
-					p = mStep(sequences, z, width);
+					workspace.iterate();
 				}
 								
-				double probData = probabilityOfData(sequences, p, z);
+				double probData = workspace.probabilityOfData();
 				if (probData < bestProbData)
 				{
 					bestProbData = probData;
-					bestMotif = currP;
+					bestMotif.copyFrom(currP);
+					found = true;
 				}
+				commit(event, s, i, width, numTries, probData);
+				numSeeds++;
+			}
+		}
+		
+		commit(seeding, "exhaustive", sequences, width, numSeeds, bestProbData);
+		return found ? bestMotif : null;
+	}
+	
+	/**
+	 * Find the best starting motif among a list of candidate seed windows,
+	 * running a few iterations of EM from each.
+	 * 
+	 * @param workspace the workspace for the sequences and motif width
+	 * @param seeds the sequence index and start position of each seed window
+	 * @param numTries the number of EM iterations to run from each seed
+	 * @return the seed motif that best explains the data, or null if every
+	 * seed window is masked
+	 */
+	public static Motif getStartingMotif(EMWorkspace workspace, 
+			ArrayList<Pair<Integer, Integer>> seeds, 
+			int numTries)
+	{
+		SequenceSet sequences = workspace.getSequences();
+		int width = workspace.getWidth();
+		
+		Motif bestMotif = new Motif(workspace.getMotif());
+		Motif currP = workspace.getSeed();
+		boolean found = false;
+		double bestProbData = Integer.MAX_VALUE;
+		
+		SeedingEvent seeding = new SeedingEvent();
+		seeding.begin();
+		int numSeeds = 0;
+		
+		for (Pair<Integer, Integer> seed : seeds)
+		{
+			int s = seed.getFirst();
+			int i = seed.getSecond();
+			if (sequences.isWindowMasked(s, i, width))
+			{
+				continue;
+			}
+			
+			SeedEvent event = new SeedEvent();
+			event.begin();
+			currP.setFromSubsequence(sequences.getSequence(s), i, START_PARAM);
+			
+			workspace.getMotif().copyFrom(currP);
+			for (int j = 0; j < numTries; j++)
+			{
+				workspace.iterate();
+			}
+			
+			double probData = workspace.probabilityOfData();
+			if (probData < bestProbData)
+			{
+				bestProbData = probData;
+				bestMotif.copyFrom(currP);
+				found = true;
 			}
+			commit(event, s, i, width, numTries, probData);
+			numSeeds++;
 		}
 		
-		return bestMotif;
+		commit(seeding, "listed", sequences, width, numSeeds, bestProbData);
+		return found ? bestMotif : null;
+	}
+	
+	/**
+	 * Commit a flight recorder event for one seed, if it is being recorded.
+	 * 
+	 * @param event the event, begun before the seed's iterations
+	 * @param sequence the index of the seed's sequence
+	 * @param start the start of the seed window
+	 * @param width the width of the motif
+	 * @param iterations the number of EM iterations run from the seed
+	 * @param score the score of the seed
+	 */
+	static void commit(SeedEvent event, 
+			int sequence, 
+			int start, 
+			int width, 
+			int iterations, 
+			double score)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.sequence = sequence;
+			event.start = start;
+			event.width = width;
+			event.iterations = iterations;
+			event.score = score;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * Commit a flight recorder event for the choice of a starting motif, if
+	 * it is being recorded.
+	 * 
+	 * @param event the event, begun before the first seed
+	 * @param strategy the name of the seeding strategy
+	 * @param sequences the sequences the seeds were scored on
+	 * @param width the width of the motif
+	 * @param numSeeds the number of seeds tried
+	 * @param bestScore the score of the chosen seed
+	 */
+	static void commit(SeedingEvent event, 
+			String strategy, 
+			SequenceSet sequences, 
+			int width, 
+			int numSeeds, 
+			double bestScore)
+	{
+		event.end();
+		if (event.shouldCommit())
+		{
+			event.strategy = strategy;
+			event.numSequences = sequences.getNumSequences();
+			event.width = width;
+			event.numSeeds = numSeeds;
+			event.bestScore = bestScore;
+			event.commit();
+		}
 	}
 	
 	/**
@@ -130,12 +399,31 @@ public class MEME_OOPS
 	public static MotifLocations eStep(SequenceSet sequences, Motif p)
 	{
 		MotifLocations z = new MotifLocations(sequences, p);
-
+		eStep(sequences, p, z);
+		return z;
+	}
+	
+	/**
+	 * The Expectation-Step computed in place: overwrites the motif location 
+	 * probabilities in <code>z</code>, which must have been created for the
+	 * same sequences and motif width.
+	 * 
+	 * @param sequences the sequences comprising the data set
+	 * @param p the motif model
+	 * @param z the motif locations to overwrite
+	 * @return the log probability of the data given the motif, with a 
+	 * uniform prior on the start position in each sequence
+	 */
+	public static double eStep(SequenceSet sequences, Motif p, MotifLocations z)
+	{
 		/*
 		 *  Iterate through all sequences
 		 */
-		for (String sequence : sequences.getSequences())
+		for (int i = 0; i < sequences.getNumSequences(); i++)
 		{
+			String sequence = sequences.getSequence(i);
+			boolean masked = sequences.hasUsableMask(i, p.getWidth());
+			
 			/*
 			 *  Iterate through each sequence x_i, and calculate the probability
 			 *  of the sequence given the starting position of the motif is
@@ -144,18 +432,22 @@ public class MEME_OOPS
 			 *  P(x_i | z_i,j , motif)
 			 */
 			for (int j = 0; j < sequence.length() - p.getWidth() + 1; j++)
-			{				
+			{
+				if (masked && sequences.isWindowMasked(i, j, p.getWidth()))
+				{
+					z.setLocationProbability(i, j, 0.0);
+					continue;
+				}
+				
 				double pSequence = probabilityOfSequence(sequence, p, j);
-				z.setLocationProbability(sequence, j, pSequence);
+				z.setLocationProbability(i, j, pSequence);
 			}
 		}
 
 		/*
 		 *	Normalize the probability estimates of the hidden data  
 		 */
-		z.normalize();
-
-		return z;
+		return z.normalize();
 	}
 
 	public static Motif mStep(SequenceSet sequences, 
@@ -172,32 +464,84 @@ public class MEME_OOPS
 		 */
 		Counts counts = new Counts(sequences, z, p);
 
+		mStep(z.sumOfAllProbabilities(), p, counts);
+
+		return p;
+	}
+	
+	/**
+	 * The Maximization-Step computed in place: refreshes <code>counts</code> 
+	 * from <code>z</code> and overwrites every parameter of <code>p</code>.
+	 * 
+	 * @param sequences the sequences comprising the data set
+	 * @param z the expected motif locations
+	 * @param p the motif whose parameters are overwritten
+	 * @param counts the expected counts to reuse
+	 */
+	public static void mStep(SequenceSet sequences, 
+			MotifLocations z, 
+			Motif p, 
+			Counts counts)
+	{
+		counts.update(sequences, z, p);
+		mStep(z.sumOfAllProbabilities(), p, counts);
+	}
+	
+	/**
+	 * The Maximization-Step computed in place from sparse motif locations,
+	 * visiting only their stored start positions.
+	 * 
+	 * @param sequences the sequences comprising the data set
+	 * @param z the plausible motif locations
+	 * @param p the motif whose parameters are overwritten
+	 * @param counts the expected counts to reuse
+	 */
+	public static void mStep(SequenceSet sequences, 
+			SparseMotifLocations z, 
+			Motif p, 
+			Counts counts)
+	{
+		counts.update(sequences, z, p);
+		mStep(z.sumOfAllProbabilities(sequences), p, counts);
+	}
+	
+	/**
+	 * Calculate new motif parameters from the expected counts.
+	 * 
+	 * @param locationSum the sum of all motif location probabilities
+	 * @param p the motif whose parameters are overwritten
+	 * @param counts the expected counts
+	 */
+	static void mStep(double locationSum, Motif p, Counts counts)
+	{
+		int alphabetSize = p.getAlphabet().size();
+		double motifDenominator = locationSum + (alphabetSize * PSUEDOCOUNT);
+		double bgDenominator = counts.sumAllBgCounts() + (alphabetSize * PSUEDOCOUNT);
+		
 		/*
 		 * Calculate new parameters
 		 */
-		for (Character symbol : p.getAlphabet())
-		{				
+		for (int s = 0; s < alphabetSize; s++)
+		{
+			char symbol = p.getAlphabet().get(s);
+			
 			/*
 			 * Calculate motif probabilities
 			 */
 			for (int k = 1; k < p.getWidth() + 1; k++)
 			{
-				double numerator = counts.getCountAtPosition(symbol, k) + PSUEDOCOUNT;
-				double denominator = z.sumOfAllProbabilities() + (DNA_ALPHABET.length() * PSUEDOCOUNT);
-				double updatedProbability = numerator / denominator;
+				double numerator = counts.getCountAtPosition(s, k) + PSUEDOCOUNT;
+				double updatedProbability = numerator / motifDenominator;
 				p.setProbability(symbol, k, updatedProbability);
 			}
 
 			/*
 			 * Calculate background probabilities
 			 */
-			double numerator = counts.getBGCount(symbol) + PSUEDOCOUNT;
-			double denominator = counts.sumAllBgCounts() + (DNA_ALPHABET.length() * PSUEDOCOUNT);
-			double updatedProbability = numerator / denominator;
+			double numerator = counts.getBGCount(s) + PSUEDOCOUNT;
+			double updatedProbability = numerator / bgDenominator;
 			p.setProbability(symbol, 0, updatedProbability);
 		}
-
-		return p;
 	}
 
 
@@ -247,23 +591,89 @@ public class MEME_OOPS
 		return probability;
 	}
 	
-	public static Double probabilityOfData(SequenceSet sequences, 
+	public static double probabilityOfData(SequenceSet sequences, 
 										   Motif p, 
 										   MotifLocations z)
 	{
 		double probData = 0.0;
 		
-		for (String sequence : sequences.getSequences())
+		for (int i = 0; i < sequences.getNumSequences(); i++)
 		{
+			String sequence = sequences.getSequence(i);
 			double probSeq = 0.0;
 			for (int k = 0; k < sequence.length() - p.getWidth(); k++)
 			{
-				probSeq += probabilityOfSequence(sequence, p, k) * z.getLocationProbability(sequence, k);
+				probSeq += probabilityOfSequence(sequence, p, k) * z.getLocationProbability(i, k);
+			}
+			if (probSeq > 0.0)
+			{
+				probSeq = -Math.log(probSeq);
 			}
-			probSeq = -Math.log(probSeq);
-			probData += probSeq;
+			else
+			{
+				probSeq = -logProbabilityOfSequence(sequence, p, z, i);
+			}
+			probData += sequences.getWeight(i) * probSeq;
 		}
 		
 		return probData;
 	}
+	
+	/**
+	 * Calculate the log probability of a sequence, summed over the motif 
+	 * locations, in log space.  Used when the product of residue 
+	 * probabilities underflows, as it does for long protein sequences.
+	 * 
+	 * @param sequence the target sequence
+	 * @param p the motif model
+	 * @param z the motif locations
+	 * @param i the index of the sequence
+	 * @return the log of the sum over start positions of the probability of
+	 * the sequence times the probability of the start position
+	 */
+	private static double logProbabilityOfSequence(String sequence, 
+												   Motif p, 
+												   MotifLocations z, 
+												   int i)
+	{
+		int width = p.getWidth();
+		
+		double logBg = 0.0;
+		for (int j = 0; j < sequence.length(); j++)
+		{
+			logBg += Math.log(p.getProbability(sequence.charAt(j), 0));
+		}
+		
+		/*
+		 * The probability of the sequence with the motif at k is its 
+		 * background probability times exp(s_k), where s_k is the log-odds 
+		 * score of the window
+		 */
+		double[] scores = new double[Math.max(0, sequence.length() - width)];
+		double best = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < scores.length; k++)
+		{
+			double score = Math.log(z.getLocationProbability(i, k));
+			for (int w = 0; w < width; w++)
+			{
+				char symbol = sequence.charAt(k + w);
+				score += Math.log(p.getProbability(symbol, w + 1)) 
+						- Math.log(p.getProbability(symbol, 0));
+			}
+			scores[k] = score;
+			best = Math.max(best, score);
+		}
+		if (best == Double.NEGATIVE_INFINITY)
+		{
+			return best;
+		}
+		
+		double sum = 0.0;
+		for (int k = 0; k < scores.length; k++)
+		{
+			sum += Math.exp(scores[k] - best);
+		}
+		
+		return logBg + best + Math.log(sum);
+	}
 }
@@ -0,0 +1,360 @@
+package meme.oops;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import meme.Counts;
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+import data.SequenceStream;
+import data.WorkPartition;
+
+/**
+ * Online (stochastic) EM for the OOPS model.  Sequences are streamed from 
+ * disk in mini-batches.  The expected counts of each batch are blended into
+ * running sufficient statistics with a decreasing step size
+ * 
+ *     eta_t = (t + 2)^-kappa,   0.5 < kappa <= 1
+ *     
+ * and the motif is re-estimated from the running statistics after every 
+ * batch.  Memory depends only on the batch size and the motif width, never on
+ * the size of the input.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class OnlineEM 
+{
+	/**
+	 * The default number of sequences per mini-batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	
+	/**
+	 * The default maximum number of passes over the input
+	 */
+	public static final int DEFAULT_NUM_PASSES = 3;
+	
+	/**
+	 * The default step size decay exponent
+	 */
+	public static final double DEFAULT_KAPPA = 0.7;
+	
+	/**
+	 * The number of sequences per mini-batch
+	 */
+	private int batchSize;
+	
+	/**
+	 * The maximum number of passes over the input
+	 */
+	private int numPasses;
+	
+	/**
+	 * The step size decay exponent
+	 */
+	private double kappa;
+	
+	/**
+	 * The strategy used to choose the starting motif from the first batch,
+	 * or null to evaluate every subsequence of the first batch
+	 */
+	private SampledSeeding seeding;
+	
+	/**
+	 * Running expected count of each symbol at each motif position, per 
+	 * sequence, where position 0 holds the background count
+	 */
+	private double[][] stats;
+	
+	/**
+	 * The number of batches processed so far
+	 */
+	private int numBatches;
+	
+	/**
+	 * The total weight of the sequences, counted during the first pass, over
+	 * which the pseudocount is spread
+	 */
+	private long corpusWeight;
+	
+	/**
+	 * The mean negative log probability per sequence in each pass
+	 */
+	private double[] passScores;
+	
+	/**
+	 * Constructor using the default batch size and step size schedule
+	 */
+	public OnlineEM()
+	{
+		this(DEFAULT_BATCH_SIZE, DEFAULT_NUM_PASSES, DEFAULT_KAPPA, null);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param batchSize the number of sequences per mini-batch
+	 * @param numPasses the maximum number of passes over the input
+	 * @param kappa the step size decay exponent, in (0.5, 1]
+	 * @param seeding the strategy used to choose the starting motif from the
+	 * first batch, or null to evaluate every subsequence of the first batch
+	 */
+	public OnlineEM(int batchSize, 
+					int numPasses, 
+					double kappa, 
+					SampledSeeding seeding)
+	{
+		if (batchSize < 1 || numPasses < 1 || kappa <= 0.5 || kappa > 1.0)
+		{
+			throw new IllegalArgumentException("Invalid online EM schedule");
+		}
+		
+		this.batchSize = batchSize;
+		this.numPasses = numPasses;
+		this.kappa = kappa;
+		this.seeding = seeding;
+	}
+	
+	/**
+	 * Fit a motif to the sequences in a stream.  Stops after the maximum 
+	 * number of passes, or earlier once the mean score per sequence changes
+	 * by less than {@link MEME_OOPS#EPSILON} between passes.
+	 * 
+	 * @param stream the stream of sequences
+	 * @param width the width of the motif
+	 * @return the fitted motif, or null if the first batch holds no sequence
+	 * long enough to seed a motif
+	 * @throws IOException if the stream cannot be read
+	 */
+	public Motif run(SequenceStream stream, int width) throws IOException
+	{
+		String alphabet = MEME_OOPS.DNA_ALPHABET;
+		
+		stream.rewind();
+		SequenceSet batch = stream.nextBatch(batchSize);
+		if (batch == null || withWindows(batch, width).getNumSequences() == 0)
+		{
+			return null;
+		}
+		
+		/*
+		 * Seed the model from the first batch
+		 */
+		Motif start;
+		if (seeding == null)
+		{
+			start = MEME_OOPS.getStartingMotif(withWindows(batch, width), 
+											   width, 
+											   alphabet, 
+											   MEME_OOPS.STARTING_POINT_ITERATIONS);
+		}
+		else
+		{
+			start = seeding.getStartingMotif(withWindows(batch, width), 
+											 width, 
+											 alphabet, 
+											 MEME_OOPS.STARTING_POINT_ITERATIONS);
+		}
+		if (start == null)
+		{
+			return null;
+		}
+		
+		return run(stream, start);
+	}
+	
+	/**
+	 * Fit a motif to the sequences in a stream from a given starting motif.
+	 * 
+	 * @param stream the stream of sequences
+	 * @param start the starting motif, which is not modified
+	 * @return the fitted motif
+	 * @throws IOException if the stream cannot be read
+	 */
+	public Motif run(SequenceStream stream, Motif start) throws IOException
+	{
+		int width = start.getWidth();
+		
+		Motif p = new Motif(start);
+		stats = new double[start.getAlphabet().size()][width + 1];
+		numBatches = 0;
+		corpusWeight = 0;
+		passScores = new double[numPasses];
+		
+		for (int pass = 0; pass < numPasses; pass++)
+		{
+			double score = 0.0;
+			long numSequences = 0;
+			
+			stream.rewind();
+			SequenceSet batch = stream.nextBatch(batchSize);
+			while (batch != null)
+			{
+				SequenceSet usable = withWindows(batch, width);
+				if (usable.getNumSequences() > 0)
+				{
+					if (pass == 0)
+					{
+						corpusWeight += usable.getTotalWeight();
+					}
+					score += update(usable, p);
+					numSequences += usable.getNumSequences();
+				}
+				batch = stream.nextBatch(batchSize);
+			}
+			
+			passScores[pass] = score / numSequences;
+			
+			if (pass > 0 && Math.abs(passScores[pass] - passScores[pass - 1]) < MEME_OOPS.EPSILON)
+			{
+				passScores = Arrays.copyOf(passScores, pass + 1);
+				break;
+			}
+		}
+		
+		stream.close();
+		
+		return p;
+	}
+	
+	/**
+	 * Blend the expected counts of one batch into the running statistics and
+	 * re-estimate the motif from them.
+	 * 
+	 * @param batch the batch of sequences
+	 * @param p the motif, updated in place
+	 * @return the negative log probability of the batch under the motif 
+	 * before the update
+	 */
+	private double update(SequenceSet batch, Motif p)
+	{
+		MotifLocations z = MEME_OOPS.eStep(batch, p);
+		Counts counts = new Counts(batch, z, p);
+		double score = MEME_OOPS.probabilityOfData(batch, p, z);
+		
+		double eta = Math.pow(numBatches + 2, -kappa);
+		if (numBatches == 0)
+		{
+			eta = 1.0;
+		}
+		
+		long n = batch.getTotalWeight();
+		for (int s = 0; s < stats.length; s++)
+		{
+			for (int k = 0; k < stats[s].length; k++)
+			{
+				stats[s][k] = (1 - eta) * stats[s][k] + eta * counts.getCountAtPosition(s, k) / n;
+			}
+		}
+		
+		numBatches++;
+		
+		mStep(p);
+		
+		return score;
+	}
+	
+	/**
+	 * Re-estimate the motif from the running statistics.  The pseudocount
+	 * is spread over the sequences, since the statistics are per sequence.
+	 * Only the first pass counts them, so that the prior, and with it the
+	 * fixed point, does not depend on the number of passes.
+	 * 
+	 * @param p the motif, overwritten in place
+	 */
+	private void mStep(Motif p)
+	{
+		double pseudocount = (double) MEME_OOPS.PSUEDOCOUNT / corpusWeight;
+		int alphabetSize = stats.length;
+		
+		for (int k = 0; k < p.getWidth() + 1; k++)
+		{
+			double total = 0.0;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				total += stats[s][k];
+			}
+			
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				double probability = (stats[s][k] + pseudocount) / (total + alphabetSize * pseudocount);
+				p.setProbability(p.getAlphabet().get(s), k, probability);
+			}
+		}
+	}
+	
+	/**
+	 * Stream the sequences once more and write the most likely start 
+	 * position of the motif in each sequence, one per line, in the format of
+	 * {@link application.Main#writePositionsFile}.  A sequence too short to
+	 * hold the motif gets -1, so that the lines match those of the file.
+	 * 
+	 * @param stream the stream of sequences
+	 * @param p the fitted motif
+	 * @param out the writer for the positions
+	 * @throws IOException if the stream cannot be read
+	 */
+	public void writePositions(SequenceStream stream, Motif p, PrintWriter out) 
+			throws IOException
+	{
+		stream.rewind();
+		
+		SequenceSet batch;
+		while ((batch = stream.nextBatch(batchSize)) != null)
+		{
+			MotifLocations z = MEME_OOPS.eStep(withWindows(batch, p.getWidth()), p);
+			for (String sequence : batch.getSequences())
+			{
+				if (WorkPartition.numWindows(sequence, p.getWidth()) == 0)
+				{
+					out.write("-1\n");
+				}
+				else
+				{
+					out.write(z.maxProbabilityStartPosition(sequence) + "\n");
+				}
+			}
+		}
+		
+		stream.close();
+	}
+	
+	/**
+	 * @param batch a batch of sequences
+	 * @param width the width of the motif
+	 * @return the sequences of the batch that hold at least one window
+	 */
+	private static SequenceSet withWindows(SequenceSet batch, int width)
+	{
+		int[] indices = new int[batch.getNumSequences()];
+		int count = 0;
+		for (int i = 0; i < batch.getNumSequences(); i++)
+		{
+			if (WorkPartition.numWindows(batch.getSequence(i), width) > 0)
+			{
+				indices[count++] = i;
+			}
+		}
+		return count == indices.length ? batch : batch.subset(indices, count);
+	}
+	
+	/**
+	 * @return the number of batches processed by the last run
+	 */
+	public int getNumBatches()
+	{
+		return numBatches;
+	}
+	
+	/**
+	 * @return the mean negative log probability per sequence in each pass of
+	 * the last run
+	 */
+	public double[] getPassScores()
+	{
+		return passScores;
+	}
+}
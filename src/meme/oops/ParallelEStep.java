@@ -0,0 +1,408 @@
+package meme.oops;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import meme.Counts;
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+import data.WorkPartition;
+
+/**
+ * Runs the E-Step, and the counting half of the M-Step, in parallel over
+ * ranges of sequences of equal window count.  Windows are scored in log
+ * space as in {@link PrunedEStep}.  Each range writes only its own rows of
+ * the motif locations and accumulates its own expected counts, which are
+ * summed in range order afterwards, so results do not depend on how the
+ * ranges were scheduled.
+ *
+ * The sequences are split into several ranges per thread and the ranges
+ * run as tasks on a work-stealing pool, so a thread that finishes its
+ * ranges early takes over ranges still queued on another thread.  The
+ * sequences are encoded, and their symbol totals counted, once per set of
+ * sequences.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class ParallelEStep
+{
+	/**
+	 * The number of ranges of sequences per thread
+	 */
+	public static final int DEFAULT_PARTS_PER_THREAD = 4;
+	
+	/**
+	 * The work-stealing pool running the ranges
+	 */
+	private ForkJoinPool pool;
+	
+	/**
+	 * The number of ranges per thread
+	 */
+	private int partsPerThread;
+	
+	/**
+	 * The sequences whose encoding and partition are cached
+	 */
+	private SequenceSet encodedSequences;
+	
+	/**
+	 * The symbol indices of each sequence
+	 */
+	private byte[][] encoded;
+	
+	/**
+	 * The total weighted count of each symbol index in the sequences
+	 */
+	private double[] symbolTotals;
+	
+	/**
+	 * The ranges of sequences run as separate tasks
+	 */
+	private WorkPartition partition;
+	
+	/**
+	 * Scratch space for the window scores of each range, long enough for
+	 * the longest sequence of the range
+	 */
+	private double[][] scratch;
+	
+	/**
+	 * The log probability of the data of each range
+	 */
+	private double[] partLogLikelihoods;
+	
+	/**
+	 * The expected count of each symbol index at each motif position of
+	 * each range
+	 */
+	private double[][][] partCounts;
+	
+	/**
+	 * The summed expected counts of all ranges
+	 */
+	private double[][] totalCounts;
+	
+	/**
+	 * The natural log-odds score of each motif position and symbol index,
+	 * at index position * alphabet size + symbol
+	 */
+	private double[] logOdds;
+	
+	/**
+	 * The log background probability of each symbol index
+	 */
+	private double[] logBackground;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param numThreads the number of threads
+	 */
+	public ParallelEStep(int numThreads)
+	{
+		this(numThreads, DEFAULT_PARTS_PER_THREAD);
+	}
+	
+	/**
+	 * Constructor
+	 *
+	 * @param numThreads the number of threads
+	 * @param partsPerThread the number of ranges of sequences per thread
+	 */
+	public ParallelEStep(int numThreads, int partsPerThread)
+	{
+		if (numThreads < 1 || partsPerThread < 1)
+		{
+			throw new IllegalArgumentException("Invalid number of threads");
+		}
+		
+		this.pool = new ForkJoinPool(numThreads);
+		this.partsPerThread = partsPerThread;
+	}
+	
+	/**
+	 * The Expectation-Step.  Overwrites the motif location probabilities in
+	 * <code>z</code>.
+	 *
+	 * @param sequences the sequences comprising the data set
+	 * @param p the motif model
+	 * @param z the motif locations to overwrite
+	 * @return the log probability of the data given the motif, with a
+	 * uniform prior on the start position in each sequence
+	 */
+	public double eStep(final SequenceSet sequences, final Motif p, final MotifLocations z)
+	{
+		prepare(sequences, p);
+		
+		runParts(new PartTask()
+		{
+			@Override
+			void run(int part)
+			{
+				partLogLikelihoods[part] = eStep(sequences, p, z, part);
+			}
+		});
+		
+		double logLikelihood = 0.0;
+		for (int part = 0; part < partition.getNumParts(); part++)
+		{
+			logLikelihood += partLogLikelihoods[part];
+		}
+		return logLikelihood;
+	}
+	
+	/**
+	 * The Maximization-Step, with the expected counts accumulated in
+	 * parallel.  Overwrites <code>counts</code> and every parameter of
+	 * <code>p</code>.
+	 *
+	 * @param sequences the sequences comprising the data set
+	 * @param z the expected motif locations
+	 * @param p the motif whose parameters are overwritten
+	 * @param counts the expected counts to reuse
+	 */
+	public void mStep(final SequenceSet sequences,
+					  final MotifLocations z,
+					  final Motif p,
+					  Counts counts)
+	{
+		prepare(sequences, p);
+		
+		runParts(new PartTask()
+		{
+			@Override
+			void run(int part)
+			{
+				count(sequences, z, p.getWidth(), part);
+			}
+		});
+		
+		for (int s = 0; s < totalCounts.length; s++)
+		{
+			for (int k = 1; k < totalCounts[s].length; k++)
+			{
+				double count = 0.0;
+				for (int part = 0; part < partition.getNumParts(); part++)
+				{
+					count += partCounts[part][s][k];
+				}
+				totalCounts[s][k] = count;
+			}
+		}
+		counts.set(totalCounts, symbolTotals);
+		
+		MEME_OOPS.mStep(z.sumOfAllProbabilities(), p, counts);
+	}
+	
+	/**
+	 * @return the ranges of sequences of the last step
+	 */
+	public WorkPartition getPartition()
+	{
+		return partition;
+	}
+	
+	/**
+	 * Stop the threads of this E-Step.
+	 */
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+	
+	/**
+	 * Score every window of the sequences of one range and write their
+	 * posteriors.
+	 *
+	 * @return the log probability of the sequences of the range
+	 */
+	private double eStep(SequenceSet sequences, Motif p, MotifLocations z, int part)
+	{
+		int width = p.getWidth();
+		int alphabetSize = logBackground.length;
+		double[] scores = scratch[part];
+		double logLikelihood = 0.0;
+		
+		for (int i = partition.getStart(part); i < partition.getEnd(part); i++)
+		{
+			byte[] sequence = encoded[i];
+			int numWindows = sequence.length - width + 1;
+			boolean masked = sequences.hasUsableMask(i, width);
+			
+			double logBg = 0.0;
+			for (int j = 0; j < sequence.length; j++)
+			{
+				logBg += logBackground[sequence[j]];
+			}
+			
+			double best = Double.NEGATIVE_INFINITY;
+			for (int j = 0; j < numWindows; j++)
+			{
+				if (masked && sequences.isWindowMasked(i, j, width))
+				{
+					scores[j] = Double.NEGATIVE_INFINITY;
+					continue;
+				}
+				
+				double score = 0.0;
+				for (int k = 0, offset = 0; k < width; k++, offset += alphabetSize)
+				{
+					score += logOdds[offset + sequence[j + k]];
+				}
+				scores[j] = score;
+				best = Math.max(best, score);
+			}
+			
+			double sum = 0.0;
+			for (int j = 0; j < numWindows; j++)
+			{
+				scores[j] = Math.exp(scores[j] - best);
+				sum += scores[j];
+			}
+			for (int j = 0; j < numWindows; j++)
+			{
+				z.setLocationProbability(i, j, scores[j] / sum);
+			}
+			
+			logLikelihood += sequences.getWeight(i)
+					* (logBg + best + Math.log(sum / numWindows));
+		}
+		
+		return logLikelihood;
+	}
+	
+	/**
+	 * Accumulate the expected count of each symbol at each motif position
+	 * over the sequences of one range.
+	 */
+	private void count(SequenceSet sequences, MotifLocations z, int width, int part)
+	{
+		double[][] counts = partCounts[part];
+		for (double[] row : counts)
+		{
+			Arrays.fill(row, 0.0);
+		}
+		
+		for (int i = partition.getStart(part); i < partition.getEnd(part); i++)
+		{
+			byte[] sequence = encoded[i];
+			int weight = sequences.getWeight(i);
+			
+			for (int j = 0; j < sequence.length - width + 1; j++)
+			{
+				double probability = weight * z.getLocationProbability(i, j);
+				if (probability == 0.0)
+				{
+					continue;
+				}
+				for (int k = 0; k < width; k++)
+				{
+					counts[sequence[j + k]][k + 1] += probability;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Run a task for every range on the pool and wait for all of them.
+	 */
+	private void runParts(final PartTask task)
+	{
+		pool.invoke(new RecursiveAction()
+		{
+			@Override
+			protected void compute()
+			{
+				ArrayList<RecursiveAction> parts = new ArrayList<RecursiveAction>();
+				for (int part = 0; part < partition.getNumParts(); part++)
+				{
+					final int index = part;
+					parts.add(new RecursiveAction()
+					{
+						@Override
+						protected void compute()
+						{
+							task.run(index);
+						}
+					});
+				}
+				invokeAll(parts);
+			}
+		});
+	}
+	
+	/**
+	 * Compute the log-odds scores of the motif, and encode and partition the
+	 * sequences if they are not cached.
+	 */
+	private void prepare(SequenceSet sequences, Motif p)
+	{
+		ArrayList<Character> alphabet = p.getAlphabet();
+		int width = p.getWidth();
+		
+		if (encodedSequences != sequences
+				|| logOdds == null || logOdds.length != width * alphabet.size())
+		{
+			int numSequences = sequences.getNumSequences();
+			encoded = new byte[numSequences][];
+			symbolTotals = new double[alphabet.size()];
+			for (int i = 0; i < numSequences; i++)
+			{
+				String sequence = sequences.getSequence(i);
+				encoded[i] = new byte[sequence.length()];
+				p.getEncoding().encodeStrict(sequence, encoded[i]);
+				for (int j = 0; j < sequence.length(); j++)
+				{
+					symbolTotals[encoded[i][j]] += sequences.getWeight(i);
+				}
+			}
+			
+			partition = new WorkPartition(sequences,
+										  width,
+										  pool.getParallelism() * partsPerThread);
+			int numParts = partition.getNumParts();
+			scratch = new double[numParts][];
+			for (int part = 0; part < numParts; part++)
+			{
+				int longest = 0;
+				for (int i = partition.getStart(part); i < partition.getEnd(part); i++)
+				{
+					longest = Math.max(longest, encoded[i].length);
+				}
+				scratch[part] = new double[longest];
+			}
+			partLogLikelihoods = new double[numParts];
+			partCounts = new double[numParts][alphabet.size()][width + 1];
+			totalCounts = new double[alphabet.size()][width + 1];
+			logOdds = new double[width * alphabet.size()];
+			logBackground = new double[alphabet.size()];
+			encodedSequences = sequences;
+		}
+		
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			logBackground[s] = Math.log(p.getProbability(alphabet.get(s), 0));
+		}
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				logOdds[k * alphabet.size() + s]
+						= Math.log(p.getProbability(alphabet.get(s), k + 1)) - logBackground[s];
+			}
+		}
+	}
+	
+	/**
+	 * The work done on one range of sequences
+	 */
+	private static abstract class PartTask
+	{
+		abstract void run(int part);
+	}
+}
@@ -0,0 +1,468 @@
+package meme.oops;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import meme.Motif;
+import meme.SparseMotifLocations;
+import data.SequenceSet;
+
+/**
+ * An E-Step that prunes start positions whose posterior probability is 
+ * negligible.  Under the OOPS model the probability of a sequence given a 
+ * start position differs between start positions only through the 
+ * log-odds score of the window,
+ * 
+ *     s_j = sum_k log( p_k(x_{j+k}) / p_0(x_{j+k}) ),
+ *     
+ * so the posterior of start position j is proportional to exp(s_j).  Windows
+ * are scored left to right, and a window is abandoned as soon as its partial
+ * score plus the largest score the remaining motif positions could add falls
+ * more than the threshold below the best score seen so far.  Only the 
+ * windows within the threshold of the best are stored.
+ * 
+ * Each dropped window has a posterior below exp(-threshold) times that of 
+ * the best window, which bounds the mass dropped from each sequence.  In 
+ * measuring mode the dropped windows are scored in full as well, and the 
+ * exact dropped mass is recorded instead of the bound.
+ * 
+ * An instance is not thread-safe; each worker thread needs its own.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class PrunedEStep 
+{
+	/**
+	 * The default log-threshold below the best window at which windows are
+	 * pruned
+	 */
+	public static final double DEFAULT_LOG_THRESHOLD = 20.0;
+	
+	/**
+	 * The log-threshold below the best window at which windows are pruned
+	 */
+	private double logThreshold;
+	
+	/**
+	 * Whether to score pruned windows in full to measure the dropped mass
+	 */
+	private boolean measureError;
+	
+	/**
+	 * The maximum number of start positions stored per sequence, or 0 for 
+	 * no limit
+	 */
+	private int maxEntries;
+	
+	/**
+	 * The minimum posterior probability of a stored start position
+	 */
+	private double epsilon;
+	
+	/**
+	 * The natural log-odds score of each symbol index at each motif position
+	 */
+	private double[][] logOdds;
+	
+	/**
+	 * The log background probability of each symbol index
+	 */
+	private double[] logBackground;
+	
+	/**
+	 * The largest score that motif positions k onwards can add to a window
+	 */
+	private double[] upperBound;
+	
+	/**
+	 * Scratch space for the symbol indices of a sequence
+	 */
+	private byte[] encoded;
+	
+	/**
+	 * Scratch space for the scores of the surviving windows of a sequence
+	 */
+	private double[] scores;
+	
+	/**
+	 * Scratch space for the start positions of the surviving windows
+	 */
+	private int[] starts;
+	
+	/**
+	 * Scratch space for selecting the largest weights of a sequence
+	 */
+	private double[] sorted;
+	
+	/**
+	 * The number of windows kept by the last E-Step
+	 */
+	private long windowsKept;
+	
+	/**
+	 * The number of windows pruned by the last E-Step
+	 */
+	private long windowsPruned;
+	
+	/**
+	 * The log probability of the data given the motif of the last E-Step
+	 */
+	private double logLikelihood;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param logThreshold the natural log-threshold below the best window of
+	 * a sequence at which windows are pruned
+	 * @param measureError whether to score pruned windows in full and record
+	 * the exact dropped mass
+	 */
+	public PrunedEStep(double logThreshold, boolean measureError)
+	{
+		this(logThreshold, measureError, 0, 0.0);
+	}
+	
+	/**
+	 * Constructor for an E-Step that also caps the start positions stored 
+	 * for each sequence.  After pruning, only the <code>maxEntries</code> 
+	 * most probable start positions with posterior of at least 
+	 * <code>epsilon</code> are kept; the mass of the others is added to the
+	 * sequence's dropped mass.  A threshold of 
+	 * <code>Double.POSITIVE_INFINITY</code> disables pruning, so that every
+	 * window is scored exactly before the cap is applied.
+	 * 
+	 * @param logThreshold the natural log-threshold below the best window of
+	 * a sequence at which windows are pruned
+	 * @param measureError whether to score pruned windows in full and record
+	 * the exact dropped mass
+	 * @param maxEntries the maximum number of start positions stored per 
+	 * sequence, or 0 for no limit
+	 * @param epsilon the minimum posterior probability of a stored start
+	 * position
+	 */
+	public PrunedEStep(double logThreshold, 
+					   boolean measureError, 
+					   int maxEntries, 
+					   double epsilon)
+	{
+		if (!(logThreshold >= 0.0) || maxEntries < 0 || !(epsilon >= 0.0))
+		{
+			throw new IllegalArgumentException("Invalid pruning threshold, cap or epsilon");
+		}
+		this.logThreshold = logThreshold;
+		this.maxEntries = maxEntries;
+		this.epsilon = epsilon;
+		this.measureError = measureError;
+		this.encoded = new byte[0];
+		this.scores = new double[0];
+		this.starts = new int[0];
+		this.sorted = new double[0];
+	}
+	
+	/**
+	 * The Expectation-Step with pruning.  Overwrites the motif location
+	 * probabilities in <code>z</code>.
+	 * 
+	 * @param sequences the sequences comprising the data set
+	 * @param p the motif model
+	 * @param z the sparse motif locations to overwrite
+	 */
+	public void eStep(SequenceSet sequences, Motif p, SparseMotifLocations z)
+	{
+		prepare(p);
+		
+		int width = p.getWidth();
+		windowsKept = 0;
+		windowsPruned = 0;
+		logLikelihood = 0.0;
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			int numWindows = sequence.length() - width + 1;
+			boolean masked = sequences.hasUsableMask(i, width);
+			
+			if (scores.length < numWindows)
+			{
+				scores = new double[numWindows];
+				starts = new int[numWindows];
+				sorted = new double[numWindows];
+			}
+			encode(p, sequence);
+			
+			double best = Double.NEGATIVE_INFINITY;
+			int numSurvivors = 0;
+			int numPruned = 0;
+			double prunedMass = 0.0;
+			
+			for (int j = 0; j < numWindows; j++)
+			{
+				if (masked && sequences.isWindowMasked(i, j, width))
+				{
+					continue;
+				}
+				
+				double cutoff = best - logThreshold;
+				double score = 0.0;
+				int k = 0;
+				
+				for (; k < width; k++)
+				{
+					if (score + upperBound[k] < cutoff)
+					{
+						break;
+					}
+					score += logOdds[k][encoded[j + k]];
+				}
+				
+				if (k < width || score < cutoff)
+				{
+					numPruned++;
+					if (measureError)
+					{
+						for (; k < width; k++)
+						{
+							score += logOdds[k][encoded[j + k]];
+						}
+						prunedMass += Math.exp(score - best);
+					}
+					continue;
+				}
+				
+				if (score > best)
+				{
+					/*
+					 * Rescale the mass of windows pruned against the old 
+					 * best score
+					 */
+					prunedMass *= Math.exp(best - score);
+					best = score;
+				}
+				scores[numSurvivors] = score;
+				starts[numSurvivors] = j;
+				numSurvivors++;
+			}
+			
+			/*
+			 * Turn the survivors that are still within the threshold of the
+			 * final best window into weights relative to it
+			 */
+			double cutoff = best - logThreshold;
+			int numWeights = 0;
+			double totalWeight = 0.0;
+			for (int e = 0; e < numSurvivors; e++)
+			{
+				if (scores[e] >= cutoff)
+				{
+					scores[numWeights] = Math.exp(scores[e] - best);
+					starts[numWeights] = starts[e];
+					totalWeight += scores[numWeights];
+					numWeights++;
+				}
+				else
+				{
+					numPruned++;
+					prunedMass += Math.exp(scores[e] - best);
+				}
+			}
+			
+			if (!measureError)
+			{
+				prunedMass = numPruned * Math.exp(-logThreshold);
+			}
+			
+			/*
+			 * Apply the cap before storing, so that the storage of each
+			 * sequence only grows to the capped size
+			 */
+			double minWeight = epsilon * (totalWeight + prunedMass);
+			if (maxEntries > 0 && numWeights > maxEntries)
+			{
+				System.arraycopy(scores, 0, sorted, 0, numWeights);
+				Arrays.sort(sorted, 0, numWeights);
+				minWeight = Math.max(minWeight, sorted[numWeights - maxEntries]);
+			}
+			minWeight = Math.min(minWeight, 1.0);
+			
+			z.clear(i);
+			int stored = 0;
+			double storedWeight = 0.0;
+			for (int e = 0; e < numWeights; e++)
+			{
+				if (scores[e] >= minWeight && (maxEntries <= 0 || stored < maxEntries))
+				{
+					z.add(i, starts[e], scores[e]);
+					storedWeight += scores[e];
+					stored++;
+				}
+				else
+				{
+					numPruned++;
+					prunedMass += scores[e];
+				}
+			}
+			z.normalize(i, prunedMass);
+			
+			/*
+			 * The probability of the sequence is its background probability
+			 * times the mean over windows of exp(s_j)
+			 */
+			double logBg = 0.0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				logBg += logBackground[encoded[j]];
+			}
+			logLikelihood += sequences.getWeight(i) 
+					* (logBg + best + Math.log((storedWeight + prunedMass) / numWindows));
+			
+			windowsKept += z.getNumEntries(i);
+			windowsPruned += numPruned;
+		}
+	}
+	
+	/**
+	 * Calculate the negative log probability of the data as in 
+	 * {@link MEME_OOPS#probabilityOfData}, summing over the stored start
+	 * positions of each sequence only.
+	 * 
+	 * @param sequences the sequences comprising the data set
+	 * @param p the motif model
+	 * @param z the sparse motif locations
+	 * @return the negative log probability of the data
+	 */
+	public double probabilityOfData(SequenceSet sequences, 
+									Motif p, 
+									SparseMotifLocations z)
+	{
+		prepare(p);
+		
+		double probData = 0.0;
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			encode(p, sequence);
+			
+			/*
+			 * The log probability of the whole sequence under the background
+			 */
+			double logBg = 0.0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				logBg += logBackground[encoded[j]];
+			}
+			
+			/*
+			 * Sum the stored start positions relative to the first one to 
+			 * avoid underflow
+			 */
+			double reference = Double.NaN;
+			double sum = 0.0;
+			for (int e = 0; e < z.getNumEntries(i); e++)
+			{
+				int start = z.getPosition(i, e);
+				double score = 0.0;
+				for (int k = 0; k < p.getWidth(); k++)
+				{
+					score += logOdds[k][encoded[start + k]];
+				}
+				
+				if (Double.isNaN(reference))
+				{
+					reference = score;
+				}
+				sum += z.getProbability(i, e) * Math.exp(score - reference);
+			}
+			
+			probData -= sequences.getWeight(i) * (logBg + reference + Math.log(sum));
+		}
+		
+		return probData;
+	}
+	
+	/**
+	 * @return the number of windows kept by the last E-Step
+	 */
+	public long getWindowsKept()
+	{
+		return windowsKept;
+	}
+	
+	/**
+	 * @return the log probability of the data given the motif of the last
+	 * E-Step, with a uniform prior on the start position in each sequence.
+	 * The mass of pruned windows is included as recorded in the dropped mass,
+	 * which is exact in measuring mode and an upper bound otherwise.
+	 */
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+	
+	/**
+	 * @return the number of windows pruned by the last E-Step
+	 */
+	public long getWindowsPruned()
+	{
+		return windowsPruned;
+	}
+	
+	/**
+	 * Encode a sequence into the scratch space.
+	 * 
+	 * @param p the motif model
+	 * @param sequence the sequence
+	 */
+	private void encode(Motif p, String sequence)
+	{
+		if (encoded.length < sequence.length())
+		{
+			encoded = new byte[sequence.length()];
+		}
+		p.getEncoding().encodeStrict(sequence, encoded);
+	}
+	
+	/**
+	 * Compute the log-odds and bound tables of a motif.  The tables are only
+	 * allocated when the motif width or alphabet size changes.
+	 * 
+	 * @param p the motif model
+	 */
+	private void prepare(Motif p)
+	{
+		ArrayList<Character> alphabet = p.getAlphabet();
+		int width = p.getWidth();
+		
+		if (logOdds == null || logOdds.length != width || logBackground.length != alphabet.size())
+		{
+			logOdds = new double[width][alphabet.size()];
+			logBackground = new double[alphabet.size()];
+			upperBound = new double[width + 1];
+		}
+		
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			logBackground[s] = Math.log(p.getProbability(alphabet.get(s), 0));
+		}
+		
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				logOdds[k][s] = Math.log(p.getProbability(alphabet.get(s), k + 1)) - logBackground[s];
+			}
+		}
+		
+		upperBound[width] = 0.0;
+		for (int k = width - 1; k >= 0; k--)
+		{
+			double max = Double.NEGATIVE_INFINITY;
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				max = Math.max(max, logOdds[k][s]);
+			}
+			upperBound[k] = upperBound[k + 1] + max;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package meme.oops;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+import data.WorkPartition;
+import pair.Pair;
+
+/**
+ * Runs several independent EM trajectories concurrently and keeps the one
+ * that best explains the data.  Each restart starts from a motif derived
+ * from a different randomly chosen subsequence and owns its own
+ * {@link EMWorkspace}; the sequences are shared by all restarts and only
+ * read.
+ *
+ * Restarts publish their log probability of the data after every
+ * iteration.  A restart is stopped early when, after a minimum number of
+ * iterations, it trails the best restart by more than a margin per unit of
+ * sequence weight and its last improvement is too small to close the gap
+ * within a fixed number of further iterations.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class RestartEnsemble
+{
+	/**
+	 * The default number of restarts
+	 */
+	public static final int DEFAULT_NUM_RESTARTS = 8;
+	
+	/**
+	 * The default log probability, per unit of sequence weight, by which a
+	 * restart must trail the best one before it may be stopped
+	 */
+	public static final double DEFAULT_STOP_MARGIN = 0.1;
+	
+	/**
+	 * The number of iterations every restart runs before it may be stopped
+	 */
+	private static final int MIN_ITERATIONS = 10;
+	
+	/**
+	 * The number of iterations at its last rate of improvement within which
+	 * a trailing restart must be able to reach the best one to keep running
+	 */
+	private static final int PATIENCE = 100;
+	
+	/**
+	 * The maximum number of iterations of each restart
+	 */
+	private static final int MAX_ITERATIONS = 1000;
+	
+	/**
+	 * The number of restarts
+	 */
+	private int numRestarts;
+	
+	/**
+	 * The number of threads running restarts
+	 */
+	private int numThreads;
+	
+	/**
+	 * The log probability, per unit of sequence weight, by which a restart
+	 * must trail the best one before it may be stopped
+	 */
+	private double stopMargin;
+	
+	/**
+	 * The source of randomness for choosing starting motifs
+	 */
+	private Random rand;
+	
+	/**
+	 * Whether the restarts store the motif locations and compute the full 
+	 * E-Step in single precision
+	 */
+	private boolean singlePrecision;
+	
+	/**
+	 * The highest log probability of the data published by any restart of
+	 * the current run
+	 */
+	private double bestLogLikelihood;
+	
+	/**
+	 * The summary of the most recent run
+	 */
+	private RestartSummary summary;
+	
+	/**
+	 * Constructor using the default number of restarts and stopping margin,
+	 * with one thread per available processor
+	 *
+	 * @param seed the random seed used to choose starting motifs
+	 */
+	public RestartEnsemble(long seed)
+	{
+		this(DEFAULT_NUM_RESTARTS,
+			 Runtime.getRuntime().availableProcessors(),
+			 DEFAULT_STOP_MARGIN,
+			 seed);
+	}
+	
+	/**
+	 * Constructor
+	 *
+	 * @param numRestarts the number of restarts
+	 * @param numThreads the number of threads running restarts
+	 * @param stopMargin the log probability, per unit of sequence weight, by
+	 * which a restart must trail the best one before it may be stopped;
+	 * infinity disables early stopping
+	 * @param seed the random seed used to choose starting motifs
+	 */
+	public RestartEnsemble(int numRestarts,
+						   int numThreads,
+						   double stopMargin,
+						   long seed)
+	{
+		if (numRestarts < 1 || numThreads < 1 || !(stopMargin >= 0.0))
+		{
+			throw new IllegalArgumentException("Invalid restart schedule");
+		}
+		
+		this.numRestarts = numRestarts;
+		this.numThreads = numThreads;
+		this.stopMargin = stopMargin;
+		this.rand = new Random(seed);
+	}
+	
+	/**
+	 * Run every restart and return the motif and motif locations of the one
+	 * with the highest probability of the data.
+	 *
+	 * @param sequences the sequences in the data set
+	 * @param motifWidth the width of the motif
+	 * @return the motif model and motif locations of the best restart, or
+	 * null if no sequence is long enough to hold a motif
+	 */
+	public Pair<Motif, MotifLocations> run(SequenceSet sequences, int motifWidth)
+	{
+		return run(sequences, motifWidth, MEME_OOPS.DNA_ALPHABET);
+	}
+	
+	/**
+	 * Run every restart on sequences over any alphabet.
+	 *
+	 * @param sequences the sequences in the data set
+	 * @param motifWidth the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @return the motif model and motif locations of the best restart, or
+	 * null if no sequence is long enough to hold a motif
+	 */
+	public Pair<Motif, MotifLocations> run(final SequenceSet sequences,
+										   final int motifWidth,
+										   final String alphabet)
+	{
+		summary = new RestartSummary();
+		bestLogLikelihood = Double.NEGATIVE_INFINITY;
+		
+		final ArrayList<Pair<Integer, Integer>> seeds = chooseSeeds(sequences, motifWidth);
+		if (seeds.isEmpty())
+		{
+			return null;
+		}
+		
+		final double margin = stopMargin * sequences.getTotalWeight();
+		final EMWorkspace[] workspaces = new EMWorkspace[seeds.size()];
+		final int[] iterations = new int[seeds.size()];
+		final boolean[] stopped = new boolean[seeds.size()];
+		
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+		
+		try
+		{
+			for (int r = 0; r < seeds.size(); r++)
+			{
+				final int restart = r;
+				pending.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Pair<Integer, Integer> seed = seeds.get(restart);
+						EMWorkspace workspace = new EMWorkspace(sequences,
+																motifWidth,
+																alphabet,
+																singlePrecision);
+						workspace.getMotif().setFromSubsequence(
+								sequences.getSequence(seed.getFirst()),
+								seed.getSecond(),
+								MEME_OOPS.START_PARAM);
+						
+						workspaces[restart] = workspace;
+						stopped[restart] = runTrajectory(workspace, margin, iterations, restart);
+					}
+				}));
+			}
+			
+			for (Future<?> future : pending)
+			{
+				future.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		/*
+		 * Summarize the restarts and keep the best
+		 */
+		int best = 0;
+		for (int r = 0; r < seeds.size(); r++)
+		{
+			Pair<Integer, Integer> seed = seeds.get(r);
+			String sequence = sequences.getSequence(seed.getFirst());
+			summary.addRestart(sequence.substring(seed.getSecond(), seed.getSecond() + motifWidth),
+							   iterations[r],
+							   workspaces[r].getLogLikelihood(),
+							   stopped[r]);
+			
+			if (workspaces[r].getLogLikelihood() > workspaces[best].getLogLikelihood())
+			{
+				best = r;
+			}
+		}
+		summary.setBest(best);
+		
+		return new Pair<Motif, MotifLocations>(workspaces[best].getMotif(),
+											   workspaces[best].getLocations());
+	}
+	
+	/**
+	 * @param singlePrecision whether the restarts store the motif locations
+	 * and compute the full E-Step in single precision
+	 */
+	public void setSinglePrecision(boolean singlePrecision)
+	{
+		this.singlePrecision = singlePrecision;
+	}
+	
+	/**
+	 * @return the summary of the most recent call to
+	 * {@link #run(SequenceSet, int)}
+	 */
+	public RestartSummary getSummary()
+	{
+		return summary;
+	}
+	
+	/**
+	 * Run EM in a workspace until it converges or trails the best restart
+	 * too far.  On return the motif locations match the final motif, and the
+	 * workspace's log likelihood is that of the final motif.
+	 *
+	 * @param workspace the workspace holding the starting motif
+	 * @param margin the log probability by which the restart must trail the
+	 * best one before it may be stopped
+	 * @param iterations the iteration count of every restart, of which the
+	 * entry for this restart is written
+	 * @param restart the index of this restart
+	 * @return whether the restart was stopped before converging
+	 */
+	private boolean runTrajectory(EMWorkspace workspace,
+								  double margin,
+								  int[] iterations,
+								  int restart)
+	{
+		double prevLogLikelihood = Double.NEGATIVE_INFINITY;
+		
+		for (int i = 1; i <= MAX_ITERATIONS; i++)
+		{
+			workspace.iterate();
+			iterations[restart] = i;
+			
+			double logLikelihood = workspace.getLogLikelihood();
+			double best = publish(logLikelihood);
+			
+			if (Math.abs(logLikelihood - prevLogLikelihood) < MEME_OOPS.EPSILON)
+			{
+				break;
+			}
+			
+			double gap = best - logLikelihood;
+			double improvement = logLikelihood - prevLogLikelihood;
+			if (i >= MIN_ITERATIONS && gap > margin && improvement * PATIENCE < gap)
+			{
+				return true;
+			}
+			
+			prevLogLikelihood = logLikelihood;
+		}
+		
+		workspace.expect();
+		publish(workspace.getLogLikelihood());
+		return false;
+	}
+	
+	/**
+	 * Record a restart's log probability of the data.
+	 *
+	 * @param logLikelihood the log probability of the data of a restart
+	 * @return the highest log probability of the data of any restart so far
+	 */
+	private synchronized double publish(double logLikelihood)
+	{
+		bestLogLikelihood = Math.max(bestLogLikelihood, logLikelihood);
+		return bestLogLikelihood;
+	}
+	
+	/**
+	 * Choose distinct, unmasked subsequences from which to derive the
+	 * starting motif of each restart.
+	 *
+	 * @return the sequence index and start position of each subsequence
+	 */
+	private ArrayList<Pair<Integer, Integer>> chooseSeeds(SequenceSet sequences,
+														  int width)
+	{
+		long numWindows = 0;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			numWindows += WorkPartition.numWindows(sequences.getSequence(i), width);
+		}
+		
+		ArrayList<Pair<Integer, Integer>> seeds = new ArrayList<Pair<Integer, Integer>>();
+		if (numWindows == 0)
+		{
+			return seeds;
+		}
+		
+		/*
+		 * Draw windows uniformly, giving up on filling every restart when
+		 * most windows are masked or already taken
+		 */
+		ArrayList<String> taken = new ArrayList<String>();
+		int attempts = 0;
+		while (seeds.size() < numRestarts && attempts < 100 * numRestarts)
+		{
+			attempts++;
+			long index = (long) (rand.nextDouble() * numWindows);
+			
+			int s = 0;
+			while (index >= WorkPartition.numWindows(sequences.getSequence(s), width))
+			{
+				index -= WorkPartition.numWindows(sequences.getSequence(s), width);
+				s++;
+			}
+			int w = (int) index;
+			
+			String window = sequences.getSequence(s).substring(w, w + width);
+			if (sequences.isWindowMasked(s, w, width) || taken.contains(window))
+			{
+				continue;
+			}
+			
+			taken.add(window);
+			seeds.add(new Pair<Integer, Integer>(s, w));
+		}
+		
+		return seeds;
+	}
+}
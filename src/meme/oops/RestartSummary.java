@@ -0,0 +1,130 @@
+package meme.oops;
+
+import java.util.ArrayList;
+
+/**
+ * Summarizes a run of {@link RestartEnsemble}: for each restart the
+ * subsequence its starting motif was derived from, the number of EM
+ * iterations it ran, its final log probability of the data and whether it
+ * converged or was stopped early for trailing the best restart.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class RestartSummary
+{
+	/**
+	 * The subsequence each restart's starting motif was derived from
+	 */
+	private ArrayList<String> seeds = new ArrayList<String>();
+	
+	/**
+	 * The number of EM iterations run by each restart
+	 */
+	private ArrayList<Integer> iterations = new ArrayList<Integer>();
+	
+	/**
+	 * The final log probability of the data of each restart
+	 */
+	private ArrayList<Double> logLikelihoods = new ArrayList<Double>();
+	
+	/**
+	 * Whether each restart was stopped before converging
+	 */
+	private ArrayList<Boolean> stopped = new ArrayList<Boolean>();
+	
+	/**
+	 * The index of the best restart
+	 */
+	private int best = -1;
+	
+	void addRestart(String seed,
+					int numIterations,
+					double logLikelihood,
+					boolean stoppedEarly)
+	{
+		seeds.add(seed);
+		iterations.add(numIterations);
+		logLikelihoods.add(logLikelihood);
+		stopped.add(stoppedEarly);
+	}
+	
+	void setBest(int best)
+	{
+		this.best = best;
+	}
+	
+	/**
+	 * @return the number of restarts
+	 */
+	public int getNumRestarts()
+	{
+		return seeds.size();
+	}
+	
+	/**
+	 * @return the index of the restart whose motif was returned
+	 */
+	public int getBest()
+	{
+		return best;
+	}
+	
+	/**
+	 * @return the number of restarts stopped before converging
+	 */
+	public int getNumStoppedEarly()
+	{
+		int total = 0;
+		for (Boolean s : stopped)
+		{
+			if (s)
+			{
+				total++;
+			}
+		}
+		return total;
+	}
+	
+	/**
+	 * @return the total number of EM iterations over all restarts
+	 */
+	public int getTotalIterations()
+	{
+		int total = 0;
+		for (Integer count : iterations)
+		{
+			total += count;
+		}
+		return total;
+	}
+	
+	/**
+	 * @param restart the index of a restart
+	 * @return the final log probability of the data of the restart
+	 */
+	public double getLogLikelihood(int restart)
+	{
+		return logLikelihoods.get(restart);
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		
+		result.append("Restart\tSeed\tIterations\tLog likelihood\tStatus\n");
+		for (int i = 0; i < seeds.size(); i++)
+		{
+			String status = stopped.get(i) ? "stopped" : "converged";
+			if (i == best)
+			{
+				status += " (best)";
+			}
+			result.append(i + "\t" + seeds.get(i) + "\t" + iterations.get(i) + "\t"
+						  + logLikelihoods.get(i) + "\t" + status + "\n");
+		}
+		
+		return result.toString();
+	}
+}
@@ -0,0 +1,395 @@
+package meme.oops;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import meme.Motif;
+import data.SequenceSet;
+import events.SeedEvent;
+import events.SeedingEvent;
+
+/**
+ * Chooses the starting motif for EM by scoring candidate seeds on a random
+ * subsample of the sequences rather than on the full data set.  Every 
+ * subsequence of the initial sample is a candidate.  After each round the
+ * best fraction of candidates survives and is rescored on a sample that has
+ * grown by the growth factor.  Only the final winners are evaluated on the
+ * full data set, and the best of those is returned.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class SampledSeeding 
+{
+	/**
+	 * The default number of sequences in the first sample
+	 */
+	public static final int DEFAULT_SAMPLE_SIZE = 100;
+	
+	/**
+	 * The default factor by which the sample grows between rounds
+	 */
+	public static final double DEFAULT_GROWTH_FACTOR = 4.0;
+	
+	/**
+	 * The default number of rounds of scoring on samples
+	 */
+	public static final int DEFAULT_NUM_ROUNDS = 3;
+	
+	/**
+	 * The default fraction of candidates that survive each round
+	 */
+	public static final double DEFAULT_SURVIVOR_FRACTION = 0.05;
+	
+	/**
+	 * The default number of winners evaluated on the full data set
+	 */
+	public static final int DEFAULT_NUM_WINNERS = 5;
+	
+	/**
+	 * The number of sequences in the first sample
+	 */
+	private int sampleSize;
+	
+	/**
+	 * The factor by which the sample grows between rounds
+	 */
+	private double growthFactor;
+	
+	/**
+	 * The number of rounds of scoring on samples
+	 */
+	private int numRounds;
+	
+	/**
+	 * The fraction of candidates that survive each round
+	 */
+	private double survivorFraction;
+	
+	/**
+	 * The number of winners evaluated on the full data set
+	 */
+	private int numWinners;
+	
+	/**
+	 * The source of randomness for drawing samples
+	 */
+	private Random rand;
+	
+	/**
+	 * The report of the most recent seeding run
+	 */
+	private SeedingReport report;
+	
+	/**
+	 * Constructor using the default sample size and growth schedule
+	 * 
+	 * @param seed the random seed used to draw samples
+	 */
+	public SampledSeeding(long seed)
+	{
+		this(DEFAULT_SAMPLE_SIZE, 
+			 DEFAULT_GROWTH_FACTOR, 
+			 DEFAULT_NUM_ROUNDS, 
+			 DEFAULT_SURVIVOR_FRACTION, 
+			 DEFAULT_NUM_WINNERS, 
+			 seed);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param sampleSize the number of sequences in the first sample
+	 * @param growthFactor the factor by which the sample grows between rounds;
+	 * 1.0 keeps the sample fixed
+	 * @param numRounds the number of rounds of scoring on samples
+	 * @param survivorFraction the fraction of candidates that survive each 
+	 * round
+	 * @param numWinners the number of candidates evaluated on the full data
+	 * set
+	 * @param seed the random seed used to draw samples
+	 */
+	public SampledSeeding(int sampleSize, 
+						  double growthFactor, 
+						  int numRounds, 
+						  double survivorFraction, 
+						  int numWinners, 
+						  long seed)
+	{
+		if (sampleSize < 1 || growthFactor < 1.0 || numRounds < 1 
+				|| survivorFraction <= 0.0 || survivorFraction > 1.0 
+				|| numWinners < 1)
+		{
+			throw new IllegalArgumentException("Invalid sampling schedule");
+		}
+		
+		this.sampleSize = sampleSize;
+		this.growthFactor = growthFactor;
+		this.numRounds = numRounds;
+		this.survivorFraction = survivorFraction;
+		this.numWinners = numWinners;
+		this.rand = new Random(seed);
+	}
+	
+	/**
+	 * Find a starting motif by scoring candidate seeds on growing samples of
+	 * the sequences and evaluating only the winners on all of them.
+	 * 
+	 * @param sequences the sequences in the data set
+	 * @param width the width of the motif
+	 * @param alphabet the String encoding the alphabet
+	 * @param numTries the number of EM iterations to run from each seed
+	 * @return the winning seed motif, or null if no sequence is long enough
+	 * to hold a seed
+	 */
+	public Motif getStartingMotif(SequenceSet sequences, 
+								  int width, 
+								  String alphabet, 
+								  int numTries)
+	{
+		int numSequences = sequences.getNumSequences();
+		report = new SeedingReport();
+		
+		SeedingEvent seeding = new SeedingEvent();
+		seeding.begin();
+		int numSeeds = 0;
+		
+		/*
+		 * Shuffle the sequence indices so that every sample is a prefix of 
+		 * the next, larger one
+		 */
+		int[] order = new int[numSequences];
+		for (int i = 0; i < numSequences; i++)
+		{
+			order[i] = i;
+		}
+		for (int i = numSequences - 1; i > 0; i--)
+		{
+			int j = rand.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+		
+		/*
+		 * Every subsequence of the first sample is a candidate seed, stored 
+		 * as the index of its sequence and its start position
+		 */
+		int n = Math.min(sampleSize, numSequences);
+		int numCandidates = 0;
+		for (int i = 0; i < n; i++)
+		{
+			String sequence = sequences.getSequence(order[i]);
+			for (int j = 0; j < sequence.length() - width; j++)
+			{
+				if (!sequences.isWindowMasked(order[i], j, width))
+				{
+					numCandidates++;
+				}
+			}
+		}
+		if (numCandidates == 0)
+		{
+			return null;
+		}
+		
+		int[] candidateSequence = new int[numCandidates];
+		int[] candidateStart = new int[numCandidates];
+		double[] scores = new double[numCandidates];
+		
+		int c = 0;
+		for (int i = 0; i < n; i++)
+		{
+			String sequence = sequences.getSequence(order[i]);
+			for (int j = 0; j < sequence.length() - width; j++)
+			{
+				if (sequences.isWindowMasked(order[i], j, width))
+				{
+					continue;
+				}
+				candidateSequence[c] = order[i];
+				candidateStart[c] = j;
+				c++;
+			}
+		}
+		
+		/*
+		 * Score the surviving candidates on samples of increasing size
+		 */
+		for (int round = 0; round < numRounds; round++)
+		{
+			SequenceSet sample = sequences.subset(order, n);
+			EMWorkspace workspace = new EMWorkspace(sample, width, alphabet);
+			
+			for (int k = 0; k < numCandidates; k++)
+			{
+				scores[k] = scoreSeed(workspace, 
+									  sequences, 
+									  candidateSequence[k], 
+									  candidateStart[k], 
+									  numTries);
+			}
+			numSeeds += numCandidates;
+			
+			report.addRound(n, numCandidates);
+			
+			int survivors = (round == numRounds - 1) 
+					? Math.min(numWinners, numCandidates)
+					: Math.max(numWinners, (int) Math.ceil(numCandidates * survivorFraction));
+			survivors = Math.min(survivors, numCandidates);
+			
+			selectBest(candidateSequence, candidateStart, scores, numCandidates, survivors);
+			numCandidates = survivors;
+			
+			if (n == numSequences && round < numRounds - 1)
+			{
+				/*
+				 * The sample already holds every sequence, so further rounds 
+				 * would only repeat the same scores
+				 */
+				numCandidates = Math.min(numWinners, numCandidates);
+				break;
+			}
+			n = (int) Math.min(numSequences, Math.ceil(n * growthFactor));
+		}
+		
+		/*
+		 * Evaluate the winners on the full data set.  The sample score is 
+		 * scaled up to the full data set to estimate the full-data score.
+		 */
+		double sampledWeight = sequences.subset(order, report.getFinalSampleSize()).getTotalWeight();
+		double totalWeight = sequences.getTotalWeight();
+		EMWorkspace workspace = new EMWorkspace(sequences, width, alphabet);
+		Motif bestMotif = new Motif(width, alphabet);
+		double bestProbData = Double.MAX_VALUE;
+		
+		for (int k = 0; k < numCandidates; k++)
+		{
+			String sequence = sequences.getSequence(candidateSequence[k]);
+			double probData = scoreSeed(workspace, 
+										sequences, 
+										candidateSequence[k], 
+										candidateStart[k], 
+										numTries);
+			double estimate = scores[k] * totalWeight / sampledWeight;
+			
+			report.addWinner(sequence.substring(candidateStart[k], candidateStart[k] + width), 
+							 estimate, 
+							 probData);
+			
+			if (probData < bestProbData)
+			{
+				bestProbData = probData;
+				bestMotif.setFromSubsequence(sequence, 
+											 candidateStart[k], 
+											 MEME_OOPS.START_PARAM);
+			}
+		}
+		numSeeds += numCandidates;
+		
+		MEME_OOPS.commit(seeding, "sampled", sequences, width, numSeeds, bestProbData);
+		return bestMotif;
+	}
+	
+	/**
+	 * @return the report of the most recent call to 
+	 * {@link #getStartingMotif(SequenceSet, int, String, int)}
+	 */
+	public SeedingReport getReport()
+	{
+		return report;
+	}
+	
+	/**
+	 * Run a few iterations of EM from the seed derived from a subsequence.
+	 * 
+	 * @param workspace the workspace for the sequences being scored against
+	 * @param sequences the sequences containing the seed
+	 * @param index the index of the sequence containing the seed
+	 * @param start the start of the seed in the sequence
+	 * @param numTries the number of EM iterations to run
+	 * @return the negative log probability of the data after the iterations
+	 */
+	private static double scoreSeed(EMWorkspace workspace, 
+									SequenceSet sequences, 
+									int index, 
+									int start, 
+									int numTries)
+	{
+		SeedEvent event = new SeedEvent();
+		event.begin();
+		
+		workspace.getMotif().setFromSubsequence(sequences.getSequence(index), 
+												start, 
+												MEME_OOPS.START_PARAM);
+		for (int j = 0; j < numTries; j++)
+		{
+			workspace.iterate();
+		}
+		double probData = workspace.probabilityOfData();
+		
+		MEME_OOPS.commit(event, index, start, workspace.getWidth(), numTries, probData);
+		return probData;
+	}
+	
+	/**
+	 * Partially sort the candidates so that the <code>k</code> lowest scoring
+	 * ones occupy the first <code>k</code> entries of each array, in 
+	 * increasing order of score.  A heap of the best <code>k</code> seen so 
+	 * far makes this O(n log k) rather than O(n k).  Of equally scoring 
+	 * candidates, the earlier one is kept.
+	 */
+	private static void selectBest(int[] candidateSequence, 
+								   int[] candidateStart, 
+								   final double[] scores, 
+								   int numCandidates, 
+								   int k)
+	{
+		if (k <= 0)
+		{
+			return;
+		}
+		
+		/*
+		 * Order candidates from worst to best, so that the worst of the kept
+		 * candidates is at the head of the heap
+		 */
+		Comparator<Integer> worstFirst = new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer a, Integer b)
+			{
+				int order = Double.compare(scores[b], scores[a]);
+				return order != 0 ? order : Integer.compare(b, a);
+			}
+		};
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(k, worstFirst);
+		for (int j = 0; j < numCandidates; j++)
+		{
+			if (best.size() < k)
+			{
+				best.add(j);
+			}
+			else if (worstFirst.compare(j, best.peek()) > 0)
+			{
+				best.poll();
+				best.add(j);
+			}
+		}
+		
+		double[] bestScores = new double[k];
+		int[] bestSequence = new int[k];
+		int[] bestStart = new int[k];
+		for (int i = k - 1; i >= 0; i--)
+		{
+			int j = best.poll();
+			bestScores[i] = scores[j];
+			bestSequence[i] = candidateSequence[j];
+			bestStart[i] = candidateStart[j];
+		}
+		System.arraycopy(bestScores, 0, scores, 0, k);
+		System.arraycopy(bestSequence, 0, candidateSequence, 0, k);
+		System.arraycopy(bestStart, 0, candidateStart, 0, k);
+	}
+}
@@ -0,0 +1,120 @@
+package meme.oops;
+
+import java.util.ArrayList;
+
+/**
+ * Summarizes a run of {@link SampledSeeding}: the sample size and number of
+ * candidates scored in each round, and for each winning seed the full-data
+ * score estimated from the sample next to the score actually obtained on the
+ * full data set.  Scores are negative log probabilities of the data, as 
+ * returned by {@link MEME_OOPS#probabilityOfData}.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class SeedingReport 
+{
+	/**
+	 * The number of sequences in the sample of each round
+	 */
+	private ArrayList<Integer> sampleSizes = new ArrayList<Integer>();
+	
+	/**
+	 * The number of candidates scored in each round
+	 */
+	private ArrayList<Integer> candidateCounts = new ArrayList<Integer>();
+	
+	/**
+	 * The subsequence each winning seed was derived from
+	 */
+	private ArrayList<String> winners = new ArrayList<String>();
+	
+	/**
+	 * The full-data score of each winner estimated from the final sample
+	 */
+	private ArrayList<Double> estimatedScores = new ArrayList<Double>();
+	
+	/**
+	 * The score of each winner on the full data set
+	 */
+	private ArrayList<Double> fullScores = new ArrayList<Double>();
+	
+	void addRound(int sampleSize, int numCandidates)
+	{
+		sampleSizes.add(sampleSize);
+		candidateCounts.add(numCandidates);
+	}
+	
+	void addWinner(String subsequence, double estimatedScore, double fullScore)
+	{
+		winners.add(subsequence);
+		estimatedScores.add(estimatedScore);
+		fullScores.add(fullScore);
+	}
+	
+	/**
+	 * @return the number of sequences in the sample of the last round
+	 */
+	public int getFinalSampleSize()
+	{
+		return sampleSizes.get(sampleSizes.size() - 1);
+	}
+	
+	/**
+	 * @return the total number of seed evaluations made on samples
+	 */
+	public int getNumSampledEvaluations()
+	{
+		int total = 0;
+		for (Integer count : candidateCounts)
+		{
+			total += count;
+		}
+		return total;
+	}
+	
+	/**
+	 * @return the number of seed evaluations made on the full data set
+	 */
+	public int getNumFullEvaluations()
+	{
+		return winners.size();
+	}
+	
+	/**
+	 * @return the largest absolute difference, over all winners, between the
+	 * estimated and the actual full-data score
+	 */
+	public double getMaxScoreError()
+	{
+		double max = 0.0;
+		for (int i = 0; i < winners.size(); i++)
+		{
+			max = Math.max(max, Math.abs(estimatedScores.get(i) - fullScores.get(i)));
+		}
+		return max;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		
+		result.append("Round\tSample size\tCandidates\n");
+		for (int i = 0; i < sampleSizes.size(); i++)
+		{
+			result.append(i + "\t" + sampleSizes.get(i) + "\t" + candidateCounts.get(i) + "\n");
+		}
+		
+		result.append("\nWinner\tEstimated\tFull data\tDifference\n");
+		for (int i = 0; i < winners.size(); i++)
+		{
+			double estimated = estimatedScores.get(i);
+			double full = fullScores.get(i);
+			result.append(winners.get(i) + "\t" + estimated + "\t" + full + "\t" 
+						  + (estimated - full) + "\n");
+		}
+		
+		return result.toString();
+	}
+}
@@ -0,0 +1,165 @@
+package meme.oops;
+
+import java.util.ArrayList;
+
+import meme.Motif;
+import meme.MotifLocations;
+import data.SequenceSet;
+
+/**
+ * An E-Step computed in log space in single precision, for motif locations
+ * stored as floats.  As in {@link PrunedEStep}, the posterior of start
+ * position j is proportional to exp(s_j), where
+ *
+ *     s_j = sum_k log( p_k(x_{j+k}) / p_0(x_{j+k}) )
+ *
+ * is the log-odds score of the window.  The scores are summed in floats
+ * from a float log-odds matrix and written straight into the sequence's
+ * row of <code>z</code>, which is then turned into posteriors in place.
+ * Row sums and the log probability of the data are accumulated in double.
+ *
+ * An instance is not thread-safe; each worker thread needs its own.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class SinglePrecisionEStep
+{
+	/**
+	 * The natural log-odds score of each motif position and symbol index,
+	 * at index position * alphabet size + symbol
+	 */
+	private float[] logOdds;
+	
+	/**
+	 * The log background probability of each symbol index
+	 */
+	private double[] logBackground;
+	
+	/**
+	 * Scratch space for the symbol indices of a sequence
+	 */
+	private byte[] encoded;
+	
+	/**
+	 * Constructor
+	 */
+	public SinglePrecisionEStep()
+	{
+		this.encoded = new byte[0];
+	}
+	
+	/**
+	 * The Expectation-Step in single precision.  Overwrites the motif
+	 * location probabilities in <code>z</code>, which must be stored in
+	 * single precision.
+	 *
+	 * @param sequences the sequences comprising the data set
+	 * @param p the motif model
+	 * @param z the motif locations to overwrite
+	 * @return the log probability of the data given the motif, with a
+	 * uniform prior on the start position in each sequence
+	 */
+	public double eStep(SequenceSet sequences, Motif p, MotifLocations z)
+	{
+		prepare(p);
+		
+		int width = p.getWidth();
+		int alphabetSize = p.getAlphabet().size();
+		double logLikelihood = 0.0;
+		
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			float[] row = z.getFloatRow(i);
+			boolean masked = sequences.hasUsableMask(i, width);
+			
+			if (encoded.length < sequence.length())
+			{
+				encoded = new byte[sequence.length()];
+			}
+			
+			p.getEncoding().encodeStrict(sequence, encoded);
+			double logBg = 0.0;
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				logBg += logBackground[encoded[j]];
+			}
+			
+			/*
+			 * Score every window
+			 */
+			float best = Float.NEGATIVE_INFINITY;
+			for (int j = 0; j < row.length; j++)
+			{
+				if (masked && sequences.isWindowMasked(i, j, width))
+				{
+					row[j] = Float.NEGATIVE_INFINITY;
+					continue;
+				}
+				
+				float score = 0.0f;
+				for (int k = 0, offset = 0; k < width; k++, offset += alphabetSize)
+				{
+					score += logOdds[offset + encoded[j + k]];
+				}
+				row[j] = score;
+				best = Math.max(best, score);
+			}
+			
+			/*
+			 * Turn the scores into posteriors relative to the best window
+			 */
+			double sum = 0.0;
+			for (int j = 0; j < row.length; j++)
+			{
+				row[j] = (float) Math.exp(row[j] - best);
+				sum += row[j];
+			}
+			
+			float scale = (float) (1.0 / sum);
+			for (int j = 0; j < row.length; j++)
+			{
+				row[j] *= scale;
+			}
+			
+			logLikelihood += sequences.getWeight(i)
+					* (logBg + best + Math.log(sum / row.length));
+		}
+		
+		return logLikelihood;
+	}
+	
+	/**
+	 * Compute the log background probabilities and float log-odds matrix of
+	 * the motif, allocating only when the motif's shape changes.
+	 *
+	 * @param p the motif model
+	 */
+	private void prepare(Motif p)
+	{
+		ArrayList<Character> alphabet = p.getAlphabet();
+		int width = p.getWidth();
+		
+		if (logOdds == null || logOdds.length != width * alphabet.size())
+		{
+			logOdds = new float[width * alphabet.size()];
+			logBackground = new double[alphabet.size()];
+		}
+		
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			logBackground[s] = Math.log(p.getProbability(alphabet.get(s), 0));
+		}
+		
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				logOdds[k * alphabet.size() + s]
+						= (float) (Math.log(p.getProbability(alphabet.get(s), k + 1))
+								   - logBackground[s]);
+			}
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package meme.scan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import meme.Motif;
+
+/**
+ * The distribution of the log-odds score, in bits, of a window of
+ * background sequence against a motif.  Scores are rounded to 1/100 of a
+ * bit and the distribution of the total score is computed exactly, by
+ * dynamic programming over the motif positions, once per motif.  The upper
+ * tail of the distribution is stored, so that the p-value of a score is a
+ * single lookup and the score threshold of a p-value a binary search.
+ *
+ * Distributions are cached by the motif's parameters, so asking again for
+ * the same motif, for example for each file scanned or each motif ranked,
+ * does not repeat the dynamic programming.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class ScoreDistribution
+{
+	/**
+	 * The number of score units per bit
+	 */
+	public static final double SCORE_RESOLUTION = 100.0;
+	
+	/**
+	 * The number of distributions kept in the cache
+	 */
+	private static final int CACHE_SIZE = 64;
+	
+	/**
+	 * The most recently used distributions, by the motif's alphabet and
+	 * parameters
+	 */
+	private static final LinkedHashMap<Key, ScoreDistribution> cache
+				= new LinkedHashMap<Key, ScoreDistribution>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, ScoreDistribution> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+	
+	/**
+	 * The probability that a background window scores at least each score,
+	 * indexed by score unit minus <code>offset</code>, followed by 0
+	 */
+	private double[] tail;
+	
+	/**
+	 * The lowest possible score, in score units
+	 */
+	private int offset;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param logOdds the log-odds score, in bits, of each symbol index at
+	 * each motif position
+	 * @param background the background probability of each symbol index
+	 */
+	public ScoreDistribution(double[][] logOdds, double[] background)
+	{
+		int alphabetSize = background.length;
+		
+		/*
+		 * Round the scores and find the range of the total score
+		 */
+		int[][] scores = new int[logOdds.length][alphabetSize];
+		int[] minScores = new int[logOdds.length];
+		int minTotal = 0;
+		int maxTotal = 0;
+		for (int k = 0; k < logOdds.length; k++)
+		{
+			int min = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				scores[k][s] = (int) Math.round(logOdds[k][s] * SCORE_RESOLUTION);
+				min = Math.min(min, scores[k][s]);
+				max = Math.max(max, scores[k][s]);
+			}
+			minScores[k] = min;
+			minTotal += min;
+			maxTotal += max;
+		}
+		
+		/*
+		 * The probability of each total score, offset by the minimum total.
+		 * After k positions only totals up to the sum of their ranges can be
+		 * reached.
+		 */
+		int range = maxTotal - minTotal + 1;
+		double[] distribution = new double[range];
+		double[] next = new double[range];
+		distribution[0] = 1.0;
+		int reached = 1;
+		
+		for (int k = 0; k < logOdds.length; k++)
+		{
+			int spread = 0;
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				spread = Math.max(spread, scores[k][s] - minScores[k]);
+			}
+			
+			Arrays.fill(next, 0, reached + spread, 0.0);
+			for (int t = 0; t < reached; t++)
+			{
+				if (distribution[t] == 0.0)
+				{
+					continue;
+				}
+				for (int s = 0; s < alphabetSize; s++)
+				{
+					next[t + scores[k][s] - minScores[k]] += distribution[t] * background[s];
+				}
+			}
+			
+			double[] tmp = distribution;
+			distribution = next;
+			next = tmp;
+			reached += spread;
+		}
+		
+		/*
+		 * Sum the upper tail from the highest score down
+		 */
+		this.tail = new double[range + 1];
+		for (int t = range - 1; t >= 0; t--)
+		{
+			tail[t] = tail[t + 1] + distribution[t];
+		}
+		this.offset = minTotal;
+	}
+	
+	/**
+	 * Get the score distribution of a motif against its own background,
+	 * computing it if it is not cached.
+	 *
+	 * @param motif the motif, whose position 0 is the background model
+	 * @return the score distribution
+	 */
+	public static ScoreDistribution forMotif(Motif motif)
+	{
+		ArrayList<Character> alphabet = motif.getAlphabet();
+		double[] parameters = new double[alphabet.size() * (motif.getWidth() + 1)];
+		motif.getParameters(parameters);
+		Key key = new Key(alphabet, parameters);
+		
+		synchronized (cache)
+		{
+			ScoreDistribution distribution = cache.get(key);
+			if (distribution != null)
+			{
+				return distribution;
+			}
+		}
+		
+		double[] background = new double[alphabet.size()];
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			background[s] = motif.getProbability(alphabet.get(s), 0);
+		}
+		ScoreDistribution distribution
+				= new ScoreDistribution(SiteScanner.logOddsMatrix(motif), background);
+		
+		synchronized (cache)
+		{
+			cache.put(key, distribution);
+		}
+		return distribution;
+	}
+	
+	/**
+	 * @param score a log-odds score in bits
+	 * @return the probability that a background window scores at least
+	 * <code>score</code>, with both rounded to 1/100 of a bit
+	 */
+	public double pValue(double score)
+	{
+		long t = Math.round(score * SCORE_RESOLUTION) - offset;
+		if (t <= 0)
+		{
+			return 1.0;
+		}
+		if (t >= tail.length)
+		{
+			return 0.0;
+		}
+		return tail[(int) t];
+	}
+	
+	/**
+	 * @param pValue a p-value cutoff
+	 * @return the lowest score, in bits, that a background window reaches
+	 * with probability at most <code>pValue</code>
+	 */
+	public double threshold(double pValue)
+	{
+		/*
+		 * The tail decreases with the score, so search for the first score
+		 * whose tail is within the p-value
+		 */
+		int low = 0;
+		int high = tail.length - 1;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (tail[middle] <= pValue)
+			{
+				high = middle;
+			}
+			else
+			{
+				low = middle + 1;
+			}
+		}
+		
+		return (low + offset) / SCORE_RESOLUTION;
+	}
+	
+	/**
+	 * @return the lowest possible score, in bits
+	 */
+	public double getMinScore()
+	{
+		return offset / SCORE_RESOLUTION;
+	}
+	
+	/**
+	 * @return the highest possible score, in bits
+	 */
+	public double getMaxScore()
+	{
+		return (tail.length - 2 + offset) / SCORE_RESOLUTION;
+	}
+	
+	/**
+	 * The alphabet and parameters of a motif, compared by value
+	 */
+	private static class Key
+	{
+		private ArrayList<Character> alphabet;
+		
+		private double[] parameters;
+		
+		Key(ArrayList<Character> alphabet, double[] parameters)
+		{
+			this.alphabet = alphabet;
+			this.parameters = parameters;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return 31 * alphabet.hashCode() + Arrays.hashCode(parameters);
+		}
+		
+		@Override
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Key))
+			{
+				return false;
+			}
+			Key key = (Key) other;
+			return alphabet.equals(key.alphabet) && Arrays.equals(parameters, key.parameters);
+		}
+	}
+}
@@ -0,0 +1,712 @@
+package meme.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import meme.KmerBlockScorer;
+import meme.Motif;
+import meme.oops.MEME_OOPS;
+import pair.Pair;
+
+/**
+ * Scans large sequence files for every site of a fitted motif.  Each window
+ * of each sequence is scored on both strands by its log-odds score in bits,
+ * 
+ *     sum_k log2( p_k(x_k) / p_0(x_k) ),
+ *     
+ * and reported in BED format when the score reaches the threshold.  The 
+ * input is either FASTA or the one-sequence-per-line format read by 
+ * {@link data.SequenceReader}, in which case the sequences are named by 
+ * line number.  Only motifs over the DNA alphabet have a reverse strand.
+ * Sequences are cut into chunks that overlap by 
+ * <code>width - 1</code> residues, so that every window lies in exactly one
+ * chunk, and chunks are scored in parallel.  Windows holding a symbol 
+ * outside the motif's alphabet are skipped.
+ * 
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class SiteScanner 
+{
+	/**
+	 * The default number of windows per chunk
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	
+	/**
+	 * The complement of each symbol of {@link MEME_OOPS#DNA_ALPHABET}
+	 */
+	private static final String DNA_COMPLEMENT = "TGCA";
+	
+	/**
+	 * The number of bytes of the input read at a time
+	 */
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	
+	/**
+	 * The largest region of the input mapped into memory at a time
+	 */
+	private static final long MAP_SEGMENT_SIZE = 1L << 30;
+	
+	/**
+	 * The width of the motif
+	 */
+	private int width;
+	
+	/**
+	 * The log-odds score of each symbol index at each motif position on the
+	 * forward strand
+	 */
+	private double[][] forward;
+	
+	/**
+	 * The log-odds score of each symbol index at each motif position on the
+	 * reverse strand, or null if the reverse strand is not scanned
+	 */
+	private double[][] reverse;
+	
+	/**
+	 * The index of the complement of each symbol index, or null if the 
+	 * motif is not over DNA
+	 */
+	private int[] complement;
+	
+	/**
+	 * The forward strand scores in single precision, or null to score in 
+	 * double precision
+	 */
+	private float[][] forwardFloat;
+	
+	/**
+	 * The reverse strand scores in single precision, or null
+	 */
+	private float[][] reverseFloat;
+	
+	/**
+	 * The forward strand k-mer block scorer, or null to score each residue
+	 */
+	private KmerBlockScorer forwardBlocks;
+	
+	/**
+	 * The reverse strand k-mer block scorer, or null
+	 */
+	private KmerBlockScorer reverseBlocks;
+	
+	/**
+	 * Map each input byte to its symbol index, or -1
+	 */
+	private byte[] symbolIndex;
+	
+	/**
+	 * The minimum score of a reported site, in bits
+	 */
+	private double threshold;
+	
+	/**
+	 * The number of threads scoring chunks
+	 */
+	private int numThreads;
+	
+	/**
+	 * The number of windows per chunk
+	 */
+	private int chunkSize;
+	
+	/**
+	 * Constructor.  Both strands are scanned if the motif is over DNA, and 
+	 * only the forward strand otherwise.
+	 * 
+	 * @param motif the fitted motif, whose position 0 is the background model
+	 * @param threshold the minimum log-odds score, in bits, of a reported site
+	 */
+	public SiteScanner(Motif motif, double threshold)
+	{
+		this.width = motif.getWidth();
+		this.threshold = threshold;
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+		this.chunkSize = DEFAULT_CHUNK_SIZE;
+		
+		ArrayList<Character> alphabet = motif.getAlphabet();
+		
+		this.symbolIndex = new byte[256];
+		for (int b = 0; b < 256; b++)
+		{
+			symbolIndex[b] = -1;
+		}
+		for (int s = 0; s < alphabet.size(); s++)
+		{
+			char symbol = alphabet.get(s);
+			symbolIndex[Character.toUpperCase(symbol)] = (byte) s;
+			symbolIndex[Character.toLowerCase(symbol)] = (byte) s;
+		}
+		
+		this.forward = logOddsMatrix(motif);
+		
+		/*
+		 * The alphabet is DNA if it holds exactly the four nucleotides, in 
+		 * any order
+		 */
+		String dna = MEME_OOPS.DNA_ALPHABET;
+		if (alphabet.size() == dna.length())
+		{
+			complement = new int[alphabet.size()];
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				int d = dna.indexOf(alphabet.get(s));
+				complement[s] = (d < 0) ? -1 : alphabet.indexOf(DNA_COMPLEMENT.charAt(d));
+				if (complement[s] < 0)
+				{
+					complement = null;
+					break;
+				}
+			}
+		}
+		
+		if (complement != null)
+		{
+			setReverseStrand(true);
+		}
+	}
+	
+	/**
+	 * Choose whether sites on the reverse strand are reported as well as 
+	 * those on the forward strand.
+	 * 
+	 * @param reverseStrand whether to scan the reverse strand
+	 * @throws IllegalArgumentException if the reverse strand is requested
+	 * for a motif that is not over DNA, which has no complement
+	 */
+	public void setReverseStrand(boolean reverseStrand)
+	{
+		if (!reverseStrand)
+		{
+			reverse = null;
+			reverseFloat = null;
+			reverseBlocks = null;
+			return;
+		}
+		if (complement == null)
+		{
+			throw new IllegalArgumentException("Only motifs over DNA can be scanned "
+											   + "on the reverse strand");
+		}
+		
+		int alphabetSize = complement.length;
+		reverse = new double[width][alphabetSize];
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < alphabetSize; s++)
+			{
+				reverse[k][s] = forward[width - 1 - k][complement[s]];
+			}
+		}
+		if (forwardFloat != null)
+		{
+			reverseFloat = toFloat(reverse);
+		}
+		if (forwardBlocks != null)
+		{
+			reverseBlocks = new KmerBlockScorer(width, alphabetSize, forwardBlocks.getBlockSize());
+			reverseBlocks.compile(reverse);
+		}
+	}
+	
+	/**
+	 * Compute the log-odds score threshold with which a window of background
+	 * sequence scores at least as high as the threshold with probability at
+	 * most <code>pValue</code>, from the motif's cached 
+	 * {@link ScoreDistribution}.
+	 * 
+	 * @param motif the fitted motif
+	 * @param pValue the p-value cutoff
+	 * @return the score threshold in bits
+	 */
+	public static double thresholdForPValue(Motif motif, double pValue)
+	{
+		return ScoreDistribution.forMotif(motif).threshold(pValue);
+	}
+	
+	/**
+	 * @param numThreads the number of threads scoring chunks
+	 */
+	public void setNumThreads(int numThreads)
+	{
+		this.numThreads = numThreads;
+	}
+	
+	/**
+	 * @param chunkSize the number of windows per chunk
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+	
+	/**
+	 * Score windows with k-mer lookup tables, one per block of motif 
+	 * columns, instead of one residue at a time.  Takes precedence over 
+	 * single precision scoring.
+	 * 
+	 * @param blockSize the number of motif columns per block, or 0 to score
+	 * each residue
+	 */
+	public void setBlockSize(int blockSize)
+	{
+		if (blockSize <= 0)
+		{
+			forwardBlocks = null;
+			reverseBlocks = null;
+			return;
+		}
+		
+		int alphabetSize = forward[0].length;
+		forwardBlocks = new KmerBlockScorer(width, alphabetSize, blockSize);
+		forwardBlocks.compile(forward);
+		if (reverse != null)
+		{
+			reverseBlocks = new KmerBlockScorer(width, alphabetSize, blockSize);
+			reverseBlocks.compile(reverse);
+		}
+	}
+	
+	/**
+	 * Choose whether windows are scored by summing single precision scores,
+	 * which halves the size of the score matrices.  Scores near the 
+	 * threshold may round to the other side of it.
+	 * 
+	 * @param singlePrecision whether to score in single precision
+	 */
+	public void setSinglePrecision(boolean singlePrecision)
+	{
+		if (!singlePrecision)
+		{
+			forwardFloat = null;
+			reverseFloat = null;
+			return;
+		}
+		
+		forwardFloat = toFloat(forward);
+		if (reverse != null)
+		{
+			reverseFloat = toFloat(reverse);
+		}
+	}
+	
+	/**
+	 * Scan every sequence of a file and write the sites scoring at least the
+	 * threshold in BED format: sequence name, start, end, name, score in 
+	 * bits and strand.  Sites are written in file order.
+	 * 
+	 * @param input the FASTA or one-sequence-per-line file
+	 * @param memoryMapped whether to map the file into memory instead of 
+	 * reading it
+	 * @param out the writer for the BED records
+	 * @return the number of sites written
+	 * @throws IOException if the file cannot be read or the output written
+	 */
+	public long scan(File input, boolean memoryMapped, Writer out) 
+			throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		ArrayDeque<Future<Pair<Integer, String>>> pending 
+									= new ArrayDeque<Future<Pair<Integer, String>>>();
+		long numSites = 0;
+		
+		RandomAccessFile file = new RandomAccessFile(input, "r");
+		FileChannel channel = file.getChannel();
+		
+		try
+		{
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			MappedByteBuffer segment = null;
+			long mappedUpTo = 0;
+			
+			byte[] chunk = new byte[chunkSize + width - 1];
+			int chunkLength = 0;
+			long chunkOffset = 0;
+			
+			StringBuilder name = new StringBuilder();
+			int lineNumber = 0;
+			boolean atLineStart = true;
+			boolean inHeader = false;
+			boolean nameComplete = false;
+			boolean isFasta = false;
+			boolean formatKnown = false;
+			
+			while (true)
+			{
+				/*
+				 * Fill the buffer from the file or from the mapped region
+				 */
+				int n;
+				if (memoryMapped)
+				{
+					if (segment == null || !segment.hasRemaining())
+					{
+						if (mappedUpTo >= channel.size())
+						{
+							break;
+						}
+						long length = Math.min(MAP_SEGMENT_SIZE, channel.size() - mappedUpTo);
+						segment = channel.map(FileChannel.MapMode.READ_ONLY, mappedUpTo, length);
+						mappedUpTo += length;
+					}
+					n = Math.min(buffer.length, segment.remaining());
+					segment.get(buffer, 0, n);
+				}
+				else
+				{
+					n = channel.read(ByteBuffer.wrap(buffer));
+					if (n < 0)
+					{
+						break;
+					}
+				}
+				
+				for (int i = 0; i < n; i++)
+				{
+					byte b = buffer[i];
+					
+					if (!formatKnown && b > ' ')
+					{
+						isFasta = (b == '>');
+						formatKnown = true;
+					}
+					
+					if (b == '\n' || b == '\r')
+					{
+						if (inHeader)
+						{
+							inHeader = false;
+						}
+						else if (!isFasta && !atLineStart)
+						{
+							/*
+							 * Each line is its own sequence
+							 */
+							numSites += submit(executor, pending, chunk, chunkLength, 
+											   "sequence_" + lineNumber, chunkOffset, out);
+							chunkLength = 0;
+							chunkOffset = 0;
+						}
+						if (b == '\n' && !isFasta)
+						{
+							lineNumber++;
+						}
+						atLineStart = true;
+						continue;
+					}
+					
+					if (inHeader)
+					{
+						/*
+						 * Only the first word of the header names the 
+						 * sequence
+						 */
+						if (b > ' ' && !nameComplete)
+						{
+							name.append((char) b);
+						}
+						else if (name.length() > 0)
+						{
+							nameComplete = true;
+						}
+						continue;
+					}
+					
+					if (isFasta && atLineStart && b == '>')
+					{
+						numSites += submit(executor, pending, chunk, chunkLength, 
+										   name.toString(), chunkOffset, out);
+						chunkLength = 0;
+						chunkOffset = 0;
+						name.setLength(0);
+						inHeader = true;
+						nameComplete = false;
+						atLineStart = false;
+						continue;
+					}
+					
+					atLineStart = false;
+					if (b <= ' ')
+					{
+						continue;
+					}
+					
+					chunk[chunkLength++] = symbolIndex[b & 0xFF];
+					
+					if (chunkLength == chunk.length)
+					{
+						/*
+						 * Submit the full chunk and carry its last 
+						 * width - 1 residues over into the next
+						 */
+						numSites += submit(executor, pending, chunk, chunkLength, 
+										   isFasta ? name.toString() : "sequence_" + lineNumber, 
+										   chunkOffset, out);
+						System.arraycopy(chunk, chunkLength - (width - 1), chunk, 0, width - 1);
+						chunkOffset += chunkLength - (width - 1);
+						chunkLength = width - 1;
+					}
+				}
+			}
+			
+			numSites += submit(executor, pending, chunk, chunkLength, 
+							   isFasta ? name.toString() : "sequence_" + lineNumber, 
+							   chunkOffset, out);
+			
+			while (!pending.isEmpty())
+			{
+				numSites += writeResult(pending.poll(), out);
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			file.close();
+		}
+		
+		return numSites;
+	}
+	
+	/**
+	 * Score a window of encoded sequence.
+	 * 
+	 * @param sequence the symbol indices of the sequence
+	 * @param start the start of the window
+	 * @param reverseStrand whether to score the reverse complement of the 
+	 * window
+	 * @return the log-odds score of the window in bits
+	 */
+	public double score(byte[] sequence, int start, boolean reverseStrand)
+	{
+		if (forwardFloat != null)
+		{
+			float[][] matrix = reverseStrand ? reverseFloat : forwardFloat;
+			float score = 0.0f;
+			for (int k = 0; k < width; k++)
+			{
+				score += matrix[k][sequence[start + k]];
+			}
+			return score;
+		}
+		
+		double[][] matrix = reverseStrand ? reverse : forward;
+		double score = 0.0;
+		for (int k = 0; k < width; k++)
+		{
+			score += matrix[k][sequence[start + k]];
+		}
+		return score;
+	}
+	
+	/**
+	 * Submit a copy of a chunk for scoring.  When too many chunks are 
+	 * pending, first wait for the oldest and write its sites, so that memory
+	 * stays bounded.
+	 * 
+	 * @return the number of sites written while waiting
+	 */
+	private long submit(ExecutorService executor, 
+						ArrayDeque<Future<Pair<Integer, String>>> pending, 
+						byte[] chunk, 
+						final int length, 
+						final String name, 
+						final long offset, 
+						Writer out) throws IOException
+	{
+		if (length < width)
+		{
+			return 0;
+		}
+		
+		long numSites = 0;
+		while (pending.size() >= 2 * numThreads)
+		{
+			numSites += writeResult(pending.poll(), out);
+		}
+		
+		final byte[] copy = Arrays.copyOf(chunk, length);
+		pending.add(executor.submit(new Callable<Pair<Integer, String>>()
+		{
+			@Override
+			public Pair<Integer, String> call()
+			{
+				return scanChunk(copy, length, name, offset);
+			}
+		}));
+		
+		return numSites;
+	}
+	
+	/**
+	 * Wait for a chunk to be scored and write its sites
+	 * 
+	 * @return the number of sites written
+	 */
+	private static int writeResult(Future<Pair<Integer, String>> future, Writer out) 
+			throws IOException
+	{
+		try
+		{
+			Pair<Integer, String> result = future.get();
+			out.write(result.getSecond());
+			return result.getFirst();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Score every window of a chunk on both strands.
+	 * 
+	 * @param chunk the symbol indices of the chunk
+	 * @param length the number of residues in the chunk
+	 * @param name the name of the sequence the chunk belongs to
+	 * @param offset the position of the chunk in the sequence
+	 * @return the number of sites found and their BED records
+	 */
+	private Pair<Integer, String> scanChunk(byte[] chunk, 
+											int length, 
+											String name, 
+											long offset)
+	{
+		StringBuilder result = new StringBuilder();
+		int numSites = 0;
+		
+		int[] codes = null;
+		if (forwardBlocks != null)
+		{
+			codes = new int[length];
+			forwardBlocks.encode(chunk, length, codes);
+		}
+		
+		/*
+		 * The last position at or before the end of the current window that
+		 * holds a symbol outside the alphabet
+		 */
+		int lastInvalid = -1;
+		for (int k = 0; k < width - 1; k++)
+		{
+			if (chunk[k] < 0)
+			{
+				lastInvalid = k;
+			}
+		}
+		
+		for (int j = 0; j + width <= length; j++)
+		{
+			if (chunk[j + width - 1] < 0)
+			{
+				lastInvalid = j + width - 1;
+			}
+			if (lastInvalid >= j)
+			{
+				continue;
+			}
+			
+			double score = (codes != null) 
+						   ? forwardBlocks.score(codes, j) 
+						   : score(chunk, j, false);
+			if (score >= threshold)
+			{
+				appendSite(result, name, offset + j, score, '+');
+				numSites++;
+			}
+			
+			if (reverse != null)
+			{
+				score = (codes != null) 
+						? reverseBlocks.score(codes, j) 
+						: score(chunk, j, true);
+				if (score >= threshold)
+				{
+					appendSite(result, name, offset + j, score, '-');
+					numSites++;
+				}
+			}
+		}
+		
+		return new Pair<Integer, String>(numSites, result.toString());
+	}
+	
+	/**
+	 * Append one BED record
+	 */
+	private void appendSite(StringBuilder result, 
+							String name, 
+							long start, 
+							double score, 
+							char strand)
+	{
+		result.append(name).append('\t')
+			  .append(start).append('\t')
+			  .append(start + width).append('\t')
+			  .append("motif").append('\t')
+			  .append(Math.round(score * 1000) / 1000.0).append('\t')
+			  .append(strand).append('\n');
+	}
+	
+	/**
+	 * Compute the log-odds score, in bits, of each symbol at each motif 
+	 * position against the motif's background.
+	 * 
+	 * @param motif the motif
+	 * @return the matrix indexed by motif position (from 0) and symbol index
+	 */
+	static double[][] logOddsMatrix(Motif motif)
+	{
+		ArrayList<Character> alphabet = motif.getAlphabet();
+		double[][] logOdds = new double[motif.getWidth()][alphabet.size()];
+		
+		for (int k = 0; k < motif.getWidth(); k++)
+		{
+			for (int s = 0; s < alphabet.size(); s++)
+			{
+				char symbol = alphabet.get(s);
+				logOdds[k][s] = Math.log(motif.getProbability(symbol, k + 1) 
+							  / motif.getProbability(symbol, 0)) / Math.log(2);
+			}
+		}
+		
+		return logOdds;
+	}
+	
+	/**
+	 * @param matrix a score matrix
+	 * @return the matrix rounded to single precision
+	 */
+	private static float[][] toFloat(double[][] matrix)
+	{
+		float[][] result = new float[matrix.length][];
+		for (int k = 0; k < matrix.length; k++)
+		{
+			result[k] = new float[matrix[k].length];
+			for (int s = 0; s < matrix[k].length; s++)
+			{
+				result[k][s] = (float) matrix[k][s];
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,203 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Random;
+
+import data.SequenceSet;
+import meme.oops.MEME_OOPS;
+import pair.Pair;
+
+/**
+ * A synthetic corpus of DNA sequences, each holding one planted site of a
+ * random motif, for checking that motif finding recovers the sites.
+ * Background residues are drawn from a given composition, and each residue
+ * of a planted site is replaced by a random different nucleotide with the
+ * noise probability.
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class PlantedCorpus
+{
+	/**
+	 * The consensus of the planted motif
+	 */
+	private String motif;
+	
+	/**
+	 * The sequences
+	 */
+	private SequenceSet sequences;
+	
+	/**
+	 * The start of the planted site in each sequence
+	 */
+	private int[] starts;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param numSequences the number of sequences
+	 * @param length the length of each sequence
+	 * @param width the width of the planted motif
+	 * @param noise the probability that a residue of a planted site differs
+	 * from the consensus
+	 * @param background the probability of each nucleotide, in ACGT order,
+	 * outside the planted sites
+	 * @param seed the random seed
+	 */
+	public PlantedCorpus(int numSequences,
+						 int length,
+						 int width,
+						 double noise,
+						 double[] background,
+						 long seed)
+	{
+		if (width > length || background.length != MEME_OOPS.DNA_ALPHABET.length())
+		{
+			throw new IllegalArgumentException("Invalid corpus settings");
+		}
+		
+		Random rand = new Random(seed);
+		String alphabet = MEME_OOPS.DNA_ALPHABET;
+		
+		StringBuilder consensus = new StringBuilder();
+		for (int k = 0; k < width; k++)
+		{
+			consensus.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+		}
+		this.motif = consensus.toString();
+		
+		this.sequences = new SequenceSet();
+		this.starts = new int[numSequences];
+		for (int i = 0; i < numSequences; i++)
+		{
+			StringBuilder sequence = new StringBuilder(length);
+			for (int j = 0; j < length; j++)
+			{
+				sequence.append(draw(background, rand));
+			}
+			
+			starts[i] = rand.nextInt(length - width + 1);
+			for (int k = 0; k < width; k++)
+			{
+				char symbol = motif.charAt(k);
+				if (rand.nextDouble() < noise)
+				{
+					int shift = 1 + rand.nextInt(alphabet.length() - 1);
+					symbol = alphabet.charAt((alphabet.indexOf(symbol) + shift) % alphabet.length());
+				}
+				sequence.setCharAt(starts[i] + k, symbol);
+			}
+			sequences.addSequence(sequence.toString());
+		}
+	}
+	
+	/**
+	 * Parse a background composition.
+	 *
+	 * @param composition the comma-separated probabilities of A, C, G and T
+	 * @return the probabilities, normalized to sum to 1
+	 */
+	public static double[] parseBackground(String composition)
+	{
+		String[] fields = composition.split(",");
+		double[] background = new double[fields.length];
+		double total = 0.0;
+		for (int s = 0; s < fields.length; s++)
+		{
+			background[s] = Double.parseDouble(fields[s]);
+			total += background[s];
+		}
+		for (int s = 0; s < fields.length; s++)
+		{
+			background[s] /= total;
+		}
+		return background;
+	}
+	
+	/**
+	 * Write the sequences one per line, as read by
+	 * {@link data.SequenceReader}.
+	 *
+	 * @param file the file to be written
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter(file);
+		try
+		{
+			for (String sequence : sequences.getSequences())
+			{
+				out.println(sequence);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	/**
+	 * @param realizedMotifs the start and site found in each sequence
+	 * @return the fraction of sequences whose site was found at its planted
+	 * start
+	 */
+	public double getRecovery(ArrayList<Pair<Integer, String>> realizedMotifs)
+	{
+		int recovered = 0;
+		for (int i = 0; i < starts.length; i++)
+		{
+			if (realizedMotifs.get(i).getFirst() == starts[i])
+			{
+				recovered++;
+			}
+		}
+		return (double) recovered / starts.length;
+	}
+	
+	/**
+	 * @return the consensus of the planted motif
+	 */
+	public String getMotif()
+	{
+		return motif;
+	}
+	
+	/**
+	 * @return the sequences
+	 */
+	public SequenceSet getSequences()
+	{
+		return sequences;
+	}
+	
+	/**
+	 * @return the start of the planted site in each sequence
+	 */
+	public int[] getStarts()
+	{
+		return starts;
+	}
+	
+	/**
+	 * @return a nucleotide drawn from a composition
+	 */
+	private static char draw(double[] background, Random rand)
+	{
+		double u = rand.nextDouble();
+		for (int s = 0; s < background.length - 1; s++)
+		{
+			u -= background[s];
+			if (u < 0)
+			{
+				return MEME_OOPS.DNA_ALPHABET.charAt(s);
+			}
+		}
+		return MEME_OOPS.DNA_ALPHABET.charAt(background.length - 1);
+	}
+}
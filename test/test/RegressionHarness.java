@@ -0,0 +1,401 @@
+package test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import data.KmerSeedIndex;
+import data.SequenceReader;
+import data.SequenceSet;
+import meme.Motif;
+import meme.MotifLocations;
+import meme.oops.EMSettings;
+import meme.oops.EMWorkspace;
+import meme.oops.MEME_OOPS;
+import pair.Pair;
+
+/**
+ * End-to-end scalability and accuracy regression harness.  For each corpus
+ * size a {@link PlantedCorpus} is generated and written to a file, and the
+ * pipeline is run on it, from reading the file to picking out the sites,
+ * once per thread count.  Each run reports its wall time, speedup over the
+ * serial run, peak heap and the fraction of planted sites recovered.  The
+ * harness exits with status 1 if any run breaks a threshold or is slower
+ * or less accurate than a baseline report by more than the tolerance.
+ *
+ * Usage: RegressionHarness [-sizes 100,1000] [-length 200] [-width 10]
+ * [-noise 0.1] [-background 0.25,0.25,0.25,0.25] [-threads 1,2,4]
+ * [-seed 1] [-minaccuracy 0.9] [-maxseconds s] [-maxmemory MB]
+ * [-minspeedup x] [-baseline report] [-tolerance 1.5] [-output report]
+ *
+ * @author Matthew Bernstein - matthewb@cs.wisc.edu
+ *
+ */
+public class RegressionHarness
+{
+	/**
+	 * The largest drop in accuracy from the baseline that is not a
+	 * regression
+	 */
+	public static final double ACCURACY_MARGIN = 0.05;
+	
+	/**
+	 * The header of the report
+	 */
+	private static final String HEADER = "sequences\tthreads\tseconds\tspeedup\tpeak_mb\taccuracy";
+	
+	public static void main(String[] args) throws IOException
+	{
+		int[] sizes = {100, 1000};
+		int length = 200;
+		int width = 10;
+		double noise = 0.1;
+		double[] background = {0.25, 0.25, 0.25, 0.25};
+		int[] threadCounts = {1, 2, 4};
+		long seed = 1;
+		double minAccuracy = 0.9;
+		double maxSeconds = Double.POSITIVE_INFINITY;
+		double maxMemory = Double.POSITIVE_INFINITY;
+		double minSpeedup = 0.0;
+		File baselineFile = null;
+		double tolerance = 1.5;
+		File outputFile = null;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-sizes"))
+			{
+				sizes = parseInts(args[++i]);
+			}
+			else if (args[i].equals("-length"))
+			{
+				length = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-width"))
+			{
+				width = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-noise"))
+			{
+				noise = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-background"))
+			{
+				background = PlantedCorpus.parseBackground(args[++i]);
+			}
+			else if (args[i].equals("-threads"))
+			{
+				threadCounts = parseInts(args[++i]);
+			}
+			else if (args[i].equals("-seed"))
+			{
+				seed = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("-minaccuracy"))
+			{
+				minAccuracy = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-maxseconds"))
+			{
+				maxSeconds = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-maxmemory"))
+			{
+				maxMemory = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-minspeedup"))
+			{
+				minSpeedup = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-baseline"))
+			{
+				baselineFile = new File(args[++i]);
+			}
+			else if (args[i].equals("-tolerance"))
+			{
+				tolerance = Double.parseDouble(args[++i]);
+			}
+			else if (args[i].equals("-output"))
+			{
+				outputFile = new File(args[++i]);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		
+		HashMap<String, double[]> baseline = null;
+		if (baselineFile != null)
+		{
+			baseline = readReport(baselineFile);
+		}
+		int numProcessors = Runtime.getRuntime().availableProcessors();
+		
+		ArrayList<String> rows = new ArrayList<String>();
+		ArrayList<String> failures = new ArrayList<String>();
+		double[] serialSeconds = new double[sizes.length];
+		System.out.println(HEADER);
+		for (int n = 0; n < sizes.length; n++)
+		{
+			PlantedCorpus corpus = new PlantedCorpus(sizes[n], length, width, noise,
+													 background, seed + n);
+			File file = File.createTempFile("planted", ".txt");
+			file.deleteOnExit();
+			corpus.write(file);
+			
+			/*
+			 * Warm up the JIT, so that the first timed run is not penalized
+			 */
+			if (n == 0)
+			{
+				runPipeline(file, width, 1);
+			}
+			
+			double firstSeconds = Double.NaN;
+			for (int threads : threadCounts)
+			{
+				System.gc();
+				resetPeakHeap();
+				long begin = System.nanoTime();
+				ArrayList<Pair<Integer, String>> realizedMotifs = runPipeline(file, width, threads);
+				double seconds = (System.nanoTime() - begin) / 1e9;
+				double peakMB = getPeakHeap() / (double) (1 << 20);
+				double accuracy = corpus.getRecovery(realizedMotifs);
+				
+				if (Double.isNaN(firstSeconds))
+				{
+					firstSeconds = seconds;
+				}
+				if (threads == 1)
+				{
+					serialSeconds[n] = seconds;
+				}
+				double speedup = firstSeconds / seconds;
+				
+				String row = sizes[n] + "\t" + threads + "\t" + round(seconds) + "\t"
+							 + round(speedup) + "\t" + round(peakMB) + "\t" + round(accuracy);
+				System.out.println(row);
+				rows.add(row);
+				
+				String run = sizes[n] + " sequences, " + threads + " threads: ";
+				if (accuracy < minAccuracy)
+				{
+					failures.add(run + "accuracy " + round(accuracy) + " < " + minAccuracy);
+				}
+				if (seconds > maxSeconds)
+				{
+					failures.add(run + round(seconds) + " s > " + maxSeconds + " s");
+				}
+				if (peakMB > maxMemory)
+				{
+					failures.add(run + round(peakMB) + " MB > " + maxMemory + " MB");
+				}
+				
+				/*
+				 * Speedup can only be expected from threads that have a
+				 * processor of their own
+				 */
+				if (threads > 1 && threads <= numProcessors && speedup < minSpeedup)
+				{
+					failures.add(run + "speedup " + round(speedup) + " < " + minSpeedup);
+				}
+				
+				double[] previous = baseline != null ? baseline.get(sizes[n] + "\t" + threads) : null;
+				if (previous != null)
+				{
+					if (seconds > previous[0] * tolerance)
+					{
+						failures.add(run + round(seconds) + " s, baseline " + previous[0] + " s");
+					}
+					if (accuracy < previous[1] - ACCURACY_MARGIN)
+					{
+						failures.add(run + "accuracy " + round(accuracy)
+									 + ", baseline " + previous[1]);
+					}
+				}
+			}
+			file.delete();
+		}
+		
+		/*
+		 * The exponent of the serial runtime in the corpus size, 1 for
+		 * linear scaling
+		 */
+		for (int n = 1; n < sizes.length; n++)
+		{
+			if (serialSeconds[n - 1] > 0 && serialSeconds[n] > 0)
+			{
+				double exponent = Math.log(serialSeconds[n] / serialSeconds[n - 1])
+								  / Math.log((double) sizes[n] / sizes[n - 1]);
+				System.out.println("Scaling " + sizes[n - 1] + " -> " + sizes[n]
+								   + ": n^" + round(exponent));
+			}
+		}
+		
+		if (outputFile != null)
+		{
+			PrintWriter out = new PrintWriter(outputFile);
+			try
+			{
+				out.println(HEADER);
+				for (String row : rows)
+				{
+					out.println(row);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		
+		for (String failure : failures)
+		{
+			System.out.println("FAIL: " + failure);
+		}
+		if (!failures.isEmpty())
+		{
+			System.exit(1);
+		}
+		System.out.println("PASS");
+	}
+	
+	/**
+	 * Run the pipeline on a sequence file: read the sequences, seed from
+	 * their most frequent k-mers, run EM and pick out the most probable site
+	 * of each sequence.
+	 *
+	 * @param file the sequence file
+	 * @param width the width of the motif
+	 * @param numThreads the number of threads of the E-Step and M-Step
+	 * @return the start and site found in each sequence
+	 */
+	public static ArrayList<Pair<Integer, String>> runPipeline(File file,
+															   int width,
+															   int numThreads)
+	{
+		String alphabet = MEME_OOPS.DNA_ALPHABET;
+		SequenceSet sequences = SequenceReader.readFile(file.getPath());
+		SequenceSet distinct = sequences.collapseDuplicates();
+		
+		KmerSeedIndex index = new KmerSeedIndex(alphabet,
+				Math.min(width, KmerSeedIndex.defaultK(alphabet.length())));
+		index.consume(distinct, 0);
+		ArrayList<Pair<Integer, Integer>> seeds = index.getSeeds(distinct,
+																 width,
+																 KmerSeedIndex.DEFAULT_NUM_SEEDS);
+		
+		EMSettings settings = new EMSettings();
+		settings.setAlphabet(alphabet);
+		settings.setSeeds(seeds);
+		
+		/*
+		 * The serial run also takes the parallel E-Step, on one thread, so
+		 * that the runs differ only in their number of threads
+		 */
+		EMWorkspace workspace = new EMWorkspace(distinct, width, alphabet);
+		workspace.setNumThreads(numThreads);
+		try
+		{
+			Pair<Motif, MotifLocations> result = MEME_OOPS.run(workspace, settings);
+			return distinct.expandToSource(
+					distinct.pickOutMotifs(result.getFirst(), result.getSecond()));
+		}
+		finally
+		{
+			workspace.setNumThreads(0);
+		}
+	}
+	
+	/**
+	 * Reset the peak usage of the heap memory pools.
+	 */
+	private static void resetPeakHeap()
+	{
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				pool.resetPeakUsage();
+			}
+		}
+	}
+	
+	/**
+	 * @return the bytes of the heap memory pools at their peaks since they
+	 * were reset.  The pools may peak at different times, so this is an
+	 * upper bound on the peak heap.
+	 */
+	private static long getPeakHeap()
+	{
+		long bytes = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP)
+			{
+				bytes += pool.getPeakUsage().getUsed();
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Read a report written with -output.
+	 *
+	 * @param file the report
+	 * @return the seconds and accuracy of each run, keyed by its number of
+	 * sequences and threads
+	 * @throws IOException if the report cannot be read
+	 */
+	private static HashMap<String, double[]> readReport(File file) throws IOException
+	{
+		HashMap<String, double[]> report = new HashMap<String, double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			in.readLine();
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String[] fields = line.split("\t");
+				report.put(fields[0] + "\t" + fields[1],
+						   new double[] {Double.parseDouble(fields[2]),
+										 Double.parseDouble(fields[5])});
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return report;
+	}
+	
+	/**
+	 * @return the comma-separated integers of a list
+	 */
+	private static int[] parseInts(String list)
+	{
+		String[] fields = list.split(",");
+		int[] values = new int[fields.length];
+		for (int i = 0; i < fields.length; i++)
+		{
+			values[i] = Integer.parseInt(fields[i]);
+		}
+		return values;
+	}
+	
+	/**
+	 * @return a value rounded to three decimal places
+	 */
+	private static double round(double value)
+	{
+		return Math.round(value * 1000) / 1000.0;
+	}
+}
@@ -1,11 +1,68 @@
 package test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import application.ResultCache;
+import meme.Alphabet;
 import meme.Counts;
+import meme.KmerBlockScorer;
 import meme.Motif;
 import meme.MotifLocations;
+import meme.SparseMotifLocations;
+import meme.compare.MotifLibrary;
+import meme.compare.MotifMatch;
+import meme.oops.AcceleratedEM;
+import meme.oops.BlockEStep;
+import meme.oops.DistributedEM;
+import meme.oops.EMSettings;
+import meme.oops.EMWorker;
+import meme.oops.EMWorkspace;
+import meme.oops.FusedEM;
+import meme.oops.IncrementalFit;
+import meme.oops.JobPlan;
+import meme.oops.JobPlanner;
 import meme.oops.MEME_OOPS;
+import meme.oops.OnlineEM;
+import meme.oops.ParallelEStep;
+import meme.oops.PrunedEStep;
+import meme.oops.RestartEnsemble;
+import meme.oops.RestartSummary;
+import meme.oops.SampledSeeding;
+import meme.oops.SinglePrecisionEStep;
+import meme.scan.ScoreDistribution;
+import meme.scan.SiteScanner;
+import data.BackgroundEstimator;
+import data.IngestPipeline;
+import data.KmerSeedIndex;
+import data.LengthStatistics;
+import data.LowComplexityMasker;
+import data.ResultReader;
+import data.ResultWriter;
 import data.SequenceReader;
 import data.SequenceSet;
+import data.SequenceStream;
+import data.WorkPartition;
+import pair.Pair;
 
 public class Tests 
 {
@@ -22,8 +79,48 @@ public class Tests
 		//testCounts();
 		//testPickoutMotif();
 		testProbabilityOfData();
+		//testWorkspace();
+		//testSampledSeeding();
+		//testOnlineEM();
+		//testIncrementalFit();
+		//testSiteScanner();
+		//testPrunedEStep();
+		//testCappedLocations();
+		//testAcceleratedEM();
+		//testRestartEnsemble();
+		//testSinglePrecision();
+		//benchmarkBlockScorer();
+		//testParallelEStep();
+		//testIngestPipeline();
+		//testDistributedEM();
+		//testResultCache();
+		//testFusedEM();
+		//testFlightEvents();
+		//testScoreDistribution();
+		//testProteinMotif();
+		//testMotifLibrary();
+		//testResultWriter();
+		//testJobPlanner();
+		//testPlantedCorpus();
+		//testUnknownResidues();
+		//testCollapsedDuplicates();
+		//testLowComplexityMasker();
 	}
 
+	/**
+	 * Fail a test whose condition does not hold.
+	 * 
+	 * @param condition the condition
+	 * @param message the description of the failure
+	 */
+	public static void check(boolean condition, String message)
+	{
+		if (!condition)
+		{
+			throw new AssertionError(message);
+		}
+	}
+	
 	public static void testRandomMotif()
 	{
 		Motif motif = new Motif(3, MEME_OOPS.DNA_ALPHABET);
@@ -161,5 +258,1990 @@ public class Tests
 		System.out.println("Probability of data: " + MEME_OOPS.probabilityOfData(sequences, p, z));
 				
 	}
+	
+	public static void testWorkspace()
+	{
+		SequenceSet sequences = getSequences();
+		Motif p = exampleMotif();
+		
+		EMWorkspace workspace = new EMWorkspace(sequences, p.getWidth(), MEME_OOPS.DNA_ALPHABET);
+		workspace.getMotif().copyFrom(p);
+		workspace.iterate();
+		
+		MotifLocations z = MEME_OOPS.eStep(sequences, p);
+		Motif updated = MEME_OOPS.mStep(sequences, z, p.getWidth());
+		
+		System.out.println("Allocating:\n" + updated);
+		System.out.println("In place:\n" + workspace.getMotif());
+	}
+	
+	public static void testSampledSeeding()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		SampledSeeding seeding = new SampledSeeding(3, 2.0, 3, 0.1, 3, 42L);
+		
+		Motif p = seeding.getStartingMotif(sequences, 6, MEME_OOPS.DNA_ALPHABET, 3);
+		
+		System.out.println(p);
+		System.out.println(seeding.getReport());
+	}
+	
+	public static void testOnlineEM()
+	{
+		String file = "./data/hw1_sequences.txt";
+		SequenceSet sequences = SequenceReader.readFile(file);
+		int width = 14;
+		
+		/*
+		 * From the same starting motif, stepwise EM over batches of half the
+		 * sequences settles on the batch EM motif
+		 */
+		Motif start = MEME_OOPS.getStartingMotif(sequences, width, MEME_OOPS.DNA_ALPHABET, 3);
+		EMWorkspace workspace = new EMWorkspace(sequences, width, MEME_OOPS.DNA_ALPHABET);
+		workspace.getMotif().copyFrom(start);
+		double prevLogLikelihood;
+		do
+		{
+			prevLogLikelihood = workspace.getLogLikelihood();
+			workspace.iterate();
+		}
+		while (Math.abs(workspace.getLogLikelihood() - prevLogLikelihood) > 1e-6);
+		Motif batch = workspace.getMotif();
+		
+		Motif online = null;
+		OnlineEM em = new OnlineEM(5, 50, 0.7, null);
+		try
+		{
+			online = em.run(new SequenceStream(file), start);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		
+		double[] batchParams = new double[4 * (width + 1)];
+		double[] onlineParams = new double[4 * (width + 1)];
+		batch.getParameters(batchParams);
+		online.getParameters(onlineParams);
+		double maxParamError = 0.0;
+		for (int k = 0; k < batchParams.length; k++)
+		{
+			maxParamError = Math.max(maxParamError, Math.abs(batchParams[k] - onlineParams[k]));
+		}
+		System.out.println("Batch EM:\n" + batch);
+		System.out.println("Stepwise EM, " + em.getPassScores().length + " passes:\n" + online);
+		System.out.println("Max parameter difference: " + maxParamError);
+		check(maxParamError < 0.01, "Stepwise EM motif differs from batch EM by " + maxParamError);
+		
+		/*
+		 * A blank line is a sequence, as in SequenceReader, so the positions
+		 * stay aligned with the lines of the file
+		 */
+		try
+		{
+			File blanks = File.createTempFile("blanks", ".txt");
+			PrintWriter out = new PrintWriter(blanks);
+			out.println(sequences.getSequence(0));
+			out.println();
+			out.println(sequences.getSequence(1));
+			out.close();
+			
+			File positions = File.createTempFile("positions", ".txt");
+			out = new PrintWriter(positions);
+			em.writePositions(new SequenceStream(blanks.getPath()), online, out);
+			out.close();
+			
+			ArrayList<String> lines = new ArrayList<String>(
+					Files.readAllLines(positions.toPath()));
+			System.out.println("Positions with a blank line: " + lines);
+			check(lines.size() == SequenceReader.readFile(blanks.getPath()).getNumSequences(), 
+				  "Positions do not match the lines of the file");
+			check(lines.get(1).equals("-1"), "Blank line given a position");
+			check(lines.get(2).equals(Integer.toString(MEME_OOPS.eStep(sequences, online)
+					.maxProbabilityStartPosition(sequences.getSequence(1)))), 
+				  "Position after the blank line misaligned");
+			blanks.delete();
+			positions.delete();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	public static void testIncrementalFit()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		int width = 14;
+		SequenceSet old = new SequenceSet();
+		SequenceSet batch = new SequenceSet();
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			(i < 7 ? old : batch).addSequence(sequences.getSequence(i));
+		}
+		
+		/*
+		 * Fit the old sequences, and reload the fit from its cached counts
+		 */
+		IncrementalFit fit = IncrementalFit.fit(old, width);
+		IncrementalFit reloaded = null;
+		try
+		{
+			File file = File.createTempFile("counts", ".bin");
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+			fit.write(out);
+			out.close();
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			reloaded = IncrementalFit.read(in, old);
+			in.close();
+			System.out.println("Cached counts: " + file.length() + " bytes");
+			file.delete();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		
+		/*
+		 * A full refit of the combined set from the old motif
+		 */
+		EMWorkspace full = new EMWorkspace(sequences, width, MEME_OOPS.DNA_ALPHABET);
+		full.getMotif().copyFrom(fit.getMotif());
+		double prevLogLikelihood;
+		do
+		{
+			prevLogLikelihood = full.getLogLikelihood();
+			full.iterate();
+		}
+		while (Math.abs(full.getLogLikelihood() - prevLogLikelihood) > 1e-6);
+		
+		double[] fullParams = new double[4 * (width + 1)];
+		double[] incrementalParams = new double[4 * (width + 1)];
+		full.getMotif().getParameters(fullParams);
+		double fullLogLikelihood = MEME_OOPS.eStep(sequences, full.getMotif(), 
+				new MotifLocations(sequences, full.getMotif()));
+		
+		/*
+		 * Appending updates only the new sequences, so the old ones keep
+		 * slightly stale counts; refining refreshes them
+		 */
+		for (int pass = 0; pass < 2; pass++)
+		{
+			if (pass == 0)
+			{
+				reloaded.append(batch, 20);
+			}
+			else
+			{
+				reloaded.refine(20);
+			}
+			
+			reloaded.getMotif().getParameters(incrementalParams);
+			double maxParamError = 0.0;
+			for (int k = 0; k < fullParams.length; k++)
+			{
+				maxParamError = Math.max(maxParamError, Math.abs(fullParams[k] - incrementalParams[k]));
+			}
+			double logLikelihood = MEME_OOPS.eStep(sequences, reloaded.getMotif(), 
+					new MotifLocations(sequences, reloaded.getMotif()));
+			
+			String step = (pass == 0) ? "Appended" : "Refined";
+			System.out.println(step + ": max parameter difference " + maxParamError 
+							   + ", log likelihood " + logLikelihood 
+							   + " vs " + fullLogLikelihood + " for the full refit");
+			check(maxParamError < (pass == 0 ? 0.01 : 1e-6), 
+				  step + " motif differs from the full refit by " + maxParamError);
+			check(Math.abs(logLikelihood - fullLogLikelihood) < (pass == 0 ? 0.1 : 0.001), 
+				  step + " log likelihood differs from the full refit");
+		}
+	}
+	
+	public static void testSiteScanner()
+	{
+		/*
+		 * A FASTA sequence of 300 random bases, wrapped at 60, with a site
+		 * on the forward strand at 70 and its reverse complement at 200
+		 */
+		String site = "GTCCCAGGGTGGGC";
+		StringBuilder reverse = new StringBuilder();
+		for (int k = site.length() - 1; k >= 0; k--)
+		{
+			reverse.append("TGCA".charAt(MEME_OOPS.DNA_ALPHABET.indexOf(site.charAt(k))));
+		}
+		Random rand = new Random(3);
+		StringBuilder sequence = new StringBuilder();
+		for (int j = 0; j < 300; j++)
+		{
+			sequence.append(MEME_OOPS.DNA_ALPHABET.charAt(rand.nextInt(4)));
+		}
+		sequence.replace(70, 70 + site.length(), site);
+		sequence.replace(200, 200 + site.length(), reverse.toString());
+		
+		Motif motif = new Motif(site, MEME_OOPS.DNA_ALPHABET, 0.97);
+		try
+		{
+			File fasta = File.createTempFile("scan", ".fa");
+			PrintWriter out = new PrintWriter(fasta);
+			out.println(">chr1 planted sites");
+			for (int j = 0; j < sequence.length(); j += 60)
+			{
+				out.println(sequence.substring(j, Math.min(j + 60, sequence.length())));
+			}
+			out.close();
+			
+			/*
+			 * Chunks of 64 windows hold residues [0, 77), [64, 141), ..., so
+			 * the forward site is only whole in the second chunk, through 
+			 * the residues carried over from the first
+			 */
+			for (boolean memoryMapped : new boolean[] {false, true})
+			{
+				SiteScanner scanner = new SiteScanner(motif, 20.0);
+				scanner.setChunkSize(64);
+				scanner.setNumThreads(2);
+				StringWriter bed = new StringWriter();
+				long numSites = scanner.scan(fasta, memoryMapped, bed);
+				
+				System.out.print(bed);
+				String[] records = bed.toString().split("\n");
+				check(numSites == 2 && records.length == 2, numSites + " sites found, expected 2");
+				String[] first = records[0].split("\t");
+				String[] second = records[1].split("\t");
+				check(first[0].equals("chr1") && first[1].equals("70") && first[2].equals("84") 
+					  && first[5].equals("+"), "Wrong forward site: " + records[0]);
+				check(second[0].equals("chr1") && second[1].equals("200") && second[2].equals("214") 
+					  && second[5].equals("-"), "Wrong reverse site: " + records[1]);
+			}
+			fasta.delete();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		
+		/*
+		 * Only DNA has a reverse strand
+		 */
+		SiteScanner protein = new SiteScanner(new Motif("WHKMCPYQ", Alphabet.PROTEIN.getSymbols(), 0.9), 10.0);
+		boolean rejected = false;
+		try
+		{
+			protein.setReverseStrand(true);
+		}
+		catch (IllegalArgumentException e)
+		{
+			rejected = true;
+		}
+		check(rejected, "Reverse strand scanning accepted for a protein motif");
+		System.out.println("Reverse strand rejected for a protein motif");
+	}
+	
+	public static void testPrunedEStep()
+	{
+		SequenceSet sequences = getSequences();
+		Motif p = exampleMotif();
+		
+		PrunedEStep pruning = new PrunedEStep(2.0, true);
+		SparseMotifLocations sparse = new SparseMotifLocations(sequences.getNumSequences());
+		pruning.eStep(sequences, p, sparse);
+		
+		System.out.println("Full:\n" + MEME_OOPS.eStep(sequences, p));
+		System.out.println("Pruned:\n" + sparse.toDense(sequences, p));
+		System.out.println("Windows kept: " + pruning.getWindowsKept() 
+				+ ", pruned: " + pruning.getWindowsPruned() 
+				+ ", max dropped mass: " + sparse.maxDroppedMass());
+	}
+	
+	public static void testCappedLocations()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		Motif p = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		MotifLocations dense = MEME_OOPS.eStep(sequences, p);
+		
+		/*
+		 * Without pruning every window is scored exactly, so the dropped mass
+		 * of each sequence is the dense posterior mass of the positions the
+		 * cap removed
+		 */
+		int maxEntries = 5;
+		PrunedEStep capped = new PrunedEStep(Double.POSITIVE_INFINITY, true, maxEntries, 1e-4);
+		SparseMotifLocations sparse = new SparseMotifLocations(sequences.getNumSequences());
+		capped.eStep(sequences, p, sparse);
+		
+		double maxDroppedError = 0.0;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			check(sparse.getNumEntries(i) <= maxEntries, 
+				  sparse.getNumEntries(i) + " entries stored for sequence " + i);
+			
+			double keptMass = 0.0;
+			for (int e = 0; e < sparse.getNumEntries(i); e++)
+			{
+				keptMass += dense.getLocationProbability(i, sparse.getPosition(i, e));
+			}
+			maxDroppedError = Math.max(maxDroppedError, 
+									   Math.abs(sparse.getDroppedMass(i) - (1.0 - keptMass)));
+		}
+		System.out.println("Entries: " + sparse.totalEntries() + ", max dropped mass " 
+						   + sparse.maxDroppedMass() + ", max error in dropped mass " 
+						   + maxDroppedError);
+		check(sparse.maxDroppedMass() > 0.0, "No dropped mass reported");
+		check(maxDroppedError < 1e-9, "Dropped mass differs from the dense posteriors by " 
+									  + maxDroppedError);
+		
+		System.out.println("Location memory: " + sparse.memoryFootprint() + " bytes capped vs " 
+						   + dense.memoryFootprint() + " bytes dense");
+		check(sparse.memoryFootprint() < dense.memoryFootprint(), 
+			  "Capped locations use no less memory than dense ones");
+		
+		/*
+		 * Negative or NaN thresholds, caps and epsilons are rejected
+		 */
+		double[][] invalid = {{-1.0, 0, 0.0}, {Double.NaN, 0, 0.0}, {2.0, -1, 0.0}, 
+							  {2.0, 0, -1e-4}, {2.0, 0, Double.NaN}};
+		for (double[] arguments : invalid)
+		{
+			boolean rejected = false;
+			try
+			{
+				new PrunedEStep(arguments[0], false, (int) arguments[1], arguments[2]);
+			}
+			catch (IllegalArgumentException e)
+			{
+				rejected = true;
+			}
+			check(rejected, "Pruning accepted " + Arrays.toString(arguments));
+		}
+	}
+	
+	public static void testAcceleratedEM()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		Motif start = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		
+		EMWorkspace plain = new EMWorkspace(sequences, start.getWidth(), MEME_OOPS.DNA_ALPHABET);
+		plain.getMotif().copyFrom(start);
+		int iterations = 0;
+		double prevLogLikelihood = Double.NEGATIVE_INFINITY;
+		do
+		{
+			prevLogLikelihood = plain.getLogLikelihood();
+			plain.iterate();
+			iterations++;
+		}
+		while (iterations < 2 || Math.abs(plain.getLogLikelihood() - prevLogLikelihood) > 0.001);
+		
+		/*
+		 * Plain EM is still climbing when its steps fall below the 
+		 * tolerance, so converge it further for the reference optimum
+		 */
+		EMWorkspace converged = new EMWorkspace(sequences, start.getWidth(), MEME_OOPS.DNA_ALPHABET);
+		converged.getMotif().copyFrom(plain.getMotif());
+		do
+		{
+			prevLogLikelihood = converged.getLogLikelihood();
+			converged.iterate();
+		}
+		while (Math.abs(converged.getLogLikelihood() - prevLogLikelihood) > 1e-6);
+		
+		EMWorkspace accelerated = new EMWorkspace(sequences, start.getWidth(), MEME_OOPS.DNA_ALPHABET);
+		accelerated.getMotif().copyFrom(start);
+		AcceleratedEM em = new AcceleratedEM();
+		em.run(accelerated);
+		
+		System.out.println("Plain EM: " + iterations + " passes, log likelihood " 
+				+ plain.getLogLikelihood());
+		System.out.println("Accelerated EM: " + em.getNumPasses() + " passes, " 
+				+ em.getNumFallbacks() + " fallbacks, log likelihood " 
+				+ em.getLogLikelihood());
+		System.out.println("Converged EM: log likelihood " + converged.getLogLikelihood());
+		check(Math.abs(em.getLogLikelihood() - converged.getLogLikelihood()) < 0.001,
+			  "Accelerated EM did not reach the optimum of plain EM");
+		check(em.getNumPasses() < iterations, "Accelerated EM took more passes than plain EM");
+	}
+	
+	public static void testRestartEnsemble()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		
+		RestartEnsemble unstopped = new RestartEnsemble(8, 4, Double.POSITIVE_INFINITY, 1);
+		long start = System.currentTimeMillis();
+		unstopped.run(sequences, 14);
+		long fullTime = System.currentTimeMillis() - start;
+		
+		RestartEnsemble ensemble = new RestartEnsemble(8, 4, RestartEnsemble.DEFAULT_STOP_MARGIN, 1);
+		start = System.currentTimeMillis();
+		ensemble.run(sequences, 14);
+		long stoppedTime = System.currentTimeMillis() - start;
+		
+		System.out.println(unstopped.getSummary());
+		System.out.println(ensemble.getSummary());
+		System.out.println("Without early stopping: " + unstopped.getSummary().getTotalIterations() 
+				+ " iterations in " + fullTime + " ms");
+		System.out.println("With early stopping: " + ensemble.getSummary().getTotalIterations() 
+				+ " iterations in " + stoppedTime + " ms");
+		
+		/*
+		 * Restarts that converge to the same optimum may differ in the 
+		 * last digits, so compare the best log likelihoods, not the motifs
+		 */
+		RestartSummary fullSummary = unstopped.getSummary();
+		RestartSummary summary = ensemble.getSummary();
+		double fullBest = fullSummary.getLogLikelihood(fullSummary.getBest());
+		double best = summary.getLogLikelihood(summary.getBest());
+		System.out.println("Same best optimum: " + (Math.abs(fullBest - best) < 0.001));
+		check(Math.abs(fullBest - best) < 0.001, "Early stopping lost the best optimum");
+	}
+	
+	public static void testSinglePrecision()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		Motif start = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		
+		EMWorkspace doubles = new EMWorkspace(sequences, start.getWidth(), MEME_OOPS.DNA_ALPHABET, false);
+		EMWorkspace floats = new EMWorkspace(sequences, start.getWidth(), MEME_OOPS.DNA_ALPHABET, true);
+		doubles.getMotif().copyFrom(start);
+		floats.getMotif().copyFrom(start);
+		
+		/*
+		 * One E-Step from the same motif
+		 */
+		doubles.expect();
+		floats.expect();
+		double maxZError = 0.0;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			for (int j = 0; j < sequences.getSequence(i).length() - start.getWidth() + 1; j++)
+			{
+				maxZError = Math.max(maxZError, Math.abs(doubles.getLocations().getLocationProbability(i, j) 
+						- floats.getLocations().getLocationProbability(i, j)));
+			}
+		}
+		System.out.println("Max posterior difference after one E-Step: " + maxZError);
+		System.out.println("Log likelihood difference after one E-Step: " 
+				+ (doubles.getLogLikelihood() - floats.getLogLikelihood()));
+		
+		/*
+		 * Full runs to convergence
+		 */
+		for (int t = 0; t < 100; t++)
+		{
+			doubles.iterate();
+			floats.iterate();
+		}
+		doubles.expect();
+		floats.expect();
+		
+		double[] doubleParams = new double[4 * (start.getWidth() + 1)];
+		double[] floatParams = new double[4 * (start.getWidth() + 1)];
+		doubles.getMotif().getParameters(doubleParams);
+		floats.getMotif().getParameters(floatParams);
+		double maxParamError = 0.0;
+		for (int k = 0; k < doubleParams.length; k++)
+		{
+			maxParamError = Math.max(maxParamError, Math.abs(doubleParams[k] - floatParams[k]));
+		}
+		
+		ArrayList<Pair<Integer, String>> doubleSites = sequences.pickOutMotifs(doubles.getMotif(), doubles.getLocations());
+		ArrayList<Pair<Integer, String>> floatSites = sequences.pickOutMotifs(floats.getMotif(), floats.getLocations());
+		int agree = 0;
+		for (int i = 0; i < doubleSites.size(); i++)
+		{
+			if (doubleSites.get(i).getFirst().equals(floatSites.get(i).getFirst()))
+			{
+				agree++;
+			}
+		}
+		
+		System.out.println("Max parameter difference after 100 iterations: " + maxParamError);
+		System.out.println("Log likelihood: " + doubles.getLogLikelihood() + " vs " + floats.getLogLikelihood());
+		System.out.println("Sites agreeing: " + agree + " of " + doubleSites.size());
+		System.out.println("Location memory: " + doubles.getLocations().memoryFootprint() 
+				+ " vs " + floats.getLocations().memoryFootprint() + " bytes");
+		
+		check(maxZError < 1e-6, "Single precision posteriors differ by " + maxZError);
+		check(maxParamError < 1e-6, "Single precision parameters differ by " + maxParamError);
+		check(Math.abs(doubles.getLogLikelihood() - floats.getLogLikelihood()) < 0.001, 
+			  "Single precision log likelihood differs");
+		check(agree == doubleSites.size(), "Single precision sites differ");
+		check(floats.getLocations().memoryFootprint() < doubles.getLocations().memoryFootprint(), 
+			  "Single precision locations are not smaller");
+		
+		/*
+		 * Single precision also applies to runs seeded from k-mers, as with
+		 * -pipelined -float
+		 */
+		KmerSeedIndex seedIndex = new KmerSeedIndex(MEME_OOPS.DNA_ALPHABET, 
+				KmerSeedIndex.defaultK(MEME_OOPS.DNA_ALPHABET.length()));
+		seedIndex.consume(sequences, 0);
+		EMSettings settings = new EMSettings();
+		settings.setSeeds(seedIndex.getSeeds(sequences, 14, KmerSeedIndex.DEFAULT_NUM_SEEDS));
+		Pair<Motif, MotifLocations> seededDoubles = MEME_OOPS.run(sequences, 14, settings);
+		settings.setSinglePrecision(true);
+		Pair<Motif, MotifLocations> seededFloats = MEME_OOPS.run(sequences, 14, settings);
+		seededDoubles.getFirst().getParameters(doubleParams);
+		seededFloats.getFirst().getParameters(floatParams);
+		double maxSeededError = 0.0;
+		for (int k = 0; k < doubleParams.length; k++)
+		{
+			maxSeededError = Math.max(maxSeededError, Math.abs(doubleParams[k] - floatParams[k]));
+		}
+		System.out.println("Max parameter difference of k-mer seeded runs: " + maxSeededError);
+		check(maxSeededError < 1e-4, "Seeded single precision parameters differ by " + maxSeededError);
+	}
+	
+	public static void benchmarkBlockScorer()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		Motif motif = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		int width = motif.getWidth();
+		
+		/*
+		 * A long random sequence, encoded as symbol indices
+		 */
+		Random rand = new Random(1);
+		byte[] genome = new byte[1 << 22];
+		for (int i = 0; i < genome.length; i++)
+		{
+			genome[i] = (byte) rand.nextInt(4);
+		}
+		
+		double[][] logOdds = new double[width][4];
+		for (int k = 0; k < width; k++)
+		{
+			for (int s = 0; s < 4; s++)
+			{
+				char symbol = motif.getAlphabet().get(s);
+				logOdds[k][s] = Math.log(motif.getProbability(symbol, k + 1)) 
+							  - Math.log(motif.getProbability(symbol, 0));
+			}
+		}
+		
+		int numWindows = genome.length - width + 1;
+		double[] perBase = new double[numWindows];
+		double[] blocks = new double[numWindows];
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < 5; r++)
+		{
+			long start = System.nanoTime();
+			for (int j = 0; j < numWindows; j++)
+			{
+				double score = 0.0;
+				for (int k = 0; k < width; k++)
+				{
+					score += logOdds[k][genome[j + k]];
+				}
+				perBase[j] = score;
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println("Per-base scoring: " + best / 1000000 + " ms");
+		
+		for (int blockSize = 4; blockSize <= 6; blockSize++)
+		{
+			KmerBlockScorer scorer = new KmerBlockScorer(width, 4, blockSize);
+			
+			long start = System.nanoTime();
+			for (int t = 0; t < 100; t++)
+			{
+				scorer.compile(logOdds);
+			}
+			long compileTime = (System.nanoTime() - start) / 100;
+			
+			int[] codes = new int[genome.length];
+			start = System.nanoTime();
+			scorer.encode(genome, genome.length, codes);
+			long encodeTime = System.nanoTime() - start;
+			
+			long scoreTime = Long.MAX_VALUE;
+			for (int r = 0; r < 5; r++)
+			{
+				start = System.nanoTime();
+				for (int j = 0; j < numWindows; j++)
+				{
+					blocks[j] = scorer.score(codes, j);
+				}
+				scoreTime = Math.min(scoreTime, System.nanoTime() - start);
+			}
+			
+			double maxError = 0.0;
+			for (int j = 0; j < numWindows; j++)
+			{
+				maxError = Math.max(maxError, Math.abs(blocks[j] - perBase[j]));
+			}
+			
+			System.out.println("Blocks of " + blockSize + " (" + scorer.getNumBlocks() 
+					+ " lookups): compile " + compileTime / 1000 + " us, encode " 
+					+ encodeTime / 1000000 + " ms, score " + scoreTime / 1000000 
+					+ " ms, max difference " + maxError);
+		}
+		
+		/*
+		 * Full EM iterations with each E-Step
+		 */
+		for (int blockSize = 0; blockSize <= 6; blockSize += 5)
+		{
+			EMWorkspace workspace = new EMWorkspace(sequences, width, MEME_OOPS.DNA_ALPHABET);
+			workspace.setBlockScoring(blockSize);
+			workspace.getMotif().copyFrom(motif);
+			long start = System.nanoTime();
+			for (int t = 0; t < 20; t++)
+			{
+				workspace.iterate();
+			}
+			System.out.println((blockSize == 0 ? "Per-base" : "Block") + " E-Step, 20 iterations: " 
+					+ (System.nanoTime() - start) / 1000000 + " ms, log likelihood " 
+					+ workspace.getLogLikelihood());
+		}
+	}
+	
+	public static void testParallelEStep()
+	{
+		/*
+		 * Random sequences with lengths from 50 to 20000 residues, the long
+		 * ones rare
+		 */
+		Random rand = new Random(1);
+		SequenceSet sequences = new SequenceSet();
+		for (int i = 0; i < 2000; i++)
+		{
+			int length = (int) (50 * Math.pow(400, Math.pow(rand.nextDouble(), 3)));
+			StringBuilder sequence = new StringBuilder();
+			for (int j = 0; j < length; j++)
+			{
+				sequence.append(MEME_OOPS.DNA_ALPHABET.charAt(rand.nextInt(4)));
+			}
+			sequences.addSequence(sequence.toString());
+		}
+		SequenceSet ordered = sequences.orderByLength();
+		Motif start = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		
+		int numThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		double windowImbalance = new WorkPartition(ordered, 14, numThreads).getImbalance();
+		System.out.println("Imbalance of " + numThreads + " ranges by window count: " 
+				+ windowImbalance);
+		
+		long[] countSplit = new long[numThreads];
+		for (int i = 0; i < ordered.getNumSequences(); i++)
+		{
+			countSplit[i * numThreads / ordered.getNumSequences()] 
+					+= WorkPartition.numWindows(ordered.getSequence(i), 14);
+		}
+		long max = 0;
+		long total = 0;
+		for (long work : countSplit)
+		{
+			max = Math.max(max, work);
+			total += work;
+		}
+		double sequenceImbalance = (double) max * numThreads / total;
+		System.out.println("Imbalance of " + numThreads + " ranges by sequence count: " 
+				+ sequenceImbalance);
+		check(windowImbalance < 1.1, "Ranges by window count are unbalanced");
+		check(windowImbalance < sequenceImbalance, 
+			  "Ranges by window count are no better than by sequence count");
+		
+		EMWorkspace serial = null;
+		for (int threads = 1; threads <= numThreads; threads *= 2)
+		{
+			EMWorkspace workspace = new EMWorkspace(ordered, 14, MEME_OOPS.DNA_ALPHABET);
+			workspace.setNumThreads(threads);
+			workspace.getMotif().copyFrom(start);
+			workspace.iterate();
+			
+			long begin = System.nanoTime();
+			for (int t = 0; t < 5; t++)
+			{
+				workspace.iterate();
+			}
+			System.out.println(threads + " threads: " + (System.nanoTime() - begin) / 5000000 
+					+ " ms per iteration, log likelihood " + workspace.getLogLikelihood());
+			workspace.setNumThreads(0);
+			
+			if (serial == null)
+			{
+				serial = workspace;
+				continue;
+			}
+			
+			/*
+			 * Each sequence's posteriors are computed alone, so only the 
+			 * order of summing the counts differs from the serial run
+			 */
+			double maxZError = 0.0;
+			for (int i = 0; i < ordered.getNumSequences(); i++)
+			{
+				for (int j = 0; j < ordered.getSequence(i).length() - 14 + 1; j++)
+				{
+					maxZError = Math.max(maxZError, 
+							Math.abs(workspace.getLocations().getLocationProbability(i, j) 
+									 - serial.getLocations().getLocationProbability(i, j)));
+				}
+			}
+			check(maxZError < 1e-9, threads + " threads changed the posteriors by " + maxZError);
+			check(Math.abs(workspace.getLogLikelihood() - serial.getLogLikelihood()) 
+					< 1e-9 * Math.abs(serial.getLogLikelihood()), 
+				  threads + " threads changed the log likelihood");
+		}
+	}
+	
+	public static void testIngestPipeline()
+	{
+		String file = "./data/hw1_sequences.txt";
+		LowComplexityMasker masker = new LowComplexityMasker();
+		
+		/*
+		 * Small chunks and queues, so reading stalls on the stages
+		 */
+		LengthStatistics lengths = new LengthStatistics();
+		BackgroundEstimator background = new BackgroundEstimator(MEME_OOPS.DNA_ALPHABET, 1.0);
+		KmerSeedIndex seedIndex = new KmerSeedIndex(MEME_OOPS.DNA_ALPHABET, KmerSeedIndex.DEFAULT_K);
+		IngestPipeline pipeline = new IngestPipeline(file, masker, 3, 1);
+		pipeline.addStage(lengths);
+		pipeline.addStage(background);
+		pipeline.addStage(seedIndex);
+		
+		SequenceSet sequences;
+		try
+		{
+			sequences = pipeline.run();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		
+		SequenceSet expected = SequenceReader.readFile(file, masker);
+		boolean same = sequences.getNumSequences() == expected.getNumSequences()
+				&& sequences.getNumMaskedResidues() == expected.getNumMaskedResidues();
+		for (int i = 0; same && i < sequences.getNumSequences(); i++)
+		{
+			same = sequences.getSequence(i).equals(expected.getSequence(i));
+		}
+		System.out.println("Same sequences and masks as SequenceReader: " + same);
+		check(same, "The pipeline read different sequences or masks than SequenceReader");
+		System.out.println("Stalls: " + pipeline.getNumStalls());
+		System.out.println(lengths);
+		System.out.println(background);
+		
+		/*
+		 * EM from the k-mer seeds against EM from every subsequence
+		 */
+		ArrayList<Pair<Integer, Integer>> seeds = seedIndex.getSeeds(sequences, 
+				14, KmerSeedIndex.DEFAULT_NUM_SEEDS);
+		EMSettings settings = new EMSettings();
+		settings.setSeeds(seeds);
+		long begin = System.nanoTime();
+		Pair<Motif, MotifLocations> seeded = MEME_OOPS.run(sequences, 14, settings);
+		long seededTime = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		Pair<Motif, MotifLocations> full = MEME_OOPS.run(sequences, 14);
+		long fullTime = System.nanoTime() - begin;
+		
+		double seededProbData = MEME_OOPS.probabilityOfData(sequences, seeded.getFirst(), seeded.getSecond());
+		double fullProbData = MEME_OOPS.probabilityOfData(sequences, full.getFirst(), full.getSecond());
+		System.out.println(seeds.size() + " k-mer seeds: " + seededTime / 1000000 + " ms, -log P(D) " 
+				+ seededProbData);
+		System.out.println("Every subsequence: " + fullTime / 1000000 + " ms, -log P(D) " 
+				+ fullProbData);
+		check(!seeds.isEmpty() && seeds.size() <= KmerSeedIndex.DEFAULT_NUM_SEEDS, 
+			  "Wrong number of k-mer seeds");
+		check(seededProbData <= fullProbData + 0.001, 
+			  "EM from the k-mer seeds fit worse than from every subsequence");
+		System.out.println(seeded.getFirst());
+		System.out.println(full.getFirst());
+	}
+	
+	public static void testDistributedEM()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		Motif start = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		
+		try
+		{
+			/*
+			 * Three workers on localhost
+			 */
+			ArrayList<EMWorker> workers = new ArrayList<EMWorker>();
+			ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+			for (int w = 0; w < 3; w++)
+			{
+				final EMWorker worker = new EMWorker(0);
+				Thread thread = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						worker.serve();
+					}
+				});
+				thread.setDaemon(true);
+				thread.start();
+				workers.add(worker);
+				addresses.add(new InetSocketAddress("localhost", worker.getPort()));
+			}
+			
+			File directory = File.createTempFile("shards", "");
+			directory.delete();
+			directory.mkdir();
+			
+			DistributedEM em = new DistributedEM(addresses, DistributedEM.DEFAULT_TIMEOUT);
+			em.writeShards(sequences, 14, 7, directory);
+			
+			/*
+			 * The same iterations on one machine
+			 */
+			EMWorkspace workspace = new EMWorkspace(sequences, 14, MEME_OOPS.DNA_ALPHABET);
+			workspace.setBlockScoring(KmerBlockScorer.DEFAULT_BLOCK_SIZE);
+			workspace.getMotif().copyFrom(start);
+			Motif p = new Motif(start);
+			Counts counts = new Counts(p);
+			double maxDiff = 0.0;
+			double maxCountDiff = 0.0;
+			for (int t = 0; t < 20; t++)
+			{
+				workspace.iterate();
+				double logLikelihood = em.iterate(p, counts);
+				maxDiff = Math.max(maxDiff, Math.abs(logLikelihood - workspace.getLogLikelihood()));
+				for (int k = 0; k < 4; k++)
+				{
+					for (int j = 0; j <= 14; j++)
+					{
+						maxCountDiff = Math.max(maxCountDiff, 
+								Math.abs(counts.getCountAtPosition(k, j) 
+										 - workspace.getCounts().getCountAtPosition(k, j)));
+					}
+					maxCountDiff = Math.max(maxCountDiff, 
+							Math.abs(counts.getBGCount(k) - workspace.getCounts().getBGCount(k)));
+				}
+			}
+			double[] local = new double[4 * 15];
+			double[] distributed = new double[4 * 15];
+			workspace.getMotif().getParameters(local);
+			p.getParameters(distributed);
+			double maxParamDiff = 0.0;
+			for (int i = 0; i < local.length; i++)
+			{
+				maxParamDiff = Math.max(maxParamDiff, Math.abs(local[i] - distributed[i]));
+			}
+			System.out.println("Largest log likelihood difference from local EM: " + maxDiff);
+			System.out.println("Largest parameter difference from local EM: " + maxParamDiff);
+			System.out.println("Largest count difference from local EM: " + maxCountDiff);
+			check(maxDiff < 1e-9, "Distributed log likelihood differs from local EM");
+			check(maxCountDiff < 1e-9, "Distributed counts differ from local EM");
+			check(maxParamDiff < 1e-12, "Distributed parameters differ from local EM");
+			
+			/*
+			 * Kill a worker part way through a run
+			 */
+			Motif clean = em.run(start);
+			p.copyFrom(start);
+			for (int t = 0; t < 3; t++)
+			{
+				em.iterate(p, counts);
+			}
+			workers.get(0).close();
+			Motif recovered = em.run(p);
+			System.out.println("Workers left: " + em.getNumWorkers() 
+							   + ", shards reassigned: " + em.getNumReassigned());
+			check(em.getNumWorkers() == 2, "The failed worker was not dropped");
+			check(em.getNumReassigned() > 0, "The failed worker's shards were not reassigned");
+			
+			clean.getParameters(local);
+			recovered.getParameters(distributed);
+			maxParamDiff = 0.0;
+			for (int i = 0; i < local.length; i++)
+			{
+				maxParamDiff = Math.max(maxParamDiff, Math.abs(local[i] - distributed[i]));
+			}
+			System.out.println("Largest parameter difference after the failure: " + maxParamDiff);
+			check(maxParamDiff < 1e-12, "The run recovered from the failure to different parameters");
+			
+			em.close();
+			for (EMWorker worker : workers)
+			{
+				worker.close();
+			}
+			for (File file : directory.listFiles())
+			{
+				file.delete();
+			}
+			directory.delete();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	public static void testResultCache()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		String corpus = ResultCache.hash(sequences);
+		SequenceSet masked = SequenceReader.readFile("./data/hw1_sequences.txt");
+		BitSet mask = new BitSet();
+		mask.set(10, 20);
+		masked.setMask(3, mask);
+		System.out.println("Masking changes the corpus hash: " 
+						   + !corpus.equals(ResultCache.hash(masked)));
+		check(!corpus.equals(ResultCache.hash(masked)), "Masking did not change the corpus hash");
+		check(corpus.equals(ResultCache.hash(SequenceReader.readFile("./data/hw1_sequences.txt"))), 
+			  "The same corpus hashed differently");
+		
+		try
+		{
+			File directory = File.createTempFile("cache", "");
+			directory.delete();
+			
+			/*
+			 * Room for about three results
+			 */
+			ResultCache cache = new ResultCache(directory, 1800);
+			Motif p = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+			ArrayList<Integer> positions = new ArrayList<Integer>();
+			for (int i = 0; i < sequences.getNumSequences(); i++)
+			{
+				positions.add(i);
+			}
+			LinkedHashMap<String, String> metrics = new LinkedHashMap<String, String>();
+			metrics.put("seconds", "1.0");
+			
+			String[] keys = new String[4];
+			for (int w = 0; w < keys.length; w++)
+			{
+				keys[w] = ResultCache.key(corpus, "OOPS", Integer.toString(w));
+				cache.putResult(keys[w], p, positions, metrics);
+				Thread.sleep(20);
+				
+				/*
+				 * Keep the first result in use
+				 */
+				cache.getResult(keys[0]);
+				Thread.sleep(20);
+			}
+			System.out.println("Cache size " + cache.getSize() + " bytes");
+			check(cache.getSize() <= 1800, "The cache grew past its limit");
+			for (int w = 0; w < keys.length; w++)
+			{
+				boolean present = cache.getResult(keys[w]) != null;
+				System.out.println("Result " + w + " cached: " + present);
+				
+				/*
+				 * The least recently used result was evicted
+				 */
+				check(present == (w != 1), "Result " + w + (present ? " was not evicted" : " was evicted"));
+			}
+			
+			ResultCache.CachedResult cached = cache.getResult(keys[0]);
+			double[] stored = new double[4 * 15];
+			double[] read = new double[4 * 15];
+			p.getParameters(stored);
+			cached.getMotif().getParameters(read);
+			System.out.println("Round trip: " + Arrays.equals(stored, read) + " " 
+							   + cached.getPositions().equals(positions) + " " 
+							   + cached.getMetrics());
+			check(Arrays.equals(stored, read), "The cached motif changed in the round trip");
+			check(cached.getPositions().equals(positions), "The cached positions changed in the round trip");
+			check(cached.getMetrics().equals(metrics), "The cached metrics changed in the round trip");
+			
+			/*
+			 * The k-mer table gives the same seeds after a round trip
+			 */
+			KmerSeedIndex index = new KmerSeedIndex(MEME_OOPS.DNA_ALPHABET, 8);
+			index.consume(sequences, 0);
+			String kmerKey = ResultCache.key(corpus, "kmers", "8");
+			cache.putKmerIndex(kmerKey, index);
+			ArrayList<Pair<Integer, Integer>> seeds = index.getSeeds(sequences, 14, 50);
+			ArrayList<Pair<Integer, Integer>> cachedSeeds 
+							= cache.getKmerIndex(kmerKey).getSeeds(sequences, 14, 50);
+			boolean sameSeeds = seeds.size() == cachedSeeds.size();
+			for (int i = 0; sameSeeds && i < seeds.size(); i++)
+			{
+				sameSeeds = seeds.get(i).getFirst().equals(cachedSeeds.get(i).getFirst()) 
+						&& seeds.get(i).getSecond().equals(cachedSeeds.get(i).getSecond());
+			}
+			System.out.println("Same seeds from the cached k-mer table: " + sameSeeds);
+			check(sameSeeds, "The cached k-mer table gave different seeds");
+			
+			/*
+			 * A damaged entry is a miss
+			 */
+			File damaged = new File(directory, keys[0] + ".result");
+			RandomAccessFile file = new RandomAccessFile(damaged, "rw");
+			file.setLength(20);
+			file.close();
+			System.out.println("Damaged entry read as missing: " + (cache.getResult(keys[0]) == null) 
+							   + ", deleted: " + !damaged.exists());
+			check(cache.getResult(keys[0]) == null && !damaged.exists(), 
+				  "A damaged entry was not treated as a miss and deleted");
+			System.out.println(cache.getNumHits() + " hits, " + cache.getNumMisses() + " misses");
+			
+			for (File entry : directory.listFiles())
+			{
+				entry.delete();
+			}
+			directory.delete();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	public static void testFusedEM()
+	{
+		/*
+		 * Random sequences of 1000 residues with a planted motif
+		 */
+		Random rand = new Random(3);
+		String planted = "GTCCCAGGGTGGGC";
+		SequenceSet sequences = new SequenceSet();
+		for (int i = 0; i < 2000; i++)
+		{
+			StringBuilder sequence = new StringBuilder();
+			for (int j = 0; j < 1000; j++)
+			{
+				sequence.append(MEME_OOPS.DNA_ALPHABET.charAt(rand.nextInt(4)));
+			}
+			int start = rand.nextInt(1000 - planted.length());
+			sequence.replace(start, start + planted.length(), planted);
+			sequences.addSequence(sequence.toString());
+		}
+		Motif start = new Motif("GTCCAAGGGTGCGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		
+		EMWorkspace workspace = new EMWorkspace(sequences, 14, MEME_OOPS.DNA_ALPHABET);
+		workspace.setNumThreads(1);
+		workspace.getMotif().copyFrom(start);
+		
+		FusedEM fused = new FusedEM();
+		Motif p = new Motif(start);
+		Counts counts = new Counts(p);
+		
+		double maxDiff = 0.0;
+		for (int t = 0; t < 10; t++)
+		{
+			workspace.iterate();
+			double logLikelihood = fused.iterate(sequences, p, counts);
+			maxDiff = Math.max(maxDiff, Math.abs(logLikelihood - workspace.getLogLikelihood()));
+		}
+		workspace.setNumThreads(0);
+		
+		double[] dense = new double[4 * 15];
+		double[] lowMemory = new double[4 * 15];
+		workspace.getMotif().getParameters(dense);
+		p.getParameters(lowMemory);
+		double maxParamDiff = 0.0;
+		for (int i = 0; i < dense.length; i++)
+		{
+			maxParamDiff = Math.max(maxParamDiff, Math.abs(dense[i] - lowMemory[i]));
+		}
+		
+		int sameStarts = 0;
+		MotifLocations z = workspace.getLocations();
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			if (z.maxProbabilityStartPosition(sequences.getSequence(i)) == fused.getBestStarts()[i])
+			{
+				sameStarts++;
+			}
+		}
+		
+		System.out.println("Largest log likelihood difference: " + maxDiff);
+		System.out.println("Largest parameter difference: " + maxParamDiff);
+		System.out.println("Same most probable start in " + sameStarts + " of " 
+						   + sequences.getNumSequences() + " sequences");
+		System.out.println("Motif locations: " + z.memoryFootprint() + " bytes, fused state: " 
+						   + fused.memoryFootprint() + " bytes");
+		
+		/*
+		 * The log likelihoods differ only by the order of summation
+		 */
+		check(maxDiff < 1e-12 * Math.abs(workspace.getLogLikelihood()), 
+			  "Fused log likelihood differs from the dense E-Step");
+		check(maxParamDiff < 1e-12, "Fused parameters differ from the dense E-Step");
+		check(sameStarts == sequences.getNumSequences(), 
+			  "Fused EM kept a different most probable start");
+		check(fused.memoryFootprint() < z.memoryFootprint() / 100, 
+			  "Fused state is not much smaller than the motif locations");
+	}
+	
+	public static void testFlightEvents() throws IOException
+	{
+		Recording recording = new Recording();
+		for (String name : new String[] {"meme.Load", "meme.Seeding", "meme.Seed", "meme.Iteration"})
+		{
+			recording.enable(name);
+		}
+		recording.start();
+		
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		SampledSeeding seeding = new SampledSeeding(3, 2.0, 3, 0.1, 3, 42L);
+		EMSettings settings = new EMSettings();
+		settings.setSeeding(seeding);
+		MEME_OOPS.run(sequences, 6, settings);
+		
+		recording.stop();
+		File file = File.createTempFile("meme", ".jfr");
+		recording.dump(file.toPath());
+		recording.close();
+		
+		TreeMap<String, Integer> numEvents = new TreeMap<String, Integer>();
+		RecordedEvent lastIteration = null;
+		for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath()))
+		{
+			String name = event.getEventType().getName();
+			Integer count = numEvents.get(name);
+			numEvents.put(name, count == null ? 1 : count + 1);
+			if (name.equals("meme.Iteration"))
+			{
+				lastIteration = event;
+			}
+		}
+		file.delete();
+		
+		System.out.println("Events: " + numEvents);
+		System.out.println("Last iteration: " + lastIteration);
+	}
+	
+	public static void testScoreDistribution()
+	{
+		/*
+		 * Enumerate every window of a short motif to get its exact score 
+		 * distribution
+		 */
+		Motif motif = new Motif("GTCCCA", MEME_OOPS.DNA_ALPHABET, 0.6);
+		motif.setProbability('A', 0, 0.3);
+		motif.setProbability('C', 0, 0.2);
+		motif.setProbability('G', 0, 0.2);
+		motif.setProbability('T', 0, 0.3);
+		ScoreDistribution distribution = ScoreDistribution.forMotif(motif);
+		
+		int width = motif.getWidth();
+		int numWindows = 1 << (2 * width);
+		long[] units = new long[numWindows];
+		double[] probabilities = new double[numWindows];
+		for (int w = 0; w < numWindows; w++)
+		{
+			long unit = 0;
+			double probability = 1.0;
+			for (int k = 0; k < width; k++)
+			{
+				char symbol = MEME_OOPS.DNA_ALPHABET.charAt((w >> (2 * k)) & 3);
+				double bits = Math.log(motif.getProbability(symbol, k + 1) 
+						/ motif.getProbability(symbol, 0)) / Math.log(2);
+				unit += Math.round(bits * ScoreDistribution.SCORE_RESOLUTION);
+				probability *= motif.getProbability(symbol, 0);
+			}
+			units[w] = unit;
+			probabilities[w] = probability;
+		}
+		
+		double maxDiff = 0.0;
+		for (int w = 0; w < numWindows; w++)
+		{
+			double exact = 0.0;
+			for (int v = 0; v < numWindows; v++)
+			{
+				if (units[v] >= units[w])
+				{
+					exact += probabilities[v];
+				}
+			}
+			double score = units[w] / ScoreDistribution.SCORE_RESOLUTION;
+			maxDiff = Math.max(maxDiff, Math.abs(exact - distribution.pValue(score)));
+		}
+		System.out.println("Score range: " + distribution.getMinScore() + " to " 
+						   + distribution.getMaxScore() + " bits");
+		System.out.println("Largest p-value difference from enumeration: " + maxDiff);
+		check(maxDiff < 1e-12, "p-values differ from enumeration");
+		
+		/*
+		 * The threshold is the lowest score whose p-value is within the 
+		 * target
+		 */
+		for (double pValue : new double[] {1e-1, 1e-2, 1e-3})
+		{
+			double threshold = distribution.threshold(pValue);
+			System.out.println("p = " + pValue + ": threshold " + threshold 
+							   + " bits, p-value of threshold " + distribution.pValue(threshold) 
+							   + ", of threshold - 0.01 " + distribution.pValue(threshold - 0.01));
+			check(distribution.pValue(threshold) <= pValue, 
+				  "Threshold for p = " + pValue + " is too low");
+			check(distribution.pValue(threshold - 0.01) > pValue, 
+				  "Threshold for p = " + pValue + " is not the lowest");
+		}
+		
+		/*
+		 * Repeated queries for a wide motif reuse the cached distribution
+		 */
+		Motif wide = new Motif("GTCCCAGGGTGGGCGTCCCAGGGT", MEME_OOPS.DNA_ALPHABET, 0.7);
+		long start = System.nanoTime();
+		double firstThreshold = SiteScanner.thresholdForPValue(wide, 1e-6);
+		long first = System.nanoTime() - start;
+		double threshold = firstThreshold;
+		start = System.nanoTime();
+		for (int i = 0; i < 1000; i++)
+		{
+			threshold = SiteScanner.thresholdForPValue(wide, 1e-6);
+		}
+		long repeated = (System.nanoTime() - start) / 1000;
+		System.out.println("Threshold " + threshold + " bits: first query " + first / 1000 
+						   + " us, cached query " + repeated / 1000.0 + " us");
+		check(threshold == firstThreshold, "The cached distribution gave a different threshold");
+	}
+	
+	public static void testProteinMotif()
+	{
+		/*
+		 * Random protein sequences of 300 residues with a planted motif
+		 */
+		Alphabet alphabet = Alphabet.PROTEIN;
+		Random rand = new Random(5);
+		String planted = "WHKMCPYQ";
+		SequenceSet sequences = new SequenceSet();
+		int[] plantedStarts = new int[300];
+		for (int i = 0; i < plantedStarts.length; i++)
+		{
+			StringBuilder sequence = new StringBuilder();
+			for (int j = 0; j < 300; j++)
+			{
+				sequence.append(alphabet.getSymbol(rand.nextInt(alphabet.size())));
+			}
+			plantedStarts[i] = rand.nextInt(300 - planted.length());
+			sequence.replace(plantedStarts[i], plantedStarts[i] + planted.length(), planted);
+			sequences.addSequence(sequence.toString());
+		}
+		
+		KmerSeedIndex seedIndex = new KmerSeedIndex(alphabet.getSymbols(), 
+													KmerSeedIndex.defaultK(alphabet.size()));
+		seedIndex.consume(sequences, 0);
+		ArrayList<Pair<Integer, Integer>> seeds = seedIndex.getSeeds(sequences, 
+				planted.length(), KmerSeedIndex.DEFAULT_NUM_SEEDS);
+		
+		EMSettings settings = new EMSettings();
+		settings.setAlphabet(alphabet.getSymbols());
+		settings.setSeeds(seeds);
+		long begin = System.nanoTime();
+		Pair<Motif, MotifLocations> result = MEME_OOPS.run(sequences, 
+														   planted.length(), 
+														   settings);
+		long time = System.nanoTime() - begin;
+		
+		int found = 0;
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			if (result.getSecond().maxProbabilityStartPosition(sequences.getSequence(i)) == plantedStarts[i])
+			{
+				found++;
+			}
+		}
+		
+		System.out.println("k = " + seedIndex.getK() + ", block size " 
+						   + KmerBlockScorer.defaultBlockSize(alphabet.size()));
+		System.out.println("Planted motif found in " + found + " of " 
+						   + sequences.getNumSequences() + " sequences in " + time / 1000000 + " ms");
+		StringBuilder consensus = new StringBuilder();
+		for (int k = 1; k <= planted.length(); k++)
+		{
+			char best = alphabet.getSymbol(0);
+			for (int s = 1; s < alphabet.size(); s++)
+			{
+				char symbol = alphabet.getSymbol(s);
+				if (result.getFirst().getProbability(symbol, k) > result.getFirst().getProbability(best, k))
+				{
+					best = symbol;
+				}
+			}
+			consensus.append(best);
+		}
+		System.out.println("Consensus: " + consensus);
+	}
+	
+	public static void testMotifLibrary() throws IOException
+	{
+		/*
+		 * A library of random motifs, each column favouring one nucleotide
+		 */
+		Random rand = new Random(6);
+		ArrayList<Motif> motifs = new ArrayList<Motif>();
+		for (int m = 0; m < 2000; m++)
+		{
+			motifs.add(randomColumns(6 + rand.nextInt(15), rand));
+		}
+		
+		/*
+		 * Queries are windows of library motifs with noise added, the first on
+		 * the reverse strand
+		 */
+		ArrayList<Motif> queries = new ArrayList<Motif>();
+		int[] sources = new int[100];
+		for (int q = 0; q < sources.length; q++)
+		{
+			sources[q] = rand.nextInt(motifs.size());
+			Motif source = motifs.get(sources[q]);
+			int width = Math.min(source.getWidth(), 8);
+			int start = rand.nextInt(source.getWidth() - width + 1);
+			Motif query = new Motif(width, MEME_OOPS.DNA_ALPHABET);
+			for (int k = 1; k <= width; k++)
+			{
+				double total = 0.0;
+				double[] column = new double[4];
+				for (int s = 0; s < 4; s++)
+				{
+					int from = (q == 0) ? width - k + 1 : k;
+					char symbol = MEME_OOPS.DNA_ALPHABET.charAt((q == 0) ? 3 - s : s);
+					column[s] = source.getProbability(symbol, start + from) + 0.1 * rand.nextDouble();
+					total += column[s];
+				}
+				for (int s = 0; s < 4; s++)
+				{
+					query.setProbability(MEME_OOPS.DNA_ALPHABET.charAt(s), k, column[s] / total);
+				}
+			}
+			queries.add(query);
+		}
+		
+		/*
+		 * Write the library in JASPAR format, as counts from 100 sites
+		 */
+		File file = File.createTempFile("library", ".jaspar");
+		PrintWriter writer = new PrintWriter(file);
+		for (int m = 0; m < motifs.size(); m++)
+		{
+			writer.println(">MA" + m + " motif" + m);
+			for (int s = 0; s < 4; s++)
+			{
+				char symbol = MEME_OOPS.DNA_ALPHABET.charAt(s);
+				writer.print(symbol + " [");
+				for (int k = 1; k <= motifs.get(m).getWidth(); k++)
+				{
+					writer.print(" " + Math.round(100 * motifs.get(m).getProbability(symbol, k)));
+				}
+				writer.println(" ]");
+			}
+		}
+		writer.close();
+		
+		long begin = System.nanoTime();
+		MotifLibrary library = MotifLibrary.readJaspar(file.getPath());
+		long loadTime = System.nanoTime() - begin;
+		file.delete();
+		
+		for (int divergence = 0; divergence < 2; divergence++)
+		{
+			library.setDivergence(divergence == 1);
+			
+			library.setPrefilter(false);
+			begin = System.nanoTime();
+			ArrayList<ArrayList<MotifMatch>> exhaustive = library.search(queries, 5);
+			long exhaustiveTime = System.nanoTime() - begin;
+			
+			library.setPrefilter(true);
+			begin = System.nanoTime();
+			ArrayList<ArrayList<MotifMatch>> filtered = library.search(queries, 5);
+			long filteredTime = System.nanoTime() - begin;
+			
+			int sourceFound = 0;
+			int agree = 0;
+			for (int q = 0; q < queries.size(); q++)
+			{
+				if (filtered.get(q).get(0).getIndex() == sources[q])
+				{
+					sourceFound++;
+				}
+				if (filtered.get(q).get(0).getIndex() == exhaustive.get(q).get(0).getIndex())
+				{
+					agree++;
+				}
+			}
+			
+			System.out.println((divergence == 1 ? "KL" : "Pearson") 
+							   + ": source motif ranked first for " + sourceFound + " of " 
+							   + queries.size() + " queries, prefiltered and exhaustive top "
+							   + "match agree for " + agree);
+			System.out.println("Exhaustive " + exhaustiveTime / 1000 / queries.size() 
+							   + " us per query, prefiltered " 
+							   + filteredTime / 1000 / queries.size() + " us per query");
+			System.out.println("Reverse strand query: " + filtered.get(0).get(0) 
+							   + " (source motif" + sources[0] + ")");
+			check(agree == queries.size(), "The prefilter changed the top match");
+			check(sourceFound >= 95, "The source motif was ranked first for too few queries");
+			check(filtered.get(0).get(0).getIndex() == sources[0] 
+				  && filtered.get(0).get(0).isReverseStrand(), 
+				  "The reverse strand query did not match its source on the reverse strand");
+		}
+		System.out.println("Loaded " + library.getNumMotifs() + " motifs in " 
+						   + loadTime / 1000000 + " ms");
+		check(library.getNumMotifs() == motifs.size(), "Not every motif of the library was read");
+	}
+	
+	/**
+	 * @return a motif of random columns, each favouring one nucleotide
+	 */
+	public static Motif randomColumns(int width, Random rand)
+	{
+		Motif motif = new Motif(width, MEME_OOPS.DNA_ALPHABET);
+		for (int k = 1; k <= width; k++)
+		{
+			int favoured = rand.nextInt(4);
+			double[] column = new double[4];
+			double total = 0.0;
+			for (int s = 0; s < 4; s++)
+			{
+				column[s] = rand.nextDouble() + (s == favoured ? 2.0 : 0.0);
+				total += column[s];
+			}
+			for (int s = 0; s < 4; s++)
+			{
+				motif.setProbability(MEME_OOPS.DNA_ALPHABET.charAt(s), k, column[s] / total);
+			}
+		}
+		return motif;
+	}
+	
+	public static void testResultWriter() throws IOException
+	{
+		/*
+		 * Two motifs and a million sites each, with posteriors and strands
+		 */
+		Motif first = exampleMotif();
+		Motif second = new Motif("GTCCCAGG", MEME_OOPS.DNA_ALPHABET, 0.7);
+		Random rand = new Random(7);
+		int numSites = 1000000;
+		
+		File textFile = File.createTempFile("results", ".txt");
+		File binaryFile = File.createTempFile("results", ".bin");
+		long[] times = new long[2];
+		for (int binary = 0; binary < 2; binary++)
+		{
+			rand.setSeed(7);
+			long begin = System.nanoTime();
+			ResultWriter out = new ResultWriter(binary == 1 ? binaryFile : textFile, binary == 1);
+			for (Motif motif : new Motif[] {first, second})
+			{
+				int number = out.writeMotif(motif);
+				for (int i = 0; i < numSites; i++)
+				{
+					out.writeSite(number, i, rand.nextInt(1 << 30), rand.nextBoolean(), 
+								  rand.nextDouble(), "ACGTACGT");
+				}
+			}
+			out.close();
+			times[binary] = System.nanoTime() - begin;
+		}
+		
+		/*
+		 * Read the binary file back in place and compare
+		 */
+		rand.setSeed(7);
+		int numMotifs = 0;
+		int numMatching = 0;
+		int site = 0;
+		long begin = System.nanoTime();
+		ResultReader in = new ResultReader(binaryFile);
+		while (in.next())
+		{
+			if (in.isMotif())
+			{
+				Motif motif = in.getMotif();
+				Motif expected = (numMotifs++ == 0) ? first : second;
+				boolean same = motif.toString().equals(expected.toString());
+				System.out.println("Motif " + in.getMotifNumber() + " read back: " + same);
+				check(same, "Motif " + in.getMotifNumber() + " changed in the round trip");
+				check(in.getMotifNumber() == numMotifs, "Motifs were numbered out of order");
+				site = 0;
+				continue;
+			}
+			if (in.getMotifNumber() == numMotifs 
+					&& in.getSequence() == site++
+					&& in.getStart() == rand.nextInt(1 << 30) 
+					&& in.isReverseStrand() == rand.nextBoolean() 
+					&& in.getPosterior() == rand.nextDouble())
+			{
+				numMatching++;
+			}
+		}
+		in.close();
+		long readTime = System.nanoTime() - begin;
+		
+		System.out.println("Sites read back: " + numMatching + " of " + 2 * numSites);
+		check(numMotifs == 2, "Read back " + numMotifs + " motifs instead of 2");
+		check(numMatching == 2 * numSites, "Sites changed in the round trip");
+		System.out.println("Text: " + textFile.length() / 1000000 + " MB in " 
+						   + times[0] / 1000000 + " ms");
+		System.out.println("Binary: " + binaryFile.length() / 1000000 + " MB in " 
+						   + times[1] / 1000000 + " ms, read back in " + readTime / 1000000 + " ms");
+		textFile.delete();
+		binaryFile.delete();
+		
+		/*
+		 * Printing a large matrix of start probabilities
+		 */
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		MotifLocations z = new MotifLocations(sequences, first);
+		begin = System.nanoTime();
+		String printed = z.toString();
+		System.out.println("Printed " + printed.length() + " characters of start probabilities in " 
+						   + (System.nanoTime() - begin) / 1000000 + " ms");
+	}
+	
+	public static void testJobPlanner()
+	{
+		/*
+		 * Corpora of random sequences of 200 bases with a planted motif, 
+		 * small enough to seed from every window and too large to
+		 */
+		String planted = "GTCCCAGGTA";
+		for (int numSequences : new int[] {20, 2000})
+		{
+			Random rand = new Random(8);
+			SequenceSet sequences = new SequenceSet();
+			int[] plantedStarts = new int[numSequences];
+			for (int i = 0; i < numSequences; i++)
+			{
+				StringBuilder sequence = new StringBuilder();
+				for (int j = 0; j < 200; j++)
+				{
+					sequence.append(MEME_OOPS.DNA_ALPHABET.charAt(rand.nextInt(4)));
+				}
+				plantedStarts[i] = rand.nextInt(200 - planted.length());
+				sequence.replace(plantedStarts[i], plantedStarts[i] + planted.length(), planted);
+				sequences.addSequence(sequence.toString());
+			}
+			
+			JobPlanner planner = new JobPlanner(8);
+			long begin = System.nanoTime();
+			JobPlan plan = planner.plan(sequences, planted.length(), MEME_OOPS.DNA_ALPHABET);
+			long planTime = System.nanoTime() - begin;
+			Pair<Motif, MotifLocations> result = planner.run(sequences, 
+															 planted.length(), 
+															 MEME_OOPS.DNA_ALPHABET, 
+															 plan);
+			
+			int found = 0;
+			for (int i = 0; i < numSequences; i++)
+			{
+				if (result.getSecond().maxProbabilityStartPosition(sequences.getSequence(i)) == plantedStarts[i])
+				{
+					found++;
+				}
+			}
+			System.out.println(plan);
+			System.out.println("Planned in " + planTime / 1000000 + " ms, planted motif found in " 
+							   + found + " of " + numSequences + " sequences\n");
+			
+			/*
+			 * Smaller memory budgets store the locations in single precision,
+			 * then not at all
+			 */
+			if (numSequences == 2000)
+			{
+				planner.setMemoryBudget(plan.getLocationBytes());
+				System.out.println("Budget of the double locations: " 
+								   + planner.plan(sequences, planted.length(), MEME_OOPS.DNA_ALPHABET).getSettings());
+				planner.setMemoryBudget(plan.getLocationBytes() / 4);
+				System.out.println("Budget of a quarter of them: " 
+								   + planner.plan(sequences, planted.length(), MEME_OOPS.DNA_ALPHABET).getSettings());
+			}
+		}
+	}
+	
+	public static void testPlantedCorpus()
+	{
+		/*
+		 * Noiseless sites match the consensus, and the background outside
+		 * them follows the composition
+		 */
+		PlantedCorpus corpus = new PlantedCorpus(200, 300, 12, 0.0, 
+												 PlantedCorpus.parseBackground("2,1,1,2"), 5);
+		int matches = 0;
+		int[] counts = new int[4];
+		for (int i = 0; i < 200; i++)
+		{
+			String sequence = corpus.getSequences().getSequence(i);
+			int start = corpus.getStarts()[i];
+			if (sequence.substring(start, start + 12).equals(corpus.getMotif()))
+			{
+				matches++;
+			}
+			for (int j = 0; j < sequence.length(); j++)
+			{
+				if (j < start || j >= start + 12)
+				{
+					counts[MEME_OOPS.DNA_ALPHABET.indexOf(sequence.charAt(j))]++;
+				}
+			}
+		}
+		System.out.println("Consensus " + corpus.getMotif() + " planted in " + matches + " of 200 sequences");
+		System.out.println("Background counts " + Arrays.toString(counts) + ", expected 2:1:1:2");
+		
+		/*
+		 * The full pipeline recovers noisy sites
+		 */
+		corpus = new PlantedCorpus(200, 200, 10, 0.1, 
+								   PlantedCorpus.parseBackground("1,1,1,1"), 6);
+		try
+		{
+			File file = File.createTempFile("planted", ".txt");
+			corpus.write(file);
+			System.out.println("Recovered " + corpus.getRecovery(RegressionHarness.runPipeline(file, 10, 1)) 
+							   + " of the sites with 10% noise");
+			file.delete();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	public static void testUnknownResidues()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		String sequence = sequences.getSequence(0);
+		sequences.addSequence(sequence.substring(0, 100) + "N" + sequence.substring(101));
+		Motif start = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		
+		/*
+		 * Every E-Step, the M-Step counts and fused EM reject a residue 
+		 * outside the alphabet alike
+		 */
+		String[] modes = {"dense", "parallel", "block", "float", "pruned", "fused", "counts"};
+		for (String mode : modes)
+		{
+			boolean rejected = false;
+			ParallelEStep parallel = null;
+			try
+			{
+				if (mode.equals("dense"))
+				{
+					MEME_OOPS.eStep(sequences, start, new MotifLocations(sequences, start));
+				}
+				else if (mode.equals("parallel"))
+				{
+					parallel = new ParallelEStep(2);
+					parallel.eStep(sequences, start, new MotifLocations(sequences, start));
+				}
+				else if (mode.equals("block"))
+				{
+					new BlockEStep(KmerBlockScorer.defaultBlockSize(4)).eStep(sequences, 
+							start, new MotifLocations(sequences, start));
+				}
+				else if (mode.equals("float"))
+				{
+					new SinglePrecisionEStep().eStep(sequences, 
+							start, new MotifLocations(sequences, start, true));
+				}
+				else if (mode.equals("pruned"))
+				{
+					new PrunedEStep(PrunedEStep.DEFAULT_LOG_THRESHOLD, false).eStep(sequences, 
+							start, new SparseMotifLocations(sequences.getNumSequences()));
+				}
+				else if (mode.equals("fused"))
+				{
+					new FusedEM().run(sequences, start);
+				}
+				else
+				{
+					new EMWorkspace(sequences, start.getWidth(), MEME_OOPS.DNA_ALPHABET);
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				rejected = true;
+				System.out.println(mode + ": " + e.getMessage());
+			}
+			finally
+			{
+				if (parallel != null)
+				{
+					parallel.shutdown();
+				}
+			}
+			check(rejected, "The " + mode + " step accepted a residue outside the alphabet");
+		}
+		
+		/*
+		 * Statistics skip it
+		 */
+		BackgroundEstimator background = new BackgroundEstimator(MEME_OOPS.DNA_ALPHABET, 1.0);
+		background.consume(sequences, 0);
+		System.out.println("Background: " + background);
+	}
+	
+	public static void testCollapsedDuplicates()
+	{
+		SequenceSet distinct = SequenceReader.readFile("./data/hw1_sequences.txt");
+		
+		/*
+		 * Repeat some sequences, interleaved with the others
+		 */
+		SequenceSet expanded = new SequenceSet();
+		for (int i = 0; i < distinct.getNumSequences(); i++)
+		{
+			expanded.addSequence(distinct.getSequence(i));
+			if (i % 3 == 0)
+			{
+				expanded.addSequence(distinct.getSequence(0));
+				expanded.addSequence(distinct.getSequence(i));
+			}
+		}
+		SequenceSet collapsed = expanded.collapseDuplicates();
+		System.out.println(expanded.getNumSequences() + " sequences collapsed into " 
+				+ collapsed.getNumSequences());
+		check(collapsed.getNumSequences() == distinct.getNumSequences(), 
+			  "Duplicates were not collapsed");
+		check(collapsed.getTotalWeight() == expanded.getNumSequences(), 
+			  "Collapsed weights do not add up to the expanded set");
+		
+		Motif start = new Motif("GTCCCAGGGTGGGC", MEME_OOPS.DNA_ALPHABET, 0.5);
+		int width = start.getWidth();
+		String[] modes = {"dense", "parallel", "block", "pruned"};
+		for (String mode : modes)
+		{
+			EMWorkspace[] workspaces = {new EMWorkspace(expanded, width, MEME_OOPS.DNA_ALPHABET), 
+										new EMWorkspace(collapsed, width, MEME_OOPS.DNA_ALPHABET)};
+			for (EMWorkspace workspace : workspaces)
+			{
+				workspace.getMotif().copyFrom(start);
+				if (mode.equals("parallel"))
+				{
+					workspace.setNumThreads(2);
+				}
+				else if (mode.equals("block"))
+				{
+					workspace.setBlockScoring(KmerBlockScorer.defaultBlockSize(4));
+				}
+				else if (mode.equals("pruned"))
+				{
+					workspace.setPruning(new PrunedEStep(PrunedEStep.DEFAULT_LOG_THRESHOLD, false));
+				}
+				for (int t = 0; t < 20; t++)
+				{
+					workspace.iterate();
+				}
+				workspace.setNumThreads(0);
+			}
+			
+			double[] expandedParams = new double[4 * (width + 1)];
+			double[] collapsedParams = new double[4 * (width + 1)];
+			workspaces[0].getMotif().getParameters(expandedParams);
+			workspaces[1].getMotif().getParameters(collapsedParams);
+			double maxParamError = 0.0;
+			for (int k = 0; k < expandedParams.length; k++)
+			{
+				maxParamError = Math.max(maxParamError, Math.abs(expandedParams[k] - collapsedParams[k]));
+			}
+			double logLikelihoodError = Math.abs(workspaces[0].getLogLikelihood() 
+					- workspaces[1].getLogLikelihood());
+			
+			/*
+			 * Posteriors of the dense locations, mapped back onto the 
+			 * expanded sequences
+			 */
+			double maxZError = 0.0;
+			if (!mode.equals("pruned"))
+			{
+				for (int i = 0; i < expanded.getNumSequences(); i++)
+				{
+					for (int j = 0; j < expanded.getSequence(i).length() - width + 1; j++)
+					{
+						maxZError = Math.max(maxZError, 
+								Math.abs(workspaces[0].getLocations().getLocationProbability(i, j) 
+										 - workspaces[1].getLocations().getLocationProbability(collapsed.getEntry(i), j)));
+					}
+				}
+			}
+			
+			ArrayList<Pair<Integer, String>> expandedSites 
+					= expanded.pickOutMotifs(workspaces[0].getMotif(), workspaces[0].getLocations());
+			ArrayList<Pair<Integer, String>> collapsedSites = collapsed.expandToSource(
+					collapsed.pickOutMotifs(workspaces[1].getMotif(), workspaces[1].getLocations()));
+			boolean sameSites = true;
+			for (int i = 0; i < expandedSites.size(); i++)
+			{
+				sameSites &= expandedSites.get(i).getFirst().equals(collapsedSites.get(i).getFirst());
+			}
+			
+			System.out.println(mode + ": parameter difference " + maxParamError 
+					+ ", log likelihood difference " + logLikelihoodError 
+					+ ", posterior difference " + maxZError + ", same sites " + sameSites);
+			check(maxParamError < 1e-12, mode + ": collapsed parameters differ by " + maxParamError);
+			check(logLikelihoodError < 1e-9, mode + ": collapsed log likelihood differs by " 
+					+ logLikelihoodError);
+			check(maxZError < 1e-12, mode + ": collapsed posteriors differ by " + maxZError);
+			check(expandedSites.size() == expanded.getNumSequences() && sameSites, 
+				  mode + ": collapsed sites differ");
+		}
+	}
+	
+	public static void testLowComplexityMasker()
+	{
+		SequenceSet sequences = SequenceReader.readFile("./data/hw1_sequences.txt");
+		LowComplexityMasker masker = new LowComplexityMasker();
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			check(masker.findMasked(sequences.getSequence(i)).isEmpty(), 
+				  "Sequence " + i + " has no low-complexity region but was masked");
+		}
+		
+		/*
+		 * Plant a poly-A run and a dinucleotide repeat in every sequence.  
+		 * Unmasked, the repeats explain the data better than any other 
+		 * window.
+		 */
+		String polyA = "";
+		String repeat = "";
+		for (int j = 0; j < 20; j++)
+		{
+			polyA += "AA";
+			repeat += "CA";
+		}
+		SequenceSet planted = new SequenceSet();
+		for (int i = 0; i < sequences.getNumSequences(); i++)
+		{
+			String sequence = sequences.getSequence(i);
+			planted.addSequence(sequence.substring(0, 20) + polyA 
+					+ sequence.substring(60, 120) + repeat + sequence.substring(160));
+		}
+		for (int i = 0; i < planted.getNumSequences(); i++)
+		{
+			BitSet masked = masker.findMasked(planted.getSequence(i));
+			check(masked.nextClearBit(20) >= 60, "Poly-A run of sequence " + i + " was not masked");
+			check(masked.nextClearBit(120) >= 160, "Repeat of sequence " + i + " was not masked");
+		}
+		
+		int width = 14;
+		Motif unmaskedSeed = MEME_OOPS.getStartingMotif(planted, width, MEME_OOPS.DNA_ALPHABET, 3);
+		
+		long numMasked = masker.mask(planted);
+		System.out.println(numMasked + " residues masked");
+		check(numMasked >= 80 * planted.getNumSequences(), "Too few residues masked");
+		check(planted.hasUsableMask(0, width), "Masking left no window to search");
+		
+		/*
+		 * The consensus of a seed is the window it was made from
+		 */
+		Motif[] seeds = {unmaskedSeed, 
+						 MEME_OOPS.getStartingMotif(planted, width, MEME_OOPS.DNA_ALPHABET, 3), 
+						 new SampledSeeding(3, 2.0, 3, 0.1, 3, 42L).getStartingMotif(planted, width, MEME_OOPS.DNA_ALPHABET, 3)};
+		boolean[] fromMasked = new boolean[seeds.length];
+		for (int m = 0; m < seeds.length; m++)
+		{
+			String consensus = "";
+			for (int k = 1; k <= width; k++)
+			{
+				char best = 'A';
+				for (char symbol : seeds[m].getAlphabet())
+				{
+					if (seeds[m].getProbability(symbol, k) > seeds[m].getProbability(best, k))
+					{
+						best = symbol;
+					}
+				}
+				consensus += best;
+			}
+			for (int i = 0; i < planted.getNumSequences(); i++)
+			{
+				String sequence = planted.getSequence(i);
+				for (int j = 0; j < sequence.length() - width + 1; j++)
+				{
+					if (planted.isWindowMasked(i, j, width) 
+							&& sequence.startsWith(consensus, j))
+					{
+						fromMasked[m] = true;
+					}
+				}
+			}
+		}
+		check(fromMasked[0], "Without masking the repeats should win seeding");
+		check(!fromMasked[1], "Exhaustive seeding chose a masked window");
+		check(!fromMasked[2], "Sampled seeding chose a masked window");
+		
+		KmerSeedIndex index = new KmerSeedIndex(MEME_OOPS.DNA_ALPHABET, 6);
+		index.consume(planted, 0);
+		for (Pair<Integer, Integer> seed : index.getSeeds(planted, width, KmerSeedIndex.DEFAULT_NUM_SEEDS))
+		{
+			check(!planted.isWindowMasked(seed.getFirst(), seed.getSecond(), width), 
+				  "Seed index chose a masked window");
+		}
+		
+		/*
+		 * Start each E-Step from the poly-A run itself, so that only the mask
+		 * keeps the motif off the repeats
+		 */
+		Motif start = new Motif(polyA.substring(0, width), MEME_OOPS.DNA_ALPHABET, 0.6);
+		String[] modes = {"dense", "parallel", "block", "float", "pruned"};
+		for (String mode : modes)
+		{
+			EMWorkspace workspace = new EMWorkspace(planted, width, MEME_OOPS.DNA_ALPHABET, 
+													mode.equals("float"));
+			workspace.getMotif().copyFrom(start);
+			if (mode.equals("parallel"))
+			{
+				workspace.setNumThreads(2);
+			}
+			else if (mode.equals("block"))
+			{
+				workspace.setBlockScoring(KmerBlockScorer.defaultBlockSize(4));
+			}
+			else if (mode.equals("pruned"))
+			{
+				workspace.setPruning(new PrunedEStep(PrunedEStep.DEFAULT_LOG_THRESHOLD, false));
+			}
+			for (int t = 0; t < 10; t++)
+			{
+				workspace.iterate();
+			}
+			workspace.setNumThreads(0);
+			
+			ArrayList<Pair<Integer, String>> sites;
+			if (mode.equals("pruned"))
+			{
+				SparseMotifLocations z = workspace.getSparseLocations();
+				for (int i = 0; i < planted.getNumSequences(); i++)
+				{
+					for (int e = 0; e < z.getNumEntries(i); e++)
+					{
+						check(z.getProbability(i, e) == 0.0 
+							  || !planted.isWindowMasked(i, z.getPosition(i, e), width), 
+							  mode + " E-Step gave a masked window a posterior");
+					}
+				}
+				sites = planted.pickOutMotifs(workspace.getMotif(), z);
+			}
+			else
+			{
+				MotifLocations z = workspace.getLocations();
+				for (int i = 0; i < planted.getNumSequences(); i++)
+				{
+					for (int j = 0; j < planted.getSequence(i).length() - width + 1; j++)
+					{
+						check(z.getLocationProbability(i, j) == 0.0 
+							  || !planted.isWindowMasked(i, j, width), 
+							  mode + " E-Step gave a masked window a posterior");
+					}
+				}
+				sites = planted.pickOutMotifs(workspace.getMotif(), z);
+			}
+			for (int i = 0; i < sites.size(); i++)
+			{
+				check(!planted.isWindowMasked(i, sites.get(i).getFirst(), width), 
+					  mode + " picked a masked site in sequence " + i);
+			}
+		}
+		
+		FusedEM fused = new FusedEM();
+		Motif result = fused.run(planted, start);
+		ArrayList<Pair<Integer, String>> sites = planted.pickOutMotifs(result, fused.getBestStarts());
+		for (int i = 0; i < sites.size(); i++)
+		{
+			check(!planted.isWindowMasked(i, sites.get(i).getFirst(), width), 
+				  "Fused EM picked a masked site in sequence " + i);
+		}
+	}
 }
-